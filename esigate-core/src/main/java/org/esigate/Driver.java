@@ -15,13 +15,14 @@
 
 package org.esigate;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
-import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.HttpEntity;
@@ -29,7 +30,6 @@ import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.util.EntityUtils;
 import org.esigate.RequestExecutor.RequestExecutorBuilder;
@@ -37,6 +37,7 @@ import org.esigate.api.RedirectStrategy2;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.ProxyEvent;
 import org.esigate.events.impl.RenderEvent;
+import org.esigate.extension.Extension;
 import org.esigate.extension.ExtensionFactory;
 import org.esigate.http.BasicCloseableHttpResponse;
 import org.esigate.http.ContentTypeHelper;
@@ -46,9 +47,14 @@ import org.esigate.http.HttpResponseUtils;
 import org.esigate.http.IncomingRequest;
 import org.esigate.http.OutgoingRequest;
 import org.esigate.http.ResourceUtils;
+import org.esigate.http.SegmentedEntity;
 import org.esigate.impl.DriverRequest;
 import org.esigate.impl.FragmentRedirectStrategy;
 import org.esigate.impl.UrlRewriter;
+import org.esigate.renderers.RenderingHttpEntity;
+import org.esigate.renderers.RenderingPipeline;
+import org.esigate.util.BufferSizeHints;
+import org.esigate.util.ByteBudget;
 import org.esigate.vars.VariablesResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,12 +72,19 @@ public final class Driver {
     private static final String CACHE_RESPONSE_PREFIX = "response_";
     private static final Logger LOG = LoggerFactory.getLogger(Driver.class);
     private static final int MAX_REDIRECTS = 50;
+    /** Size of a character in a String, as counted against maxInFlightBytes. */
+    private static final int BYTES_PER_CHAR = 2;
     private DriverConfiguration config;
     private EventManager eventManager;
     private RequestExecutor requestExecutor;
     private ContentTypeHelper contentTypeHelper;
     private UrlRewriter urlRewriter;
     private HeaderManager headerManager;
+    private BufferSizeHints bodySizeHints;
+    private BufferSizeHints renderingSizeHints;
+    private ByteBudget inFlightBytes;
+    private int inFlightBytesTimeout;
+    private List<Extension> extensions;
     private final RedirectStrategy2 redirectStrategy = new FragmentRedirectStrategy();
 
     public static class DriverBuilder {
@@ -94,13 +107,22 @@ public final class Driver {
             driver.config = new DriverConfiguration(name, properties);
             driver.contentTypeHelper = new ContentTypeHelper(properties);
             // Load extensions.
-            ExtensionFactory.getExtensions(properties, Parameters.EXTENSIONS, driver);
+            driver.extensions = ExtensionFactory.getExtensions(properties, Parameters.EXTENSIONS, driver);
+            // Some load balancing strategies need to listen to events
+            if (driver.config.getBaseUrlRetrieveStrategy() instanceof Extension) {
+                ((Extension) driver.config.getBaseUrlRetrieveStrategy()).init(driver, properties);
+            }
             UrlRewriter urlRewriter = new UrlRewriter();
             driver.requestExecutor =
                     requestExecutorBuilder.setDriver(driver).setEventManager(driver.eventManager)
                             .setProperties(properties).setContentTypeHelper(driver.contentTypeHelper).build();
             driver.urlRewriter = urlRewriter;
             driver.headerManager = new HeaderManager(urlRewriter);
+            int maxBufferSizeHints = Parameters.MAX_BUFFER_SIZE_HINTS.getValue(properties);
+            driver.bodySizeHints = new BufferSizeHints(maxBufferSizeHints);
+            driver.renderingSizeHints = new BufferSizeHints(maxBufferSizeHints);
+            driver.inFlightBytes = new ByteBudget(Parameters.MAX_IN_FLIGHT_BYTES.getValue(properties));
+            driver.inFlightBytesTimeout = Parameters.IN_FLIGHT_BYTES_TIMEOUT.getValue(properties);
 
             return driver;
         }
@@ -201,7 +223,7 @@ public final class Driver {
                 throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Invalid response from server", e);
             }
             response = this.headerManager.copyHeaders(outgoingRequest, incomingRequest, response);
-            currentValue = HttpResponseUtils.toString(response, this.eventManager);
+            currentValue = readBody(pageUrl, response);
             // Cache
             cachedValue = new ImmutablePair<>(currentValue, response);
             incomingRequest.setAttribute(cacheKey, cachedValue);
@@ -211,10 +233,14 @@ public final class Driver {
 
         logAction("render", pageUrl, renderers);
 
-        // Apply renderers
-        currentValue = performRendering(pageUrl, driverRequest, response, currentValue, renderers);
+        // Included fragments are counted but never wait: the page including them is already being processed
+        try (ByteBudget.Reservation reservation = inFlightBytes.forceReserve(getMemorySize(currentValue.length()))) {
+            // Apply renderers
+            List<CharSequence> renderedValue =
+                    performRendering(pageUrl, driverRequest, response, currentValue, renderers);
 
-        response.setEntity(new StringEntity(currentValue, HttpResponseUtils.getContentType(response)));
+            response.setEntity(new SegmentedEntity(renderedValue, HttpResponseUtils.getContentType(response)));
+        }
 
         return response;
     }
@@ -363,14 +389,36 @@ public final class Driver {
 
         LOG.debug("'{}' is text : will apply renderers.", pageUrl);
 
-        // Get response body
-        String currentValue = HttpResponseUtils.toString(response, this.eventManager);
-
-        // Perform rendering
-        currentValue = performRendering(pageUrl, originalRequest, response, currentValue, renderers);
+        HttpEntity entity = response.getEntity();
+        HttpEntity transformedHttpEntity;
+        if (entity == null || this.eventManager.hasListeners(EventManager.EVENT_READ_ENTITY)) {
+            // Released once the rendered page has been sent
+            ByteBudget.Reservation reservation = reserveInFlightBytes(pageUrl, response);
+            transformedHttpEntity = null;
+            try {
+                // Get response body
+                String currentValue = readBody(pageUrl, response);
+                reservation.resize(getMemorySize(currentValue.length()));
+
+                // Perform rendering
+                List<CharSequence> renderedValue =
+                        performRendering(pageUrl, originalRequest, response, currentValue, renderers);
+                transformedHttpEntity = new SegmentedEntity(renderedValue, ContentType.get(entity), reservation);
+            } finally {
+                if (transformedHttpEntity == null) {
+                    reservation.close();
+                }
+            }
+        } else {
+            transformedHttpEntity = performStreamingRendering(pageUrl, originalRequest, response, renderers);
+            if (transformedHttpEntity instanceof RenderingHttpEntity) {
+                // The page is read while it is sent, closing the response must still release the connection
+                response.setEntity(transformedHttpEntity);
+                return response;
+            }
+        }
 
         // Generate the new response.
-        HttpEntity transformedHttpEntity = new StringEntity(currentValue, ContentType.get(response.getEntity()));
         CloseableHttpResponse transformedResponse =
                 BasicCloseableHttpResponse.adapt(new BasicHttpResponse(response.getStatusLine()));
         transformedResponse.setHeaders(response.getAllHeaders());
@@ -379,6 +427,132 @@ public final class Driver {
 
     }
 
+    /**
+     * Performs rendering on an http response body without reading it as a String first.
+     * <p>
+     * If all the renderers are {@link org.esigate.renderers.FilterRenderer}s, the body is rendered on the fly while the
+     * returned entity is sent, so large pages are processed in constant memory, and
+     * {@link EventManager#EVENT_RENDER_POST} is fired once the entity has been sent. Otherwise, errors must be known
+     * before the response is sent and the body is rendered immediately.
+     * 
+     * @param pageUrl
+     *            The remove url from which the body was retrieved.
+     * @param originalRequest
+     *            The request received by esigate.
+     * @param response
+     *            The Http Reponse, with an entity.
+     * @param renderers
+     *            list of renderers to apply.
+     * @return The rendered entity.
+     * @throws HttpErrorPage
+     * @throws IOException
+     */
+    private HttpEntity performStreamingRendering(String pageUrl, DriverRequest originalRequest,
+            CloseableHttpResponse response, Renderer[] renderers) throws IOException, HttpErrorPage {
+        final RenderEvent renderEvent = new RenderEvent(pageUrl, originalRequest, response);
+        renderEvent.getRenderers().addAll(Arrays.asList(renderers));
+
+        this.eventManager.fire(EventManager.EVENT_RENDER_PRE, renderEvent);
+        if (RenderingPipeline.isStreaming(renderEvent.getRenderers())) {
+            RenderingHttpEntity entity =
+                    new RenderingHttpEntity(originalRequest, response.getEntity(), renderEvent.getRenderers());
+            // The page is rendered while it is sent
+            entity.setRenderedCallback(new Runnable() {
+                @Override
+                public void run() {
+                    eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
+                }
+            });
+            return entity;
+        }
+        // Released once the rendered page has been sent
+        ByteBudget.Reservation reservation = reserveInFlightBytes(pageUrl, response);
+        HttpEntity result = null;
+        try {
+            String body = readBody(pageUrl, response);
+            reservation.resize(getMemorySize(body.length()));
+            result =
+                    new SegmentedEntity(RenderingPipeline.renderToSegments(originalRequest, body,
+                            renderEvent.getRenderers(), renderingSizeHints, pageUrl), ContentType.get(response
+                            .getEntity()), reservation);
+        } finally {
+            if (result == null) {
+                reservation.close();
+            }
+        }
+        this.eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
+
+        return result;
+    }
+
+    /**
+     * @param chars
+     *            a number of characters
+     * @return the memory used by the characters in a String
+     */
+    private static long getMemorySize(long chars) {
+        return chars * BYTES_PER_CHAR;
+    }
+
+    /**
+     * Reserves memory for a page that is going to be read and rendered, waiting for other pages to be rendered if
+     * maxInFlightBytes is reached. The size of the page is estimated from its Content-Length or from the previous
+     * responses for the same url.
+     * 
+     * @param pageUrl
+     *            The remove url from which the body is retrieved.
+     * @param response
+     *            The Http Reponse.
+     * @return The reservation, to be closed once the rendered page has been sent.
+     * @throws HttpErrorPage
+     *             If the memory is not available in time, the response is then closed
+     */
+    private ByteBudget.Reservation reserveInFlightBytes(String pageUrl, CloseableHttpResponse response)
+            throws HttpErrorPage {
+        HttpEntity entity = response.getEntity();
+        // Most pages use a single byte per character, so the Content-Length is close to the number of characters
+        long estimatedSize = entity == null ? 0 : entity.getContentLength();
+        if (estimatedSize < 0) {
+            estimatedSize = bodySizeHints.predict(pageUrl);
+        }
+        estimatedSize = getMemorySize(estimatedSize);
+        ByteBudget.Reservation reservation;
+        try {
+            reservation = inFlightBytes.reserve(estimatedSize, inFlightBytesTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reservation = null;
+        }
+        if (reservation == null) {
+            LOG.warn("'{}' not rendered: maxInFlightBytes reached", pageUrl);
+            try {
+                response.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close response", e);
+            }
+            throw new HttpErrorPage(HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable",
+                    "Too many pages being rendered");
+        }
+        return reservation;
+    }
+
+    /**
+     * Reads the body of a response. When its length is unknown, the buffer is allocated using the sizes of the previous
+     * responses for the same url.
+     * 
+     * @param pageUrl
+     *            The remove url from which the body was retrieved.
+     * @param response
+     *            The Http Reponse.
+     * @return The body as string or the reason phrase if body was empty.
+     * @throws HttpErrorPage
+     */
+    private String readBody(String pageUrl, CloseableHttpResponse response) throws HttpErrorPage {
+        String body = HttpResponseUtils.toString(response, this.eventManager, bodySizeHints.predict(pageUrl));
+        bodySizeHints.record(pageUrl, body.length());
+        return body;
+    }
+
     /**
      * Performs rendering (apply a render list) on an http response body (as a String).
      * 
@@ -392,26 +566,21 @@ public final class Driver {
      *            The body of the Http Response which will be rendered.
      * @param renderers
      *            list of renderers to apply.
-     * @return The rendered response body.
+     * @return The rendered response body, as segments to be written one after the other.
      * @throws HttpErrorPage
      * @throws IOException
      */
-    private String performRendering(String pageUrl, DriverRequest originalRequest, CloseableHttpResponse response,
-            String body, Renderer[] renderers) throws IOException, HttpErrorPage {
+    private List<CharSequence> performRendering(String pageUrl, DriverRequest originalRequest,
+            CloseableHttpResponse response, String body, Renderer[] renderers) throws IOException, HttpErrorPage {
         // Start rendering
         RenderEvent renderEvent = new RenderEvent(pageUrl, originalRequest, response);
         // Create renderer list from parameters.
         renderEvent.getRenderers().addAll(Arrays.asList(renderers));
 
-        String currentBody = body;
-
         this.eventManager.fire(EventManager.EVENT_RENDER_PRE, renderEvent);
-        for (Renderer renderer : renderEvent.getRenderers()) {
-            StringBuilderWriter stringWriter = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
-            renderer.render(originalRequest, currentBody, stringWriter);
-            stringWriter.close();
-            currentBody = stringWriter.toString();
-        }
+        List<CharSequence> currentBody =
+                RenderingPipeline.renderToSegments(originalRequest, body, renderEvent.getRenderers(),
+                        renderingSizeHints, pageUrl);
         this.eventManager.fire(EventManager.EVENT_RENDER_POST, renderEvent);
 
         return currentBody;
@@ -448,4 +617,19 @@ public final class Driver {
         return urlRewriter;
     }
 
+    /**
+     * Stops the background tasks of the extensions and of the load balancing strategy, once the driver has been
+     * replaced by a new configuration.
+     */
+    void close() {
+        for (Extension extension : extensions) {
+            if (extension instanceof Closeable) {
+                IOUtils.closeQuietly((Closeable) extension);
+            }
+        }
+        if (config.getBaseUrlRetrieveStrategy() instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) config.getBaseUrlRetrieveStrategy());
+        }
+    }
+
 }
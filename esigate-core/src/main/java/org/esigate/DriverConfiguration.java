@@ -22,7 +22,10 @@ import java.util.Properties;
 
 import org.esigate.api.BaseUrlRetrieveStrategy;
 import org.esigate.impl.UriMapping;
+import org.esigate.url.ConsistentHashBaseUrlRetrieveStrategy;
+import org.esigate.url.HealthCheckingBaseUrlRetrieveStrategy;
 import org.esigate.url.IpHashBaseUrlRetrieveStrategy;
+import org.esigate.url.LeastLoadBaseUrlRetrieveStrategy;
 import org.esigate.url.RoundRobinBaseUrlRetrieveStrategy;
 import org.esigate.url.SingleBaseUrlRetrieveStrategy;
 import org.esigate.url.StickySessionBaseUrlRetrieveStrategy;
@@ -88,9 +91,16 @@ public class DriverConfiguration {
                 urlStrategy = new IpHashBaseUrlRetrieveStrategy(baseURLs);
             } else if (Parameters.STICKYSESSION.equalsIgnoreCase(strategy)) {
                 urlStrategy = new StickySessionBaseUrlRetrieveStrategy(baseURLs);
+            } else if (Parameters.LEASTLOAD.equalsIgnoreCase(strategy)) {
+                urlStrategy = new LeastLoadBaseUrlRetrieveStrategy(baseURLs);
+            } else if (Parameters.CONSISTENTHASH.equalsIgnoreCase(strategy)) {
+                urlStrategy = new ConsistentHashBaseUrlRetrieveStrategy(baseURLs);
             } else {
                 throw new ConfigurationException("No such BaseUrlRetrieveStrategy '" + strategy + "'");
             }
+            if (HealthCheckingBaseUrlRetrieveStrategy.isEnabled(props)) {
+                urlStrategy = new HealthCheckingBaseUrlRetrieveStrategy(baseURLs, urlStrategy, props);
+            }
         }
         return urlStrategy;
     }
@@ -24,12 +24,19 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
@@ -40,6 +47,7 @@ import org.esigate.Driver.DriverBuilder;
 import org.esigate.http.IncomingRequest;
 import org.esigate.impl.IndexedInstances;
 import org.esigate.impl.UriMapping;
+import org.esigate.util.SharedMetrics;
 import org.esigate.util.UriUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -172,21 +180,89 @@ public final class DriverFactory {
         }
 
         // Merge with default properties
-        Map<String, Driver> newInstances = new HashMap<>();
+        Map<String, Properties> newInstancesProps = new HashMap<>();
         for (Entry<String, Properties> entry : driversProps.entrySet()) {
             String name = entry.getKey();
             Properties properties = new Properties();
             properties.putAll(defaultProperties);
             properties.putAll(entry.getValue());
-            newInstances.put(name, createDriver(name, properties));
+            newInstancesProps.put(name, properties);
         }
-        if (newInstances.get(DEFAULT_INSTANCE_NAME) == null
+        if (newInstancesProps.get(DEFAULT_INSTANCE_NAME) == null
                 && Parameters.REMOTE_URL_BASE.getValue(defaultProperties) != null) {
 
-            newInstances.put(DEFAULT_INSTANCE_NAME, createDriver(DEFAULT_INSTANCE_NAME, defaultProperties));
+            newInstancesProps.put(DEFAULT_INSTANCE_NAME, defaultProperties);
         }
 
+        long start = System.currentTimeMillis();
+        Map<String, Driver> newInstances = createDrivers(newInstancesProps);
+        LOG.info("{} driver(s) configured in {} ms", newInstances.size(), System.currentTimeMillis() - start);
+
+        IndexedInstances previous = instances;
         instances = new IndexedInstances(newInstances);
+        retire(previous.getInstances().values(), newInstances.values());
+    }
+
+    /**
+     * Releases what the drivers replaced by a new configuration have registered globally and stops their background
+     * tasks.
+     */
+    private static void retire(Collection<Driver> previous, Collection<Driver> current) {
+        for (Driver driver : previous) {
+            if (!current.contains(driver)) {
+                SharedMetrics.removeGauges(driver);
+                driver.close();
+            }
+        }
+    }
+
+    /**
+     * Creates the drivers in parallel, as each of them may take some time to initialize its extensions, cache and
+     * connection pool.
+     */
+    private static Map<String, Driver> createDrivers(Map<String, Properties> driversProps) {
+        Map<String, Driver> result = new HashMap<>();
+        if (driversProps.size() <= 1) {
+            for (Entry<String, Properties> entry : driversProps.entrySet()) {
+                result.put(entry.getKey(), createDriver(entry.getKey(), entry.getValue()));
+            }
+            return result;
+        }
+        int threads = Math.min(driversProps.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "esigate-configuration");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            Map<String, Future<Driver>> futures = new HashMap<>();
+            for (final Entry<String, Properties> entry : driversProps.entrySet()) {
+                futures.put(entry.getKey(), executor.submit(new Callable<Driver>() {
+                    @Override
+                    public Driver call() {
+                        return createDriver(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+            for (Entry<String, Future<Driver>> entry : futures.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            // Drivers are created without checked exceptions
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConfigurationException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
     }
 
     private static Driver createDriver(String name, Properties properties) {
@@ -255,13 +331,9 @@ public final class DriverFactory {
         }
 
         Driver driver = null;
-        UriMapping uriMapping = null;
-        for (UriMapping mapping : instances.getUrimappings().keySet()) {
-            if (mapping.matches(scheme, host, relativeUri)) {
-                driver = getInstance(instances.getUrimappings().get(mapping));
-                uriMapping = mapping;
-                break;
-            }
+        UriMapping uriMapping = instances.findUriMapping(scheme, host, relativeUri);
+        if (uriMapping != null) {
+            driver = getInstance(instances.getUrimappings().get(uriMapping));
         }
         if (driver == null) {
             throw new HttpErrorPage(HttpStatus.SC_NOT_FOUND, "Not found", "No mapping defined for this URI.");
@@ -306,9 +378,12 @@ public final class DriverFactory {
         }
 
         // Add new instance
-        newInstances.put(instanceName, instance);
+        Driver previous = newInstances.put(instanceName, instance);
 
         instances = new IndexedInstances(newInstances);
+        if (previous != null) {
+            retire(Collections.singleton(previous), newInstances.values());
+        }
     }
 
     /**
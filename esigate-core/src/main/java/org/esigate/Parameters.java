@@ -31,6 +31,7 @@ import org.esigate.util.ParameterBoolean;
 import org.esigate.util.ParameterCollection;
 import org.esigate.util.ParameterFloat;
 import org.esigate.util.ParameterInteger;
+import org.esigate.util.ParameterLong;
 import org.esigate.util.ParameterString;
 
 import java.util.Collection;
@@ -50,10 +51,21 @@ public final class Parameters {
     public static final Parameter<String> URI_ENCODING = new ParameterString("uriEncoding", "ISO-8859-1");
     public static final Parameter<Collection<String>> PARSABLE_CONTENT_TYPES = new ParameterCollection(
             "parsableContentTypes", "text/html", "application/xhtml+xml");
+    public static final Parameter<Integer> MAX_BUFFER_SIZE_HINTS = new ParameterInteger("maxBufferSizeHints", 1000);
     // Network settings
     public static final Parameter<Integer> MAX_CONNECTIONS_PER_HOST = new ParameterInteger("maxConnectionsPerHost", 20);
     public static final Parameter<Integer> CONNECT_TIMEOUT = new ParameterInteger("connectTimeout", 1000);
     public static final Parameter<Integer> SOCKET_TIMEOUT = new ParameterInteger("socketTimeout", 10000);
+    // Hedged requests
+    public static final Parameter<Boolean> HEDGING = new ParameterBoolean("hedging", false);
+    public static final Parameter<Integer> HEDGING_PERCENTILE = new ParameterInteger("hedgingPercentile", 95);
+    public static final Parameter<Integer> HEDGING_MIN_DELAY = new ParameterInteger("hedgingMinDelay", 10);
+    public static final Parameter<Float> HEDGING_BUDGET = new ParameterFloat("hedgingBudget", 0.05f);
+    // Memory limits
+    public static final Parameter<Long> SPILL_THRESHOLD = new ParameterLong("spillThreshold", 1000000L);
+    public static final Parameter<String> SPILL_DIRECTORY = new ParameterString("spillDirectory");
+    public static final Parameter<Long> MAX_IN_FLIGHT_BYTES = new ParameterLong("maxInFlightBytes", 0L);
+    public static final Parameter<Integer> IN_FLIGHT_BYTES_TIMEOUT = new ParameterInteger("inFlightBytesTimeout", 0);
     // Proxy settings
     public static final Parameter<String> PROXY_HOST = new ParameterString("proxyHost");
     public static final Parameter<Integer> PROXY_PORT = new ParameterInteger("proxyPort", 0);
@@ -72,9 +84,21 @@ public final class Parameters {
     public static final String STICKYSESSION = "stickysession";
     public static final String IPHASH = "iphash";
     public static final String ROUNDROBIN = "roundrobin";
+    public static final String LEASTLOAD = "leastload";
+    public static final String CONSISTENTHASH = "consistenthash";
     // Load-balancing
     public static final Parameter<String> REMOTE_URL_BASE_STRATEGY = new ParameterString("remoteUrlBaseStrategy",
             Parameters.ROUNDROBIN);
+    // Health checks
+    public static final Parameter<String> HEALTH_CHECK_PATH = new ParameterString("healthCheckPath");
+    public static final Parameter<Integer> HEALTH_CHECK_INTERVAL = new ParameterInteger("healthCheckInterval", 5000);
+    public static final Parameter<Integer> HEALTH_CHECK_HEALTHY_THRESHOLD = new ParameterInteger(
+            "healthCheckHealthyThreshold", 2);
+    public static final Parameter<Integer> HEALTH_CHECK_UNHEALTHY_THRESHOLD = new ParameterInteger(
+            "healthCheckUnhealthyThreshold", 2);
+    public static final Parameter<Integer> OUTLIER_CONSECUTIVE_ERRORS = new ParameterInteger(
+            "outlierConsecutiveErrors", 0);
+    public static final Parameter<Integer> OUTLIER_EJECTION_TIME = new ParameterInteger("outlierEjectionTime", 30000);
     // Extensions
     public static final Parameter<Collection<String>> EXTENSIONS = new ParameterCollection("extensions",
             FragmentLogging.class.getName(), FetchLogging.class.getName(),
@@ -17,6 +17,27 @@ package org.esigate.api;
 
 import org.esigate.http.IncomingRequest;
 
+/**
+ * Selects the base url of the backend a request is sent to, among the ones configured for a driver.
+ */
 public interface BaseUrlRetrieveStrategy {
+    /**
+     * @param originalRequest
+     *            the request received by esigate
+     * @return the base url
+     */
     String getBaseURL(IncomingRequest originalRequest);
+
+    /**
+     * Selects the base url for a given page or fragment, by default whatever the url requested.
+     * 
+     * @param originalRequest
+     *            the request received by esigate
+     * @param relUrl
+     *            the url requested to the backend, relative to the base url
+     * @return the base url
+     */
+    default String getBaseURL(IncomingRequest originalRequest, String relUrl) {
+        return getBaseURL(originalRequest);
+    }
 }
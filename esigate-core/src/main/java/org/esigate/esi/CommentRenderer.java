@@ -0,0 +1,93 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.esi;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.esigate.impl.DriverRequest;
+import org.esigate.renderers.BufferedFilterWriter;
+import org.esigate.renderers.FilterRenderer;
+
+/**
+ * Removes the start ("&lt;!--esi") and end ("--&gt;") of ESI comments while keeping their contents. This is a special
+ * construct to allow HTML marked up with ESI to render without processing: if the page is not processed, it will
+ * remain, becoming an HTML/XML comment tag.
+ * <p>
+ * This is the first pass of the ESI renderers.
+ * 
+ * @see <a href="http://www.w3.org/TR/esi-lang">ESI Language Specification 1.0</a>
+ */
+public class CommentRenderer implements FilterRenderer {
+    private static final String START = "<!--esi";
+    private static final String END = "-->";
+
+    private static final class CommentWriter extends BufferedFilterWriter {
+        private int depth = 0;
+
+        private CommentWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        protected int process(CharSequence input, boolean endOfInput) throws IOException {
+            int copied = 0;
+            int i = 0;
+            while (i < input.length()) {
+                char c = input.charAt(i);
+                if (c != '<' && c != '-') {
+                    i++;
+                    continue;
+                }
+                String token = c == '<' ? START : END;
+                int matched = 0;
+                while (matched < token.length() && i + matched < input.length()
+                        && input.charAt(i + matched) == token.charAt(matched)) {
+                    matched++;
+                }
+                if (matched < token.length() && i + matched == input.length() && !endOfInput) {
+                    // Maybe the beginning of a token
+                    getOut().append(input, copied, i);
+                    return i;
+                }
+                if (matched < token.length()) {
+                    i++;
+                } else if (c == '<' || depth > 0) {
+                    getOut().append(input, copied, i);
+                    depth += c == '<' ? 1 : -1;
+                    i += token.length();
+                    copied = i;
+                } else {
+                    // "-->" outside of an esi comment is kept
+                    i += token.length();
+                }
+            }
+            getOut().append(input, copied, input.length());
+            return input.length();
+        }
+    }
+
+    @Override
+    public void render(DriverRequest originalRequest, String src, Writer out) throws IOException {
+        new CommentWriter(out).process(src, true);
+    }
+
+    @Override
+    public Writer filter(DriverRequest originalRequest, Writer out) {
+        return new CommentWriter(out);
+    }
+
+}
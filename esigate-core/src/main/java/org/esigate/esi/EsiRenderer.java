@@ -19,12 +19,14 @@ import java.io.Writer;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.http.HttpStatus;
 import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
-import org.esigate.Renderer;
 import org.esigate.impl.DriverRequest;
 import org.esigate.parser.Parser;
+import org.esigate.renderers.FilterRenderer;
+import org.esigate.renderers.FilteredInputRenderer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,19 +39,18 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Francois-Xavier Bonnet
  */
-public class EsiRenderer implements Renderer, Appendable {
+public class EsiRenderer implements FilteredInputRenderer, Appendable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EsiRenderer.class);
 
     private static final Pattern PATTERN = Pattern
             .compile("(<esi:\\w+((\\s+\\w+(\\s*=\\s*(?:\".*?\"|'.*?'|[^'\">\\s]+))?)+\\s*|\\s*)/?>)|(</esi:[^>]*>)");
-    private static final Pattern PATTERN_COMMENTS = Pattern.compile("(<!--esi)|(-->)");
 
     private final Parser parser = new Parser(PATTERN, IncludeElement.TYPE, CommentElement.TYPE, RemoveElement.TYPE,
             VarsElement.TYPE, ChooseElement.TYPE, WhenElement.TYPE, OtherwiseElement.TYPE, TryElement.TYPE,
             AttemptElement.TYPE, ExceptElement.TYPE, InlineElement.TYPE, ReplaceElement.TYPE, FragmentElement.TYPE);
 
-    private final Parser parserComments = new Parser(PATTERN_COMMENTS, Comment.TYPE);
+    private final CommentRenderer commentRenderer = new CommentRenderer();
 
     private Writer out;
 
@@ -104,20 +105,33 @@ public class EsiRenderer implements Renderer, Appendable {
     @Override
     public void render(DriverRequest originalRequest, String content, Writer outWriter) throws IOException,
             HttpErrorPage {
-        if (name != null) {
-            LOG.debug("Rendering fragment {} in page {}", name, page);
-        }
-        this.out = outWriter;
         if (content == null) {
+            this.out = outWriter;
             return;
         }
 
         // Pass 1. Remove esi comments
-        StringBuilder contentWithoutComments = new StringBuilder(Parameters.DEFAULT_BUFFER_SIZE);
-        parserComments.setHttpRequest(originalRequest);
-        parserComments.parse(content, contentWithoutComments);
+        StringBuilderWriter contentWithoutComments =
+                new StringBuilderWriter(Math.max(content.length(), Parameters.DEFAULT_BUFFER_SIZE));
+        commentRenderer.render(originalRequest, content, contentWithoutComments);
 
         // Pass 2. Process ESI
+        renderFiltered(originalRequest, contentWithoutComments.getBuilder(), outWriter);
+    }
+
+    @Override
+    public FilterRenderer getInputFilter() {
+        return commentRenderer;
+    }
+
+    @Override
+    public void renderFiltered(DriverRequest originalRequest, CharSequence contentWithoutComments, Writer outWriter)
+            throws IOException, HttpErrorPage {
+        if (name != null) {
+            LOG.debug("Rendering fragment {} in page {}", name, page);
+        }
+        this.out = outWriter;
+
         parser.setHttpRequest(originalRequest);
         parser.parse(contentWithoutComments, this);
 
@@ -40,7 +40,10 @@ import org.slf4j.LoggerFactory;
  * Render events : Renderers are applied to the current page. This event can be used to inject additional renderers.
  * <ul>
  * <li>{@link EventManager#EVENT_RENDER_PRE} : before applying renderers</li>
- * <li>{@link EventManager#EVENT_RENDER_POST} : after applying renderers</li>
+ * <li>{@link EventManager#EVENT_RENDER_POST} : after applying renderers. When proxying a page with only filter
+ * renderers and no {@link EventManager#EVENT_READ_ENTITY} listener, the page is rendered later while it is sent and
+ * this event is fired once it has been sent, after {@link EventManager#EVENT_PROXY_POST}, or not at all if it is not
+ * sent.</li>
  * </ul>
  * <p>
  * Encoding event : response is read using the charset declared by HTTP headers.
@@ -146,6 +149,22 @@ public class EventManager {
         }
     }
 
+    /**
+     * Tells if firing an event would run any listener. This allows to skip the preparation of costly event details.
+     * 
+     * @param eventDefinition
+     * @return true if at least one listener is registered for this event
+     */
+    public boolean hasListeners(EventDefinition eventDefinition) {
+        List<IEventListener> eventListeners;
+        if (eventDefinition.getType() == EventDefinition.TYPE_POST) {
+            eventListeners = listenersPost.get(eventDefinition);
+        } else {
+            eventListeners = listeners.get(eventDefinition);
+        }
+        return eventListeners != null && !eventListeners.isEmpty();
+    }
+
     private void fire(Map<EventDefinition, List<IEventListener>> listenerMappings, EventDefinition eventDefinition,
             Event eventDetails) {
         List<IEventListener> eventListeners = listenerMappings.get(eventDefinition);
@@ -2,6 +2,7 @@ package org.esigate.events.impl;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.conn.routing.HttpRoute;
 import org.esigate.events.Event;
 import org.esigate.http.OutgoingRequestContext;
 
@@ -27,12 +28,23 @@ public class FetchEvent extends Event {
      * The new HTTP call details.
      */
     private final HttpRequestWrapper httpRequest;
+    /**
+     * The route to the server.
+     * <p>
+     * May be changed during pre-event processing in order to send the request to another server.
+     */
+    private HttpRoute httpRoute;
 
     public FetchEvent(OutgoingRequestContext httpContext, HttpRequestWrapper httpRequest) {
         this.httpContext = httpContext;
         this.httpRequest = httpRequest;
     }
 
+    public FetchEvent(OutgoingRequestContext httpContext, HttpRequestWrapper httpRequest, HttpRoute httpRoute) {
+        this(httpContext, httpRequest);
+        this.httpRoute = httpRoute;
+    }
+
     public CloseableHttpResponse getHttpResponse() {
         return httpResponse;
     }
@@ -49,4 +61,12 @@ public class FetchEvent extends Event {
         return httpRequest;
     }
 
+    public HttpRoute getHttpRoute() {
+        return httpRoute;
+    }
+
+    public void setHttpRoute(HttpRoute httpRoute) {
+        this.httpRoute = httpRoute;
+    }
+
 }
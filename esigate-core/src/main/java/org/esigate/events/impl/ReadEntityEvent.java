@@ -31,7 +31,8 @@ public class ReadEntityEvent extends Event {
      */
     private final byte[] rawEntityContent;
     /**
-     * The current, decoded entity content.
+     * The current, decoded entity content. If it is not set, the raw entity content is decoded with {@link #charset}
+     * the first time it is needed, so an extension can detect the real charset before the content is decoded.
      * <p>
      * An extension can update this content if is incorrect.
      * <p>
@@ -46,6 +47,9 @@ public class ReadEntityEvent extends Event {
     }
 
     public String getEntityContent() {
+        if (entityContent == null && rawEntityContent != null) {
+            entityContent = new String(rawEntityContent, charset);
+        }
         return entityContent;
     }
 
@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.RequestLine;
+import org.esigate.Parameters;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterBoolean;
+import org.esigate.util.ParameterFloat;
+import org.esigate.util.RingBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access log shared by {@link FetchLogging} and {@link FragmentLogging}.
+ * <p>
+ * The request thread only decides whether the request is logged and keeps the values to log. The messages are built and
+ * written by a background thread, from a buffer which never blocks: if it is full, the entries are dropped and counted.
+ * The thread is a daemon shared by all the access logs, it stops once they are all closed.
+ * <p>
+ * Errors (status codes &gt;= 400) are logged in WARN level, the other requests in INFO level, a fraction of them only
+ * if <code>accessLogSampleRate</code> is lower than 1. Headers are logged if <code>accessLogHeaders</code> is true.
+ */
+final class AccessLog {
+    private static final Logger LOG = LoggerFactory.getLogger(AccessLog.class);
+    static final Parameter<Float> SAMPLE_RATE = new ParameterFloat("accessLogSampleRate", 1f);
+    static final Parameter<Boolean> HEADERS = new ParameterBoolean("accessLogHeaders", false);
+    private static final int BUFFER_SIZE = 8192;
+    private static final long DRAIN_PERIOD = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final Drainer DRAINER = new Drainer(BUFFER_SIZE);
+
+    private final Logger logger;
+    private final String provider;
+    private final float sampleRate;
+    private final boolean headers;
+    private final Drainer drainer;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * The values of a log line, formatted by the background thread. They are all immutable.
+     */
+    private static final class Entry {
+        private final Logger logger;
+        private final boolean error;
+        private final String provider;
+        private final HttpHost targetHost;
+        private final RequestLine requestLine;
+        private final int statusCode;
+        private final Object cacheStatus;
+        private final long time;
+        private final Header[] requestHeaders;
+        private final Header[] responseHeaders;
+
+        private Entry(AccessLog accessLog, HttpHost targetHost, HttpRequest request, HttpResponse response,
+                Object cacheStatus, long time) {
+            this.logger = accessLog.logger;
+            this.provider = accessLog.provider;
+            this.targetHost = targetHost;
+            this.requestLine = request.getRequestLine();
+            this.statusCode = response.getStatusLine().getStatusCode();
+            this.error = statusCode >= HttpStatus.SC_BAD_REQUEST;
+            this.cacheStatus = cacheStatus;
+            this.time = time;
+            // getAllHeaders() returns a copy
+            this.requestHeaders = accessLog.headers ? request.getAllHeaders() : null;
+            this.responseHeaders = accessLog.headers ? response.getAllHeaders() : null;
+        }
+
+        private void write() {
+            StringBuilder message = new StringBuilder(Parameters.SMALL_BUFFER_SIZE);
+            if (provider != null) {
+                message.append("provider=").append(provider).append(' ');
+            }
+            if (targetHost != null) {
+                message.append("host=").append(targetHost.toURI()).append(' ');
+            }
+            message.append("request=\"").append(requestLine).append("\" status=").append(statusCode);
+            if (cacheStatus != null) {
+                message.append(" cache=").append(cacheStatus);
+            }
+            message.append(" time=").append(time);
+            if (requestHeaders != null) {
+                message.append(" requestHeaders=").append(ArrayUtils.toString(requestHeaders));
+                message.append(" responseHeaders=").append(ArrayUtils.toString(responseHeaders));
+            }
+            if (error) {
+                logger.warn(message.toString());
+            } else {
+                logger.info(message.toString());
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of a buffer from a background thread, which runs as long as an access log uses the buffer.
+     */
+    static final class Drainer implements Runnable {
+        private final RingBuffer<Entry> buffer;
+        private final AtomicLong dropped = new AtomicLong();
+        private int users;
+        private Thread thread;
+
+        Drainer(int bufferSize) {
+            this.buffer = new RingBuffer<>(bufferSize);
+        }
+
+        synchronized void register() {
+            users++;
+            if (thread == null) {
+                thread = new Thread(this, "esigate-access-log");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        synchronized void unregister() {
+            users--;
+            if (users == 0 && thread != null) {
+                // Do not wait for the end of the period
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Called by the thread once the buffer is empty. A new thread is started if an access log is registered again.
+         */
+        private synchronized boolean stop() {
+            if (users == 0) {
+                thread = null;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized Thread getThread() {
+            return thread;
+        }
+
+        /**
+         * @return the number of entries dropped because the buffer was full
+         */
+        long getDropped() {
+            return dropped.get();
+        }
+
+        private void offer(Entry entry) {
+            buffer.offer(entry);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Entry entry = buffer.poll();
+                if (entry == null) {
+                    long rejected = buffer.getAndResetRejected();
+                    if (rejected > 0) {
+                        dropped.addAndGet(rejected);
+                        LOG.warn("{} access log entries dropped, the buffer is full", rejected);
+                    }
+                    if (stop()) {
+                        return;
+                    }
+                    LockSupport.parkNanos(DRAIN_PERIOD);
+                } else {
+                    try {
+                        entry.write();
+                    } catch (RuntimeException e) {
+                        LOG.error("Could not write access log", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param logger
+     *            the logger to write to
+     * @param provider
+     *            the name of the driver, null not to log it
+     * @param properties
+     *            the configuration
+     */
+    AccessLog(Logger logger, String provider, Properties properties) {
+        this(logger, provider, properties, DRAINER);
+    }
+
+    AccessLog(Logger logger, String provider, Properties properties, Drainer drainer) {
+        this.logger = logger;
+        this.provider = provider;
+        this.sampleRate = SAMPLE_RATE.getValue(properties);
+        this.headers = HEADERS.getValue(properties);
+        this.drainer = drainer;
+        drainer.register();
+    }
+
+    /**
+     * Stops the background thread if no other access log uses it.
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            drainer.unregister();
+        }
+    }
+
+    /**
+     * Decides if a request is logged, before anything is allocated.
+     * 
+     * @param statusCode
+     *            the status code of the response
+     * @return true if the request must be logged
+     */
+    boolean isLogged(int statusCode) {
+        if (statusCode >= HttpStatus.SC_BAD_REQUEST) {
+            return logger.isWarnEnabled();
+        }
+        return logger.isInfoEnabled() && (sampleRate >= 1 || ThreadLocalRandom.current().nextFloat() < sampleRate);
+    }
+
+    /**
+     * Queues a request to be logged.
+     * 
+     * @param targetHost
+     *            the host the request was sent to, may be null
+     * @param request
+     *            the request
+     * @param response
+     *            the response
+     * @param cacheStatus
+     *            the cache status, may be null
+     * @param time
+     *            the time in milliseconds
+     */
+    void log(HttpHost targetHost, HttpRequest request, HttpResponse response, Object cacheStatus, long time) {
+        drainer.offer(new Entry(this, targetHost, request, response, cacheStatus, time));
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension;
+
+import java.util.Properties;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.FetchEvent;
+import org.esigate.events.impl.FragmentEvent;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.http.OutgoingRequestContext;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a provider which is failing, so that requests do not wait for connectTimeout or
+ * socketTimeout and the provider gets a chance to recover.
+ * <p>
+ * The circuit opens when at least circuitBreaker.minimumRequests of the last circuitBreaker.windowSize requests were
+ * sent and circuitBreaker.errorThreshold percent of them failed. A request fails if the response status is 5xx (this
+ * includes network errors) or, if circuitBreaker.slowCallDuration is set, if it took longer than this duration in ms.
+ * <p>
+ * While the circuit is open, GET requests are served from the cache even if the cached response is stale, other
+ * requests or requests not in cache get an immediate 503 error. After circuitBreaker.openDuration ms,
+ * circuitBreaker.halfOpenProbes requests are sent to the provider: the circuit closes if they all succeed, else it
+ * opens again. Probes that got no result after another circuitBreaker.openDuration ms, for instance because an
+ * extension stopped the request, are given up and new probes are sent.
+ * <p>
+ * Responses served from the cache and requests to external servers are not taken into account.
+ * 
+ */
+public class CircuitBreaker implements Extension, IEventListener {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+    private static final String START = "org.esigate.circuitBreaker.start";
+    private static final String PROBE = "org.esigate.circuitBreaker.probe";
+    private static final String SHORT_CIRCUITED = "org.esigate.circuitBreaker.shortCircuited";
+
+    public static final Parameter<Integer> WINDOW_SIZE = new ParameterInteger("circuitBreaker.windowSize", 20);
+    public static final Parameter<Integer> MINIMUM_REQUESTS =
+            new ParameterInteger("circuitBreaker.minimumRequests", 10);
+    public static final Parameter<Integer> ERROR_THRESHOLD = new ParameterInteger("circuitBreaker.errorThreshold", 50);
+    public static final Parameter<Integer> SLOW_CALL_DURATION = new ParameterInteger("circuitBreaker.slowCallDuration",
+            0);
+    public static final Parameter<Integer> OPEN_DURATION = new ParameterInteger("circuitBreaker.openDuration", 30000);
+    public static final Parameter<Integer> HALF_OPEN_PROBES = new ParameterInteger("circuitBreaker.halfOpenProbes", 3);
+
+    /**
+     * Circuit breaker states.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private String name;
+    private boolean useCache;
+    private int minimumRequests;
+    private int errorThreshold;
+    private int slowCallDuration;
+    private int openDuration;
+    private int halfOpenProbes;
+
+    // Sliding window of the last results, true for a failure
+    private boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+
+    private State state = State.CLOSED;
+    private long openUntil;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private long probesUntil;
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        name = driver.getConfiguration().getInstanceName();
+        useCache = Parameters.USE_CACHE.getValue(properties);
+        window = new boolean[WINDOW_SIZE.getValue(properties)];
+        minimumRequests = Math.min(MINIMUM_REQUESTS.getValue(properties), window.length);
+        errorThreshold = ERROR_THRESHOLD.getValue(properties);
+        slowCallDuration = SLOW_CALL_DURATION.getValue(properties);
+        openDuration = OPEN_DURATION.getValue(properties);
+        halfOpenProbes = HALF_OPEN_PROBES.getValue(properties);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_PRE, this);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_FETCH_PRE, this);
+    }
+
+    @Override
+    public boolean event(EventDefinition id, Event event) {
+        if (EventManager.EVENT_FRAGMENT_PRE.equals(id)) {
+            FragmentEvent e = (FragmentEvent) event;
+            OutgoingRequest request = e.getHttpRequest();
+            if (request.getOriginalRequest().isExternal()) {
+                return true;
+            }
+            OutgoingRequestContext context = e.getHttpContext();
+            Boolean probe = acquirePermission();
+            if (probe == null) {
+                context.setAttribute(SHORT_CIRCUITED, Boolean.TRUE);
+                if (useCache && "GET".equals(request.getRequestLine().getMethod())) {
+                    // Let the cache serve any response it has, whatever its age, without calling the provider
+                    request.setHeader("Cache-Control", "only-if-cached, max-stale=" + Integer.MAX_VALUE);
+                } else {
+                    e.setHttpResponse(createErrorResponse());
+                }
+            } else {
+                context.setAttribute(PROBE, probe);
+                context.setAttribute(START, System.currentTimeMillis());
+            }
+        } else if (EventManager.EVENT_FRAGMENT_POST.equals(id)) {
+            FragmentEvent e = (FragmentEvent) event;
+            OutgoingRequestContext context = e.getHttpContext();
+            if (context.getAttribute(SHORT_CIRCUITED) != null) {
+                if (e.getHttpResponse() != null
+                        && e.getHttpResponse().getStatusLine().getStatusCode() == HttpStatus.SC_GATEWAY_TIMEOUT) {
+                    // Nothing in cache
+                    e.setHttpResponse(createErrorResponse());
+                }
+            } else if (context.getAttribute(START) != null) {
+                boolean probe = (Boolean) context.getAttribute(PROBE);
+                CacheResponseStatus cacheResponseStatus =
+                        (CacheResponseStatus) context.getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
+                if (e.getHttpResponse() == null || cacheResponseStatus == CacheResponseStatus.CACHE_HIT
+                        || cacheResponseStatus == CacheResponseStatus.CACHE_MODULE_RESPONSE) {
+                    // The provider was not called
+                    release(probe);
+                } else if (context.isDiscarded()) {
+                    // Aborted on purpose by request hedging, the provider did not fail
+                    release(probe);
+                } else {
+                    long duration = System.currentTimeMillis() - (Long) context.getAttribute(START);
+                    boolean failure =
+                            e.getHttpResponse().getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR
+                                    || (slowCallDuration > 0 && duration > slowCallDuration);
+                    onResult(!failure, probe);
+                }
+            }
+        } else if (EventManager.EVENT_FETCH_PRE.equals(id)) {
+            FetchEvent e = (FetchEvent) event;
+            if (e.getHttpContext().getAttribute(SHORT_CIRCUITED) != null) {
+                // Should not happen as the cache does not call the provider, but never send the request anyway
+                e.setHttpResponse(createErrorResponse());
+                e.setExit(true);
+            }
+        }
+
+        // Continue processing
+        return true;
+    }
+
+    private static CloseableHttpResponse createErrorResponse() {
+        return HttpErrorPage.generateHttpResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "Circuit open");
+    }
+
+    /**
+     * Checks if a request can be sent to the provider.
+     * 
+     * @return false for a normal request, true for a probe request or null if the request must not be sent
+     */
+    synchronized Boolean acquirePermission() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+            LOG.info("{}: circuit half-open, sending {} probe requests", name, halfOpenProbes);
+        }
+        if (state == State.CLOSED) {
+            return Boolean.FALSE;
+        }
+        if (state == State.HALF_OPEN && probesInFlight > 0 && System.currentTimeMillis() >= probesUntil) {
+            // No result for the probes, FRAGMENT_POST may have been skipped: the permissions would never be given back
+            LOG.info("{}: {} probe requests timed out, sending new ones", name, probesInFlight);
+            probesInFlight = 0;
+        }
+        if (state == State.HALF_OPEN && probesInFlight + probeSuccesses < halfOpenProbes) {
+            probesInFlight++;
+            probesUntil = System.currentTimeMillis() + openDuration;
+            return Boolean.TRUE;
+        }
+        return null;
+    }
+
+    /**
+     * Gives back a permission which was not used.
+     */
+    synchronized void release(boolean probe) {
+        if (probe && state == State.HALF_OPEN && probesInFlight > 0) {
+            probesInFlight--;
+        }
+    }
+
+    synchronized void onResult(boolean success, boolean probe) {
+        if (probe) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            if (probesInFlight > 0) {
+                // Unless the probe timed out
+                probesInFlight--;
+            }
+            if (!success) {
+                open();
+            } else if (++probeSuccesses >= halfOpenProbes) {
+                close();
+            }
+        } else if (state == State.CLOSED) {
+            if (windowCount == window.length) {
+                if (window[windowIndex]) {
+                    windowFailures--;
+                }
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = !success;
+            if (!success) {
+                windowFailures++;
+            }
+            windowIndex = (windowIndex + 1) % window.length;
+            if (windowCount >= minimumRequests && windowFailures * 100 >= errorThreshold * windowCount) {
+                LOG.warn("{}: {} errors out of the last {} requests", name, windowFailures, windowCount);
+                open();
+            }
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openDuration;
+        LOG.warn("{}: circuit open for {} ms", name, openDuration);
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        windowIndex = 0;
+        windowCount = 0;
+        windowFailures = 0;
+        LOG.info("{}: circuit closed", name);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+}
@@ -15,12 +15,9 @@
 
 package org.esigate.extension;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpStatus;
+import java.io.Closeable;
+
 import org.esigate.Driver;
-import org.esigate.Parameters;
 import org.esigate.events.Event;
 import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
@@ -47,25 +44,28 @@ import java.util.Properties;
  * Logged data are :
  * 
  * <ul>
- * <li>Request status line</li>
- * <li>Request headers</li>
- * <li>Response status line</li>
- * <li>Response headers</li>
- * <li>Cache status (HIT, MISS, ...)</li>
+ * <li>Provider name</li>
+ * <li>Target host</li>
+ * <li>Request line</li>
+ * <li>Response status code</li>
  * <li>Request time</li>
- * 
+ * <li>Request and response headers, if accessLogHeaders=true</li>
  * </ul>
+ * <p>
+ * Lines are written asynchronously and successful requests can be sampled, see {@link AccessLog}.
  * 
  * 
  * @author Nicolas Richeton
  * 
  */
-public class FetchLogging implements Extension, IEventListener {
+public class FetchLogging implements Extension, IEventListener, Closeable {
     private static final String TIME = "org.esigate.time.external";
     private static final Logger LOG = LoggerFactory.getLogger(FetchLogging.class);
+    private AccessLog accessLog;
 
     @Override
     public void init(Driver driver, Properties properties) {
+        accessLog = new AccessLog(LOG, driver.getConfiguration().getInstanceName(), properties);
         driver.getEventManager().register(EventManager.EVENT_FETCH_POST, this);
         driver.getEventManager().register(EventManager.EVENT_FETCH_PRE, this);
     }
@@ -76,61 +76,13 @@ public class FetchLogging implements Extension, IEventListener {
         FetchEvent e = (FetchEvent) event;
 
         if (EventManager.EVENT_FETCH_POST.equals(id)) {
+            Long start = (Long) e.getHttpContext().removeAttribute(TIME, true);
             int statusCode = e.getHttpResponse().getStatusLine().getStatusCode();
 
-            // Log only if info or issue
-            if (LOG.isInfoEnabled() || statusCode >= HttpStatus.SC_BAD_REQUEST) {
-                HttpRequest lastRequest = e.getHttpRequest();
-
-                String url = lastRequest.getRequestLine().toString();
-                String status = e.getHttpResponse().getStatusLine().toString();
-
-                String reqHeaders = ArrayUtils.toString(lastRequest.getAllHeaders());
-                String respHeaders = ArrayUtils.toString(e.getHttpResponse().getAllHeaders());
-
-                HttpHost targetHost = e.getHttpContext().getTargetHost();
-
-                long time = System.currentTimeMillis() - (Long) e.getHttpContext().removeAttribute(TIME, true);
-
-                StringBuilder logMessage = new StringBuilder(Parameters.SMALL_BUFFER_SIZE);
-
-                // Display target host, protocol and port
-                if (targetHost != null) {
-                    logMessage.append(targetHost.getSchemeName());
-                    logMessage.append("://");
-                    logMessage.append(targetHost.getHostName());
-
-                    if (targetHost.getPort() != -1) {
-                        logMessage.append(":");
-                        logMessage.append(targetHost.getPort());
-                    }
-
-                    logMessage.append(" - ");
-                }
-                // Url
-                logMessage.append(url);
-                logMessage.append(" ");
-
-                // request headers
-                logMessage.append(reqHeaders);
-
-                // Response status
-                logMessage.append(" -> ");
-                logMessage.append(status);
-
-                // Time
-                logMessage.append(" (");
-                logMessage.append(time);
-                logMessage.append(" ms) ");
-
-                // Response headers
-                logMessage.append(respHeaders);
-
-                if (statusCode >= HttpStatus.SC_BAD_REQUEST) {
-                    LOG.warn(logMessage.toString());
-                } else {
-                    LOG.info(logMessage.toString());
-                }
+            // Log only if info or issue, and if the request is sampled
+            if (start != null && accessLog.isLogged(statusCode)) {
+                accessLog.log(e.getHttpContext().getTargetHost(), e.getHttpRequest(), e.getHttpResponse(), null,
+                        System.currentTimeMillis() - start);
             }
         } else {
             e.getHttpContext().setAttribute(TIME, System.currentTimeMillis(), true);
@@ -140,4 +92,11 @@ public class FetchLogging implements Extension, IEventListener {
         return true;
     }
 
+    @Override
+    public void close() {
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
 }
@@ -15,16 +15,12 @@
 
 package org.esigate.extension;
 
+import java.io.Closeable;
 import java.util.Properties;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.cache.CacheResponseStatus;
 import org.apache.http.client.cache.HttpCacheContext;
 import org.esigate.Driver;
-import org.esigate.Parameters;
 import org.esigate.events.Event;
 import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
@@ -50,29 +46,30 @@ import org.slf4j.LoggerFactory;
  * 
  * <ul>
  * <li>Provider name</li>
- * <li>Request status line</li>
- * <li>Request headers</li>
- * <li>Response status line</li>
- * <li>Response headers</li>
+ * <li>Target host</li>
+ * <li>Request line</li>
+ * <li>Response status code</li>
  * <li>Cache status (HIT, MISS, ...)</li>
  * <li>Request time</li>
- * 
+ * <li>Request and response headers, if accessLogHeaders=true</li>
  * </ul>
+ * <p>
+ * Lines are written asynchronously and successful requests can be sampled, see {@link AccessLog}.
  * 
  * 
  * @author Nicolas Richeton
  * 
  */
-public class FragmentLogging implements Extension, IEventListener {
+public class FragmentLogging implements Extension, IEventListener, Closeable {
     private static final String TIME = "org.esigate.time";
     private static final Logger LOG = LoggerFactory.getLogger(FragmentLogging.class);
-    private Driver driver;
+    private AccessLog accessLog;
 
     @Override
-    public void init(Driver pDriver, Properties properties) {
-        this.driver = pDriver;
-        this.driver.getEventManager().register(EventManager.EVENT_FRAGMENT_POST, this);
-        this.driver.getEventManager().register(EventManager.EVENT_FRAGMENT_PRE, this);
+    public void init(Driver driver, Properties properties) {
+        this.accessLog = new AccessLog(LOG, driver.getConfiguration().getInstanceName(), properties);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_PRE, this);
     }
 
     @Override
@@ -84,58 +81,18 @@ public class FragmentLogging implements Extension, IEventListener {
             // Keep track of the start time.
             e.getHttpContext().setAttribute(TIME, System.currentTimeMillis(), true);
         } else {
+            Long start = (Long) e.getHttpContext().removeAttribute(TIME, true);
             int statusCode = e.getHttpResponse().getStatusLine().getStatusCode();
 
-            // Log only if info or issue
-            if (LOG.isInfoEnabled() || statusCode >= HttpStatus.SC_BAD_REQUEST) {
-
+            // Log only if info or issue, and if the request is sampled
+            if (start != null && accessLog.isLogged(statusCode)) {
                 // Log last result only
                 HttpRequest httpRequest = e.getHttpContext().getSentRequest();
-
-                // Create log message
-                HttpHost targetHost = e.getHttpContext().getTargetHost();
-
-                String requestLine = httpRequest.getRequestLine().toString();
-                String statusLine = e.getHttpResponse().getStatusLine().toString();
-
-                String reqHeaders = ArrayUtils.toString(httpRequest.getAllHeaders());
-                String respHeaders = ArrayUtils.toString(e.getHttpResponse().getAllHeaders());
-
-                String cache = "";
-                CacheResponseStatus cacheResponseStatus =
-                        (CacheResponseStatus) e.getHttpContext().getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
-                if (cacheResponseStatus != null) {
-                    cache = cacheResponseStatus.toString();
-                }
-
-                long time = System.currentTimeMillis() - (Long) e.getHttpContext().removeAttribute(TIME, true);
-
-                StringBuilder logMessage = new StringBuilder(Parameters.SMALL_BUFFER_SIZE);
-                logMessage.append(driver.getConfiguration().getInstanceName());
-                logMessage.append(" ");
-                // Display target host, protocol and port
-                if (targetHost != null) {
-                    logMessage.append(targetHost.getSchemeName());
-                    logMessage.append("://");
-                    logMessage.append(targetHost.getHostName());
-
-                    if (targetHost.getPort() != -1) {
-                        logMessage.append(":");
-                        logMessage.append(targetHost.getPort());
-                    }
-
-                    logMessage.append(" - ");
-                }
-
-                logMessage.append(requestLine).append(" ").append(reqHeaders).append(" -> ").append(statusLine)
-                        .append(" (").append(time).append(" ms) ").append(cache).append(" ").append(respHeaders);
-
-                // Log level according to status code.
-                if (statusCode >= HttpStatus.SC_BAD_REQUEST) {
-                    LOG.warn(logMessage.toString());
-                } else {
-                    LOG.info(logMessage.toString());
+                if (httpRequest == null) {
+                    httpRequest = e.getHttpRequest();
                 }
+                accessLog.log(e.getHttpContext().getTargetHost(), httpRequest, e.getHttpResponse(), e.getHttpContext()
+                        .getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS), System.currentTimeMillis() - start);
             }
         }
 
@@ -143,4 +100,11 @@ public class FragmentLogging implements Extension, IEventListener {
         return true;
     }
 
+    @Override
+    public void close() {
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
 }
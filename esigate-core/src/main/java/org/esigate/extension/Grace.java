@@ -0,0 +1,377 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.FragmentEvent;
+import org.esigate.events.impl.ProxyEvent;
+import org.esigate.http.BasicCloseableHttpResponse;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.http.OutgoingRequestContext;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the last successful version of each fragment and uses it when the provider returns an error or does not
+ * respond, whatever the cache headers of the response. Pages proxied as a whole are not concerned.
+ * <p>
+ * Only successful (200) responses to GET requests are kept, during grace.maxAge seconds. Responses which are private to
+ * a user (requests with credentials, Cache-Control: private or no-store, Set-Cookie or Vary: * headers) or bigger than
+ * grace.maxObjectSize bytes are never kept. Responses served by the HTTP cache are not copied again. The total size of
+ * the responses kept is limited to grace.maxSize bytes, the least recently used ones are removed first.
+ * <p>
+ * As in an HTTP cache, a response is only used for requests with the same values for the headers listed in its Vary
+ * header, except Accept-Encoding: the response keeps its Content-Encoding and fragments are decoded anyway. The
+ * response to a request with cookies is only used for requests with the same cookies, unless it is Cache-Control:
+ * public.
+ * <p>
+ * A response used instead of an error gets an additional "Warning: 111" header, which is also added to the page sent to
+ * the client.
+ * <p>
+ * Be sure to put this extension before other extensions modifying responses on errors (such as {@link CircuitBreaker})
+ * so that they see the original response.
+ * 
+ */
+public class Grace implements Extension, IEventListener {
+    private static final Logger LOG = LoggerFactory.getLogger(Grace.class);
+    private static final String WARNING = "111 - \"Revalidation Failed\"";
+    /** Set on the incoming request when one of its fragments is a kept response. */
+    private static final String STALE = Grace.class.getName() + "#stale";
+
+    public static final Parameter<Integer> MAX_AGE = new ParameterInteger("grace.maxAge", 3600);
+    public static final Parameter<Integer> MAX_SIZE = new ParameterInteger("grace.maxSize", 10000000);
+    public static final Parameter<Integer> MAX_OBJECT_SIZE = new ParameterInteger("grace.maxObjectSize", 100000);
+
+    private long maxAge;
+    private long maxSize;
+    private int maxObjectSize;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * A response kept, or for a response which varies, the list of request headers it depends on. The variants are kept
+     * as other entries, their key being the url followed by the values of these headers.
+     */
+    private static final class Entry {
+        private final StatusLine statusLine;
+        private final Header[] headers;
+        private final Header contentType;
+        private final Header contentEncoding;
+        private final byte[] content;
+        private final long date;
+        private final List<String> vary;
+
+        private Entry(CloseableHttpResponse response, byte[] content) {
+            this.statusLine = response.getStatusLine();
+            this.headers = response.getAllHeaders();
+            HttpEntity entity = response.getEntity();
+            this.contentType = entity == null ? null : entity.getContentType();
+            this.contentEncoding = entity == null ? null : entity.getContentEncoding();
+            this.content = content;
+            this.date = System.currentTimeMillis();
+            this.vary = null;
+        }
+
+        private Entry(List<String> vary) {
+            this.statusLine = null;
+            this.headers = null;
+            this.contentType = null;
+            this.contentEncoding = null;
+            this.content = new byte[0];
+            this.date = System.currentTimeMillis();
+            this.vary = vary;
+        }
+    }
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        maxAge = MAX_AGE.getValue(properties) * 1000L;
+        maxSize = MAX_SIZE.getValue(properties);
+        maxObjectSize = MAX_OBJECT_SIZE.getValue(properties);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_PROXY_POST, this);
+    }
+
+    @Override
+    public boolean event(EventDefinition id, Event event) {
+        if (EventManager.EVENT_PROXY_POST.equals(id)) {
+            ProxyEvent e = (ProxyEvent) event;
+            if (e.getResponse() != null && e.getOriginalRequest().getAttribute(STALE) != null) {
+                e.getResponse().addHeader("Warning", WARNING);
+            }
+            return true;
+        }
+        FragmentEvent e = (FragmentEvent) event;
+        OutgoingRequest request = e.getHttpRequest();
+        OutgoingRequestContext context = e.getHttpContext();
+        CloseableHttpResponse response = e.getHttpResponse();
+        if (response == null || context.isProxy() || !"GET".equals(request.getRequestLine().getMethod())
+                || request.containsHeader(HttpHeaders.AUTHORIZATION)) {
+            return true;
+        }
+        String uri = request.getRequestLine().getUri();
+        int statusCode = response.getStatusLine().getStatusCode();
+        List<String> vary = null;
+        if (statusCode == HttpStatus.SC_OK && !isFromCache(context)) {
+            vary = getVary(response, !getCookies(request, context).isEmpty());
+        }
+        if (vary != null) {
+            try {
+                store(uri, vary, request, context, response);
+            } catch (IOException ex) {
+                // The response is lost anyway
+                response = HttpErrorPage.generateHttpResponse(ex);
+                statusCode = response.getStatusLine().getStatusCode();
+                e.setHttpResponse(response);
+            }
+        }
+        if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            CloseableHttpResponse graceResponse = get(uri, request, context);
+            if (graceResponse != null) {
+                LOG.warn("{} -> {}, using last successful response", request.getRequestLine(), response.getStatusLine());
+                EntityUtils.consumeQuietly(response.getEntity());
+                IOUtils.closeQuietly(response);
+                e.setHttpResponse(graceResponse);
+                e.getOriginalRequest().setAttribute(STALE, Boolean.TRUE);
+            }
+        }
+        // Continue processing
+        return true;
+    }
+
+    /**
+     * @return the cookies sent with the request, empty if there is none
+     */
+    private static String getCookies(OutgoingRequest request, OutgoingRequestContext context) {
+        StringBuilder result = new StringBuilder();
+        for (Header header : request.getHeaders("Cookie")) {
+            result.append(header.getValue()).append(';');
+        }
+        CookieStore cookieStore = context.getCookieStore();
+        if (cookieStore != null) {
+            CookieSpec cookieSpec = context.getCookieSpec();
+            CookieOrigin cookieOrigin = context.getCookieOrigin();
+            for (Cookie cookie : cookieStore.getCookies()) {
+                // Cookies are matched by the http client when the request is sent
+                if (cookieSpec == null || cookieOrigin == null || cookieSpec.match(cookie, cookieOrigin)) {
+                    result.append(cookie.getName()).append('=').append(cookie.getValue()).append(';');
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the headers of the request the response depends on, in lower case, or null if the response must not be
+     *         kept
+     */
+    private static List<String> getVary(CloseableHttpResponse response, boolean sendsCookies) {
+        if (response.containsHeader("Set-Cookie")) {
+            return null;
+        }
+        boolean isPublic = false;
+        for (Header header : response.getHeaders("Cache-Control")) {
+            String value = header.getValue().toLowerCase(Locale.ENGLISH);
+            if (value.contains("private") || value.contains("no-store")) {
+                return null;
+            }
+            isPublic |= value.contains("public");
+        }
+        List<String> vary = new ArrayList<>();
+        for (Header header : response.getHeaders("Vary")) {
+            for (String name : header.getValue().split(",")) {
+                name = name.trim().toLowerCase(Locale.ENGLISH);
+                if ("*".equals(name)) {
+                    return null;
+                }
+                if (!name.isEmpty() && !"accept-encoding".equals(name) && !vary.contains(name)) {
+                    vary.add(name);
+                }
+            }
+        }
+        if (sendsCookies && !isPublic && !vary.contains("cookie")) {
+            vary.add("cookie");
+        }
+        return vary;
+    }
+
+    /**
+     * @return the key of the variant of the response for this request
+     */
+    private static String getVariantKey(String uri, List<String> vary, OutgoingRequest request,
+            OutgoingRequestContext context) {
+        StringBuilder result = new StringBuilder(uri);
+        for (String name : vary) {
+            result.append('\n').append(name).append(':');
+            if ("cookie".equals(name)) {
+                // Most of them are added by the http client from the cookie store
+                result.append(getCookies(request, context));
+            } else {
+                for (Header header : request.getHeaders(name)) {
+                    result.append(header.getValue()).append(',');
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * The HTTP cache already keeps the response.
+     */
+    private static boolean isFromCache(OutgoingRequestContext context) {
+        CacheResponseStatus cacheResponseStatus =
+                (CacheResponseStatus) context.getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
+        return cacheResponseStatus == CacheResponseStatus.CACHE_HIT
+                || cacheResponseStatus == CacheResponseStatus.CACHE_MODULE_RESPONSE;
+    }
+
+    /**
+     * Keeps a copy of the response if it is small enough. The response entity is replaced in order to be read again.
+     */
+    private void store(String uri, List<String> vary, OutgoingRequest request, OutgoingRequestContext context,
+            CloseableHttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        byte[] content;
+        if (entity == null) {
+            content = new byte[0];
+        } else if (entity.getContentLength() > maxObjectSize) {
+            return;
+        } else {
+            InputStream inputStream = entity.getContent();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            long read = IOUtils.copyLarge(inputStream, outputStream, 0, maxObjectSize + 1);
+            if (read > maxObjectSize) {
+                // Too big, give back what was read
+                InputStreamEntity newEntity =
+                        new InputStreamEntity(new SequenceInputStream(outputStream.toInputStream(), inputStream),
+                                entity.getContentLength());
+                newEntity.setContentType(entity.getContentType());
+                newEntity.setContentEncoding(entity.getContentEncoding());
+                response.setEntity(newEntity);
+                return;
+            }
+            inputStream.close();
+            content = outputStream.toByteArray();
+            ByteArrayEntity newEntity = new ByteArrayEntity(content);
+            newEntity.setContentType(entity.getContentType());
+            newEntity.setContentEncoding(entity.getContentEncoding());
+            response.setEntity(newEntity);
+        }
+        Entry entry = new Entry(response, content);
+        synchronized (entries) {
+            if (vary.isEmpty()) {
+                put(uri, entry);
+            } else {
+                put(uri, new Entry(vary));
+                put(getVariantKey(uri, vary, request, context), entry);
+            }
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                size -= iterator.next().content.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.content.length;
+        }
+        size += entry.content.length;
+    }
+
+    private Entry getEntry(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.date + maxAge < System.currentTimeMillis()) {
+                entries.remove(key);
+                size -= entry.content.length;
+                entry = null;
+            }
+            return entry;
+        }
+    }
+
+    private CloseableHttpResponse get(String uri, OutgoingRequest request, OutgoingRequestContext context) {
+        Entry entry = getEntry(uri);
+        if (entry != null && entry.vary != null) {
+            entry = getEntry(getVariantKey(uri, entry.vary, request, context));
+        }
+        return toResponse(entry);
+    }
+
+    CloseableHttpResponse get(String key) {
+        return toResponse(getEntry(key));
+    }
+
+    private static CloseableHttpResponse toResponse(Entry entry) {
+        if (entry == null || entry.vary != null) {
+            return null;
+        }
+        CloseableHttpResponse response = BasicCloseableHttpResponse.adapt(new BasicHttpResponse(entry.statusLine));
+        response.setHeaders(entry.headers);
+        response.addHeader("Warning", WARNING);
+        ByteArrayEntity entity = new ByteArrayEntity(entry.content);
+        entity.setContentType(entry.contentType);
+        entity.setContentEncoding(entry.contentEncoding);
+        response.setEntity(entity);
+        return response;
+    }
+
+    long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package org.esigate.extension;
 
 import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Locale;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.esigate.Driver;
 import org.esigate.events.Event;
@@ -11,6 +13,8 @@ import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
 import org.esigate.events.IEventListener;
 import org.esigate.events.impl.ReadEntityEvent;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +30,10 @@ import org.slf4j.LoggerFactory;
  * <li>application/xhtml+xml</li>
  * </ul>
  * ... and this MIME type must be declared as parsableContentTypes in configuration file (esigate.properties).
+ * <p>
+ * The charset is detected before the document is decoded, using the prescan of the HTML5 specification on the first
+ * htmlCharsetProcessor.prescanSize bytes (1024 by default): byte order mark, &lt;meta charset&gt; or &lt;meta
+ * http-equiv="Content-Type" content="...; charset=..."&gt;.
  * 
  * @see <a href="http://www.esigate.org/reference.html#Configuration_file">Configuration file</a>
  * 
@@ -35,10 +43,10 @@ import org.slf4j.LoggerFactory;
 public class HtmlCharsetProcessor implements Extension, IEventListener {
     private static final Logger LOG = LoggerFactory.getLogger(DefaultCharset.class);
 
-    private static final Pattern PATTERN_META_HTML5 = Pattern.compile(
-            ".*<head>.*<meta[^>]+charset=\"([^>^\"]+)\"[^>]*/?>.*</head>.*", Pattern.CASE_INSENSITIVE);
-    private static final Pattern PATTERN_META_HTML4_XHTML = Pattern.compile(
-            ".*<head>.*<meta[^>]+charset=([^>^\"]+)\"[^>]*/?>.*</head>.*", Pattern.CASE_INSENSITIVE);
+    public static final Parameter<Integer> PRESCAN_SIZE =
+            new ParameterInteger("htmlCharsetProcessor.prescanSize", 1024);
+
+    private int prescanSize = PRESCAN_SIZE.getDefaultValue();
 
     @Override
     public boolean event(EventDefinition id, Event event) {
@@ -49,34 +57,216 @@ public class HtmlCharsetProcessor implements Extension, IEventListener {
 
         // Detect on supported MIME types.
         // ReadEntityEvent is only sent when esigate tries to parse a document.
-        if ("text/html".equals(readEntityEvent.getMimeType())
-                || "application/xhtml+xml".equals(readEntityEvent.getMimeType())) {
+        byte[] content = readEntityEvent.getRawEntityContent();
+        if (content != null
+                && ("text/html".equals(readEntityEvent.getMimeType()) || "application/xhtml+xml".equals(readEntityEvent
+                        .getMimeType()))) {
             LOG.debug("Supported MIME type, parsing content");
+            charset = prescan(content, Math.min(content.length, prescanSize));
+        }
+
+        // If another charset was found, decode the content with it
+        if (charset != null && !charset.equals(readEntityEvent.getCharset())) {
+            LOG.debug("Changing charset fom {} to {}", readEntityEvent.getCharset(), charset);
+            readEntityEvent.setEntityContent(new String(content, charset));
+        }
+
+        return true;
+    }
 
-            Matcher m = PATTERN_META_HTML5.matcher(readEntityEvent.getEntityContent());
-            if (m.matches()) {
-                LOG.debug("Found HTML5 charset");
-                charset = Charset.forName(m.group(1));
+    /**
+     * Looks for a byte order mark or a charset declared in a meta tag, as described in the HTML5 specification
+     * "prescan a byte stream to determine its encoding".
+     * 
+     * @param content
+     *            the raw document
+     * @param length
+     *            the number of bytes to look at
+     * @return the charset or null if not found or not supported
+     */
+    static Charset prescan(byte[] content, int length) {
+        // Bytes are read as ISO-8859-1 characters, only ASCII matters here
+        String document = new String(content, 0, length, StandardCharsets.ISO_8859_1);
+        if (document.startsWith("\u00EF\u00BB\u00BF")) {
+            return StandardCharsets.UTF_8;
+        }
+        if (document.startsWith("\u00FE\u00FF")) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (document.startsWith("\u00FF\u00FE")) {
+            return StandardCharsets.UTF_16LE;
+        }
+        int position = 0;
+        while (position < length) {
+            if (document.startsWith("<!--", position)) {
+                int end = document.indexOf("-->", position + 2);
+                if (end < 0) {
+                    return null;
+                }
+                position = end + 3;
+            } else if (startsWithIgnoreCase(document, "<meta", position) && position + 5 < length
+                    && isSpaceOrSlash(document.charAt(position + 5))) {
+                MetaTag meta = new MetaTag(document, position + 5);
+                Charset charset = meta.getCharset();
+                if (charset != null) {
+                    return charset;
+                }
+                position = meta.end;
+            } else if (document.startsWith("<", position) && position + 1 < length
+                    && "!/?".indexOf(document.charAt(position + 1)) < 0
+                    && !Character.isLetter(document.charAt(position + 1))) {
+                position++;
+            } else if (document.startsWith("<", position)) {
+                // Other tags are skipped
+                int end = document.indexOf('>', position);
+                if (end < 0) {
+                    return null;
+                }
+                position = end + 1;
+            } else {
+                position++;
             }
+        }
+        return null;
+    }
 
-            m = PATTERN_META_HTML4_XHTML.matcher(readEntityEvent.getEntityContent());
-            if (m.matches()) {
-                LOG.debug("Found HTML/XHTML charset");
-                charset = Charset.forName(m.group(1));
+    private static boolean startsWithIgnoreCase(String document, String prefix, int position) {
+        return document.regionMatches(true, position, prefix, 0, prefix.length());
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isSpaceOrSlash(char c) {
+        return isSpace(c) || c == '/';
+    }
+
+    /**
+     * Attributes of a meta tag relevant to the charset.
+     */
+    private static final class MetaTag {
+        private final String document;
+        private int end;
+        private String charset;
+        private String httpEquiv;
+        private String content;
+
+        private MetaTag(String document, int start) {
+            this.document = document;
+            int position = start;
+            while (position < document.length() && document.charAt(position) != '>') {
+                char c = document.charAt(position);
+                if (isSpaceOrSlash(c)) {
+                    position++;
+                    continue;
+                }
+                int nameStart = position;
+                while (position < document.length() && "=>".indexOf(document.charAt(position)) < 0
+                        && !isSpaceOrSlash(document.charAt(position))) {
+                    position++;
+                }
+                String name = document.substring(nameStart, position).toLowerCase(Locale.ENGLISH);
+                position = skipSpaces(position);
+                String value = "";
+                if (position < document.length() && document.charAt(position) == '=') {
+                    position = skipSpaces(position + 1);
+                    int valueStart;
+                    int valueEnd;
+                    if (position < document.length()
+                            && (document.charAt(position) == '"' || document.charAt(position) == '\'')) {
+                        valueStart = position + 1;
+                        valueEnd = document.indexOf(document.charAt(position), valueStart);
+                        if (valueEnd < 0) {
+                            valueEnd = document.length();
+                        }
+                        position = Math.min(valueEnd + 1, document.length());
+                    } else {
+                        valueStart = position;
+                        while (position < document.length() && document.charAt(position) != '>'
+                                && !isSpaceOrSlash(document.charAt(position))) {
+                            position++;
+                        }
+                        valueEnd = position;
+                    }
+                    value = document.substring(valueStart, valueEnd);
+                }
+                // The first occurrence of an attribute wins
+                if ("charset".equals(name) && charset == null) {
+                    charset = value.trim();
+                } else if ("http-equiv".equals(name) && httpEquiv == null) {
+                    httpEquiv = value.trim();
+                } else if ("content".equals(name) && content == null) {
+                    content = value;
+                }
             }
+            this.end = position;
         }
 
-        // If another charset was found, update String object
-        if (charset != null && !charset.equals(readEntityEvent.getCharset())) {
-            LOG.debug("Changing charset fom {} to {}", readEntityEvent.getCharset(), charset);
-            readEntityEvent.setEntityContent(new String(readEntityEvent.getRawEntityContent(), charset));
+        private int skipSpaces(int start) {
+            int position = start;
+            while (position < document.length() && isSpace(document.charAt(position))) {
+                position++;
+            }
+            return position;
         }
 
-        return true;
+        private Charset getCharset() {
+            String name = charset;
+            if (name == null && content != null && (httpEquiv == null || "content-type".equalsIgnoreCase(httpEquiv))) {
+                name = extractFromContent(content);
+            }
+            if (name == null || name.isEmpty()) {
+                return null;
+            }
+            try {
+                Charset result = Charset.forName(name);
+                // A document declaring itself as UTF-16 in ASCII-compatible bytes is not UTF-16
+                if (result.name().startsWith("UTF-16")) {
+                    return StandardCharsets.UTF_8;
+                }
+                return result;
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                LOG.debug("Unsupported charset {}", name);
+                return null;
+            }
+        }
+
+        private static String extractFromContent(String content) {
+            int index = content.toLowerCase(Locale.ENGLISH).indexOf("charset");
+            if (index < 0) {
+                return null;
+            }
+            int position = index + "charset".length();
+            while (position < content.length() && Character.isWhitespace(content.charAt(position))) {
+                position++;
+            }
+            if (position >= content.length() || content.charAt(position) != '=') {
+                return extractFromContent(content.substring(position));
+            }
+            position++;
+            while (position < content.length() && Character.isWhitespace(content.charAt(position))) {
+                position++;
+            }
+            if (position >= content.length()) {
+                return null;
+            }
+            char quote = content.charAt(position);
+            if (quote == '"' || quote == '\'') {
+                int end = content.indexOf(quote, position + 1);
+                return end < 0 ? null : content.substring(position + 1, end);
+            }
+            int end = position;
+            while (end < content.length() && !Character.isWhitespace(content.charAt(end)) && content.charAt(end) != ';') {
+                end++;
+            }
+            return content.substring(position, end);
+        }
     }
 
     @Override
     public void init(Driver driver, Properties properties) {
+        prescanSize = PRESCAN_SIZE.getValue(properties);
         driver.getEventManager().register(EventManager.EVENT_READ_ENTITY, this);
     }
 
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.extension.http;
+
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.esigate.Driver;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.HttpClientBuilderEvent;
+import org.esigate.extension.Extension;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterInteger;
+
+/**
+ * DNS extension that caches host name lookups, refreshes them in background and spreads connections across all the
+ * addresses of a host.
+ * <p>
+ * It uses the following parameters :
+ * <ul>
+ * <li>dns.ttl : time in seconds a successful lookup is kept. Default is 60.</li>
+ * <li>dns.negativeTtl : time in seconds a failed lookup is kept. Default is 10.</li>
+ * </ul>
+ * Lookups are still performed through the JVM, which has its own cache (networkaddress.cache.ttl security property):
+ * its ttl should be lower than dns.ttl.
+ * 
+ * @see CachingDnsResolver
+ */
+public class CachingDNS implements Extension, IEventListener {
+    public static final Parameter<Integer> TTL = new ParameterInteger("dns.ttl", 60);
+    public static final Parameter<Integer> NEGATIVE_TTL = new ParameterInteger("dns.negativeTtl", 10);
+
+    /**
+     * Refreshes are quick and rare, a single daemon thread is shared by all drivers.
+     */
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "esigate-dns-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private CachingDnsResolver dnsResolver;
+
+    public CachingDnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        dnsResolver =
+                new CachingDnsResolver(SystemDefaultDnsResolver.INSTANCE, TTL.getValue(properties) * 1000L,
+                        NEGATIVE_TTL.getValue(properties) * 1000L, REFRESH_EXECUTOR);
+        driver.getEventManager().register(EventManager.EVENT_HTTP_BUILDER_INITIALIZATION, this);
+    }
+
+    @Override
+    public boolean event(EventDefinition id, Event event) {
+        HttpClientBuilderEvent httpClientBuilderEvent = (HttpClientBuilderEvent) event;
+        HttpClientBuilder httpClientBuilder = httpClientBuilderEvent.getHttpClientBuilder();
+        httpClientBuilder.setDnsResolver(dnsResolver);
+        return true;
+    }
+}
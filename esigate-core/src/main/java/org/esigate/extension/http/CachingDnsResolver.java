@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.extension.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.conn.DnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DNS resolver that caches the results of another resolver.
+ * <p>
+ * Successful lookups are kept for ttl ms and refreshed in background when 3/4 of the ttl has elapsed, so that hosts
+ * which are used continuously never wait for a DNS lookup. Failed lookups are kept for negativeTtl ms. When a host
+ * resolves to several addresses, the order of the addresses changes for each call so that connections are spread across
+ * all of them.
+ * 
+ */
+public class CachingDnsResolver implements DnsResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    private final DnsResolver delegate;
+    private final long ttl;
+    private final long negativeTtl;
+    private final Executor refreshExecutor;
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        private final InetAddress[] addresses;
+        private final UnknownHostException error;
+        private final long refreshAfter;
+        private final long expires;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        private Entry(InetAddress[] addresses, UnknownHostException error, long refreshAfter, long expires) {
+            this.addresses = addresses;
+            this.error = error;
+            this.refreshAfter = refreshAfter;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param delegate
+     *            the resolver actually performing the lookups
+     * @param ttl
+     *            time to live in ms for successful lookups
+     * @param negativeTtl
+     *            time to live in ms for failed lookups
+     * @param refreshExecutor
+     *            executor used to refresh the entries before they expire
+     */
+    public CachingDnsResolver(DnsResolver delegate, long ttl, long negativeTtl, Executor refreshExecutor) {
+        this.delegate = delegate;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(host);
+        if (entry == null || entry.expires <= now) {
+            entry = lookup(host);
+        } else if (entry.error == null && entry.refreshAfter <= now && entry.refreshing.compareAndSet(false, true)) {
+            refresh(host, entry);
+        }
+        if (entry.error != null) {
+            throw new UnknownHostException(entry.error.getMessage());
+        }
+        return rotate(entry);
+    }
+
+    /**
+     * Refreshes an entry in background. If the refresh fails, the entry is kept and refreshed again by the next call.
+     */
+    private void refresh(final String host, final Entry entry) {
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(host);
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Unable to refresh {}: {}", host, e.getMessage());
+            entry.refreshing.set(false);
+        }
+    }
+
+    private Entry lookup(String host) {
+        Entry entry;
+        long now = System.currentTimeMillis();
+        try {
+            InetAddress[] addresses = delegate.resolve(host);
+            entry = new Entry(addresses, null, now + ttl * 3 / 4, now + ttl);
+            LOG.debug("Resolved {}", host);
+        } catch (UnknownHostException e) {
+            Entry previous = cache.get(host);
+            if (previous != null && previous.error == null && previous.expires > now) {
+                // Background refresh failed, keep the previous addresses until they expire
+                LOG.warn("Unable to refresh {}: {}", host, e.getMessage());
+                return previous;
+            }
+            entry = new Entry(null, e, now + negativeTtl, now + negativeTtl);
+            LOG.debug("Unable to resolve {}", host);
+        }
+        cache.put(host, entry);
+        return entry;
+    }
+
+    private static InetAddress[] rotate(Entry entry) {
+        InetAddress[] addresses = entry.addresses;
+        if (addresses.length < 2) {
+            return addresses.clone();
+        }
+        int start = (entry.counter.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+        InetAddress[] result = new InetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            result[i] = addresses[(start + i) % addresses.length];
+        }
+        return result;
+    }
+
+}
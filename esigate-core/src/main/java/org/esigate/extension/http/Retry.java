@@ -1,9 +1,34 @@
 package org.esigate.extension.http;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import javax.net.ssl.SSLException;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.esigate.ConfigurationException;
 import org.esigate.Driver;
+import org.esigate.Parameters;
 import org.esigate.events.Event;
 import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
@@ -11,35 +36,96 @@ import org.esigate.events.IEventListener;
 import org.esigate.events.impl.FetchEvent;
 import org.esigate.events.impl.HttpClientBuilderEvent;
 import org.esigate.extension.Extension;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.http.OutgoingRequestContext;
 import org.esigate.util.Parameter;
+import org.esigate.util.ParameterFloat;
 import org.esigate.util.ParameterInteger;
+import org.esigate.util.TokenBucket;
+import org.esigate.util.SharedMetrics;
+import org.esigate.util.UriUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 
 /**
  * Enable Retry handler in http client.
+ * <p>
+ * Requests are retried on network errors only :
+ * <ul>
+ * <li>when the connection could not be established, whatever the method</li>
+ * <li>for other errors, only if the method is idempotent and the error is not a timeout</li>
+ * </ul>
+ * Retries are delayed by an exponential backoff with jitter (http.retryBaseDelay, http.retryMaxDelay), limited by a
+ * budget (http.retryBudget retries per request, so that an unavailable server does not receive several times the normal
+ * traffic) and sent to the next server declared in remoteUrlBase not tried yet for this request if there are several
+ * servers. A request sent to another server is attributed to it: its base URL, its target host and, unless the host is
+ * preserved, its Host header are updated together with the route.
+ * <p>
+ * The number of attempts, retries, successful retries and retries rejected by the budget are exposed as gauges named
+ * Retry.&lt;driver&gt;.attempts, retries, retrySuccesses and retriesRejected.
  * 
  * @author Nicolas Richeton
  * 
  */
-public class Retry implements Extension, IEventListener {
+public class Retry implements Extension, IEventListener, HttpRequestRetryHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(Retry.class);
+    private static final Set<String> IDEMPOTENT_METHODS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE")));
+    /**
+     * Maximum number of retries that can be saved when traffic is low.
+     */
+    private static final float MAX_TOKENS = 10;
+
     int maxRetries;
     public static final Parameter<Integer> NB_RETRY = new ParameterInteger("http.retryCount", 3);
+    public static final Parameter<Integer> BASE_DELAY = new ParameterInteger("http.retryBaseDelay", 50);
+    public static final Parameter<Integer> MAX_DELAY = new ParameterInteger("http.retryMaxDelay", 1000);
+    public static final Parameter<Float> BUDGET = new ParameterFloat("http.retryBudget", 0.1f);
+
+    private int baseDelay;
+    private int maxDelay;
+    private TokenBucket budget;
+    private HttpHost[] hosts;
+    private URL[] baseUrls;
+    private boolean preserveHost;
+
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retrySuccesses = new AtomicLong();
+    private final AtomicLong retriesRejected = new AtomicLong();
 
     public boolean event(EventDefinition id, Event event) {
         if (EventManager.EVENT_HTTP_BUILDER_INITIALIZATION.equals(id)) {
             HttpClientBuilderEvent e = (HttpClientBuilderEvent) event;
             // Register retry handler
-            e.getHttpClientBuilder().setRetryHandler(new DefaultHttpRequestRetryHandler(maxRetries, true));
+            e.getHttpClientBuilder().setRetryHandler(this);
         } else if (EventManager.EVENT_FETCH_PRE.equals(id)) {
             FetchEvent e = (FetchEvent) event;
             // Count attempts
             int attemptNumber = getAttemptNumber(e);
             setAttemptNumber(attemptNumber + 1, e);
             e.getHttpRequest().addHeader("org.esigate.http.attempt", String.valueOf(getAttemptNumber(e)));
+            attempts.incrementAndGet();
+            if (attemptNumber == 0) {
+                budget.deposit();
+                addTriedHost(e);
+            } else {
+                routeToNextHost(e);
+            }
         } else if (EventManager.EVENT_FETCH_POST.equals(id)) {
             FetchEvent e = (FetchEvent) event;
             int attemptNumber = getAttemptNumber(e);
-            if (attemptNumber <= maxRetries)
-                e.setExit(false); // let's retry in case it failed
+            if (e.isExit()) {
+                // The request failed
+                if (attemptNumber <= maxRetries)
+                    e.setExit(false); // let's retry in case it failed
+            } else if (attemptNumber > 1
+                    && e.getHttpResponse().getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                retrySuccesses.incrementAndGet();
+            }
         }
 
         return true;
@@ -52,9 +138,164 @@ public class Retry implements Extension, IEventListener {
 
         // load configuration
         maxRetries = NB_RETRY.getValue(properties);
+        baseDelay = BASE_DELAY.getValue(properties);
+        maxDelay = MAX_DELAY.getValue(properties);
+        budget = new TokenBucket(BUDGET.getValue(properties), MAX_TOKENS);
+        preserveHost = driver.getConfiguration().isPreserveHost();
+        List<HttpHost> hostList = new ArrayList<>();
+        List<URL> baseUrlList = new ArrayList<>();
+        for (String baseUrl : Parameters.REMOTE_URL_BASE.getValue(properties)) {
+            HttpHost host = UriUtils.extractHost(baseUrl);
+            if (host.getPort() < 0) {
+                // Routes always have an explicit port
+                int port = "https".equalsIgnoreCase(host.getSchemeName()) ? 443 : 80;
+                host = new HttpHost(host.getHostName(), port, host.getSchemeName());
+            }
+            if (!hostList.contains(host)) {
+                hostList.add(host);
+                try {
+                    baseUrlList.add(new URL(baseUrl));
+                } catch (MalformedURLException e) {
+                    throw new ConfigurationException(e);
+                }
+            }
+        }
+        hosts = hostList.toArray(new HttpHost[hostList.size()]);
+        baseUrls = baseUrlList.toArray(new URL[baseUrlList.size()]);
+
+        String prefix = MetricRegistry.name(getClass().getSimpleName(), driver.getConfiguration().getInstanceName());
+        registerGauge(driver, MetricRegistry.name(prefix, "attempts"), attempts);
+        registerGauge(driver, MetricRegistry.name(prefix, "retries"), retries);
+        registerGauge(driver, MetricRegistry.name(prefix, "retrySuccesses"), retrySuccesses);
+        registerGauge(driver, MetricRegistry.name(prefix, "retriesRejected"), retriesRejected);
+    }
+
+    private static void registerGauge(Driver driver, String name, final AtomicLong counter) {
+        SharedMetrics.setGauge(driver, name, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return counter.get();
+            }
+        });
+    }
+
+    @Override
+    public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+        if (executionCount > maxRetries) {
+            return false;
+        }
+        OutgoingRequest request = OutgoingRequestContext.adapt(context).getOutgoingRequest();
+        if (request == null || request.isAborted() || !isRetriable(exception, request)) {
+            return false;
+        }
+        if (!budget.tryAcquire()) {
+            retriesRejected.incrementAndGet();
+            LOG.warn("Retry budget exhausted, not retrying {}: {}", request.getRequestLine(), exception.toString());
+            return false;
+        }
+        long delay = getDelay(executionCount);
+        LOG.debug("Retrying {} in {} ms after {}", request.getRequestLine(), delay, exception.toString());
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    private static boolean isRetriable(IOException exception, OutgoingRequest request) {
+        if (exception instanceof ConnectException || exception instanceof ConnectTimeoutException) {
+            // The request was not sent at all
+            return true;
+        }
+        if (exception instanceof InterruptedIOException || exception instanceof UnknownHostException
+                || exception instanceof SSLException) {
+            // Timeouts: the server is already too slow, unknown host or SSL errors: retrying will not help
+            return false;
+        }
+        return IDEMPOTENT_METHODS.contains(request.getRequestLine().getMethod());
+    }
+
+    /**
+     * Exponential backoff with "full jitter".
+     * 
+     * @param executionCount
+     *            number of attempts already performed
+     * @return delay in ms
+     */
+    long getDelay(int executionCount) {
+        long delay = Math.min(maxDelay, (long) baseDelay << Math.min(executionCount - 1, 30));
+        return ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+    private void addTriedHost(FetchEvent e) {
+        HttpRoute route = e.getHttpRoute();
+        if (hosts.length > 1 && route != null) {
+            getTriedHosts(e).add(route.getTargetHost());
+        }
+    }
+
+    /**
+     * Sends the request to the next server not tried yet, in the order of remoteUrlBase, starting after the last one
+     * tried. Once all the servers have been tried, they are tried again in the same order. The base URL of the request
+     * is updated so that the load balancing strategy charges the attempt to the server actually used.
+     */
+    private void routeToNextHost(FetchEvent e) {
+        HttpRoute route = e.getHttpRoute();
+        OutgoingRequest request = e.getHttpContext().getOutgoingRequest();
+        if (hosts.length < 2 || route == null || request == null || request.getOriginalRequest().isExternal()) {
+            return;
+        }
+        List<HttpHost> triedHosts = getTriedHosts(e);
+        HttpHost last = triedHosts.isEmpty() ? route.getTargetHost() : triedHosts.get(triedHosts.size() - 1);
+        int lastIndex = Arrays.asList(hosts).indexOf(last);
+        if (lastIndex < 0) {
+            return;
+        }
+        int nextIndex = -1;
+        for (int i = 1; i <= hosts.length && nextIndex < 0; i++) {
+            int index = (lastIndex + i) % hosts.length;
+            if (!triedHosts.contains(hosts[index])) {
+                nextIndex = index;
+            }
+        }
+        if (nextIndex < 0) {
+            // All the servers have been tried
+            triedHosts.clear();
+            nextIndex = (lastIndex + 1) % hosts.length;
+        }
+        HttpHost next = hosts[nextIndex];
+        triedHosts.add(next);
+        boolean secure = "https".equalsIgnoreCase(next.getSchemeName());
+        if (route.getProxyHost() == null) {
+            e.setHttpRoute(new HttpRoute(next, route.getLocalAddress(), secure));
+        } else {
+            e.setHttpRoute(new HttpRoute(next, route.getLocalAddress(), route.getProxyHost(), secure));
+        }
+        request.setBaseUrl(baseUrls[nextIndex]);
+        if (!preserveHost) {
+            // Same virtual host as the one the request would have had if this server had been chosen first
+            HttpHost virtualHost = UriUtils.extractHost(baseUrls[nextIndex].toString());
+            e.getHttpContext().setAttribute(HttpCoreContext.HTTP_TARGET_HOST, virtualHost);
+            e.getHttpRequest().setHeader(HttpHeaders.HOST, virtualHost.toHostString());
+        }
+        LOG.debug("Retrying {} on {}", request.getRequestLine(), next);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<HttpHost> getTriedHosts(FetchEvent e) {
+        List<HttpHost> triedHosts = (List<HttpHost>) e.getHttpContext().getAttribute(TRIED_HOSTS_KEY);
+        if (triedHosts == null) {
+            triedHosts = new ArrayList<>();
+            e.getHttpContext().setAttribute(TRIED_HOSTS_KEY, triedHosts);
+        }
+        return triedHosts;
     }
 
     private final static String RETRY_KEY = "RetryExtension.attemptNumber";
+    private final static String TRIED_HOSTS_KEY = "RetryExtension.triedHosts";
 
     private int getAttemptNumber(FetchEvent e) {
         Object number = e.getHttpContext().getAttribute(RETRY_KEY);
@@ -64,4 +305,32 @@ public class Retry implements Extension, IEventListener {
     private void setAttemptNumber(int number, FetchEvent e) {
         e.getHttpContext().setAttribute(RETRY_KEY, number);
     }
+
+    /**
+     * @return number of requests sent, including retries
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return number of retries
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of retries which got a response from the server
+     */
+    public long getRetrySuccesses() {
+        return retrySuccesses.get();
+    }
+
+    /**
+     * @return number of retries cancelled because the budget was exhausted
+     */
+    public long getRetriesRejected() {
+        return retriesRejected.get();
+    }
 }
@@ -15,6 +15,7 @@
 
 package org.esigate.extension.monitoring;
 
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Slf4jReporter;
@@ -27,13 +28,18 @@ import org.esigate.events.EventDefinition;
 import org.esigate.events.EventManager;
 import org.esigate.events.IEventListener;
 import org.esigate.events.impl.FetchEvent;
+import org.esigate.events.impl.FragmentEvent;
 import org.esigate.events.impl.ProxyEvent;
 import org.esigate.extension.Extension;
 import org.esigate.util.Parameter;
 import org.esigate.util.ParameterInteger;
+import org.esigate.util.SharedMetrics;
+import org.esigate.util.SummingTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
@@ -44,38 +50,94 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * <code>metricPeriod=60</code>
  * <p>
+ * The metrics are recorded in the registry shared by all drivers, see {@link SharedMetrics}:
+ * <ul>
+ * <li>meters for proxy and backend requests, per status code for errors</li>
+ * <li>timers with latency percentiles for proxy, fetch and render</li>
+ * <li>meters for the cache status of the fragments: hit, miss, validated</li>
+ * </ul>
  * <p>
  * Created by alexis on 20/03/14.
  */
 public class Metric implements Extension, IEventListener {
     private static final Logger LOG = LoggerFactory.getLogger(Metric.class);
     private static final Parameter<Integer> PARAM_METRIC_PERIOD = new ParameterInteger("metricPeriod", 60);
+    private static final String PROXY_START = Metric.class.getName() + ".proxyStart";
+    private static final String FETCH_START = Metric.class.getName() + ".fetchStart";
+    private static final int MAX_RENDER_DEPTH = 100;
+    /**
+     * Renders are nested for includes and run entirely in the same thread, unlike proxy requests whose fragments may be
+     * fetched by other threads.
+     */
+    private static final ThreadLocal<Deque<Long>> RENDER_STARTS = new ThreadLocal<Deque<Long>>() {
+        @Override
+        protected Deque<Long> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
 
-    private MetricRegistry metric = new MetricRegistry();
+    private MetricRegistry metric = SharedMetrics.getRegistry();
     private Driver driver;
+    private String prefix;
 
     @Override
     public void init(Driver d, Properties properties) {
         this.driver = d;
+        this.prefix = MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration().getInstanceName());
         LOG.debug("Initialize Metric");
+        driver.getEventManager().register(EventManager.EVENT_PROXY_PRE, this);
         driver.getEventManager().register(EventManager.EVENT_PROXY_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_FETCH_PRE, this);
         driver.getEventManager().register(EventManager.EVENT_FETCH_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_RENDER_PRE, this);
+        driver.getEventManager().register(EventManager.EVENT_RENDER_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_POST, this);
 
-        ScheduledReporter reporter =
-                Slf4jReporter.forRegistry(this.metric).outputTo(LOG).convertRatesTo(TimeUnit.SECONDS)
-                        .convertDurationsTo(TimeUnit.MILLISECONDS).build();
+        int period = PARAM_METRIC_PERIOD.getValue(properties);
+        if (period > 0) {
+            // Only the metrics of this driver, the registry is shared
+            ScheduledReporter reporter =
+                    Slf4jReporter.forRegistry(this.metric).outputTo(LOG).filter(MetricFilter.startsWith(prefix + "."))
+                            .convertRatesTo(TimeUnit.SECONDS).convertDurationsTo(TimeUnit.MILLISECONDS).build();
 
-        reporter.start(PARAM_METRIC_PERIOD.getValue(properties), TimeUnit.SECONDS);
+            reporter.start(period, TimeUnit.SECONDS);
+        }
     }
 
     @Override
     public boolean event(EventDefinition id, Event event) {
 
-        String timerName =
-                MetricRegistry.name(this.getClass().getSimpleName(), driver.getConfiguration().getInstanceName(),
-                        id.getId());
+        if (EventManager.EVENT_PROXY_PRE.equals(id)) {
+            ((ProxyEvent) event).getOriginalRequest().setAttribute(PROXY_START, System.nanoTime());
+            return true;
+        } else if (EventManager.EVENT_FETCH_PRE.equals(id)) {
+            ((FetchEvent) event).getHttpContext().setAttribute(FETCH_START, System.nanoTime(), true);
+            return true;
+        } else if (EventManager.EVENT_RENDER_PRE.equals(id)) {
+            Deque<Long> renderStarts = RENDER_STARTS.get();
+            if (renderStarts.size() >= MAX_RENDER_DEPTH) {
+                // Left by renders that failed before render-post
+                renderStarts.clear();
+            }
+            renderStarts.push(System.nanoTime());
+            return true;
+        } else if (EventManager.EVENT_RENDER_POST.equals(id)) {
+            updateTimer("render", RENDER_STARTS.get().poll());
+            return true;
+        } else if (EventManager.EVENT_FRAGMENT_POST.equals(id)) {
+            CacheResponseStatus cacheResponseStatus =
+                    (CacheResponseStatus) ((FragmentEvent) event).getHttpContext().getAttribute(
+                            HttpCacheContext.CACHE_RESPONSE_STATUS);
+            if (cacheResponseStatus != null) {
+                metric.meter(MetricRegistry.name(prefix, "cache", cacheResponseStatus.name().toLowerCase())).mark();
+            }
+            return true;
+        }
+
+        String timerName = MetricRegistry.name(prefix, id.getId());
 
         if (EventManager.EVENT_PROXY_POST.equals(id)) {
+            updateTimer("proxy", ((ProxyEvent) event).getOriginalRequest().<Long>getAttribute(PROXY_START));
             if (((ProxyEvent) event).getErrorPage() != null) {
                 String statusCode =
                         String.valueOf(((ProxyEvent) event).getErrorPage().getHttpResponse().getStatusLine()
@@ -85,6 +147,7 @@ public class Metric implements Extension, IEventListener {
         } else if (EventManager.EVENT_FETCH_POST.equals(id)) {
             // Retrieve HTTP response status code and cache status
             FetchEvent e = (FetchEvent) event;
+            updateTimer("fetch", (Long) e.getHttpContext().removeAttribute(FETCH_START, true));
             int statusCode = e.getHttpResponse().getStatusLine().getStatusCode();
             CacheResponseStatus cacheResponseStatus =
                     (CacheResponseStatus) e.getHttpContext().getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
@@ -103,4 +166,11 @@ public class Metric implements Extension, IEventListener {
 
         return true;
     }
+
+    private void updateTimer(String name, Long start) {
+        if (start != null) {
+            metric.timer(MetricRegistry.name(prefix, name), SummingTimer.SUPPLIER).update(System.nanoTime() - start,
+                    TimeUnit.NANOSECONDS);
+        }
+    }
 }
@@ -0,0 +1,327 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.monitoring;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.esigate.Driver;
+import org.esigate.Renderer;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.FragmentEvent;
+import org.esigate.events.impl.ProxyEvent;
+import org.esigate.events.impl.RenderEvent;
+import org.esigate.extension.Extension;
+import org.esigate.http.IncomingRequest;
+import org.esigate.util.Parameter;
+import org.esigate.util.ParameterBoolean;
+import org.esigate.util.ParameterCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This extension records, for each request proxied by the driver, the fragments fetched (provider, url, status, cache
+ * status and duration) and the render phases (renderers and duration).
+ * <p>
+ * The breakdown is sent to trusted clients in a <code>Server-Timing</code> response header, so that it can be seen in
+ * the browser developer tools, and logged as one JSON line per request in INFO level. It contains:
+ * <ul>
+ * <li>total: the time from the reception of the request to the moment the response is ready to be sent</li>
+ * <li>wait: the time during which at least one fragment was being fetched</li>
+ * <li>fetch-N: each fragment, in the order they were requested</li>
+ * <li>render-N: each render, including the fragments it includes</li>
+ * </ul>
+ * <p>
+ * Only the work done before the response headers are sent is reported: a page rendered while it is sent, with its
+ * includes, and the fragments of other providers which do not use this extension, are missing.
+ * <p>
+ * Configuration, in driver properties:
+ * <ul>
+ * <li><code>serverTimingTrustedClients</code>: the addresses allowed to receive the header, an address ending with '.'
+ * or ':' is a prefix, * allows all clients. Default: 127.0.0.1,0:0:0:0:0:0:0:1,::1</li>
+ * <li><code>serverTimingLog</code>: log the breakdown. Default: true</li>
+ * </ul>
+ */
+public class ServerTiming implements Extension, IEventListener {
+    private static final Logger LOG = LoggerFactory.getLogger(ServerTiming.class);
+    public static final Parameter<Collection<String>> TRUSTED_CLIENTS = new ParameterCollection(
+            "serverTimingTrustedClients", "127.0.0.1", "0:0:0:0:0:0:0:1", "::1");
+    public static final Parameter<Boolean> LOG_TIMINGS = new ParameterBoolean("serverTimingLog", true);
+    public static final String HEADER = "Server-Timing";
+    private static final String TIMINGS = ServerTiming.class.getName() + ".timings";
+    private static final String FRAGMENT_START = ServerTiming.class.getName() + ".fragmentStart";
+    /** Limits the size of the header for pages with a lot of includes. */
+    private static final int MAX_ENTRIES = 100;
+    private static final int MAX_RENDER_DEPTH = 100;
+    /**
+     * Renders are nested for includes and run entirely in the same thread.
+     */
+    private static final ThreadLocal<Deque<Long>> RENDER_STARTS = new ThreadLocal<Deque<Long>>() {
+        @Override
+        protected Deque<Long> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    private static final double NANOS_PER_MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private Driver driver;
+    private Collection<String> trustedClients;
+    private boolean logTimings;
+
+    /**
+     * A fragment fetch or a render.
+     */
+    static final class Entry {
+        private final String type;
+        private final long start;
+        private final long duration;
+        private final String description;
+
+        Entry(String type, long start, long duration, String description) {
+            this.type = type;
+            this.start = start;
+            this.duration = duration;
+            this.description = description;
+        }
+    }
+
+    /**
+     * The entries of an incoming request. Fragments may be fetched concurrently by parallel ESI threads.
+     */
+    static final class Timings {
+        private final long start = System.nanoTime();
+        private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+        void add(Entry entry) {
+            entries.add(entry);
+        }
+
+        List<Entry> getEntries() {
+            List<Entry> result = new ArrayList<>(entries);
+            Collections.sort(result, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return Long.compare(e1.start, e2.start);
+                }
+            });
+            return result;
+        }
+    }
+
+    @Override
+    public void init(Driver d, Properties properties) {
+        this.driver = d;
+        this.trustedClients = TRUSTED_CLIENTS.getValue(properties);
+        this.logTimings = LOG_TIMINGS.getValue(properties);
+        driver.getEventManager().register(EventManager.EVENT_PROXY_PRE, this);
+        driver.getEventManager().register(EventManager.EVENT_PROXY_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_PRE, this);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_RENDER_PRE, this);
+        driver.getEventManager().register(EventManager.EVENT_RENDER_POST, this);
+    }
+
+    @Override
+    public boolean event(EventDefinition id, Event event) {
+        if (EventManager.EVENT_PROXY_PRE.equals(id)) {
+            IncomingRequest request = ((ProxyEvent) event).getOriginalRequest();
+            // Set once before any fragment is fetched, then only read
+            if (request.getAttribute(TIMINGS) == null) {
+                request.setAttribute(TIMINGS, new Timings());
+            }
+        } else if (EventManager.EVENT_FRAGMENT_PRE.equals(id)) {
+            ((FragmentEvent) event).getHttpContext().setAttribute(FRAGMENT_START, System.nanoTime(), true);
+        } else if (EventManager.EVENT_FRAGMENT_POST.equals(id)) {
+            FragmentEvent e = (FragmentEvent) event;
+            Long start = (Long) e.getHttpContext().removeAttribute(FRAGMENT_START, true);
+            Timings timings = e.getOriginalRequest().getAttribute(TIMINGS);
+            if (start != null && timings != null) {
+                timings.add(new Entry("fetch", start, System.nanoTime() - start, describeFragment(e)));
+            }
+        } else if (EventManager.EVENT_RENDER_PRE.equals(id)) {
+            Deque<Long> renderStarts = RENDER_STARTS.get();
+            if (renderStarts.size() >= MAX_RENDER_DEPTH) {
+                // Left by renders that failed before render-post
+                renderStarts.clear();
+            }
+            renderStarts.push(System.nanoTime());
+        } else if (EventManager.EVENT_RENDER_POST.equals(id)) {
+            RenderEvent e = (RenderEvent) event;
+            Long start = RENDER_STARTS.get().poll();
+            Timings timings = e.getOriginalRequest().getOriginalRequest().getAttribute(TIMINGS);
+            if (start != null && timings != null) {
+                timings.add(new Entry("render", start, System.nanoTime() - start, describeRender(e)));
+            }
+        } else if (EventManager.EVENT_PROXY_POST.equals(id)) {
+            ProxyEvent e = (ProxyEvent) event;
+            Timings timings = e.getOriginalRequest().getAttribute(TIMINGS);
+            if (timings != null) {
+                report(e, timings);
+            }
+        }
+        // Continue processing
+        return true;
+    }
+
+    private String describeFragment(FragmentEvent e) {
+        StringBuilder result = new StringBuilder();
+        result.append(driver.getConfiguration().getInstanceName()).append(' ')
+                .append(e.getHttpRequest().getRequestLine().getUri());
+        if (e.getHttpResponse() != null) {
+            result.append(' ').append(e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        CacheResponseStatus cacheResponseStatus =
+                (CacheResponseStatus) e.getHttpContext().getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
+        if (cacheResponseStatus != null) {
+            result.append(' ').append(cacheResponseStatus);
+        }
+        return result.toString();
+    }
+
+    private String describeRender(RenderEvent e) {
+        StringBuilder result = new StringBuilder();
+        result.append(driver.getConfiguration().getInstanceName()).append(' ').append(e.getRemoteUrl());
+        String separator = " ";
+        for (Renderer renderer : e.getRenderers()) {
+            result.append(separator).append(renderer.getClass().getSimpleName());
+            separator = ",";
+        }
+        return result.toString();
+    }
+
+    private void report(ProxyEvent e, Timings timings) {
+        long total = System.nanoTime() - timings.start;
+        List<Entry> entries = timings.getEntries();
+        long wait = getWaitTime(entries);
+        HttpResponse response = e.getErrorPage() != null ? e.getErrorPage().getHttpResponse() : e.getResponse();
+        if (response != null && isTrusted(e.getOriginalRequest())) {
+            response.addHeader(HEADER, toHeader(total, wait, entries));
+        }
+        if (logTimings && LOG.isInfoEnabled()) {
+            LOG.info(toJson(e.getOriginalRequest(), timings.start, total, wait, entries));
+        }
+    }
+
+    /**
+     * Computes the time during which at least one fragment was being fetched, the fetches of parallel includes overlap.
+     */
+    static long getWaitTime(List<Entry> entries) {
+        long wait = 0;
+        long end = Long.MIN_VALUE;
+        for (Entry entry : entries) {
+            if ("fetch".equals(entry.type)) {
+                long entryEnd = entry.start + entry.duration;
+                if (entry.start >= end) {
+                    wait += entry.duration;
+                    end = entryEnd;
+                } else if (entryEnd > end) {
+                    wait += entryEnd - end;
+                    end = entryEnd;
+                }
+            }
+        }
+        return wait;
+    }
+
+    boolean isTrusted(IncomingRequest request) {
+        String remoteAddr = request.getRemoteAddr();
+        for (String trustedClient : trustedClients) {
+            if ("*".equals(trustedClient)) {
+                return true;
+            }
+            if (remoteAddr != null) {
+                boolean prefix = trustedClient.endsWith(".") || trustedClient.endsWith(":");
+                if (prefix ? remoteAddr.startsWith(trustedClient) : remoteAddr.equals(trustedClient)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static String toHeader(long total, long wait, List<Entry> entries) {
+        StringBuilder result = new StringBuilder();
+        result.append("total;dur=").append(toMillis(total));
+        result.append(", wait;dur=").append(toMillis(wait));
+        int fetches = 0;
+        int renders = 0;
+        for (Entry entry : entries.subList(0, Math.min(entries.size(), MAX_ENTRIES))) {
+            int index = "fetch".equals(entry.type) ? ++fetches : ++renders;
+            result.append(", ").append(entry.type).append('-').append(index).append(";dur=")
+                    .append(toMillis(entry.duration)).append(";desc=");
+            appendQuoted(result, entry.description);
+        }
+        return result.toString();
+    }
+
+    static String toJson(IncomingRequest request, long start, long total, long wait, List<Entry> entries) {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"request\":");
+        appendQuoted(result, request.getRequestLine().toString());
+        result.append(",\"total\":").append(toMillis(total));
+        result.append(",\"wait\":").append(toMillis(wait));
+        result.append(",\"entries\":[");
+        String separator = "";
+        for (Entry entry : entries) {
+            result.append(separator).append("{\"type\":\"").append(entry.type).append("\",\"start\":")
+                    .append(toMillis(entry.start - start)).append(",\"dur\":").append(toMillis(entry.duration))
+                    .append(",\"desc\":");
+            appendQuoted(result, entry.description);
+            result.append('}');
+            separator = ",";
+        }
+        result.append("]}");
+        return result.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.valueOf(Math.round(nanos / NANOS_PER_MILLISECOND * 10) / 10.0);
+    }
+
+    /**
+     * Appends a quoted string, valid both in JSON and as a Server-Timing description.
+     */
+    private static void appendQuoted(StringBuilder result, String value) {
+        result.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c >= ' ' && c < 127) {
+                result.append(c);
+            } else {
+                // Header values must be ASCII
+                result.append('?');
+            }
+        }
+        result.append('"');
+    }
+
+}
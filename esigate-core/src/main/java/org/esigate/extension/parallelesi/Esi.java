@@ -32,9 +32,13 @@ import org.esigate.extension.surrogate.CapabilitiesEvent;
 import org.esigate.extension.surrogate.Surrogate;
 import org.esigate.util.Parameter;
 import org.esigate.util.ParameterInteger;
+import org.esigate.util.SharedMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * This extension processes ESI directives, like :
  * <p>
@@ -126,9 +130,25 @@ public class Esi implements Extension, IEventListener {
             this.executor = null;
             LOG.info("Linear ESI processing enabled.");
         } else {
-            this.executor =
+            final ThreadPoolExecutor threadPoolExecutor =
                     new ThreadPoolExecutor(coreThreads, maxThreads, idle, TimeUnit.SECONDS,
                             new LinkedBlockingQueue<Runnable>(maxQueue));
+            this.executor = threadPoolExecutor;
+
+            String prefix =
+                    MetricRegistry.name(getClass().getSimpleName(), driver.getConfiguration().getInstanceName());
+            SharedMetrics.setGauge(driver, MetricRegistry.name(prefix, "queue"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return threadPoolExecutor.getQueue().size();
+                }
+            });
+            SharedMetrics.setGauge(driver, MetricRegistry.name(prefix, "active"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return threadPoolExecutor.getActiveCount();
+                }
+            });
 
             LOG.info("Multi-threaded ESI processing enabled. Thread limit: {}, max idle {}.",
                     String.valueOf(maxThreads), String.valueOf(idle));
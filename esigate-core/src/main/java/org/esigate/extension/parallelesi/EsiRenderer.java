@@ -17,21 +17,23 @@ package org.esigate.extension.parallelesi;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.http.HttpStatus;
 import org.esigate.HttpErrorPage;
-import org.esigate.Renderer;
+import org.esigate.Parameters;
+import org.esigate.esi.CommentRenderer;
 import org.esigate.impl.DriverRequest;
 import org.esigate.parser.future.FutureAppendable;
 import org.esigate.parser.future.FutureAppendableAdapter;
 import org.esigate.parser.future.FutureParser;
-import org.esigate.parser.future.StringBuilderFutureAppendable;
+import org.esigate.renderers.FilterRenderer;
+import org.esigate.renderers.FilteredInputRenderer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,7 +51,7 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Nicolas Richeton
  */
-public class EsiRenderer implements Renderer, FutureAppendable {
+public class EsiRenderer implements FilteredInputRenderer, FutureAppendable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EsiRenderer.class);
     /**
@@ -59,14 +61,13 @@ public class EsiRenderer implements Renderer, FutureAppendable {
 
     private static final Pattern PATTERN = Pattern
             .compile("(<esi:\\w+((\\s+\\w+(\\s*=\\s*(?:\".*?\"|'.*?'|[^'\">\\s]+))?)+\\s*|\\s*)/?>)|(</esi:[^>]*>)");
-    private static final Pattern PATTERN_COMMENTS = Pattern.compile("(<!--esi)|(-->)");
 
     private final FutureParser parser = new FutureParser(PATTERN, IncludeElement.TYPE, CommentElement.TYPE,
             RemoveElement.TYPE, VarsElement.TYPE, ChooseElement.TYPE, WhenElement.TYPE, OtherwiseElement.TYPE,
             TryElement.TYPE, AttemptElement.TYPE, ExceptElement.TYPE, InlineElement.TYPE, ReplaceElement.TYPE,
             FragmentElement.TYPE);
 
-    private final FutureParser parserComments = new FutureParser(PATTERN_COMMENTS, Comment.TYPE);
+    private final CommentRenderer commentRenderer = new CommentRenderer();
 
     private Map<String, CharSequence> fragmentsToReplace;
 
@@ -129,39 +130,43 @@ public class EsiRenderer implements Renderer, FutureAppendable {
 
     @Override
     public void render(DriverRequest originalRequest, String content, Writer out) throws IOException, HttpErrorPage {
-        if (name != null) {
-            LOG.debug("Rendering fragment {} in page {}", name, page);
-        }
-        this.futureOut = new FutureAppendableAdapter(out);
         if (content == null) {
+            this.futureOut = new FutureAppendableAdapter(out);
             return;
         }
 
-        try {
-            // Pass 1. Remove esi comments
-            StringBuilderFutureAppendable contentWithoutComments = new StringBuilderFutureAppendable();
-            parserComments.setHttpRequest(originalRequest);
-            parserComments.setData(DATA_EXECUTOR, this.executor);
-            parserComments.parse(content, contentWithoutComments);
-            CharSequence contentWithoutCommentsResult;
+        // Pass 1. Remove esi comments
+        StringBuilderWriter contentWithoutComments =
+                new StringBuilderWriter(Math.max(content.length(), Parameters.DEFAULT_BUFFER_SIZE));
+        commentRenderer.render(originalRequest, content, contentWithoutComments);
 
-            contentWithoutCommentsResult = contentWithoutComments.get();
+        // Pass 2. Process ESI
+        renderFiltered(originalRequest, contentWithoutComments.getBuilder(), out);
+    }
 
-            // Pass 2. Process ESI
-            parser.setHttpRequest(originalRequest);
-            parser.setData(DATA_EXECUTOR, this.executor);
-            parser.parse(contentWithoutCommentsResult, this);
+    @Override
+    public FilterRenderer getInputFilter() {
+        return commentRenderer;
+    }
 
-            if (name != null && !this.found) {
-                throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Fragment " + name + " not found", "Fragment "
-                        + name + " not found");
-            }
+    @Override
+    public void renderFiltered(DriverRequest originalRequest, CharSequence contentWithoutComments, Writer out)
+            throws IOException, HttpErrorPage {
+        if (name != null) {
+            LOG.debug("Rendering fragment {} in page {}", name, page);
+        }
+        this.futureOut = new FutureAppendableAdapter(out);
 
-            this.futureOut.performAppends();
+        parser.setHttpRequest(originalRequest);
+        parser.setData(DATA_EXECUTOR, this.executor);
+        parser.parse(contentWithoutComments, this);
 
-        } catch (ExecutionException e) {
-            throw new IOException(e);
+        if (name != null && !this.found) {
+            throw new HttpErrorPage(HttpStatus.SC_BAD_GATEWAY, "Fragment " + name + " not found", "Fragment " + name
+                    + " not found");
         }
+
+        this.futureOut.performAppends();
     }
 
     @Override
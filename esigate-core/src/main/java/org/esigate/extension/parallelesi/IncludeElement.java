@@ -39,6 +39,7 @@ import org.esigate.Parameters;
 import org.esigate.Renderer;
 import org.esigate.http.HttpResponseUtils;
 import org.esigate.impl.DriverRequest;
+import org.esigate.jfr.FlightRecorder;
 import org.esigate.parser.future.CharSequenceFuture;
 import org.esigate.parser.future.FutureElement;
 import org.esigate.parser.future.FutureElementType;
@@ -65,6 +66,7 @@ class IncludeElement extends BaseElement {
         private Map<String, CharSequence> fragmentReplacements;
         private Map<String, CharSequence> regexpReplacements;
         private Executor executor;
+        private long created;
 
         private IncludeTask(Tag includeTag, String src, String alt, FutureParserContext ctx, FutureElement current,
                 boolean ignoreError, Map<String, CharSequence> fragmentReplacements,
@@ -78,10 +80,22 @@ class IncludeElement extends BaseElement {
             this.fragmentReplacements = fragmentReplacements;
             this.regexpReplacements = regexpReplacements;
             this.executor = executor;
+            this.created = System.nanoTime();
         }
 
         @Override
         public CharSequence call() throws IOException, HttpErrorPage {
+            // The time between the creation and the execution of the task is the time spent in the executor queue
+            FlightRecorder.Span span =
+                    FlightRecorder.startInclude(ctx.getHttpRequest(), src, System.nanoTime() - created);
+            try {
+                return include();
+            } finally {
+                span.end(null);
+            }
+        }
+
+        private CharSequence include() throws IOException, HttpErrorPage {
             LOG.debug("Starting include task {}", this.src);
             StringBuilderWriter sw = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
 
@@ -1,7 +1,9 @@
 package org.esigate.http;
 
+import java.io.Closeable;
 import java.util.Locale;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HeaderIterator;
 import org.apache.http.HttpEntity;
@@ -27,7 +29,11 @@ public final class BasicCloseableHttpResponse implements CloseableHttpResponse {
 
     @Override
     public void close() {
-        // Nothing to do
+        // Releases the resources held by the entity if any, for instance the memory of a rendered page
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) entity);
+        }
     }
 
     @Override
@@ -32,13 +32,16 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.HttpCacheContext;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.cookie.CookieSpecProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.pool.ConnPoolControl;
 import org.esigate.ConfigurationException;
 import org.esigate.Driver;
 import org.esigate.HttpErrorPage;
@@ -52,11 +55,16 @@ import org.esigate.events.impl.HttpClientBuilderEvent;
 import org.esigate.extension.ExtensionFactory;
 import org.esigate.http.cookie.CustomBrowserCompatSpecFactory;
 import org.esigate.impl.DriverRequest;
+import org.esigate.jfr.FlightRecorder;
 import org.esigate.util.HttpRequestHelper;
+import org.esigate.util.SharedMetrics;
 import org.esigate.util.UriUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * HttpClientHelper is responsible for creating Apache HttpClient requests from incoming requests. It can copy a request
  * with its method and entity or simply create a new GET request to the same URI. Some parameters enable to control
@@ -77,6 +85,7 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
     private int connectTimeout;
     private int socketTimeout;
     private HttpHost firstBaseUrlHost;
+    private RequestHedging requestHedging;
 
     /**
      * Builder class used to produce an immutable instance.
@@ -125,6 +134,9 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
             result.httpClient = buildHttpClient();
             String firstBaseURL = Parameters.REMOTE_URL_BASE.getValue(properties)[0];
             result.firstBaseUrlHost = UriUtils.extractHost(firstBaseURL);
+            if (RequestHedging.isEnabled(properties)) {
+                result.requestHedging = new RequestHedging(properties);
+            }
             return result;
         }
 
@@ -212,7 +224,44 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
 
             driver.getEventManager().fire(EventManager.EVENT_HTTP_BUILDER_INITIALIZATION,
                     new HttpClientBuilderEvent(httpClientBuilder));
-            return httpClientBuilder.build();
+            HttpClient httpClient = httpClientBuilder.build();
+            if (httpClientBuilder.getConnectionManager() instanceof ConnPoolControl) {
+                @SuppressWarnings("unchecked")
+                ConnPoolControl<HttpRoute> pool = (ConnPoolControl<HttpRoute>) httpClientBuilder.getConnectionManager();
+                registerPoolGauges(pool);
+            }
+            return httpClient;
+        }
+
+        /**
+         * Exposes the state of the connection pool in the shared metrics registry.
+         */
+        private void registerPoolGauges(final ConnPoolControl<HttpRoute> pool) {
+            String prefix = MetricRegistry.name("ConnectionPool", driver.getConfiguration().getInstanceName());
+            SharedMetrics.setGauge(driver, MetricRegistry.name(prefix, "leased"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.getTotalStats().getLeased();
+                }
+            });
+            SharedMetrics.setGauge(driver, MetricRegistry.name(prefix, "available"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.getTotalStats().getAvailable();
+                }
+            });
+            SharedMetrics.setGauge(driver, MetricRegistry.name(prefix, "pending"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.getTotalStats().getPending();
+                }
+            });
+            SharedMetrics.setGauge(driver, MetricRegistry.name(prefix, "max"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.getTotalStats().getMax();
+                }
+            });
         }
     }
 
@@ -304,13 +353,23 @@ public final class HttpClientRequestExecutor implements RequestExecutor {
                     event.setHttpResponse(HttpErrorPage.generateHttpResponse(HttpStatus.SC_EXPECTATION_FAILED,
                             "'Expect' request header is not supported"));
                 } else {
+                    FlightRecorder.Span span =
+                            FlightRecorder.startFragment(httpRequest.getOriginalRequest(), httpRequest.getRequestLine()
+                                    .getUri());
                     try {
-                        HttpHost physicalHost = context.getPhysicalHost();
-                        result = httpClient.execute(physicalHost, httpRequest, context);
+                        if (requestHedging != null && requestHedging.isHedgeable(httpRequest)) {
+                            result = requestHedging.execute(httpClient, httpRequest);
+                        } else {
+                            HttpHost physicalHost = context.getPhysicalHost();
+                            result = httpClient.execute(physicalHost, httpRequest, context);
+                        }
                     } catch (IOException e) {
                         result = HttpErrorPage.generateHttpResponse(e);
                         LOG.warn(httpRequest.getRequestLine() + " -> " + result.getStatusLine().toString());
                     }
+                    Object cacheResponseStatus = context.getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
+                    span.end(cacheResponseStatus == null ? String.valueOf(result.getStatusLine().getStatusCode())
+                            : result.getStatusLine().getStatusCode() + " " + cacheResponseStatus);
                     event.setHttpResponse(BasicCloseableHttpResponse.adapt(result));
                 }
             }
@@ -17,7 +17,9 @@ package org.esigate.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
@@ -55,7 +57,24 @@ import org.slf4j.LoggerFactory;
  */
 public final class HttpResponseUtils {
     private static final Logger LOG = LoggerFactory.getLogger(HttpResponseUtils.class);
-    private static final int OUTPUT_BUFFER_SIZE = 4096;
+    /**
+     * Default size of the buffer used to copy the response to the client.
+     */
+    public static final int DEFAULT_OUTPUT_BUFFER_SIZE = 16384;
+    private static final String EVENT_STREAM = "text/event-stream";
+    /**
+     * Copy buffers are reused by each thread as a response is usually written by a single thread at a time.
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+    /**
+     * Decoding buffers are reused the same way.
+     */
+    private static final ThreadLocal<char[]> CHAR_BUFFERS = new ThreadLocal<>();
+    private static final int DEFAULT_DECODE_BUFFER_SIZE = 4096;
+    /**
+     * Limits the memory allocated upfront when a response declares a huge Content-Length.
+     */
+    private static final int MAX_INITIAL_CAPACITY = 16 * 1024 * 1024;
 
     private HttpResponseUtils() {
 
@@ -143,6 +162,9 @@ public final class HttpResponseUtils {
      * <p>
      * This methods also holds an extension point, which can be used to guess the real encoding of the entity, if the
      * HTTP headers set a wrong encoding declaration.
+     * <p>
+     * The entity is decoded while it is read. Its raw content is kept only if a listener is registered for
+     * EventManager.EVENT_READ_ENTITY, it is then decoded after the listeners ran.
      * 
      * @since 3.0
      * @since 4.1 - Event EventManager.EVENT_READ_ENTITY is fired when calling this method.
@@ -153,27 +175,32 @@ public final class HttpResponseUtils {
      * @throws HttpErrorPage
      */
     public static String toString(HttpResponse httpResponse, EventManager eventManager) throws HttpErrorPage {
+        return toString(httpResponse, eventManager, 0);
+    }
+
+    /**
+     * Returns the response body as a string or the reason phrase if body is empty, like
+     * {@link #toString(HttpResponse, EventManager)}.
+     * 
+     * @param httpResponse
+     * @param eventManager
+     * @param sizeHint
+     *            the expected number of characters, used when the Content-Length is unknown (compressed or chunked
+     *            responses), 0 if unknown
+     * @return The body as string or the reason phrase if body was empty.
+     * @throws HttpErrorPage
+     */
+    public static String toString(HttpResponse httpResponse, EventManager eventManager, int sizeHint)
+            throws HttpErrorPage {
         HttpEntity httpEntity = httpResponse.getEntity();
         String result;
         if (httpEntity == null) {
             result = httpResponse.getStatusLine().getReasonPhrase();
         } else {
             // Unzip the stream if necessary
-            Header contentEncoding = httpEntity.getContentEncoding();
-            if (contentEncoding != null) {
-                String contentEncodingValue = contentEncoding.getValue();
-                if ("gzip".equalsIgnoreCase(contentEncodingValue) || "x-gzip".equalsIgnoreCase(contentEncodingValue)) {
-                    httpEntity = new GzipDecompressingEntity(httpEntity);
-                } else if ("deflate".equalsIgnoreCase(contentEncodingValue)) {
-                    httpEntity = new DeflateDecompressingEntity(httpEntity);
-                } else {
-                    throw new UnsupportedContentEncodingException("Content-encoding \"" + contentEncoding
-                            + "\" is not supported");
-                }
-            }
+            httpEntity = decompress(httpEntity);
 
             try {
-                byte[] rawEntityContent = EntityUtils.toByteArray(httpEntity);
                 ContentType contentType;
                 Charset charset;
                 String mimeType;
@@ -182,6 +209,7 @@ public final class HttpResponseUtils {
                     mimeType = contentType.getMimeType();
                     charset = contentType.getCharset();
                 } catch (UnsupportedCharsetException ex) {
+                    EntityUtils.consume(httpEntity);
                     throw new UnsupportedEncodingException(ex.getMessage());
                 }
 
@@ -191,15 +219,21 @@ public final class HttpResponseUtils {
                     charset = HTTP.DEF_CONTENT_CHARSET;
                 }
 
-                ReadEntityEvent event = new ReadEntityEvent(mimeType, charset, rawEntityContent);
+                // Raw bytes are only needed by the extensions trying to detect the document encoding
+                boolean keepRawContent =
+                        eventManager != null && eventManager.hasListeners(EventManager.EVENT_READ_ENTITY);
+                if (!keepRawContent) {
+                    return decode(httpEntity, charset, sizeHint);
+                }
 
-                // Read using charset based on HTTP headers
-                event.setEntityContent(new String(rawEntityContent, charset));
+                // The content is decoded only when needed, once the extensions had a chance to fix the charset
+                ReadEntityEvent event = new ReadEntityEvent(mimeType, charset, EntityUtils.toByteArray(httpEntity));
+                if (event.getRawEntityContent() == null) {
+                    event.setEntityContent("");
+                }
 
                 // Allow extensions to detect document encoding
-                if (eventManager != null) {
-                    eventManager.fire(EventManager.EVENT_READ_ENTITY, event);
-                }
+                eventManager.fire(EventManager.EVENT_READ_ENTITY, event);
 
                 return event.getEntityContent();
 
@@ -211,6 +245,67 @@ public final class HttpResponseUtils {
         return removeSessionId(result, httpResponse);
     }
 
+    /**
+     * Decodes an entity while reading it, without keeping its raw content. The buffer is sized from the Content-Length
+     * when it is known, from the size hint otherwise.
+     */
+    private static String decode(HttpEntity httpEntity, Charset charset, int sizeHint) throws IOException {
+        InputStream instream = httpEntity.getContent();
+        if (instream == null) {
+            return "";
+        }
+        long contentLength = httpEntity.getContentLength();
+        int capacity;
+        if (contentLength >= 0) {
+            // Never more characters than bytes for the usual charsets
+            capacity = (int) Math.min(contentLength, MAX_INITIAL_CAPACITY);
+        } else if (sizeHint > 0) {
+            capacity = Math.min(sizeHint, MAX_INITIAL_CAPACITY);
+        } else {
+            capacity = DEFAULT_DECODE_BUFFER_SIZE;
+        }
+        StringBuilder result = new StringBuilder(capacity);
+        char[] buffer = CHAR_BUFFERS.get();
+        // Nested calls get their own buffer
+        CHAR_BUFFERS.remove();
+        if (buffer == null) {
+            buffer = new char[DEFAULT_DECODE_BUFFER_SIZE];
+        }
+        try (Reader reader = new InputStreamReader(instream, charset)) {
+            for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+                result.append(buffer, 0, n);
+            }
+        } finally {
+            CHAR_BUFFERS.set(buffer);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Wraps an entity in order to uncompress it on the fly if it has a Content-encoding.
+     * 
+     * @param httpEntity
+     *            the entity
+     * @return the uncompressed entity
+     * @throws UnsupportedContentEncodingException
+     *             if the Content-encoding is neither gzip nor deflate
+     */
+    public static HttpEntity decompress(HttpEntity httpEntity) {
+        Header contentEncoding = httpEntity.getContentEncoding();
+        if (contentEncoding == null) {
+            return httpEntity;
+        }
+        String contentEncodingValue = contentEncoding.getValue();
+        if ("gzip".equalsIgnoreCase(contentEncodingValue) || "x-gzip".equalsIgnoreCase(contentEncodingValue)) {
+            return new GzipDecompressingEntity(httpEntity);
+        } else if ("deflate".equalsIgnoreCase(contentEncodingValue)) {
+            return new DeflateDecompressingEntity(httpEntity);
+        } else {
+            throw new UnsupportedContentEncodingException("Content-encoding \"" + contentEncoding
+                    + "\" is not supported");
+        }
+    }
+
     public static ContentType getContentType(CloseableHttpResponse response) {
         HttpEntity entity = response.getEntity();
         if (entity == null) {
@@ -224,8 +319,7 @@ public final class HttpResponseUtils {
     }
 
     /**
-     * Copied from org.apache.http.entity.InputStreamEntity.writeTo(OutputStream) method but flushes the buffer after
-     * each read in order to allow streaming and web sockets.
+     * Copies the entity to the OutputStream using a buffer of {@value #DEFAULT_OUTPUT_BUFFER_SIZE} bytes.
      * 
      * @param httpEntity
      *            The entity to copy to the OutputStream
@@ -233,34 +327,74 @@ public final class HttpResponseUtils {
      *            The OutputStream
      * @throws IOException
      *             If a problem occurs
+     * @see #writeTo(HttpEntity, OutputStream, int)
      */
     public static void writeTo(final HttpEntity httpEntity, final OutputStream outstream) throws IOException {
+        writeTo(httpEntity, outstream, DEFAULT_OUTPUT_BUFFER_SIZE);
+    }
+
+    /**
+     * Copied from org.apache.http.entity.InputStreamEntity.writeTo(OutputStream) method but flushes the buffer after
+     * each read for streamed entities (unknown length or server-sent events) in order to allow streaming and web
+     * sockets. Other entities are left to the OutputStream's own buffering, which avoids one small write per read.
+     * 
+     * @param httpEntity
+     *            The entity to copy to the OutputStream
+     * @param outstream
+     *            The OutputStream
+     * @param bufferSize
+     *            Size of the buffer used for the copy
+     * @throws IOException
+     *             If a problem occurs
+     */
+    public static void writeTo(final HttpEntity httpEntity, final OutputStream outstream, int bufferSize)
+            throws IOException {
         Args.notNull(outstream, "Output stream");
+        if (httpEntity instanceof SegmentedEntity) {
+            // Segments are encoded directly to the OutputStream, without an intermediate byte array
+            httpEntity.writeTo(outstream);
+            return;
+        }
+        boolean flush = isStreamed(httpEntity);
+        byte[] buffer = BUFFERS.get();
+        // Nested calls get their own buffer
+        BUFFERS.remove();
+        if (buffer == null || buffer.length != bufferSize) {
+            buffer = new byte[bufferSize];
+        }
         try (InputStream instream = httpEntity.getContent()) {
-            final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
-            int l;
-            if (httpEntity.getContentLength() < 0) {
-                // consume until EOF
-                while ((l = instream.read(buffer)) != -1) {
-                    outstream.write(buffer, 0, l);
-                    outstream.flush();
-                    LOG.debug("Flushed {} bytes of data");
+            // consume no more than length, or until EOF if length is unknown (-1)
+            long remaining = httpEntity.getContentLength();
+            while (remaining != 0) {
+                int l = instream.read(buffer, 0, remaining < 0 ? bufferSize : (int) Math.min(bufferSize, remaining));
+                if (l == -1) {
+                    break;
                 }
-            } else {
-                // consume no more than length
-                long remaining = httpEntity.getContentLength();
-                while (remaining > 0) {
-                    l = instream.read(buffer, 0, (int) Math.min(OUTPUT_BUFFER_SIZE, remaining));
-                    if (l == -1) {
-                        break;
-                    }
-                    outstream.write(buffer, 0, l);
+                outstream.write(buffer, 0, l);
+                if (flush) {
                     outstream.flush();
-                    LOG.debug("Flushed {} bytes of data");
+                    LOG.debug("Flushed {} bytes of data", l);
+                }
+                if (remaining > 0) {
                     remaining -= l;
                 }
             }
+        } finally {
+            BUFFERS.set(buffer);
+        }
+    }
+
+    /**
+     * @param httpEntity
+     *            the entity
+     * @return true if the entity has to be sent as soon as received: unknown length or server-sent events
+     */
+    public static boolean isStreamed(HttpEntity httpEntity) {
+        if (httpEntity.getContentLength() < 0) {
+            return true;
         }
+        Header contentType = httpEntity.getContentType();
+        return contentType != null && contentType.getValue().toLowerCase().startsWith(EVENT_STREAM);
     }
 
 }
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.Args;
+
+/**
+ * An entity whose content is a memory mapped file.
+ * <p>
+ * The file is mapped when the entity is created and can be deleted right after: the content stays available as long as
+ * the entity is referenced, outside of the java heap.
+ */
+public class MappedFileEntity extends AbstractHttpEntity {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ByteBuffer content;
+
+    /**
+     * InputStream reading a ByteBuffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * @param file
+     *            the file, it must not be modified any more and must be smaller than 2 GB
+     * @param contentType
+     *            the content type
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    public MappedFileEntity(File file, ContentType contentType) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too big to be mapped: " + file);
+            }
+            content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (contentType != null) {
+            setContentType(contentType.toString());
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return content.limit();
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new ByteBufferInputStream(content.duplicate());
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        Args.notNull(outstream, "Output stream");
+        ByteBuffer buffer = content.duplicate();
+        byte[] bytes = new byte[Math.min(BUFFER_SIZE, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, n);
+            outstream.write(bytes, 0, n);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+}
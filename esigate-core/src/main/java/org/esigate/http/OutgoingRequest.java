@@ -16,11 +16,15 @@
 package org.esigate.http;
 
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.ProtocolVersion;
 import org.apache.http.RequestLine;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.concurrent.Cancellable;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicRequestLine;
 import org.esigate.UserContext;
@@ -33,12 +37,15 @@ import org.esigate.impl.DriverRequest;
  * @author fxbonnet
  * 
  */
-public class OutgoingRequest extends BasicHttpEntityEnclosingRequest implements Configurable {
+public class OutgoingRequest extends BasicHttpEntityEnclosingRequest implements Configurable, HttpExecutionAware {
 
     private RequestLine requestLine;
     private final RequestConfig requestConfig;
     private final OutgoingRequestContext context;
     private final DriverRequest originalRequest;
+    private final AtomicBoolean aborted = new AtomicBoolean(false);
+    private final AtomicReference<Cancellable> cancellable = new AtomicReference<>();
+    private volatile URL baseUrl;
 
     public OutgoingRequest(String method, String uri, ProtocolVersion version, DriverRequest originalRequest,
             RequestConfig requestConfig, OutgoingRequestContext context) {
@@ -85,12 +92,52 @@ public class OutgoingRequest extends BasicHttpEntityEnclosingRequest implements
         return originalRequest.getContext();
     }
 
+    /**
+     * @return the base URL of the server the request is sent to, the one chosen for the original request unless the
+     *         request has been sent to another server
+     */
     public URL getBaseUrl() {
-        return originalRequest.getBaseUrl();
+        URL url = baseUrl;
+        return url != null ? url : originalRequest.getBaseUrl();
+    }
+
+    /**
+     * Records that the request is sent to another server than the one chosen for the original request, for instance
+     * when it is retried.
+     * 
+     * @param baseUrl
+     *            the base URL of the server
+     */
+    public void setBaseUrl(URL baseUrl) {
+        this.baseUrl = baseUrl;
     }
 
     public DriverRequest getOriginalRequest() {
         return originalRequest;
     }
 
+    @Override
+    public boolean isAborted() {
+        return aborted.get();
+    }
+
+    @Override
+    public void setCancellable(Cancellable pCancellable) {
+        if (!aborted.get()) {
+            cancellable.set(pCancellable);
+        }
+    }
+
+    /**
+     * Cancels the execution of the request : closes the connection or stops waiting for a connection.
+     */
+    public void abort() {
+        if (aborted.compareAndSet(false, true)) {
+            Cancellable current = cancellable.getAndSet(null);
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+
 }
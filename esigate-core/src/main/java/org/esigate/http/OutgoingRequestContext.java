@@ -15,8 +15,10 @@
 
 package org.esigate.http;
 
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.Set;
 
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
@@ -28,6 +30,13 @@ public class OutgoingRequestContext extends HttpClientContext {
     private static final String PROXY = "PROXY";
     private static final String OUTGOING_REQUEST = "OUTGOING_REQUEST";
     private static final String PHYSICAL_HOST = "PHYSICAL_HOST";
+    private static final String DISCARDED = "DISCARDED";
+    private static final String HISTORY_SUFFIX = "history";
+    /** Prefix of the attributes used by HttpClient during the execution of the request. */
+    private static final String HTTP_CLIENT_PREFIX = "http.";
+
+    /** Names of the attributes set through this object. */
+    private final Set<String> attributeNames = new HashSet<>();
 
     public static OutgoingRequestContext adapt(final HttpContext context) {
         if (context instanceof OutgoingRequestContext) {
@@ -79,6 +88,20 @@ public class OutgoingRequestContext extends HttpClientContext {
         setAttribute(PHYSICAL_HOST, httpHost);
     }
 
+    /**
+     * 
+     * @return true if the request has been aborted because the response to another request is used instead, its failure
+     *         does not tell anything about the backend
+     */
+    public boolean isDiscarded() {
+        Boolean discarded = getAttribute(DISCARDED, Boolean.class);
+        return discarded != null && discarded;
+    }
+
+    void setDiscarded(boolean discarded) {
+        setAttribute(DISCARDED, discarded);
+    }
+
     /**
      * Set attribute and save previous attribute value
      * 
@@ -91,7 +114,7 @@ public class OutgoingRequestContext extends HttpClientContext {
      */
     public void setAttribute(String id, Object obj, boolean save) {
         if (save) {
-            String historyAttribute = id + "history";
+            String historyAttribute = id + HISTORY_SUFFIX;
             Queue<Object> history = (Queue<Object>) getAttribute(historyAttribute);
             if (history == null) {
                 history = new LinkedList<>();
@@ -116,7 +139,7 @@ public class OutgoingRequestContext extends HttpClientContext {
     public Object removeAttribute(String id, boolean restore) {
         Object value = removeAttribute(id);
         if (restore) {
-            String historyAttribute = id + "history";
+            String historyAttribute = id + HISTORY_SUFFIX;
             Queue<Object> history = (Queue<Object>) getAttribute(historyAttribute);
             if (history != null && !history.isEmpty()) {
                 Object previous = history.remove();
@@ -126,6 +149,39 @@ public class OutgoingRequestContext extends HttpClientContext {
         return value;
     }
 
+    @Override
+    public void setAttribute(String id, Object obj) {
+        super.setAttribute(id, obj);
+        attributeNames.add(id);
+    }
+
+    @Override
+    public Object removeAttribute(String id) {
+        attributeNames.remove(id);
+        return super.removeAttribute(id);
+    }
+
+    /**
+     * Copies the attributes set by ESIgate and the extensions to another context, for instance to send the same request
+     * to another host. The attributes of HttpClient are specific to the execution of this request and are not copied.
+     * The saved previous values are copied so that both contexts can restore them independently.
+     * 
+     * @param target
+     *            the context of the other request
+     */
+    void copyAttributesTo(OutgoingRequestContext target) {
+        for (String id : attributeNames) {
+            Object value = getAttribute(id);
+            if (id.startsWith(HTTP_CLIENT_PREFIX) || value == null) {
+                continue;
+            }
+            if (id.endsWith(HISTORY_SUFFIX) && value instanceof Queue) {
+                value = new LinkedList<>((Queue<Object>) value);
+            }
+            target.setAttribute(id, value);
+        }
+    }
+
     /**
      * @return the actual request sent by th HttpClient.
      */
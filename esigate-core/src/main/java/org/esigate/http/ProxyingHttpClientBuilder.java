@@ -18,24 +18,44 @@ package org.esigate.http;
 import java.io.IOException;
 import java.util.Properties;
 
+import org.apache.http.ConnectionReuseStrategy;
 import org.apache.http.HttpException;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.AuthenticationStrategy;
+import org.apache.http.client.UserTokenHandler;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpExecutionAware;
 import org.apache.http.client.methods.HttpRequestWrapper;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
 import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.esigate.HttpErrorPage;
 import org.esigate.cache.CacheAdapter;
 import org.esigate.events.EventManager;
 import org.esigate.events.impl.FetchEvent;
+import org.esigate.jfr.FlightRecorder;
 
 public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
     private Properties properties;
     private EventManager eventManager;
     private boolean useCache = true;
+    private HttpClientConnectionManager connectionManager;
+
+    @Override
+    protected ClientExecChain createMainExec(HttpRequestExecutor requestExec, HttpClientConnectionManager connManager,
+            ConnectionReuseStrategy reuseStrategy, ConnectionKeepAliveStrategy keepAliveStrategy,
+            HttpProcessor proxyHttpProcessor, AuthenticationStrategy targetAuthStrategy,
+            AuthenticationStrategy proxyAuthStrategy, UserTokenHandler userTokenHandler) {
+        // The connection manager is created by build() and not accessible otherwise
+        this.connectionManager = connManager;
+        return super.createMainExec(requestExec, connManager, reuseStrategy, keepAliveStrategy, proxyHttpProcessor,
+                targetAuthStrategy, proxyAuthStrategy, userTokenHandler);
+    }
 
     @Override
     protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
@@ -75,6 +95,13 @@ public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
         return useCache;
     }
 
+    /**
+     * @return the connection manager used by the last client built, null before build() is called
+     */
+    public HttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
     /**
      * Decorate with fetch event managements
      * 
@@ -90,7 +117,7 @@ public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
                     HttpException {
                 OutgoingRequestContext context = OutgoingRequestContext.adapt(httpClientContext);
                 // Create request event
-                FetchEvent fetchEvent = new FetchEvent(context, request);
+                FetchEvent fetchEvent = new FetchEvent(context, request, route);
 
                 eventManager.fire(EventManager.EVENT_FETCH_PRE, fetchEvent);
 
@@ -102,10 +129,18 @@ public class ProxyingHttpClientBuilder extends CachingHttpClientBuilder {
                                 "An extension stopped the processing of the request without providing a response"));
                     }
                 } else {
+                    OutgoingRequest outgoingRequest = context.getOutgoingRequest();
+                    FlightRecorder.Span span =
+                            FlightRecorder.startFetch(
+                                    outgoingRequest == null ? null : outgoingRequest.getOriginalRequest(), request
+                                            .getOriginal().getRequestLine().getUri());
                     try {
-                        fetchEvent.setHttpResponse(wrapped.execute(route, request, context, execAware));
+                        fetchEvent.setHttpResponse(wrapped.execute(fetchEvent.getHttpRoute(), request, context,
+                                execAware));
+                        span.end(String.valueOf(fetchEvent.getHttpResponse().getStatusLine().getStatusCode()));
                         eventManager.fire(EventManager.EVENT_FETCH_POST, fetchEvent);
                     } catch (IOException | HttpException e) {
+                        span.end(e.getClass().getSimpleName());
                         fetchEvent.setHttpResponse(HttpErrorPage.generateHttpResponse(e));
                         // Usually we want to render and cache the exception but we let an extension decide
                         fetchEvent.setExit(true);
@@ -0,0 +1,394 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.esigate.ConfigurationException;
+import org.esigate.Parameters;
+import org.esigate.util.TokenBucket;
+import org.esigate.util.UriUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a second request to another backend when a fragment takes too long to be retrieved, and uses the first response
+ * received.
+ * <p>
+ * Only GET requests for fragments (not proxied requests) are hedged. The delay before sending the second request is the
+ * hedgingPercentile percentile of the recent response times (at least hedgingMinDelay ms), and the number of hedged
+ * requests is limited to hedgingBudget times the number of requests. Responses served by the cache are neither hedged
+ * nor taken into account for the delay and the budget.
+ * <p>
+ * The first request is sent by the calling thread. The hedged requests are sent by a pool of at most
+ * maxConnectionsPerHost threads: when they are all busy, no more requests are hedged. The delays are handled by a
+ * single daemon thread shared by all the drivers.
+ * <p>
+ * The request which is not used is aborted and marked as discarded in its context so that its failure is not charged to
+ * its backend.
+ * <p>
+ * All the backends declared in remoteUrlBase are supposed to serve the same application on the same path, the second
+ * request is the same as the first one but sent to the next host in the list.
+ */
+final class RequestHedging {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestHedging.class);
+    private static final int SAMPLES = 256;
+    private static final int REFRESH_INTERVAL = 64;
+    /**
+     * Maximum number of hedged requests that can be saved when traffic is low.
+     */
+    private static final float MAX_TOKENS = 10;
+    private static final long KEEP_ALIVE = 60;
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+            new HedgingThreadFactory("esigate-hedging-timer"));
+    static {
+        // Most of the hedged requests are never sent, do not keep them until their delay expires
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final HttpHost[] hosts;
+    private final URL[] baseUrls;
+    private final int percentile;
+    private final int minDelay;
+    private final TokenBucket budget;
+    private final ThreadPoolExecutor executor;
+
+    private final long[] samples = new long[SAMPLES];
+    private int sampleIndex;
+    private int sampleCount;
+    private long delay;
+
+    /**
+     * The hedged request, started by the timer if the first request is still running after the delay.
+     */
+    private final class HedgedCall implements Runnable {
+        private final HttpClient httpClient;
+        private final OutgoingRequest primary;
+        private final OutgoingRequest request;
+        private boolean primaryCompleted;
+        private boolean started;
+        private boolean completed;
+        private boolean discarded;
+        private HttpResponse response;
+
+        private HedgedCall(HttpClient httpClient, OutgoingRequest primary, OutgoingRequest request) {
+            this.httpClient = httpClient;
+            this.primary = primary;
+            this.request = request;
+        }
+
+        /**
+         * Called by the timer, sends the hedged request if the first one is still waiting for the backend.
+         */
+        private void start() {
+            synchronized (this) {
+                if (primaryCompleted || isFromCache(primary.getContext()) || !acquireToken()) {
+                    return;
+                }
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Too many hedged requests, not hedging {}", request.getRequestLine());
+                    return;
+                }
+                started = true;
+            }
+            LOG.debug("Hedging {} to {}", request.getRequestLine(), request.getContext().getPhysicalHost());
+        }
+
+        @Override
+        public void run() {
+            HttpResponse result = null;
+            try {
+                result = httpClient.execute(request.getContext().getPhysicalHost(), request, request.getContext());
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Hedged request {} failed: {}", request.getRequestLine(), e.getMessage());
+            }
+            synchronized (this) {
+                completed = true;
+                if (discarded) {
+                    close(result);
+                } else if (result != null) {
+                    response = result;
+                    if (!primaryCompleted) {
+                        // Makes the calling thread return
+                        primary.getContext().setDiscarded(true);
+                        primary.abort();
+                    }
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Called once the first request is completed. If it failed, waits for the hedged request if it has been sent.
+         * 
+         * @param primaryFailed
+         *            true if the first request failed
+         * @return the response to the hedged request if it is used instead of the first one, null otherwise
+         * @throws InterruptedIOException
+         *             if interrupted while waiting for the hedged request
+         */
+        private synchronized HttpResponse primaryCompleted(boolean primaryFailed) throws InterruptedIOException {
+            primaryCompleted = true;
+            try {
+                while (primaryFailed && started && !completed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                discard();
+                throw new InterruptedIOException("Interrupted while waiting for " + request.getRequestLine());
+            }
+            if (response != null) {
+                return response;
+            }
+            discard();
+            return null;
+        }
+
+        /**
+         * Cancels the hedged request if still running, the response will be released if received later.
+         */
+        private synchronized void discard() {
+            primaryCompleted = true;
+            discarded = true;
+            if (started && !completed) {
+                request.getContext().setDiscarded(true);
+                request.abort();
+            }
+        }
+    }
+
+    RequestHedging(Properties properties) {
+        String[] baseUrls = Parameters.REMOTE_URL_BASE.getValue(properties);
+        List<HttpHost> hostList = new ArrayList<>(baseUrls.length);
+        List<URL> baseUrlList = new ArrayList<>(baseUrls.length);
+        for (String baseUrl : baseUrls) {
+            HttpHost host = UriUtils.extractHost(baseUrl);
+            if (!hostList.contains(host)) {
+                hostList.add(host);
+                try {
+                    baseUrlList.add(new URL(baseUrl));
+                } catch (MalformedURLException e) {
+                    throw new ConfigurationException(e);
+                }
+            }
+        }
+        this.hosts = hostList.toArray(new HttpHost[hostList.size()]);
+        this.baseUrls = baseUrlList.toArray(new URL[baseUrlList.size()]);
+        this.percentile = Parameters.HEDGING_PERCENTILE.getValue(properties);
+        this.minDelay = Parameters.HEDGING_MIN_DELAY.getValue(properties);
+        this.budget = new TokenBucket(Parameters.HEDGING_BUDGET.getValue(properties), MAX_TOKENS);
+        this.delay = Parameters.SOCKET_TIMEOUT.getValue(properties);
+        // The hedged requests are sent through the same connection pool, there is no point in having more threads
+        this.executor =
+                new ThreadPoolExecutor(0, Parameters.MAX_CONNECTIONS_PER_HOST.getValue(properties), KEEP_ALIVE,
+                        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                        new HedgingThreadFactory("esigate-hedging-"));
+    }
+
+    private static final class HedgingThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        private HedgingThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Hedging needs at least 2 different hosts.
+     * 
+     * @param properties
+     *            driver configuration
+     * @return true if hedging is enabled
+     */
+    static boolean isEnabled(Properties properties) {
+        return Parameters.HEDGING.getValue(properties) && Parameters.REMOTE_URL_BASE.getValue(properties).length > 1;
+    }
+
+    boolean isHedgeable(OutgoingRequest request) {
+        return "GET".equals(request.getRequestLine().getMethod()) && !request.getContext().isProxy()
+                && !request.getOriginalRequest().isExternal();
+    }
+
+    HttpResponse execute(HttpClient httpClient, OutgoingRequest request) throws IOException {
+        OutgoingRequestContext context = request.getContext();
+        int otherIndex = getOtherIndex(context.getPhysicalHost());
+        if (otherIndex < 0) {
+            return httpClient.execute(context.getPhysicalHost(), request, context);
+        }
+        long start = System.currentTimeMillis();
+        // Copied before the request is sent, with the attributes and cookies set by the extensions
+        final HedgedCall hedge =
+                new HedgedCall(httpClient, request, copy(request, hosts[otherIndex], baseUrls[otherIndex]));
+        Future<?> scheduled = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                hedge.start();
+            }
+        }, getDelay(), TimeUnit.MILLISECONDS);
+        HttpResponse result = null;
+        IOException exception = null;
+        try {
+            result = httpClient.execute(context.getPhysicalHost(), request, context);
+        } catch (IOException e) {
+            exception = e;
+        } catch (RuntimeException e) {
+            hedge.discard();
+            throw e;
+        } finally {
+            scheduled.cancel(false);
+        }
+        HttpResponse hedgeResult = hedge.primaryCompleted(result == null);
+        OutgoingRequestContext resultContext = context;
+        if (hedgeResult != null) {
+            // From now on the context holds the response which is used
+            context.setDiscarded(false);
+            close(result);
+            result = hedgeResult;
+            resultContext = hedge.request.getContext();
+            copyCookies(resultContext.getCookieStore(), context.getCookieStore());
+            context.setAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS,
+                    resultContext.getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS));
+        } else if (result == null) {
+            throw exception;
+        }
+        if (!isFromCache(resultContext)) {
+            addSample(System.currentTimeMillis() - start);
+        }
+        return result;
+    }
+
+    private static boolean isFromCache(OutgoingRequestContext context) {
+        Object cacheResponseStatus = context.getAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS);
+        return cacheResponseStatus == CacheResponseStatus.CACHE_HIT
+                || cacheResponseStatus == CacheResponseStatus.CACHE_MODULE_RESPONSE;
+    }
+
+    private int getOtherIndex(HttpHost host) {
+        for (int i = 0; i < hosts.length; i++) {
+            if (hosts[i].equals(host)) {
+                return (i + 1) % hosts.length;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Creates the same request for another host, with the same context attributes. The hedged request gets its own
+     * cookie store so that cookies are only updated by the response which is actually used, and the base URL of its
+     * host so that its result is attributed to it.
+     */
+    private static OutgoingRequest copy(OutgoingRequest request, HttpHost host, URL baseUrl) {
+        OutgoingRequestContext context = new OutgoingRequestContext();
+        request.getContext().copyAttributesTo(context);
+        OutgoingRequest copy =
+                new OutgoingRequest(request.getRequestLine().getMethod(), request.getRequestLine().getUri(),
+                        request.getProtocolVersion(), request.getOriginalRequest(), request.getConfig(), context);
+        copy.setHeaders(request.getAllHeaders());
+        copy.setBaseUrl(baseUrl);
+        context.setPhysicalHost(host);
+        context.setOutgoingRequest(copy);
+        context.setProxy(request.getContext().isProxy());
+        CookieStore cookieStore = request.getContext().getCookieStore();
+        if (cookieStore != null) {
+            BasicCookieStore hedgeCookieStore = new BasicCookieStore();
+            for (Cookie cookie : cookieStore.getCookies()) {
+                hedgeCookieStore.addCookie(cookie);
+            }
+            context.setCookieStore(hedgeCookieStore);
+        }
+        return copy;
+    }
+
+    private static void close(HttpResponse response) {
+        if (response instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) response);
+        }
+    }
+
+    private static void copyCookies(CookieStore from, CookieStore to) {
+        if (from != null && to != null) {
+            List<Cookie> existing = to.getCookies();
+            for (Cookie cookie : from.getCookies()) {
+                if (!existing.contains(cookie)) {
+                    to.addCookie(cookie);
+                }
+            }
+        }
+    }
+
+    synchronized long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Records the response time of a backend and earns the right to send hedgingBudget hedged requests.
+     */
+    synchronized void addSample(long time) {
+        samples[sampleIndex] = time;
+        sampleIndex = (sampleIndex + 1) % SAMPLES;
+        if (sampleCount < SAMPLES) {
+            sampleCount++;
+        }
+        if (sampleIndex % REFRESH_INTERVAL == 0) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+            delay = Math.max(minDelay, sorted[index]);
+        }
+        budget.deposit();
+    }
+
+    boolean acquireToken() {
+        return budget.tryAcquire();
+    }
+
+}
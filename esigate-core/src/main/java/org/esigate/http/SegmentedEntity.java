@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.io.input.ReaderInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.input.SequenceReader;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.Args;
+import org.esigate.util.ByteBudget;
+
+/**
+ * An entity whose content is a list of character segments, encoded when the entity is written.
+ * <p>
+ * This is equivalent to a StringEntity built with the concatenation of the segments, but the segments are neither
+ * concatenated nor encoded to a single byte array: they are encoded one after the other through small buffers directly
+ * to the OutputStream.
+ * <p>
+ * The memory held by the segments can be accounted for with a {@link ByteBudget.Reservation}, released once the entity
+ * has been written, once its content has been read or when it is closed.
+ */
+public class SegmentedEntity extends AbstractHttpEntity implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final List<CharSequence> segments;
+    private final Charset charset;
+    private long contentLength = -2;
+    private final AtomicReference<ByteBudget.Reservation> reservation;
+
+    /**
+     * @param segments
+     *            the content
+     * @param contentType
+     *            the content type, its charset is used to encode the content (ISO-8859-1 by default)
+     */
+    public SegmentedEntity(List<CharSequence> segments, ContentType contentType) {
+        this(segments, contentType, null);
+    }
+
+    /**
+     * @param segments
+     *            the content
+     * @param contentType
+     *            the content type, its charset is used to encode the content (ISO-8859-1 by default)
+     * @param reservation
+     *            the memory reserved for the content, released once the entity is consumed or closed, may be null
+     */
+    public SegmentedEntity(List<CharSequence> segments, ContentType contentType, ByteBudget.Reservation reservation) {
+        this.reservation = new AtomicReference<>(reservation);
+        this.segments = new ArrayList<>(segments);
+        Charset contentTypeCharset = contentType == null ? null : contentType.getCharset();
+        this.charset = contentTypeCharset == null ? HTTP.DEF_CONTENT_CHARSET : contentTypeCharset;
+        if (contentType != null) {
+            setContentType(contentType.toString());
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * The length is computed without encoding the content for UTF-8 and single byte charsets, and is unknown for other
+     * charsets.
+     */
+    @Override
+    public long getContentLength() {
+        if (contentLength == -2) {
+            contentLength = computeContentLength();
+        }
+        return contentLength;
+    }
+
+    private long computeContentLength() {
+        boolean utf8 = StandardCharsets.UTF_8.equals(charset);
+        if (!utf8 && charset.newEncoder().maxBytesPerChar() > 1) {
+            return -1;
+        }
+        long result = 0;
+        boolean afterHighSurrogate = false;
+        for (CharSequence segment : segments) {
+            for (int i = 0; i < segment.length(); i++) {
+                char c = segment.charAt(i);
+                if (afterHighSurrogate && Character.isLowSurrogate(c)) {
+                    // The pair was counted as 1 byte, it is encoded as 4 bytes in UTF-8 or replaced with '?'
+                    if (utf8) {
+                        result += 3;
+                    }
+                    afterHighSurrogate = false;
+                    continue;
+                }
+                afterHighSurrogate = Character.isHighSurrogate(c);
+                if (!utf8 || c < 0x80 || Character.isSurrogate(c)) {
+                    // Malformed or unmappable characters are replaced with '?'
+                    result++;
+                } else if (c < 0x800) {
+                    result += 2;
+                } else {
+                    result += 3;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Reader newReader() {
+        List<Reader> readers = new ArrayList<>(segments.size());
+        for (CharSequence segment : segments) {
+            readers.add(new CharSequenceReader(segment));
+        }
+        return new SequenceReader(readers);
+    }
+
+    private CharsetEncoder newEncoder() {
+        return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        InputStream content =
+                ReaderInputStream.builder().setReader(newReader()).setCharsetEncoder(newEncoder())
+                        .setBufferSize(BUFFER_SIZE).get();
+        return new ProxyInputStream(content) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    SegmentedEntity.this.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        Args.notNull(outstream, "Output stream");
+        try {
+            encode(outstream);
+        } finally {
+            close();
+        }
+    }
+
+    private void encode(OutputStream outstream) throws IOException {
+        CharsetEncoder encoder = newEncoder();
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        try (Reader reader = newReader()) {
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                int n = reader.read(chars.array(), chars.position(), chars.remaining());
+                if (n < 0) {
+                    endOfInput = true;
+                } else {
+                    chars.position(chars.position() + n);
+                }
+                chars.flip();
+                // A surrogate pair split between 2 reads is kept in chars by compact()
+                while (encoder.encode(chars, bytes, endOfInput).isOverflow()) {
+                    write(bytes, outstream);
+                }
+                chars.compact();
+            }
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            write(bytes, outstream);
+        }
+        write(bytes, outstream);
+    }
+
+    private static void write(ByteBuffer bytes, OutputStream outstream) throws IOException {
+        bytes.flip();
+        outstream.write(bytes.array(), bytes.arrayOffset(), bytes.remaining());
+        bytes.clear();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Releases the memory reservation, if any. The entity can still be written.
+     */
+    @Override
+    public void close() {
+        ByteBudget.Reservation r = reservation.getAndSet(null);
+        if (r != null) {
+            r.close();
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.esigate.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OutputStream keeping its content in memory until it reaches a threshold, then in a temporary file.
+ * <p>
+ * The content is read back as an entity. A temporary file is memory mapped and deleted right away, see
+ * {@link MappedFileEntity}, so no file is left behind.
+ */
+public class SpillingOutputStream extends OutputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(SpillingOutputStream.class);
+    private static final int FILE_BUFFER_SIZE = 8192;
+
+    private final long threshold;
+    private final File directory;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream(Parameters.DEFAULT_BUFFER_SIZE);
+    private File file;
+    private OutputStream fileOutputStream;
+    private boolean spillFailed;
+
+    /**
+     * @param threshold
+     *            the maximum number of bytes kept in memory, 0 to keep everything in memory
+     * @param directory
+     *            the directory for the temporary file or null for the default temporary directory
+     */
+    public SpillingOutputStream(long threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    private OutputStream out(int len) {
+        if (fileOutputStream != null) {
+            return fileOutputStream;
+        }
+        if (threshold > 0 && !spillFailed && memory.size() + len > threshold) {
+            spill();
+        }
+        return fileOutputStream != null ? fileOutputStream : memory;
+    }
+
+    private void spill() {
+        try {
+            file = File.createTempFile("esigate", ".tmp", directory);
+            fileOutputStream = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+            memory.writeTo(fileOutputStream);
+            memory = null;
+            LOG.debug("Content bigger than {} bytes moved to {}", threshold, file);
+        } catch (IOException e) {
+            // Keeping the content in memory is better than failing
+            LOG.warn("Could not create temporary file: " + e.getMessage());
+            spillFailed = true;
+            deleteFile();
+        }
+    }
+
+    private void deleteFile() {
+        if (fileOutputStream != null) {
+            try {
+                fileOutputStream.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close temporary file", e);
+            }
+            fileOutputStream = null;
+        }
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                // The file may still be mapped on some platforms
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out(1).write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out(len).write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+        }
+    }
+
+    /**
+     * @return true if the content has been moved to a temporary file
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Writes the content written so far.
+     * 
+     * @param out
+     *            the OutputStream
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (file == null) {
+            memory.writeTo(out);
+        } else {
+            fileOutputStream.flush();
+            Files.copy(file.toPath(), out);
+        }
+    }
+
+    /**
+     * Discards the content written so far.
+     */
+    public void reset() {
+        deleteFile();
+        memory = new ByteArrayOutputStream(Parameters.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Closes the stream and gives access to its content. The temporary file if any is deleted.
+     * 
+     * @param contentType
+     *            the content type of the entity
+     * @return the content
+     * @throws IOException
+     */
+    public HttpEntity toEntity(ContentType contentType) throws IOException {
+        if (file == null) {
+            return new ByteArrayEntity(memory.toByteArray(), contentType);
+        }
+        fileOutputStream.close();
+        try {
+            return new MappedFileEntity(file, contentType);
+        } finally {
+            deleteFile();
+        }
+    }
+
+    @Override
+    public void close() {
+        deleteFile();
+    }
+
+}
@@ -39,6 +39,7 @@ public class DriverRequest {
     private final URL baseUrl;
     private final String visibleBaseUrl;
     private final boolean external;
+    private final String relUrl;
     private String characterEncoding;
 
     /**
@@ -51,10 +52,11 @@ public class DriverRequest {
     public DriverRequest(IncomingRequest request, Driver driver, String relUrl) throws HttpErrorPage {
         this.wrappedRequest = request;
         this.driver = driver;
+        this.relUrl = relUrl;
         this.external = UriUtils.isAbsolute(relUrl);
         this.userContext = new UserContext(request, driver.getConfiguration().getInstanceName());
         try {
-            this.baseUrl = new URL(driver.getConfiguration().getBaseUrlRetrieveStrategy().getBaseURL(request));
+            this.baseUrl = new URL(driver.getConfiguration().getBaseUrlRetrieveStrategy().getBaseURL(request, relUrl));
         } catch (MalformedURLException e) {
             throw new HttpErrorPage(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Internal server error", e);
         }
@@ -71,6 +73,13 @@ public class DriverRequest {
         this.visibleBaseUrl = UriUtils.rewriteURI(visibleBase, UriUtils.extractHost(request.getRequestLine().getUri()));
     }
 
+    /**
+     * @return the url of the page requested to the provider, relative to its base url or absolute for an external url
+     */
+    public String getRelUrl() {
+        return relUrl;
+    }
+
     /**
      * Returns the driver instance that handles this request.
      * 
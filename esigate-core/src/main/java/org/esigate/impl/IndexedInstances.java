@@ -14,6 +14,7 @@
  */
 package org.esigate.impl;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,10 +34,12 @@ import org.esigate.Driver;
 public class IndexedInstances {
     private final Map<String, Driver> instances;
     private final Map<UriMapping, String> uriMappings;
+    private final UriMappingIndex uriMappingIndex;
 
     public IndexedInstances(Map<String, Driver> instances) {
         this.instances = instances;
         this.uriMappings = buildUriMappings();
+        this.uriMappingIndex = new UriMappingIndex(new ArrayList<>(this.uriMappings.keySet()));
     }
 
     private Map<UriMapping, String> buildUriMappings() {
@@ -82,4 +85,19 @@ public class IndexedInstances {
         return this.uriMappings;
     }
 
+    /**
+     * Finds the URI mapping with the highest weight matching a request.
+     * 
+     * @param scheme
+     *            the request scheme
+     * @param host
+     *            the request host (and port)
+     * @param relativeUri
+     *            the request path
+     * @return the mapping or null if no mapping matches the request
+     */
+    public UriMapping findUriMapping(String scheme, String host, String relativeUri) {
+        return this.uriMappingIndex.find(scheme, host, relativeUri);
+    }
+
 }
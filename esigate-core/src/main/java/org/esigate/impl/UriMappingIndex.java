@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.impl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of {@link UriMapping}s used to find the mapping matching a request without evaluating all the mappings.
+ * <p>
+ * Mappings are indexed by host, then by path in a radix tree, then by extension. The mapping returned is the same as
+ * the first matching mapping in the list given to the constructor (sorted by {@link UriMappingComparator}).
+ */
+public final class UriMappingIndex {
+    private final Map<String, Node> hosts = new HashMap<>();
+    private final Node anyHost = new Node("");
+    private final UriMapping[] mappings;
+
+    /**
+     * A node of the radix tree. Contains the mappings with the path from the root to this node, indexed by extension.
+     */
+    private static final class Node {
+        private String label;
+        private Map<Character, Node> children;
+        private int noExtension = Integer.MAX_VALUE;
+        private Map<String, Integer> extensions;
+
+        private Node(String label) {
+            this.label = label;
+        }
+
+        private void add(String extension, int position) {
+            if (extension == null) {
+                noExtension = Math.min(noExtension, position);
+            } else {
+                if (extensions == null) {
+                    extensions = new HashMap<>();
+                }
+                Integer previous = extensions.get(extension);
+                if (previous == null || previous > position) {
+                    extensions.put(extension, position);
+                }
+            }
+        }
+
+        /**
+         * @return the position of the first mapping matching the uri at this node or Integer.MAX_VALUE
+         */
+        private int match(String uri) {
+            int result = noExtension;
+            if (extensions != null) {
+                // An extension starts with "." so it is one of the suffixes of the uri starting with "."
+                for (int i = uri.lastIndexOf('.'); i >= 0; i = uri.lastIndexOf('.', i - 1)) {
+                    Integer position = extensions.get(uri.substring(i));
+                    if (position != null && position < result) {
+                        result = position;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param sortedMappings
+     *            the mappings, sorted by priority
+     */
+    public UriMappingIndex(List<UriMapping> sortedMappings) {
+        this.mappings = sortedMappings.toArray(new UriMapping[sortedMappings.size()]);
+        for (int i = 0; i < mappings.length; i++) {
+            UriMapping mapping = mappings[i];
+            Node root = anyHost;
+            if (mapping.getHost() != null) {
+                String host = mapping.getHost().toLowerCase(Locale.ENGLISH);
+                root = hosts.get(host);
+                if (root == null) {
+                    root = new Node("");
+                    hosts.put(host, root);
+                }
+            }
+            String path = mapping.getPath() == null ? "" : mapping.getPath();
+            insert(root, path).add(mapping.getExtension(), i);
+        }
+    }
+
+    private static Node insert(Node root, String path) {
+        Node node = root;
+        int offset = 0;
+        while (offset < path.length()) {
+            if (node.children == null) {
+                node.children = new HashMap<>();
+            }
+            Node child = node.children.get(path.charAt(offset));
+            if (child == null) {
+                child = new Node(path.substring(offset));
+                node.children.put(path.charAt(offset), child);
+                return child;
+            }
+            int common = commonPrefixLength(child.label, path, offset);
+            if (common < child.label.length()) {
+                // Split the child
+                Node intermediate = new Node(child.label.substring(0, common));
+                intermediate.children = new HashMap<>();
+                child.label = child.label.substring(common);
+                intermediate.children.put(child.label.charAt(0), child);
+                node.children.put(intermediate.label.charAt(0), intermediate);
+                child = intermediate;
+            }
+            offset += common;
+            node = child;
+        }
+        return node;
+    }
+
+    private static int commonPrefixLength(String label, String path, int offset) {
+        int max = Math.min(label.length(), path.length() - offset);
+        int i = 0;
+        while (i < max && label.charAt(i) == path.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the mapping to use for a request.
+     * 
+     * @param scheme
+     *            the request scheme
+     * @param host
+     *            the request host (and port)
+     * @param uri
+     *            the request path
+     * @return the mapping with the highest priority matching the request or null
+     */
+    public UriMapping find(String scheme, String host, String uri) {
+        int result = Integer.MAX_VALUE;
+        if (!hosts.isEmpty()) {
+            Node root = hosts.get((scheme + "://" + host).toLowerCase(Locale.ENGLISH));
+            if (root != null) {
+                result = find(root, uri);
+            }
+        }
+        result = Math.min(result, find(anyHost, uri));
+        if (result == Integer.MAX_VALUE) {
+            return null;
+        }
+        return mappings[result];
+    }
+
+    private static int find(Node root, String uri) {
+        int result = root.match(uri);
+        Node node = root;
+        int offset = 0;
+        while (node.children != null && offset < uri.length()) {
+            node = node.children.get(uri.charAt(offset));
+            if (node == null || !uri.startsWith(node.label, offset)) {
+                break;
+            }
+            offset += node.label.length();
+            result = Math.min(result, node.match(uri));
+        }
+        return result;
+    }
+
+}
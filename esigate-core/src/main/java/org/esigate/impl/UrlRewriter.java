@@ -15,8 +15,10 @@
 
 package org.esigate.impl;
 
+import java.io.IOException;
 import java.net.URI;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringEscapeUtils;
@@ -37,22 +39,35 @@ import org.slf4j.LoggerFactory;
  * 
  * All href and src attributes are processed, except javascript links.
  * 
+ * The same resources are usually referenced by all the pages of a site so the results of
+ * {@link #rewriteUrl(String, String, String, String, boolean)} are kept in a bounded cache.
+ * 
  * @author Nicolas Richeton
  * 
  */
 public class UrlRewriter {
     private static final Logger LOG = LoggerFactory.getLogger(UrlRewriter.class);
 
-    private static final Pattern URL_PATTERN = Pattern.compile(
-            "<([^\\!:>]+)(src|href|action|background|content)\\s*=\\s*('[^<']*'|\"[^<\"]*\")([^>]*)>",
-            Pattern.CASE_INSENSITIVE);
+    /**
+     * Attributes rewritten by {@link #rewriteHtml(CharSequence, String, String, String, boolean)}.
+     */
+    private static final String[] URL_ATTRIBUTES = {"src", "href", "action", "background", "content"};
+
+    private static final int NO_MATCH = 0;
+    private static final int MATCH = 1;
+    private static final int NEED_MORE = 2;
 
-    private static final Pattern JAVASCRIPT_CONCATENATION_PATTERN = Pattern.compile(
-            "\\+\\s*'|\\+\\s*\"|'\\s*\\+|\"\\s*\\+", Pattern.CASE_INSENSITIVE);
+    /**
+     * Default maximum number of urls kept in the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
 
     private static final Pattern META_REFRESH_PATTERN = Pattern.compile(
             "<\\s*meta([^>]+)http-equiv\\s*=\\s*(\"|')refresh(\"|')", Pattern.CASE_INSENSITIVE);
 
+    private final int cacheSize;
+    private final Map<CacheKey, String> cache = new ConcurrentHashMap<>();
+
     /**
      * Rewrites urls from the response for the client or from the request to the target server.
      * 
@@ -70,6 +85,59 @@ public class UrlRewriter {
      * 
      */
     public UrlRewriter() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize
+     *            the maximum number of rewritten urls to keep in the cache, 0 to disable the cache
+     */
+    public UrlRewriter(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Key of the cache of rewritten urls.
+     */
+    private static final class CacheKey {
+        private final String url;
+        private final String request;
+        private final String baseUrl;
+        private final String visibleBaseUrl;
+        private final boolean absolute;
+        private final int hashCode;
+
+        private CacheKey(String url, String request, String baseUrl, String visibleBaseUrl, boolean absolute) {
+            this.url = url;
+            this.request = request;
+            this.baseUrl = baseUrl;
+            this.visibleBaseUrl = visibleBaseUrl;
+            this.absolute = absolute;
+            int hash = url.hashCode();
+            hash = 31 * hash + request.hashCode();
+            hash = 31 * hash + baseUrl.hashCode();
+            hash = 31 * hash + visibleBaseUrl.hashCode();
+            this.hashCode = 31 * hash + (absolute ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return hashCode == other.hashCode && absolute == other.absolute && url.equals(other.url)
+                    && request.equals(other.request) && baseUrl.equals(other.baseUrl)
+                    && visibleBaseUrl.equals(other.visibleBaseUrl);
+        }
     }
 
     /**
@@ -139,6 +207,45 @@ public class UrlRewriter {
             return url;
         }
 
+        if (cacheSize <= 0) {
+            return rewriteUrlNoCache(url, requestUrl, baseUrl, visibleBaseUrl, absolute);
+        }
+        CacheKey key = new CacheKey(url, getRequestKey(url, requestUrl), baseUrl, visibleBaseUrl, absolute);
+        String result = cache.get(key);
+        if (result == null) {
+            result = rewriteUrlNoCache(url, requestUrl, baseUrl, visibleBaseUrl, absolute);
+            // Cheaper than a LRU and good enough as the urls of a site are usually far less than the cache size
+            if (cache.size() >= cacheSize) {
+                cache.clear();
+            }
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the part of the request url the rewritten url depends on: only the "directory" for relative urls, the
+     * whole request url for empty urls or urls starting with a query string or a fragment.
+     */
+    private static String getRequestKey(String url, String requestUrl) {
+        if (url.isEmpty() || url.charAt(0) == '?' || url.charAt(0) == '#' || requestUrl.indexOf('?') >= 0
+                || requestUrl.indexOf('#') >= 0) {
+            return requestUrl;
+        }
+        int lastSlash = requestUrl.lastIndexOf('/');
+        int scheme = requestUrl.indexOf("://");
+        if (scheme >= 0) {
+            int pathStart = requestUrl.indexOf('/', scheme + 3);
+            if (pathStart < 0 || lastSlash < pathStart) {
+                // No path in the request url
+                return requestUrl;
+            }
+        }
+        return requestUrl.substring(0, lastSlash + 1);
+    }
+
+    private String rewriteUrlNoCache(String url, String requestUrl, String baseUrl, String visibleBaseUrl,
+            boolean absolute) {
         // Base url should end with /
         if (!baseUrl.endsWith("/")) {
             baseUrl = baseUrl + "/";
@@ -201,12 +308,58 @@ public class UrlRewriter {
      */
     public CharSequence rewriteHtml(CharSequence input, String requestUrl, String baseUrlParam, String visibleBaseUrl,
             boolean absolute) {
-        StringBuffer result = new StringBuffer(input.length());
-        Matcher m = URL_PATTERN.matcher(input);
-        while (m.find()) {
-            String url = input.subSequence(m.start(3) + 1, m.end(3) - 1).toString();
-            String tag = m.group(0);
-            String quote = input.subSequence(m.end(3) - 1, m.end(3)).toString();
+        StringBuilder result = new StringBuilder(input.length() + input.length() / 8);
+        try {
+            rewriteHtml(input, result, true, requestUrl, baseUrlParam, visibleBaseUrl, absolute);
+        } catch (IOException e) {
+            // Cannot happen with a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Fixes all resources urls found in a part of a page and writes the result. This method can be used to process a
+     * page as a stream: the characters after the returned position must be processed again with the rest of the page.
+     * 
+     * @param input
+     *            The html to be processed.
+     * @param out
+     *            Where to write the result.
+     * @param endOfInput
+     *            true if input is the end of the page, false if more characters may follow
+     * @param requestUrl
+     *            The request URL.
+     * @param baseUrlParam
+     *            The base URL selected for this request.
+     * @param visibleBaseUrl
+     *            The base URL viewed by the browser.
+     * @param absolute
+     *            Should the rewritten urls contain the scheme host and port
+     * @return the number of characters of input processed, always input.length() if endOfInput is true
+     * @throws IOException
+     *             if an error occurs while writing to out
+     */
+    public int rewriteHtml(CharSequence input, Appendable out, boolean endOfInput, String requestUrl,
+            String baseUrlParam, String visibleBaseUrl, boolean absolute) throws IOException {
+        int copied = 0;
+        // Position of the attribute name, index of the name, positions of the quotes and end of tag
+        int[] attribute = new int[5];
+        for (int tagStart = indexOf(input, '<', 0); tagStart >= 0; tagStart = indexOf(input, '<', tagStart + 1)) {
+            int found = findUrlAttribute(input, tagStart, endOfInput, attribute);
+            if (found == NEED_MORE) {
+                out.append(input, copied, tagStart);
+                return tagStart;
+            }
+            if (found == NO_MATCH) {
+                continue;
+            }
+            int nameStart = attribute[0];
+            int nameEnd = nameStart + URL_ATTRIBUTES[attribute[1]].length();
+            int valueStart = attribute[2] + 1;
+            int valueEnd = attribute[3];
+            int tagEnd = attribute[4];
+            String url = input.subSequence(valueStart, valueEnd).toString();
 
             // Browsers tolerate urls with white spaces before or after
             String trimmedUrl = StringUtils.trim(url);
@@ -219,10 +372,11 @@ public class UrlRewriter {
                 LOG.debug("empty url kept unchanged");
             } else if (trimmedUrl.startsWith("#")) {
                 LOG.debug("anchor url kept unchanged: [{}]", url);
-            } else if (JAVASCRIPT_CONCATENATION_PATTERN.matcher(trimmedUrl).find()) {
+            } else if (isJavascriptConcatenation(trimmedUrl)) {
                 LOG.debug("url in javascript kept unchanged: [{}]", url);
-            } else if (m.group(2).equalsIgnoreCase("content")) {
-                if (META_REFRESH_PATTERN.matcher(tag).find()) {
+            } else if (attribute[1] == URL_ATTRIBUTES.length - 1) {
+                // content attribute
+                if (META_REFRESH_PATTERN.matcher(input.subSequence(tagStart, tagEnd + 1)).find()) {
                     rewrittenUrl = rewriteRefresh(trimmedUrl, requestUrl, baseUrlParam, visibleBaseUrl);
                     rewrittenUrl = escapeHtml(rewrittenUrl);
                     LOG.debug("refresh url [{}] rewritten [{}]", url, rewrittenUrl);
@@ -235,40 +389,205 @@ public class UrlRewriter {
                 LOG.debug("url [{}] rewritten [{}]", url, rewrittenUrl);
             }
 
-            m.appendReplacement(result, ""); // Copy what is between the previous match and the current match
-            result.append("<");
-            result.append(m.group(1));
-            result.append(m.group(2));
-            result.append("=");
-            result.append(quote);
-            result.append(rewrittenUrl);
-            result.append(quote);
-            if (m.groupCount() > 3) {
-                result.append(m.group(4));
+            // Copy what is between the previous tag and the attribute value, white spaces around "=" are removed
+            out.append(input, copied, nameEnd);
+            out.append('=');
+            out.append(input.charAt(valueEnd));
+            out.append(rewrittenUrl);
+            // Copy the end of the tag
+            out.append(input, valueEnd, tagEnd + 1);
+            copied = tagEnd + 1;
+            tagStart = tagEnd;
+        }
+        out.append(input, copied, input.length()); // Copy the reminder of the input
+        return input.length();
+    }
+
+    /**
+     * Looks for the url attribute in a tag. Only the last url attribute of a tag is rewritten and the tag must not
+     * contain "!" or ":" before the attribute (comments, CDATA, namespaced tags like esi:include).
+     * 
+     * @param input
+     *            the html
+     * @param tagStart
+     *            the position of "&lt;"
+     * @param endOfInput
+     *            false if more characters may follow the input
+     * @param attribute
+     *            filled with the position of the attribute name, its index in URL_ATTRIBUTES, the position of the
+     *            opening and closing quotes and the position of the end of the tag
+     * @return MATCH if an url attribute was found, NO_MATCH if not or NEED_MORE if it depends on the characters
+     *         following the input
+     */
+    private static int findUrlAttribute(CharSequence input, int tagStart, boolean endOfInput, int[] attribute) {
+        int length = input.length();
+        int limit = tagStart + 1;
+        while (limit < length && !isTagPrefixEnd(input.charAt(limit))) {
+            limit++;
+        }
+        if (limit >= length && !endOfInput) {
+            return NEED_MORE;
+        }
+        // Start from the end of the tag in order to find the last attribute
+        for (int nameStart = limit - 1; nameStart > tagStart + 1; nameStart--) {
+            int name = matchAttributeName(input, nameStart);
+            if (name < 0) {
+                continue;
+            }
+            int i = skipWhitespaces(input, nameStart + URL_ATTRIBUTES[name].length());
+            if (i >= length) {
+                if (endOfInput) {
+                    continue;
+                }
+                return NEED_MORE;
+            }
+            if (input.charAt(i) != '=') {
+                continue;
+            }
+            i = skipWhitespaces(input, i + 1);
+            if (i >= length) {
+                if (endOfInput) {
+                    continue;
+                }
+                return NEED_MORE;
+            }
+            if (input.charAt(i) != '"' && input.charAt(i) != '\'') {
+                continue;
+            }
+            char quote = input.charAt(i);
+            int valueEnd = i + 1;
+            while (valueEnd < length && input.charAt(valueEnd) != quote && input.charAt(valueEnd) != '<') {
+                valueEnd++;
+            }
+            if (valueEnd >= length) {
+                if (endOfInput) {
+                    continue;
+                }
+                return NEED_MORE;
+            }
+            if (input.charAt(valueEnd) != quote) {
+                continue;
+            }
+            int tagEnd = indexOf(input, '>', valueEnd + 1);
+            if (tagEnd < 0) {
+                if (endOfInput) {
+                    continue;
+                }
+                return NEED_MORE;
+            }
+            attribute[0] = nameStart;
+            attribute[1] = name;
+            attribute[2] = i;
+            attribute[3] = valueEnd;
+            attribute[4] = tagEnd;
+            return MATCH;
+        }
+        return NO_MATCH;
+    }
+
+    private static boolean isTagPrefixEnd(char c) {
+        return c == '>' || c == '!' || c == ':';
+    }
+
+    /**
+     * @return the index of the attribute name in URL_ATTRIBUTES or -1
+     */
+    private static int matchAttributeName(CharSequence input, int start) {
+        for (int name = 0; name < URL_ATTRIBUTES.length; name++) {
+            String attributeName = URL_ATTRIBUTES[name];
+            if (start + attributeName.length() > input.length()) {
+                continue;
+            }
+            int i = 0;
+            // Attribute names are lower case ascii letters
+            while (i < attributeName.length() && (input.charAt(start + i) | 0x20) == attributeName.charAt(i)) {
+                i++;
+            }
+            if (i == attributeName.length()) {
+                return name;
             }
-            result.append(">");
         }
+        return -1;
+    }
 
-        m.appendTail(result); // Copy the reminder of the input
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
 
-        return result;
+    private static int skipWhitespaces(CharSequence input, int start) {
+        int i = start;
+        while (i < input.length() && isWhitespace(input.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(CharSequence input, char c, int start) {
+        for (int i = start; i < input.length(); i++) {
+            if (input.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the url contains a javascript string concatenation like "' + " or " + '"
+     */
+    private static boolean isJavascriptConcatenation(String url) {
+        for (int plus = url.indexOf('+'); plus >= 0; plus = url.indexOf('+', plus + 1)) {
+            int after = skipWhitespaces(url, plus + 1);
+            if (after < url.length() && isQuote(url.charAt(after))) {
+                return true;
+            }
+            int before = plus - 1;
+            while (before >= 0 && isWhitespace(url.charAt(before))) {
+                before--;
+            }
+            if (before >= 0 && isQuote(url.charAt(before))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isQuote(char c) {
+        return c == '\'' || c == '"';
     }
 
     private String unescapeHtml(String url) {
         // Unescape entities, ex: &apos; or &#39;
-        url = StringEscapeUtils.unescapeHtml4(url);
+        if (url.indexOf('&') >= 0) {
+            url = StringEscapeUtils.unescapeHtml4(url);
+        }
         return url;
     }
 
     private String escapeHtml(String url) {
+        if (!needsEscaping(url)) {
+            return url;
+        }
         // Escape the previously unescaped characters
         url = StringEscapeUtils.escapeHtml4(url);
-        // Replace " by &quot; in order not to break the html
-        url = url.replaceAll("'", "&apos;");
-        url = url.replaceAll("\"", "&quot;");
+        // Replace ' by &apos; in order not to break the html
+        url = StringUtils.replace(url, "'", "&apos;");
         return url;
     }
 
+    /**
+     * @return true if the url contains characters escaped by escapeHtml: non ascii characters, quotes, &amp;, &lt; or
+     *         &gt;
+     */
+    private static boolean needsEscaping(String url) {
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c >= 0x7F || c == '&' || c == '<' || c == '>' || c == '"' || c == '\'') {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Rewrites a "Refresh" HTTP header or a &lt;meta http-equiv="refresh"... tag. The value should have the following
      * format:
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.jfr;
+
+import org.esigate.impl.DriverRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits Java Flight Recorder events for the main processing phases: backend fetches, fragments (cache lookup and
+ * backend fetch on a cache miss), ESI includes, parser passes and renderers.
+ * <p>
+ * The events are in the "ESIgate" category and are recorded by any running recording, for instance started with
+ * <code>-XX:StartFlightRecording</code>. They can be disabled, or given a threshold, in the JFR settings like the JDK
+ * events: <code>org.esigate.Fetch#threshold=10 ms</code>. When no recording is running, an event is only allocated and
+ * checked. When the JVM has no JFR (Java 8 before 8u262) or when the system property <code>esigate.jfr</code> is false,
+ * nothing is recorded and the cost is a static check.
+ */
+public final class FlightRecorder {
+    private static final Logger LOG = LoggerFactory.getLogger(FlightRecorder.class);
+
+    /**
+     * A phase being recorded.
+     */
+    public interface Span {
+        /**
+         * Ends the phase and records it if the event is enabled.
+         * 
+         * @param result
+         *            the outcome, for instance the status code, may be null
+         */
+        void end(String result);
+    }
+
+    static final Span NOOP = new Span() {
+        @Override
+        public void end(String result) {
+            // Nothing to record
+        }
+    };
+
+    private static final boolean ENABLED = isAvailable();
+
+    private FlightRecorder() {
+
+    }
+
+    private static boolean isAvailable() {
+        if (!Boolean.parseBoolean(System.getProperty("esigate.jfr", "true"))) {
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            LOG.debug("Java Flight Recorder not available, no events will be emitted");
+            return false;
+        }
+    }
+
+    /**
+     * @return true if events can be emitted
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Starts recording a request sent to the backend, after the cache.
+     * 
+     * @param request
+     *            the request being processed, may be null
+     * @param url
+     *            the url requested
+     * @return the span to end once the response is received
+     */
+    public static Span startFetch(DriverRequest request, String url) {
+        return ENABLED ? JfrEvents.startFetch(getDriverName(request), url) : NOOP;
+    }
+
+    /**
+     * Starts recording a fragment: the cache lookup and the backend fetch on a cache miss.
+     * 
+     * @param request
+     *            the request being processed, may be null
+     * @param url
+     *            the url requested
+     * @return the span to end with the status code and the cache status
+     */
+    public static Span startFragment(DriverRequest request, String url) {
+        return ENABLED ? JfrEvents.startFragment(getDriverName(request), url) : NOOP;
+    }
+
+    /**
+     * Starts recording an ESI include task.
+     * 
+     * @param request
+     *            the request of the page containing the include, may be null
+     * @param src
+     *            the src of the include
+     * @param queueWait
+     *            the time the task waited for a thread, in nanoseconds
+     * @return the span to end once the fragment is included
+     */
+    public static Span startInclude(DriverRequest request, String src, long queueWait) {
+        return ENABLED ? JfrEvents.startInclude(getDriverName(request), src, queueWait) : NOOP;
+    }
+
+    /**
+     * Starts recording a parser pass.
+     * 
+     * @param request
+     *            the request of the page parsed, may be null
+     * @param parser
+     *            the pattern of the parser
+     * @return the span to end once the page is parsed
+     */
+    public static Span startParse(DriverRequest request, String parser) {
+        return ENABLED ? JfrEvents.startParse(getDriverName(request), getRelUrl(request), parser) : NOOP;
+    }
+
+    /**
+     * Starts recording a renderer pass.
+     * 
+     * @param request
+     *            the request of the page rendered, may be null
+     * @param renderer
+     *            the name of the renderer
+     * @return the span to end once the renderer has written the page
+     */
+    public static Span startRender(DriverRequest request, String renderer) {
+        return ENABLED ? JfrEvents.startRender(getDriverName(request), getRelUrl(request), renderer) : NOOP;
+    }
+
+    private static String getDriverName(DriverRequest request) {
+        return request == null ? null : request.getDriver().getConfiguration().getInstanceName();
+    }
+
+    private static String getRelUrl(DriverRequest request) {
+        return request == null ? null : request.getRelUrl();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR events. This class is only loaded by {@link FlightRecorder} when the jdk.jfr module is available.
+ */
+final class JfrEvents {
+
+    private JfrEvents() {
+
+    }
+
+    @Category("ESIgate")
+    @StackTrace(false)
+    abstract static class EsigateEvent extends Event implements FlightRecorder.Span {
+        @Label("Driver")
+        String driver;
+
+        @Label("URL")
+        String url;
+
+        @Label("Result")
+        String result;
+
+        @Override
+        public void end(String r) {
+            this.result = r;
+            commit();
+        }
+    }
+
+    @Name("org.esigate.Fetch")
+    @Label("Backend Fetch")
+    @Description("Request sent to the backend, after the cache")
+    static final class FetchEvent extends EsigateEvent {
+    }
+
+    @Name("org.esigate.Fragment")
+    @Label("Fragment")
+    @Description("Cache lookup, followed by a backend fetch on a cache miss")
+    static final class FragmentEvent extends EsigateEvent {
+    }
+
+    @Name("org.esigate.Include")
+    @Label("ESI Include")
+    @Description("ESI include task, its duration is the execution time")
+    static final class IncludeEvent extends EsigateEvent {
+        @Label("Queue Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+    }
+
+    @Name("org.esigate.Parse")
+    @Label("Parser Pass")
+    static final class ParseEvent extends EsigateEvent {
+        @Label("Parser")
+        String parser;
+    }
+
+    @Name("org.esigate.Render")
+    @Label("Renderer")
+    @Description("A renderer, with the filters applied on the fly on its output")
+    static final class RenderEvent extends EsigateEvent {
+        @Label("Renderer")
+        String renderer;
+    }
+
+    private static FlightRecorder.Span start(EsigateEvent event, String driver, String url) {
+        if (!event.isEnabled()) {
+            return FlightRecorder.NOOP;
+        }
+        event.driver = driver;
+        event.url = url;
+        event.begin();
+        return event;
+    }
+
+    static FlightRecorder.Span startFetch(String driver, String url) {
+        return start(new FetchEvent(), driver, url);
+    }
+
+    static FlightRecorder.Span startFragment(String driver, String url) {
+        return start(new FragmentEvent(), driver, url);
+    }
+
+    static FlightRecorder.Span startInclude(String driver, String url, long queueWait) {
+        IncludeEvent event = new IncludeEvent();
+        event.queueWait = queueWait;
+        return start(event, driver, url);
+    }
+
+    static FlightRecorder.Span startParse(String driver, String url, String parser) {
+        ParseEvent event = new ParseEvent();
+        event.parser = parser;
+        return start(event, driver, url);
+    }
+
+    static FlightRecorder.Span startRender(String driver, String url, String renderer) {
+        RenderEvent event = new RenderEvent();
+        event.renderer = renderer;
+        return start(event, driver, url);
+    }
+
+}
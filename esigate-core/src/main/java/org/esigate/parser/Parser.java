@@ -25,6 +25,7 @@ import java.util.regex.Pattern;
 import org.apache.http.HttpResponse;
 import org.esigate.HttpErrorPage;
 import org.esigate.impl.DriverRequest;
+import org.esigate.jfr.FlightRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,37 +63,42 @@ public class Parser {
      * @throws HttpErrorPage
      */
     public void parse(CharSequence in, Appendable out) throws IOException, HttpErrorPage {
-        ParserContextImpl ctx = new ParserContextImpl(out, httpRequest, httpResponse);
-        Matcher matcher = pattern.matcher(in);
-        int currentPosition = 0;
-        while (matcher.find()) {
-            String tag = matcher.group();
-            ctx.characters(in, currentPosition, matcher.start());
-            currentPosition = matcher.end();
-            if (ctx.isCurrentTagEnd(tag)) {
-                // check if this is the end tag for current element
-                LOG.info("Processing end tag {}", tag);
-                ctx.endElement(tag);
-            } else {
-                // if not, it is an opening tag for a new element
-                LOG.info("Processing start tag {}", tag);
-                ElementType type = null;
-                for (ElementType t : elementTypes) {
-                    if (t.isStartTag(tag)) {
-                        type = t;
-                        break;
-                    }
-                }
-                Element element = type.newInstance();
-                ctx.startElement(type, element, tag);
-                if (type.isSelfClosing(tag)) {
+        FlightRecorder.Span span = FlightRecorder.startParse(httpRequest, pattern.pattern());
+        try {
+            ParserContextImpl ctx = new ParserContextImpl(out, httpRequest, httpResponse);
+            Matcher matcher = pattern.matcher(in);
+            int currentPosition = 0;
+            while (matcher.find()) {
+                String tag = matcher.group();
+                ctx.characters(in, currentPosition, matcher.start());
+                currentPosition = matcher.end();
+                if (ctx.isCurrentTagEnd(tag)) {
+                    // check if this is the end tag for current element
+                    LOG.debug("Processing end tag {}", tag);
                     ctx.endElement(tag);
-                }
+                } else {
+                    // if not, it is an opening tag for a new element
+                    LOG.debug("Processing start tag {}", tag);
+                    ElementType type = null;
+                    for (ElementType t : elementTypes) {
+                        if (t.isStartTag(tag)) {
+                            type = t;
+                            break;
+                        }
+                    }
+                    Element element = type.newInstance();
+                    ctx.startElement(type, element, tag);
+                    if (type.isSelfClosing(tag)) {
+                        ctx.endElement(tag);
+                    }
 
+                }
             }
+            // we reached the end of input
+            ctx.characters(in, currentPosition, in.length());
+        } finally {
+            span.end(null);
         }
-        // we reached the end of input
-        ctx.characters(in, currentPosition, in.length());
     }
 
     public void setHttpRequest(DriverRequest httpRequest) {
@@ -23,6 +23,7 @@ import java.util.regex.Pattern;
 import org.apache.http.HttpResponse;
 import org.esigate.HttpErrorPage;
 import org.esigate.impl.DriverRequest;
+import org.esigate.jfr.FlightRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,36 +68,42 @@ public class FutureParser {
      * @throws HttpErrorPage
      */
     public void parse(CharSequence in, FutureAppendable out) throws IOException, HttpErrorPage {
-        FutureParserContextImpl ctx = new FutureParserContextImpl(out, this.httpRequest, this.httpResponse, this.data);
-        Matcher matcher = this.pattern.matcher(in);
-        int currentPosition = 0;
-        while (matcher.find()) {
-            String tag = matcher.group();
-            ctx.characters(new CharSequenceFuture(in.subSequence(currentPosition, matcher.start())));
-            currentPosition = matcher.end();
-            if (ctx.isCurrentTagEnd(tag)) {
-                // check if this is the end tag for current element
-                LOG.info("Processing end tag {}", tag);
-                ctx.endElement(tag);
-            } else {
-                // if not, it is an opening tag for a new element
-                LOG.info("Processing start tag {}", tag);
-                FutureElementType type = null;
-                for (FutureElementType t : this.elementTypes) {
-                    if (t.isStartTag(tag)) {
-                        type = t;
-                        break;
-                    }
-                }
-                FutureElement element = type.newInstance();
-                ctx.startElement(type, element, tag);
-                if (type.isSelfClosing(tag)) {
+        FlightRecorder.Span span = FlightRecorder.startParse(this.httpRequest, this.pattern.pattern());
+        try {
+            FutureParserContextImpl ctx =
+                    new FutureParserContextImpl(out, this.httpRequest, this.httpResponse, this.data);
+            Matcher matcher = this.pattern.matcher(in);
+            int currentPosition = 0;
+            while (matcher.find()) {
+                String tag = matcher.group();
+                ctx.characters(new CharSequenceFuture(in.subSequence(currentPosition, matcher.start())));
+                currentPosition = matcher.end();
+                if (ctx.isCurrentTagEnd(tag)) {
+                    // check if this is the end tag for current element
+                    LOG.debug("Processing end tag {}", tag);
                     ctx.endElement(tag);
+                } else {
+                    // if not, it is an opening tag for a new element
+                    LOG.debug("Processing start tag {}", tag);
+                    FutureElementType type = null;
+                    for (FutureElementType t : this.elementTypes) {
+                        if (t.isStartTag(tag)) {
+                            type = t;
+                            break;
+                        }
+                    }
+                    FutureElement element = type.newInstance();
+                    ctx.startElement(type, element, tag);
+                    if (type.isSelfClosing(tag)) {
+                        ctx.endElement(tag);
+                    }
                 }
             }
+            // we reached the end of input
+            ctx.characters(new CharSequenceFuture(in.subSequence(currentPosition, in.length())));
+        } finally {
+            span.end(null);
         }
-        // we reached the end of input
-        ctx.characters(new CharSequenceFuture(in.subSequence(currentPosition, in.length())));
     }
 
     public void setHttpRequest(DriverRequest httpRequest) {
@@ -0,0 +1,136 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+import org.esigate.Parameters;
+
+/**
+ * Base class for the Writers returned by {@link FilterRenderer#filter(org.esigate.impl.DriverRequest, Writer)}.
+ * <p>
+ * Characters are passed to {@link #process(CharSequence, boolean)} as they are written. The characters the filter
+ * cannot process yet (for instance the beginning of a tag) are kept and processed again with the next characters. Kept
+ * characters are processed again only when their number has doubled so the cost stays linear.
+ */
+public abstract class BufferedFilterWriter extends Writer {
+    private final Writer out;
+    private final StringBuilder pending = new StringBuilder(Parameters.SMALL_BUFFER_SIZE);
+    private int nextProcessing = Parameters.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * @param out
+     *            where to write the result
+     */
+    protected BufferedFilterWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Processes some characters and writes the result to the output.
+     * 
+     * @param input
+     *            the characters to process
+     * @param endOfInput
+     *            true if there are no more characters to come
+     * @return the number of characters processed, the remaining characters will be processed again with the next ones.
+     *         Must be input.length() if endOfInput is true.
+     * @throws IOException
+     */
+    protected abstract int process(CharSequence input, boolean endOfInput) throws IOException;
+
+    /**
+     * @return the Writer the result must be written to
+     */
+    protected Writer getOut() {
+        return out;
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null) {
+            return append("null", start, end);
+        }
+        if (pending.length() == 0) {
+            // Process the characters directly without copying them
+            CharSequence input = start == 0 && end == csq.length() ? csq : csq.subSequence(start, end);
+            int processed = process(input, false);
+            pending.append(input, processed, input.length());
+            nextProcessing = Math.max(Parameters.DEFAULT_BUFFER_SIZE, 2 * pending.length());
+        } else {
+            pending.append(csq, start, end);
+            if (pending.length() >= nextProcessing) {
+                processPending(false);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        if (csq == null) {
+            return append("null");
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public Writer append(char c) throws IOException {
+        pending.append(c);
+        if (pending.length() >= nextProcessing) {
+            processPending(false);
+        }
+        return this;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        append(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        append(str, off, off + len);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        append((char) c);
+    }
+
+    private void processPending(boolean endOfInput) throws IOException {
+        int processed = process(pending, endOfInput);
+        pending.delete(0, processed);
+        nextProcessing = Math.max(Parameters.DEFAULT_BUFFER_SIZE, 2 * pending.length());
+    }
+
+    /**
+     * Flushes the output. The characters kept by the filter are only written when it is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        processPending(true);
+        out.close();
+    }
+
+}
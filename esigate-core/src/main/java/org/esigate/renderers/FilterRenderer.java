@@ -0,0 +1,43 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.Writer;
+
+import org.esigate.Renderer;
+import org.esigate.impl.DriverRequest;
+
+/**
+ * A {@link Renderer} that can transform a page on the fly, in a single pass. Consecutive filter renderers are fused by
+ * {@link RenderingPipeline}: each filter writes directly to the next one so the page is scanned once instead of being
+ * copied to a new String by each renderer.
+ * 
+ * @see BufferedFilterWriter
+ */
+public interface FilterRenderer extends Renderer {
+
+    /**
+     * Creates a Writer applying this renderer to the characters written to it.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param out
+     *            where to write the result. Closing the returned Writer writes the characters it may still hold and
+     *            closes out.
+     * @return the filtering Writer
+     */
+    Writer filter(DriverRequest originalRequest, Writer out);
+}
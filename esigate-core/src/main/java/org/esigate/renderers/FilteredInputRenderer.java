@@ -0,0 +1,50 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.esigate.HttpErrorPage;
+import org.esigate.Renderer;
+import org.esigate.impl.DriverRequest;
+
+/**
+ * A {@link Renderer} whose first pass is a {@link FilterRenderer}. {@link RenderingPipeline} fuses this first pass with
+ * the filters preceding the renderer, then calls {@link #renderFiltered(DriverRequest, CharSequence, Writer)}.
+ */
+public interface FilteredInputRenderer extends Renderer {
+
+    /**
+     * @return the filter to apply to the source before calling
+     *         {@link #renderFiltered(DriverRequest, CharSequence, Writer)}
+     */
+    FilterRenderer getInputFilter();
+
+    /**
+     * Renders a source already processed by {@link #getInputFilter()}.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param src
+     *            source to be rendered
+     * @param out
+     *            output destination
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    void renderFiltered(DriverRequest originalRequest, CharSequence src, Writer out) throws IOException, HttpErrorPage;
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.Renderer;
+import org.esigate.impl.DriverRequest;
+
+/**
+ * Adapts a {@link Renderer} that needs the whole page to the {@link FilterRenderer} interface.
+ * <p>
+ * The characters written to the filter are buffered and the renderer is called when the filter is closed. The input
+ * filter of a {@link FilteredInputRenderer} is applied while buffering. An {@link HttpErrorPage} thrown by the renderer
+ * is wrapped in a {@link RenderingException}.
+ */
+public final class RendererAdapter implements FilterRenderer {
+    private final Renderer renderer;
+
+    /**
+     * An {@link IOException} used to throw an {@link HttpErrorPage} from a Writer.
+     */
+    public static final class RenderingException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RenderingException(HttpErrorPage cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized HttpErrorPage getCause() {
+            return (HttpErrorPage) super.getCause();
+        }
+    }
+
+    /**
+     * @param renderer
+     *            the renderer to adapt
+     */
+    public RendererAdapter(Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * @param renderer
+     *            any renderer
+     * @return the renderer itself if it is already a {@link FilterRenderer}, an adapter otherwise
+     */
+    public static FilterRenderer adapt(Renderer renderer) {
+        if (renderer instanceof FilterRenderer) {
+            return (FilterRenderer) renderer;
+        }
+        return new RendererAdapter(renderer);
+    }
+
+    @Override
+    public Writer filter(final DriverRequest originalRequest, final Writer out) {
+        final StringBuilderWriter buffer = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
+        final Writer input;
+        if (renderer instanceof FilteredInputRenderer) {
+            input = ((FilteredInputRenderer) renderer).getInputFilter().filter(originalRequest, buffer);
+        } else {
+            input = buffer;
+        }
+        return new Writer() {
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                input.write(cbuf, off, len);
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                input.write(str, off, len);
+            }
+
+            @Override
+            public Writer append(CharSequence csq, int start, int end) throws IOException {
+                input.append(csq, start, end);
+                return this;
+            }
+
+            @Override
+            public void flush() {
+                // Nothing is written before the page is complete
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+                try {
+                    if (renderer instanceof FilteredInputRenderer) {
+                        ((FilteredInputRenderer) renderer).renderFiltered(originalRequest, buffer.getBuilder(), out);
+                    } else {
+                        renderer.render(originalRequest, buffer.toString(), out);
+                    }
+                } catch (HttpErrorPage e) {
+                    throw new RenderingException(e);
+                }
+                out.close();
+            }
+        };
+    }
+
+    @Override
+    public void render(DriverRequest originalRequest, String src, Writer out) throws IOException, HttpErrorPage {
+        renderer.render(originalRequest, src, out);
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HTTP;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.Renderer;
+import org.esigate.http.HttpResponseUtils;
+import org.esigate.impl.DriverRequest;
+
+/**
+ * An entity rendering another entity on the fly while it is sent.
+ * <p>
+ * The source entity is uncompressed and decoded the same way as by
+ * {@link HttpResponseUtils#toString(org.apache.http.HttpResponse, org.esigate.events.EventManager)}, then goes through
+ * the {@link RenderingPipeline} and is encoded the same way as by a StringEntity. Rendering is done by chunks of
+ * {@link Parameters#DEFAULT_BUFFER_SIZE} characters, so the memory used does not depend on the size of the page as long
+ * as all the renderers are {@link FilterRenderer}s.
+ * <p>
+ * The entity can be read only once. As the page is rendered after the headers have been sent, a callback can be run
+ * once the page has been rendered, or when the entity is closed without having been rendered.
+ */
+public class RenderingHttpEntity extends AbstractHttpEntity implements Closeable {
+    private final DriverRequest originalRequest;
+    private final HttpEntity source;
+    private final Charset sourceCharset;
+    private final Charset charset;
+    private final List<Renderer> renderers;
+    private final AtomicReference<Runnable> renderedCallback = new AtomicReference<>();
+
+    /**
+     * Byte buffer giving access to its content without copy.
+     */
+    private static final class ByteBuffer extends ByteArrayOutputStream {
+
+        private ByteBuffer() {
+            super(Parameters.DEFAULT_BUFFER_SIZE);
+        }
+
+        private int read(int position, byte[] b, int off, int len) {
+            int n = Math.min(len, count - position);
+            System.arraycopy(buf, position, b, off, n);
+            return n;
+        }
+
+        private int get(int position) {
+            return buf[position] & 0xff;
+        }
+    }
+
+    /**
+     * Renders the source chunk by chunk when bytes are read.
+     */
+    private final class RenderingInputStream extends InputStream {
+        private final Reader reader;
+        private final char[] chars = new char[Parameters.DEFAULT_BUFFER_SIZE];
+        private final ByteBuffer rendered = new ByteBuffer();
+        private final Writer writer;
+        private int position;
+        private boolean finished;
+
+        private RenderingInputStream() throws IOException {
+            reader = new InputStreamReader(source.getContent(), sourceCharset);
+            writer =
+                    RenderingPipeline.createWriter(originalRequest, new OutputStreamWriter(rendered, charset),
+                            renderers);
+        }
+
+        /**
+         * Renders the next chunk of the source.
+         * 
+         * @return false if there is nothing more to read
+         */
+        private boolean fill() throws IOException {
+            while (position == rendered.size()) {
+                if (finished) {
+                    return false;
+                }
+                rendered.reset();
+                position = 0;
+                int n = reader.read(chars);
+                if (n < 0) {
+                    finished = true;
+                    try {
+                        reader.close();
+                        writer.close();
+                    } finally {
+                        rendered();
+                    }
+                } else {
+                    writer.write(chars, 0, n);
+                    writer.flush();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return rendered.get(position++);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = rendered.read(position, b, off, len);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return rendered.size() - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finished = true;
+            position = rendered.size();
+            try {
+                reader.close();
+            } finally {
+                rendered();
+            }
+        }
+    }
+
+    /**
+     * @param originalRequest
+     *            request received by esigate.
+     * @param source
+     *            the entity to render
+     * @param renderers
+     *            the renderers to apply
+     * @throws UnsupportedEncodingException
+     *             if the charset of the source entity is not supported
+     */
+    public RenderingHttpEntity(DriverRequest originalRequest, HttpEntity source, List<Renderer> renderers)
+            throws UnsupportedEncodingException {
+        this.originalRequest = originalRequest;
+        this.renderers = new ArrayList<>(renderers);
+        this.source = HttpResponseUtils.decompress(source);
+        ContentType contentType;
+        Charset charsetValue;
+        try {
+            contentType = ContentType.get(source);
+            charsetValue = ContentType.getOrDefault(source).getCharset();
+        } catch (UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(e.getMessage());
+        }
+        this.sourceCharset = charsetValue == null ? HTTP.DEF_CONTENT_CHARSET : charsetValue;
+        charsetValue = contentType == null ? null : contentType.getCharset();
+        this.charset = charsetValue == null ? HTTP.DEF_CONTENT_CHARSET : charsetValue;
+        if (contentType != null) {
+            setContentType(contentType.toString());
+        }
+    }
+
+    /**
+     * @param callback
+     *            run once, in the thread sending the entity, when the page has been rendered or when the rendering has
+     *            failed, or when the entity is closed without having been sent
+     */
+    public void setRenderedCallback(Runnable callback) {
+        renderedCallback.set(callback);
+    }
+
+    private void rendered() {
+        Runnable callback = renderedCallback.getAndSet(null);
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new RenderingInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        Writer out = new OutputStreamWriter(outstream, charset);
+        try (Reader reader = new InputStreamReader(source.getContent(), sourceCharset)) {
+            RenderingPipeline.render(originalRequest, reader, out, renderers);
+            out.flush();
+        } catch (HttpErrorPage e) {
+            throw new RendererAdapter.RenderingException(e);
+        } finally {
+            rendered();
+        }
+    }
+
+    /**
+     * Runs the rendered callback if the entity has not been sent.
+     */
+    @Override
+    public void close() {
+        rendered();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+}
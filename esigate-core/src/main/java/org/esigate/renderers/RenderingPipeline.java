@@ -0,0 +1,247 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.output.CloseShieldWriter;
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.Renderer;
+import org.esigate.impl.DriverRequest;
+import org.esigate.jfr.FlightRecorder;
+import org.esigate.util.BufferSizeHints;
+
+/**
+ * Applies a list of renderers to a page.
+ * <p>
+ * Renderers are applied in order, but {@link FilterRenderer}s are fused with their neighbours: the output of a renderer
+ * is written directly to the filters following it, and the filters preceding a {@link FilteredInputRenderer} are fused
+ * with its input filter. For the usual ResourceFixup + Esi configuration, url rewriting and removal of esi comments are
+ * done in a single pass over the page and the result is parsed by the Esi renderer without being converted to a String.
+ * <p>
+ * A page can also be rendered from a Reader to a Writer: when all the renderers are filters, the page is never held
+ * entirely in memory.
+ */
+public final class RenderingPipeline {
+    /**
+     * Limits the memory allocated upfront for a page.
+     */
+    private static final int MAX_SIZE_HINT = 16 * 1024 * 1024;
+
+    private RenderingPipeline() {
+
+    }
+
+    /**
+     * Renders a page.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param src
+     *            the page to render
+     * @param renderers
+     *            the renderers to apply
+     * @return the rendered page
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public static String render(DriverRequest originalRequest, String src, List<Renderer> renderers)
+            throws IOException, HttpErrorPage {
+        if (renderers.isEmpty()) {
+            return src;
+        }
+        return renderSegments(originalRequest, src, renderers, 0).toString();
+    }
+
+    /**
+     * Renders a page to a list of segments. Large unchanged parts of the page or of the included fragments are not
+     * copied.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param src
+     *            the page to render
+     * @param renderers
+     *            the renderers to apply
+     * @return the rendered page
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public static List<CharSequence> renderToSegments(DriverRequest originalRequest, String src,
+            List<Renderer> renderers) throws IOException, HttpErrorPage {
+        return renderToSegments(originalRequest, src, renderers, null, null);
+    }
+
+    /**
+     * Renders a page to a list of segments, like {@link #renderToSegments(DriverRequest, String, List)}. The buffers
+     * are allocated using the sizes needed by the previous renderings of the same page.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param src
+     *            the page to render
+     * @param renderers
+     *            the renderers to apply
+     * @param sizeHints
+     *            the sizes of the previous renderings, updated with this rendering
+     * @param pageUrl
+     *            the url of the page
+     * @return the rendered page
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public static List<CharSequence> renderToSegments(DriverRequest originalRequest, String src,
+            List<Renderer> renderers, BufferSizeHints sizeHints, String pageUrl) throws IOException, HttpErrorPage {
+        if (renderers.isEmpty()) {
+            return Collections.<CharSequence>singletonList(src);
+        }
+        int sizeHint = sizeHints == null ? 0 : Math.min(sizeHints.predict(pageUrl), MAX_SIZE_HINT);
+        SegmentWriter segments = renderSegments(originalRequest, src, renderers, sizeHint);
+        if (sizeHints != null) {
+            sizeHints.record(pageUrl, segments.firstBufferLength());
+        }
+        return segments.getSegments();
+    }
+
+    private static SegmentWriter renderSegments(DriverRequest originalRequest, String src, List<Renderer> renderers,
+            int sizeHint) throws IOException, HttpErrorPage {
+        CharSequence current = src;
+        // The renderer whose input filter has already been applied to current
+        Renderer filteredFor = null;
+        SegmentWriter segments = null;
+        int i = 0;
+        while (i < renderers.size()) {
+            Renderer renderer = renderers.get(i++);
+
+            // Filters following the renderer and the input filter of the next renderer are applied on the fly
+            int end = i;
+            while (end < renderers.size() && renderers.get(end) instanceof FilterRenderer) {
+                end++;
+            }
+            StringBuilderWriter result = null;
+            Writer out;
+            if (end == renderers.size()) {
+                // Last pass, the output is not copied again
+                segments = new SegmentWriter(current, sizeHint);
+                out = segments;
+            } else {
+                result = new StringBuilderWriter(Math.max(current.length(), Parameters.DEFAULT_BUFFER_SIZE));
+                out = result;
+            }
+            Renderer next = null;
+            if (end < renderers.size() && renderers.get(end) instanceof FilteredInputRenderer) {
+                next = renderers.get(end);
+                out = ((FilteredInputRenderer) next).getInputFilter().filter(originalRequest, out);
+            }
+            for (int j = end - 1; j >= i; j--) {
+                out = ((FilterRenderer) renderers.get(j)).filter(originalRequest, out);
+            }
+            i = end;
+
+            FlightRecorder.Span span = FlightRecorder.startRender(originalRequest, renderer.getClass().getSimpleName());
+            try {
+                if (renderer == filteredFor) {
+                    ((FilteredInputRenderer) renderer).renderFiltered(originalRequest, current, out);
+                } else if (renderer instanceof FilterRenderer) {
+                    out = ((FilterRenderer) renderer).filter(originalRequest, out);
+                    out.append(current);
+                } else {
+                    renderer.render(originalRequest, current.toString(), out);
+                }
+                out.close();
+            } finally {
+                span.end(null);
+            }
+            if (result != null) {
+                current = result.getBuilder();
+            }
+            filteredFor = next;
+        }
+        return segments;
+    }
+
+    /**
+     * @param renderers
+     *            the renderers to apply
+     * @return true if all the renderers are {@link FilterRenderer}s, so that a page can be rendered without ever
+     *         holding it entirely in memory
+     */
+    public static boolean isStreaming(List<Renderer> renderers) {
+        for (Renderer renderer : renderers) {
+            if (!(renderer instanceof FilterRenderer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a Writer applying all the renderers to the characters written to it. Renderers which are not
+     * {@link FilterRenderer}s are wrapped in a {@link RendererAdapter} and hold the page until the Writer is closed.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param out
+     *            where to write the rendered page. Closing the returned Writer ends the page and closes out.
+     * @param renderers
+     *            the renderers to apply
+     * @return the rendering Writer
+     */
+    public static Writer createWriter(DriverRequest originalRequest, Writer out, List<Renderer> renderers) {
+        Writer result = out;
+        for (int i = renderers.size() - 1; i >= 0; i--) {
+            result = RendererAdapter.adapt(renderers.get(i)).filter(originalRequest, result);
+        }
+        return result;
+    }
+
+    /**
+     * Renders a page read from a Reader. The page is read by chunks of {@link Parameters#DEFAULT_BUFFER_SIZE}
+     * characters and, if the renderers are all {@link FilterRenderer}s, the memory used does not depend on the size of
+     * the page.
+     * 
+     * @param originalRequest
+     *            request received by esigate.
+     * @param src
+     *            the page to render, it is not closed
+     * @param out
+     *            where to write the rendered page, it is not closed
+     * @param renderers
+     *            the renderers to apply
+     * @throws IOException
+     * @throws HttpErrorPage
+     */
+    public static void render(DriverRequest originalRequest, Reader src, Writer out, List<Renderer> renderers)
+            throws IOException, HttpErrorPage {
+        Writer writer = createWriter(originalRequest, CloseShieldWriter.wrap(out), renderers);
+        char[] buffer = new char[Parameters.DEFAULT_BUFFER_SIZE];
+        try {
+            for (int n = src.read(buffer); n >= 0; n = src.read(buffer)) {
+                writer.write(buffer, 0, n);
+            }
+            writer.close();
+        } catch (RendererAdapter.RenderingException e) {
+            throw e.getCause();
+        }
+    }
+
+}
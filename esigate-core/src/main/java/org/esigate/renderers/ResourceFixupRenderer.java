@@ -20,7 +20,6 @@ import static org.apache.commons.lang3.StringUtils.stripEnd;
 import java.io.IOException;
 import java.io.Writer;
 
-import org.esigate.Renderer;
 import org.esigate.impl.DriverRequest;
 import org.esigate.impl.UrlRewriter;
 
@@ -39,7 +38,7 @@ import org.esigate.impl.UrlRewriter;
  * @author Nicolas Richeton
  * 
  */
-public class ResourceFixupRenderer implements Renderer {
+public class ResourceFixupRenderer implements FilterRenderer {
     private final String baseUrl;
     private final String requestUrl;
     private final UrlRewriter urlRewriter;
@@ -86,4 +85,15 @@ public class ResourceFixupRenderer implements Renderer {
         out.write(urlRewriter.rewriteHtml(src, requestUrl, baseUrl, visibleBaseUrl, absolute).toString());
     }
 
+    @Override
+    public Writer filter(DriverRequest originalRequest, Writer out) {
+        return new BufferedFilterWriter(out) {
+            @Override
+            protected int process(CharSequence input, boolean endOfInput) throws IOException {
+                return urlRewriter.rewriteHtml(input, getOut(), endOfInput, requestUrl, baseUrl, visibleBaseUrl,
+                        absolute);
+            }
+        };
+    }
+
 }
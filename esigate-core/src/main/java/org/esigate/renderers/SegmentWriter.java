@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.esigate.Parameters;
+
+/**
+ * A Writer keeping the result as a list of segments instead of a single String.
+ * <p>
+ * Large slices of the source page or of a String are kept as references to the original characters, so unchanged parts
+ * of a page are never copied. Other characters are copied to a buffer. The segments are meant to be encoded one after
+ * the other when the response is sent, see {@link org.esigate.http.SegmentedEntity}.
+ */
+public final class SegmentWriter extends Writer {
+    /**
+     * Slices shorter than this are copied, which is cheaper than creating a new segment.
+     */
+    private static final int MIN_SHARED_LENGTH = Parameters.SMALL_BUFFER_SIZE;
+
+    private final CharSequence source;
+    private final int sizeHint;
+    private final List<CharSequence> segments = new ArrayList<>();
+    private StringBuilder firstTail;
+    private StringBuilder tail;
+    private int length;
+
+    /**
+     * @param source
+     *            a CharSequence that will not be modified any more, slices of it are shared like slices of Strings
+     */
+    public SegmentWriter(CharSequence source) {
+        this(source, 0);
+    }
+
+    /**
+     * @param source
+     *            a CharSequence that will not be modified any more, slices of it are shared like slices of Strings
+     * @param sizeHint
+     *            the expected number of characters copied to the first buffer, see {@link #firstBufferLength()}, or 0
+     *            if unknown
+     */
+    public SegmentWriter(CharSequence source, int sizeHint) {
+        this.source = source;
+        this.sizeHint = sizeHint;
+    }
+
+    private StringBuilder tail(int minCapacity) {
+        if (tail == null) {
+            int capacity = Math.max(minCapacity, Parameters.DEFAULT_BUFFER_SIZE);
+            if (firstTail == null) {
+                tail = new StringBuilder(Math.max(capacity, sizeHint));
+                firstTail = tail;
+            } else {
+                tail = new StringBuilder(capacity);
+            }
+            segments.add(tail);
+        }
+        return tail;
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) {
+        if (csq == null) {
+            return append("null", start, end);
+        }
+        int len = end - start;
+        if (len >= MIN_SHARED_LENGTH && (csq == source || csq instanceof String)) {
+            segments.add(CharBuffer.wrap(csq, start, end));
+            tail = null;
+        } else {
+            tail(len).append(csq, start, end);
+        }
+        length += len;
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq) {
+        if (csq == null) {
+            return append("null");
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public Writer append(char c) {
+        tail(1).append(c);
+        length++;
+        return this;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        tail(len).append(cbuf, off, len);
+        length += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        append(str, off, off + len);
+    }
+
+    @Override
+    public void write(int c) {
+        append((char) c);
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do
+    }
+
+    /**
+     * @return the number of characters written
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * The characters which are not shared are copied to buffers, the first one usually receives most of them. Its
+     * length can be used as a size hint for the next renderings of the same page.
+     * 
+     * @return the number of characters copied to the first buffer
+     */
+    public int firstBufferLength() {
+        return firstTail == null ? 0 : firstTail.length();
+    }
+
+    /**
+     * @return the segments, in order
+     */
+    public List<CharSequence> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(length);
+        for (CharSequence segment : segments) {
+            result.append(segment);
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.esigate.Driver;
+import org.esigate.api.BaseUrlRetrieveStrategy;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.FetchEvent;
+import org.esigate.events.impl.FragmentEvent;
+import org.esigate.extension.Extension;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.http.OutgoingRequestContext;
+
+/**
+ * Base class for load balancing strategies which need to know the number of requests in flight for each backend.
+ * <p>
+ * Counters are updated from {@link EventManager#EVENT_FETCH_PRE} and {@link EventManager#EVENT_FETCH_POST} events, so
+ * only requests actually sent to the backend (not served from cache) are taken into account. A request stopped by
+ * another extension is not counted, and a request whose {@link EventManager#EVENT_FETCH_POST} was not fired is no
+ * longer counted once its {@link EventManager#EVENT_FRAGMENT_POST} is fired.
+ */
+public abstract class AbstractLoadAwareBaseUrlRetrieveStrategy implements BaseUrlRetrieveStrategy, Extension,
+        IEventListener {
+    private static final String START_TIME = "LoadAwareBaseUrlRetrieveStrategy.startTime";
+    private static final String BASE_URL_INDEX = "LoadAwareBaseUrlRetrieveStrategy.baseUrlIndex";
+
+    protected final String[] urls;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final AtomicInteger[] inFlight;
+    private final AtomicInteger totalInFlight = new AtomicInteger(0);
+
+    protected AbstractLoadAwareBaseUrlRetrieveStrategy(String[] urls) {
+        this.urls = urls;
+        this.inFlight = new AtomicInteger[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            this.indexes.put(urls[i], i);
+            this.inFlight[i] = new AtomicInteger(0);
+        }
+    }
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        driver.getEventManager().register(EventManager.EVENT_FETCH_PRE, this);
+        driver.getEventManager().register(EventManager.EVENT_FETCH_POST, this);
+        driver.getEventManager().register(EventManager.EVENT_FRAGMENT_POST, this);
+    }
+
+    @Override
+    public boolean event(EventDefinition id, Event event) {
+        if (EventManager.EVENT_FRAGMENT_POST.equals(id)) {
+            // The fetch was interrupted before FETCH_POST
+            OutgoingRequestContext context = ((FragmentEvent) event).getHttpContext();
+            context.removeAttribute(START_TIME);
+            Integer index = (Integer) context.removeAttribute(BASE_URL_INDEX);
+            if (index != null) {
+                fetchAborted(index);
+            }
+            return true;
+        }
+        FetchEvent e = (FetchEvent) event;
+        if (EventManager.EVENT_FETCH_PRE.equals(id)) {
+            OutgoingRequest outgoingRequest = e.getHttpContext().getOutgoingRequest();
+            // If an extension has stopped the request, FETCH_POST will not be fired
+            if (!e.isExit() && outgoingRequest != null && !outgoingRequest.getOriginalRequest().isExternal()) {
+                Integer index = this.indexes.get(outgoingRequest.getBaseUrl().toString());
+                if (index != null) {
+                    fetchStarted(index);
+                    e.getHttpContext().setAttribute(BASE_URL_INDEX, index);
+                    e.getHttpContext().setAttribute(START_TIME, System.currentTimeMillis());
+                }
+            }
+        } else {
+            Integer index = (Integer) e.getHttpContext().removeAttribute(BASE_URL_INDEX);
+            Long startTime = (Long) e.getHttpContext().removeAttribute(START_TIME);
+            if (index != null && startTime != null) {
+                fetchCompleted(index, System.currentTimeMillis() - startTime);
+            }
+        }
+        // Continue processing
+        return true;
+    }
+
+    void fetchStarted(int index) {
+        this.inFlight[index].incrementAndGet();
+        this.totalInFlight.incrementAndGet();
+    }
+
+    void fetchCompleted(int index, long time) {
+        fetchAborted(index);
+    }
+
+    void fetchAborted(int index) {
+        this.inFlight[index].decrementAndGet();
+        this.totalInFlight.decrementAndGet();
+    }
+
+    protected int getInFlight(int index) {
+        return this.inFlight[index].get();
+    }
+
+    protected int getTotalInFlight() {
+        return this.totalInFlight.get();
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.esigate.http.IncomingRequest;
+
+/**
+ * Load balancing strategy which always sends the same URI to the same backend as long as it is not overloaded, in order
+ * to maximize the efficiency of the caches on the backends.
+ * <p>
+ * Backends are placed on a consistent hash ring with {@link #VIRTUAL_NODES} virtual nodes each, so adding or removing a
+ * backend only remaps a small fraction of the URIs. In order to avoid overloading a backend with popular URIs, a
+ * backend is skipped if its number of requests in flight is more than {@link #LOAD_FACTOR} times the average ("bounded
+ * loads").
+ * <p>
+ * The hash is computed on the URI requested to the backend, so a given fragment is always retrieved from the same
+ * backend whatever the page including it. When this URI is not known, the URI of the request received by esigate is
+ * used.
+ */
+public class ConsistentHashBaseUrlRetrieveStrategy extends AbstractLoadAwareBaseUrlRetrieveStrategy {
+    static final int VIRTUAL_NODES = 160;
+    static final double LOAD_FACTOR = 1.25;
+
+    private final int[] ring;
+    private final int[] owners;
+
+    public ConsistentHashBaseUrlRetrieveStrategy(String[] urls) {
+        super(urls);
+        long[] nodes = new long[urls.length * VIRTUAL_NODES];
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        int count = 0;
+        for (int i = 0; i < urls.length; i++) {
+            // Each digest provides 4 positions on the ring
+            for (int j = 0; j < VIRTUAL_NODES / 4; j++) {
+                byte[] digest = md5.digest((urls[i] + "#" + j).getBytes(StandardCharsets.UTF_8));
+                for (int k = 0; k < 4; k++) {
+                    int position =
+                            (digest[4 * k] & 0xFF) << 24 | (digest[4 * k + 1] & 0xFF) << 16
+                                    | (digest[4 * k + 2] & 0xFF) << 8 | (digest[4 * k + 3] & 0xFF);
+                    // Sort on position, keep owner in the lowest bits
+                    nodes[count++] = (long) position << 32 | i;
+                }
+            }
+        }
+        Arrays.sort(nodes, 0, count);
+        this.ring = new int[count];
+        this.owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            this.ring[i] = (int) (nodes[i] >> 32);
+            this.owners[i] = (int) nodes[i];
+        }
+    }
+
+    @Override
+    public String getBaseURL(IncomingRequest originalRequest) {
+        return getBaseURLForUri(originalRequest.getRequestLine().getUri());
+    }
+
+    @Override
+    public String getBaseURL(IncomingRequest originalRequest, String relUrl) {
+        return getBaseURLForUri(relUrl);
+    }
+
+    private String getBaseURLForUri(String uri) {
+        int start = Arrays.binarySearch(this.ring, hash(uri));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int capacity = (int) Math.ceil(LOAD_FACTOR * (getTotalInFlight() + 1) / this.urls.length);
+        for (int i = 0; i < this.ring.length; i++) {
+            int owner = this.owners[(start + i) % this.ring.length];
+            if (getInFlight(owner) < capacity) {
+                return this.urls[owner];
+            }
+        }
+        // Load changed while looking for a backend
+        return this.urls[this.owners[start % this.ring.length]];
+    }
+
+    /**
+     * String.hashCode() is fast but similar strings have close hash codes, so it is mixed again to spread URIs all
+     * around the ring (MurmurHash3 finalizer).
+     */
+    static int hash(String uri) {
+        return mix(uri.hashCode());
+    }
+
+    /**
+     * Spreads the bits of a hash code, also used by {@link HealthCheckingBaseUrlRetrieveStrategy}.
+     */
+    static int mix(int hashCode) {
+        int h = hashCode;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
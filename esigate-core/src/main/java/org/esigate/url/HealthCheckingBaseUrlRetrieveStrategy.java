@@ -0,0 +1,413 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.DriverFactory;
+import org.esigate.Parameters;
+import org.esigate.api.BaseUrlRetrieveStrategy;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.FetchEvent;
+import org.esigate.extension.Extension;
+import org.esigate.http.IncomingRequest;
+import org.esigate.http.OutgoingRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorates any other {@link BaseUrlRetrieveStrategy} in order to avoid sending requests to unhealthy backends.
+ * <p>
+ * A backend is considered unhealthy :
+ * <ul>
+ * <li>if it fails at least healthCheckUnhealthyThreshold consecutive active checks (a GET request sent every
+ * healthCheckInterval ms on healthCheckPath). It becomes healthy again after healthCheckHealthyThreshold consecutive
+ * successful checks.</li>
+ * <li>if it returns at least outlierConsecutiveErrors consecutive 5xx responses (or network errors) to real requests.
+ * In this case, it is ejected for outlierEjectionTime ms.</li>
+ * </ul>
+ * When the decorated strategy returns an unhealthy backend, one of the healthy backends is used instead, so that the
+ * requests of the unhealthy backend are spread over all the others. For hash based strategies, the choice depends on
+ * the same key (the url requested for {@link ConsistentHashBaseUrlRetrieveStrategy}, the client address for
+ * {@link IpHashBaseUrlRetrieveStrategy} and {@link StickySessionBaseUrlRetrieveStrategy}), so that a given key keeps
+ * going to the same backend. If no backend is healthy, the decorated strategy's choice is kept.
+ * <p>
+ * Each backend is checked independently, with a HTTP client and a pool of one thread per backend reused by the checks
+ * of the driver: a slow backend does not delay the checks of the other backends nor of the other drivers. The checks
+ * stop when the strategy is closed, which {@link DriverFactory} does when the driver is replaced.
+ */
+public class HealthCheckingBaseUrlRetrieveStrategy implements BaseUrlRetrieveStrategy, Extension, IEventListener,
+        Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(HealthCheckingBaseUrlRetrieveStrategy.class);
+
+    /** Spreads the scores of the backends for a given key. */
+    private static final int SPREAD = 0x9e3779b9;
+
+    /**
+     * Schedules the checks of all drivers, but only submits them to the pool of their strategy.
+     */
+    private static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1,
+            new HealthCheckThreadFactory("esigate-health-check-scheduler"));
+    static {
+        // Do not keep the checks of a closed strategy until their next run
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final String[] urls;
+    private final BaseUrlRetrieveStrategy delegate;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final Member[] members;
+    private final String healthCheckPath;
+    private final int healthCheckInterval;
+    private final int healthyThreshold;
+    private final int unhealthyThreshold;
+    private final int outlierConsecutiveErrors;
+    private final int outlierEjectionTime;
+    private final RequestConfig requestConfig;
+    private final List<HealthCheckTask> tasks = new ArrayList<>();
+    private ExecutorService checks;
+    private CloseableHttpClient httpClient;
+    private volatile boolean closed;
+
+    private static final class Member {
+        private volatile boolean healthy = true;
+        private volatile long ejectedUntil;
+        private final AtomicInteger consecutiveErrors = new AtomicInteger(0);
+        // Only used by the checks of this backend, which never run concurrently
+        private int consecutiveCheckSuccesses;
+        private int consecutiveCheckFailures;
+    }
+
+    private static final class HealthCheckThreadFactory implements ThreadFactory {
+        private final String name;
+
+        private HealthCheckThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Checks a backend every healthCheckInterval ms after the end of the previous check, until the strategy is closed,
+     * or garbage collected if it is never closed.
+     */
+    private static final class HealthCheckTask implements Runnable {
+        private final WeakReference<HealthCheckingBaseUrlRetrieveStrategy> strategy;
+        private final CloseableHttpClient httpClient;
+        private final ExecutorService checks;
+        private final int index;
+        private final String url;
+        private final long interval;
+        private volatile Future<?> scheduled;
+        private final Runnable submit = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checks.execute(HealthCheckTask.this);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Health checks stopped for {}", url);
+                }
+            }
+        };
+
+        private HealthCheckTask(HealthCheckingBaseUrlRetrieveStrategy strategy, CloseableHttpClient httpClient,
+                ExecutorService checks, int index) {
+            this.strategy = new WeakReference<>(strategy);
+            this.httpClient = httpClient;
+            this.checks = checks;
+            this.index = index;
+            this.url = strategy.getHealthCheckUrl(strategy.urls[index]);
+            this.interval = strategy.healthCheckInterval;
+        }
+
+        private void schedule() {
+            scheduled = SCHEDULER.schedule(submit, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancel() {
+            Future<?> future = scheduled;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            HealthCheckingBaseUrlRetrieveStrategy s = strategy.get();
+            if (s == null) {
+                IOUtils.closeQuietly(httpClient);
+                checks.shutdown();
+                return;
+            }
+            if (s.closed) {
+                return;
+            }
+            boolean success;
+            try {
+                success = check(httpClient, url);
+            } catch (RuntimeException e) {
+                LOG.warn("Health check failed for " + url, e);
+                success = false;
+            }
+            s.reportCheck(index, success);
+            if (!s.closed) {
+                schedule();
+            }
+        }
+    }
+
+    public HealthCheckingBaseUrlRetrieveStrategy(String[] urls, BaseUrlRetrieveStrategy delegate, Properties props) {
+        this.urls = urls;
+        this.delegate = delegate;
+        this.members = new Member[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            this.indexes.put(urls[i], i);
+            this.members[i] = new Member();
+        }
+        this.healthCheckPath = Parameters.HEALTH_CHECK_PATH.getValue(props);
+        this.healthCheckInterval = Parameters.HEALTH_CHECK_INTERVAL.getValue(props);
+        this.healthyThreshold = Parameters.HEALTH_CHECK_HEALTHY_THRESHOLD.getValue(props);
+        this.unhealthyThreshold = Parameters.HEALTH_CHECK_UNHEALTHY_THRESHOLD.getValue(props);
+        this.outlierConsecutiveErrors = Parameters.OUTLIER_CONSECUTIVE_ERRORS.getValue(props);
+        this.outlierEjectionTime = Parameters.OUTLIER_EJECTION_TIME.getValue(props);
+        this.requestConfig =
+                RequestConfig.custom().setConnectTimeout(Parameters.CONNECT_TIMEOUT.getValue(props))
+                        .setSocketTimeout(Parameters.SOCKET_TIMEOUT.getValue(props)).setRedirectsEnabled(false).build();
+    }
+
+    /**
+     * Health checking is only useful if there are several backends and either active checks or outlier detection is
+     * configured.
+     * 
+     * @param props
+     *            driver configuration
+     * @return true if health checking is enabled
+     */
+    public static boolean isEnabled(Properties props) {
+        return Parameters.HEALTH_CHECK_PATH.getValue(props) != null
+                || Parameters.OUTLIER_CONSECUTIVE_ERRORS.getValue(props) > 0;
+    }
+
+    @Override
+    public void init(Driver driver, Properties properties) {
+        if (delegate instanceof Extension) {
+            ((Extension) delegate).init(driver, properties);
+        }
+        if (outlierConsecutiveErrors > 0) {
+            driver.getEventManager().register(EventManager.EVENT_FETCH_POST, this);
+        }
+        if (healthCheckPath != null) {
+            startChecks();
+            LOG.info("Health checks enabled for {} on {} every {} ms", driver, healthCheckPath, healthCheckInterval);
+        }
+    }
+
+    private synchronized void startChecks() {
+        if (closed || checks != null) {
+            return;
+        }
+        httpClient =
+                HttpClients.custom().setDefaultRequestConfig(requestConfig).disableAutomaticRetries()
+                        .disableCookieManagement().setMaxConnPerRoute(urls.length).setMaxConnTotal(urls.length).build();
+        // The checks of a backend never run concurrently, there is no need for more threads
+        checks =
+                new ThreadPoolExecutor(0, urls.length, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                        new HealthCheckThreadFactory("esigate-health-check"));
+        for (int i = 0; i < urls.length; i++) {
+            HealthCheckTask task = new HealthCheckTask(this, httpClient, checks, i);
+            tasks.add(task);
+            task.schedule();
+        }
+    }
+
+    /**
+     * Stops the active checks. The strategy still avoids the backends already found unhealthy but their state no longer
+     * changes.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (HealthCheckTask task : tasks) {
+            task.cancel();
+        }
+        tasks.clear();
+        if (checks != null) {
+            checks.shutdownNow();
+            IOUtils.closeQuietly(httpClient);
+        }
+    }
+
+    @Override
+    public String getBaseURL(IncomingRequest originalRequest) {
+        return getAvailableBaseURL(delegate.getBaseURL(originalRequest), originalRequest, null);
+    }
+
+    @Override
+    public String getBaseURL(IncomingRequest originalRequest, String relUrl) {
+        return getAvailableBaseURL(delegate.getBaseURL(originalRequest, relUrl), originalRequest, relUrl);
+    }
+
+    private String getAvailableBaseURL(String baseUrl, IncomingRequest originalRequest, String relUrl) {
+        Integer index = indexes.get(baseUrl);
+        if (index == null || isAvailable(index)) {
+            return baseUrl;
+        }
+        // Highest score among the available backends (rendezvous hashing)
+        String key = getAffinityKey(originalRequest, relUrl);
+        int seed = key == null ? ThreadLocalRandom.current().nextInt() : key.hashCode();
+        int selected = -1;
+        int selectedScore = 0;
+        for (int i = 0; i < urls.length; i++) {
+            if (isAvailable(i)) {
+                int score = ConsistentHashBaseUrlRetrieveStrategy.mix(seed + (i + 1) * SPREAD);
+                if (selected < 0 || score > selectedScore) {
+                    selected = i;
+                    selectedScore = score;
+                }
+            }
+        }
+        // No healthy backend, better try anyway than fail immediately
+        return selected < 0 ? baseUrl : urls[selected];
+    }
+
+    /**
+     * @return the key the decorated strategy depends on, null if it does not depend on the request
+     */
+    private String getAffinityKey(IncomingRequest originalRequest, String relUrl) {
+        if (delegate instanceof ConsistentHashBaseUrlRetrieveStrategy) {
+            return relUrl == null ? originalRequest.getRequestLine().getUri() : relUrl;
+        } else if (delegate instanceof IpHashBaseUrlRetrieveStrategy
+                || delegate instanceof StickySessionBaseUrlRetrieveStrategy) {
+            return String.valueOf(originalRequest.getRemoteAddr());
+        }
+        return null;
+    }
+
+    @Override
+    public boolean event(EventDefinition id, Event event) {
+        FetchEvent e = (FetchEvent) event;
+        OutgoingRequest outgoingRequest = e.getHttpContext().getOutgoingRequest();
+        // A request discarded by hedging was aborted on purpose, the backend did not fail
+        if (outgoingRequest != null && !outgoingRequest.getOriginalRequest().isExternal()
+                && e.getHttpResponse() != null && !e.getHttpContext().isDiscarded()) {
+            Integer index = indexes.get(outgoingRequest.getBaseUrl().toString());
+            if (index != null) {
+                if (e.getHttpResponse().getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    reportError(index);
+                } else {
+                    reportSuccess(index);
+                }
+            }
+        }
+        // Continue processing
+        return true;
+    }
+
+    boolean isAvailable(int index) {
+        Member member = members[index];
+        return member.healthy && member.ejectedUntil <= System.currentTimeMillis();
+    }
+
+    void reportSuccess(int index) {
+        members[index].consecutiveErrors.set(0);
+    }
+
+    void reportError(int index) {
+        Member member = members[index];
+        if (member.consecutiveErrors.incrementAndGet() >= outlierConsecutiveErrors) {
+            member.consecutiveErrors.set(0);
+            member.ejectedUntil = System.currentTimeMillis() + outlierEjectionTime;
+            LOG.warn("{} ejected for {} ms after {} consecutive errors", urls[index], outlierEjectionTime,
+                    outlierConsecutiveErrors);
+        }
+    }
+
+    void reportCheck(int index, boolean success) {
+        Member member = members[index];
+        if (success) {
+            member.consecutiveCheckFailures = 0;
+            member.consecutiveCheckSuccesses++;
+            if (!member.healthy && member.consecutiveCheckSuccesses >= healthyThreshold) {
+                member.healthy = true;
+                LOG.info("{} is healthy again", urls[index]);
+            }
+        } else {
+            member.consecutiveCheckSuccesses = 0;
+            member.consecutiveCheckFailures++;
+            if (member.healthy && member.consecutiveCheckFailures >= unhealthyThreshold) {
+                member.healthy = false;
+                LOG.warn("{} is unhealthy after {} failed checks", urls[index], unhealthyThreshold);
+            }
+        }
+    }
+
+    private static boolean check(CloseableHttpClient httpClient, String url) {
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(url))) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode() < HttpStatus.SC_BAD_REQUEST;
+        } catch (IOException e) {
+            LOG.debug("Health check failed for {}: {}", url, e.toString());
+            return false;
+        }
+    }
+
+    private String getHealthCheckUrl(String baseUrl) {
+        if (baseUrl.endsWith("/") && healthCheckPath.startsWith("/")) {
+            return baseUrl + healthCheckPath.substring(1);
+        }
+        if (!baseUrl.endsWith("/") && !healthCheckPath.startsWith("/")) {
+            return baseUrl + "/" + healthCheckPath;
+        }
+        return baseUrl + healthCheckPath;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.esigate.http.IncomingRequest;
+
+/**
+ * Load balancing strategy which sends requests to the least loaded backend.
+ * <p>
+ * Uses the "power of two choices" algorithm : two backends are picked at random and the one with the lowest cost is
+ * selected. The cost of a backend is its number of requests in flight multiplied by its average response time
+ * (exponentially weighted moving average). Until its first response, a backend is given the mean of the average
+ * response times of the other backends.
+ */
+public class LeastLoadBaseUrlRetrieveStrategy extends AbstractLoadAwareBaseUrlRetrieveStrategy {
+    /**
+     * Weight of the last response time in the moving average.
+     */
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final double[] averageTimes;
+
+    public LeastLoadBaseUrlRetrieveStrategy(String[] urls) {
+        super(urls);
+        this.averageTimes = new double[urls.length];
+    }
+
+    @Override
+    public String getBaseURL(IncomingRequest originalRequest) {
+        if (this.urls.length == 1) {
+            return this.urls[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(this.urls.length);
+        int second = random.nextInt(this.urls.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        if (getCost(second) < getCost(first)) {
+            return this.urls[second];
+        }
+        return this.urls[first];
+    }
+
+    @Override
+    void fetchCompleted(int index, long time) {
+        super.fetchCompleted(index, time);
+        synchronized (this.averageTimes) {
+            if (this.averageTimes[index] == 0) {
+                this.averageTimes[index] = time;
+            } else {
+                this.averageTimes[index] = EWMA_ALPHA * time + (1 - EWMA_ALPHA) * this.averageTimes[index];
+            }
+        }
+    }
+
+    double getCost(int index) {
+        double averageTime;
+        synchronized (this.averageTimes) {
+            averageTime = this.averageTimes[index];
+            if (averageTime == 0) {
+                // Not measured yet: assume it is as fast as the others, so that it is not preferred to a known
+                // backend with fewer requests in flight
+                averageTime = getMeanTime();
+            }
+        }
+        // Very fast backends only compete on the number of requests in flight
+        return (getInFlight(index) + 1) * Math.max(averageTime, 1);
+    }
+
+    private double getMeanTime() {
+        double total = 0;
+        int count = 0;
+        for (double averageTime : this.averageTimes) {
+            if (averageTime > 0) {
+                total += averageTime;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the recent sizes of the buffers used for each url, so that the next buffers can be allocated at the right
+ * size at once instead of growing by repeated doubling.
+ * <p>
+ * For each url, the sizes are counted in a histogram with 4 buckets per power of 2, so a prediction is at most 25%
+ * above the actual size. The counts are halved regularly and old sizes are progressively forgotten. The prediction is
+ * the smallest size big enough for 90% of the recent sizes.
+ */
+public class BufferSizeHints {
+    /**
+     * Sizes below 8 have their own bucket, then there are 4 buckets for each power of 2.
+     */
+    private static final int BUCKETS = 120;
+    private static final int PERCENTILE = 90;
+    /**
+     * The counts are halved when their total reaches this value.
+     */
+    private static final int DECAY_THRESHOLD = 32;
+
+    private final int maxUrls;
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Decaying histogram of the sizes for one url.
+     */
+    private static final class Histogram {
+        private final int[] counts = new int[BUCKETS];
+        private int total;
+
+        private synchronized void record(int size) {
+            counts[bucket(size)]++;
+            total++;
+            if (total >= DECAY_THRESHOLD) {
+                total = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] >>= 1;
+                    total += counts[i];
+                }
+            }
+        }
+
+        private synchronized int predict() {
+            int needed = (total * PERCENTILE + 99) / 100;
+            int cumulated = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulated += counts[i];
+                if (cumulated >= needed && cumulated > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @param maxUrls
+     *            the maximum number of urls remembered, 0 to disable the hints
+     */
+    public BufferSizeHints(int maxUrls) {
+        this.maxUrls = maxUrls;
+    }
+
+    static int bucket(int size) {
+        if (size < 8) {
+            return Math.max(size, 0);
+        }
+        int log2 = 31 - Integer.numberOfLeadingZeros(size);
+        return 4 * (log2 - 1) + ((size >> (log2 - 2)) & 3);
+    }
+
+    static int upperBound(int bucket) {
+        if (bucket < 8) {
+            return bucket;
+        }
+        int shift = bucket / 4 - 1;
+        long upperBound = ((long) (5 + bucket % 4) << shift) - 1;
+        return (int) Math.min(upperBound, Integer.MAX_VALUE);
+    }
+
+    private static String key(String url) {
+        int index = url.indexOf('?');
+        return index < 0 ? url : url.substring(0, index);
+    }
+
+    /**
+     * @param url
+     *            the url, the query string is ignored
+     * @return the predicted size, or 0 if nothing is known about this url
+     */
+    public int predict(String url) {
+        if (maxUrls <= 0) {
+            return 0;
+        }
+        Histogram histogram = histograms.get(key(url));
+        return histogram == null ? 0 : histogram.predict();
+    }
+
+    /**
+     * Records the size actually needed for an url.
+     * 
+     * @param url
+     *            the url, the query string is ignored
+     * @param size
+     *            the size
+     */
+    public void record(String url, int size) {
+        if (maxUrls <= 0) {
+            return;
+        }
+        String key = key(url);
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            // Cheaper than a LRU and good enough as the urls of a site are usually far less than the maximum
+            if (histograms.size() >= maxUrls) {
+                histograms.clear();
+            }
+            histogram = new Histogram();
+            Histogram previous = histograms.putIfAbsent(key, histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        histogram.record(size);
+    }
+
+}
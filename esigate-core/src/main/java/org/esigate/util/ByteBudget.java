@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A number of bytes shared by concurrent tasks, used to limit the memory held by the pages processed at the same time.
+ * <p>
+ * A task waits until enough bytes are available. A task bigger than the whole budget is allowed when no other task is
+ * running, otherwise it could never run.
+ */
+public class ByteBudget {
+    private final long maxBytes;
+    private long usedBytes;
+
+    /**
+     * Bytes reserved by a task, released when the reservation is closed.
+     */
+    public final class Reservation implements AutoCloseable {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Changes the number of bytes reserved, once the real size is known. This never waits.
+         * 
+         * @param newBytes
+         *            the new number of bytes
+         */
+        public void resize(long newBytes) {
+            add(newBytes - bytes);
+            bytes = newBytes;
+        }
+
+        @Override
+        public void close() {
+            add(-bytes);
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @param maxBytes
+     *            the maximum number of bytes reserved at the same time, 0 for no limit
+     */
+    public ByteBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserves bytes, waiting if necessary.
+     * 
+     * @param bytes
+     *            the number of bytes
+     * @param timeout
+     *            the maximum time to wait in milliseconds
+     * @return the reservation or null if the bytes were not available in time
+     * @throws InterruptedException
+     */
+    public Reservation reserve(long bytes, long timeout) throws InterruptedException {
+        if (maxBytes > 0) {
+            synchronized (this) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (usedBytes > 0 && usedBytes + bytes > maxBytes) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                usedBytes += bytes;
+            }
+        }
+        return new Reservation(bytes);
+    }
+
+    /**
+     * Reserves bytes without waiting, even if the budget is exceeded. This is intended for tasks which are part of a
+     * task already running.
+     * 
+     * @param bytes
+     *            the number of bytes
+     * @return the reservation
+     */
+    public Reservation forceReserve(long bytes) {
+        add(bytes);
+        return new Reservation(bytes);
+    }
+
+    private void add(long bytes) {
+        if (maxBytes > 0) {
+            synchronized (this) {
+                usedBytes += bytes;
+                if (bytes < 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes currently reserved
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producers and a single consumer.
+ * <p>
+ * Producers never wait: when the buffer is full the element is rejected. Only one thread at a time may call
+ * {@link #poll()}.
+ * 
+ * @param <E>
+ *            the type of the elements
+ */
+public class RingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    /** Next position to be written, incremented by the producers. */
+    private final AtomicLong tail = new AtomicLong();
+    /** Next position to be read, only written by the consumer. */
+    private volatile long head;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            the maximum number of elements, rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1;
+        if (size <= 0) {
+            size = 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element if there is room, without waiting.
+     * 
+     * @param element
+     *            the element, not null
+     * @return false if the buffer was full
+     */
+    public boolean offer(E element) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head > mask) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(position, position + 1));
+        // The slot was cleared by the consumer before it moved head
+        slots.lazySet((int) position & mask, element);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element. Must not be called by several threads at the same time.
+     * 
+     * @return the element or null if the buffer is empty
+     */
+    public E poll() {
+        long position = head;
+        int index = (int) position & mask;
+        // Null if the buffer is empty or if the producer has not written the element yet
+        E element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        slots.lazySet(index, null);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * @return the number of elements rejected since the last call
+     */
+    public long getAndResetRejected() {
+        return rejected.getAndSet(0);
+    }
+
+    /**
+     * @return the capacity of the buffer
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Access to the metrics registry shared by all the drivers and by esigate-server, which exposes it on its control port.
+ */
+public final class SharedMetrics {
+    /**
+     * Name of the registry in {@link SharedMetricRegistries}.
+     */
+    public static final String REGISTRY_NAME = "esigate";
+    /** The object which registered each gauge, a driver for instance. */
+    private static final Map<String, Object> OWNERS = new HashMap<>();
+
+    private SharedMetrics() {
+
+    }
+
+    /**
+     * @return the shared registry
+     */
+    public static MetricRegistry getRegistry() {
+        return SharedMetricRegistries.getOrCreate(REGISTRY_NAME);
+    }
+
+    /**
+     * Registers a gauge, replacing the previous one with the same name if any, for instance when the drivers are
+     * configured again.
+     * 
+     * @param owner
+     *            the object the gauge belongs to, its gauges are removed by {@link #removeGauges(Object)}
+     * @param name
+     *            the name of the gauge
+     * @param gauge
+     *            the gauge
+     */
+    public static synchronized void setGauge(Object owner, String name, Gauge<?> gauge) {
+        MetricRegistry registry = getRegistry();
+        registry.remove(name);
+        registry.register(name, gauge);
+        OWNERS.put(name, owner);
+    }
+
+    /**
+     * Removes the gauges of an object which is no longer used, for instance a driver which has been replaced. The
+     * gauges registered again since by another object are kept.
+     * 
+     * @param owner
+     *            the object given to {@link #setGauge(Object, String, Gauge)}
+     */
+    public static synchronized void removeGauges(Object owner) {
+        MetricRegistry registry = getRegistry();
+        for (Iterator<Entry<String, Object>> it = OWNERS.entrySet().iterator(); it.hasNext();) {
+            Entry<String, Object> entry = it.next();
+            if (entry.getValue() == owner) {
+                registry.remove(entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * A {@link Timer} which also keeps the total of the durations recorded.
+ * <p>
+ * The mean of the sample of a timer decays with time, so the total cannot be computed from it: this one only grows,
+ * like the count, as expected from the sum of a Prometheus summary. The durations recorded with
+ * {@link #time(java.util.concurrent.Callable)}, {@link #time(Runnable)} or {@link #timeSupplier} are not added to the
+ * total, use {@link #time()} or {@link #update(long, TimeUnit)}.
+ */
+public class SummingTimer extends Timer {
+    /**
+     * Creates the timers in {@link MetricRegistry#timer(String, MetricRegistry.MetricSupplier)}.
+     */
+    public static final MetricRegistry.MetricSupplier<Timer> SUPPLIER = new MetricRegistry.MetricSupplier<Timer>() {
+        @Override
+        public Timer newMetric() {
+            return new SummingTimer();
+        }
+    };
+
+    private final LongAdder sum = new LongAdder();
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        if (duration >= 0) {
+            sum.add(unit.toNanos(duration));
+        }
+        super.update(duration, unit);
+    }
+
+    /**
+     * @return the total of the durations recorded, in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+/**
+ * A bucket used to limit extra requests (retries, hedged requests...) to a ratio of the normal traffic.
+ * <p>
+ * Each normal request deposits a fraction of token and each extra request needs a whole token. The number of tokens is
+ * capped so that extra requests cannot burst after a long quiet period. The bucket is initially full.
+ */
+public class TokenBucket {
+    private final float ratio;
+    private final float maxTokens;
+    private float tokens;
+
+    /**
+     * @param ratio
+     *            number of tokens deposited by each request (0.05 means 1 extra request every 20 requests)
+     * @param maxTokens
+     *            maximum number of tokens that can be saved
+     */
+    public TokenBucket(float ratio, float maxTokens) {
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * Called for each normal request.
+     */
+    public synchronized void deposit() {
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    /**
+     * Takes a token if available.
+     * 
+     * @return true if the extra request is allowed
+     */
+    public synchronized boolean tryAcquire() {
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+}
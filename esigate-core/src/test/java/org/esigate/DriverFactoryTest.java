@@ -15,6 +15,7 @@
 
 package org.esigate;
 
+import java.util.Map;
 import java.util.Properties;
 
 import junit.framework.Assert;
@@ -24,8 +25,11 @@ import org.esigate.http.IncomingRequest;
 import org.esigate.impl.DriverRequest;
 import org.esigate.impl.UriMapping;
 import org.esigate.test.TestUtils;
+import org.esigate.util.SharedMetrics;
 import org.junit.Test;
 
+import com.codahale.metrics.Gauge;
+
 public class DriverFactoryTest extends TestCase {
 
     @Override
@@ -52,6 +56,28 @@ public class DriverFactoryTest extends TestCase {
         assertEquals("http://base.url", request.getBaseUrl().toString());
     }
 
+    public void testGaugesOfReplacedDriversRemoved() {
+        Properties p = new Properties();
+        p.setProperty("kept." + Parameters.REMOTE_URL_BASE, "http://test");
+        p.setProperty("removed." + Parameters.REMOTE_URL_BASE, "http://test");
+        DriverFactory.configure(p);
+        Map<String, Gauge> gauges = SharedMetrics.getRegistry().getGauges();
+        assertTrue(gauges.containsKey("ConnectionPool.kept.leased"));
+        assertTrue(gauges.containsKey("ConnectionPool.removed.leased"));
+
+        p.remove("removed." + Parameters.REMOTE_URL_BASE);
+        DriverFactory.configure(p);
+        gauges = SharedMetrics.getRegistry().getGauges();
+        assertTrue(gauges.containsKey("ConnectionPool.kept.leased"));
+        assertFalse(gauges.containsKey("ConnectionPool.removed.leased"));
+
+        // The gauges of the new driver are not removed with the one it replaces
+        Properties kept = new Properties();
+        kept.setProperty(Parameters.REMOTE_URL_BASE.getName(), "http://test");
+        DriverFactory.configure("kept", kept);
+        assertTrue(SharedMetrics.getRegistry().getGauges().containsKey("ConnectionPool.kept.leased"));
+    }
+
     public void testStripMappingPath() throws Exception {
         UriMapping mapping = UriMapping.create("/url/to/resource");
         String relUrl = DriverFactory.stripMappingPath("/mapping/path/test", mapping);
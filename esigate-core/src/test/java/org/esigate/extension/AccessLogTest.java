@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpRequest;
+import org.esigate.extension.AccessLog.Drainer;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+public class AccessLogTest extends TestCase {
+    private static final int NB_REQUESTS = 10000;
+    private static final HttpRequest REQUEST = new BasicHttpRequest("GET", "/fragment");
+
+    private static Logger createLogger(boolean infoEnabled) {
+        Logger logger = Mockito.mock(Logger.class);
+        Mockito.when(logger.isInfoEnabled()).thenReturn(infoEnabled);
+        Mockito.when(logger.isWarnEnabled()).thenReturn(true);
+        return logger;
+    }
+
+    private static HttpResponse createResponse(int statusCode) {
+        return TestUtils.createHttpResponse().status(statusCode).reason("reason").build();
+    }
+
+    public void testSampleRate() {
+        Logger logger = createLogger(true);
+        Drainer drainer = new Drainer(16);
+        AccessLog all = new AccessLog(logger, null, new Properties(), drainer);
+        AccessLog none =
+                new AccessLog(logger, null, new PropertiesBuilder().set(AccessLog.SAMPLE_RATE, 0f).build(), drainer);
+        AccessLog half =
+                new AccessLog(logger, null, new PropertiesBuilder().set(AccessLog.SAMPLE_RATE, 0.5f).build(), drainer);
+        int logged = 0;
+        for (int i = 0; i < NB_REQUESTS; i++) {
+            assertTrue(all.isLogged(200));
+            assertFalse(none.isLogged(200));
+            assertTrue("Errors are not sampled", none.isLogged(500));
+            if (half.isLogged(200)) {
+                logged++;
+            }
+        }
+        assertTrue("About half of the requests should be logged: " + logged, logged > NB_REQUESTS * 0.45
+                && logged < NB_REQUESTS * 0.55);
+        all.close();
+        none.close();
+        half.close();
+    }
+
+    public void testLevel() {
+        Logger logger = createLogger(false);
+        Drainer drainer = new Drainer(16);
+        AccessLog accessLog = new AccessLog(logger, "provider", new Properties(), drainer);
+        assertFalse("INFO is disabled", accessLog.isLogged(399));
+        assertTrue(accessLog.isLogged(400));
+
+        accessLog.log(null, REQUEST, createResponse(200), null, 1);
+        accessLog.log(null, REQUEST, createResponse(400), "HIT", 2);
+        Mockito.verify(logger, Mockito.timeout(1000)).info(
+                "provider=provider request=\"GET /fragment HTTP/1.1\" status=200 time=1");
+        Mockito.verify(logger, Mockito.timeout(1000)).warn(
+                "provider=provider request=\"GET /fragment HTTP/1.1\" status=400 cache=HIT time=2");
+        accessLog.close();
+    }
+
+    public void testDroppedEntries() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Logger logger = createLogger(true);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                writing.countDown();
+                release.await();
+                return null;
+            }
+        }).when(logger).info(Mockito.anyString());
+        Drainer drainer = new Drainer(4);
+        AccessLog accessLog = new AccessLog(logger, null, new Properties(), drainer);
+
+        accessLog.log(null, REQUEST, createResponse(200), null, 1);
+        assertTrue(writing.await(1, TimeUnit.SECONDS));
+        // The background thread is blocked, only 4 entries fit in the buffer
+        for (int i = 0; i < 10; i++) {
+            accessLog.log(null, REQUEST, createResponse(200), null, 1);
+        }
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (drainer.getDropped() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(6, drainer.getDropped());
+        Mockito.verify(logger, Mockito.timeout(1000).times(5)).info(Mockito.anyString());
+        accessLog.close();
+    }
+
+    public void testDrainerStopsWithLastAccessLog() throws InterruptedException {
+        Logger logger = createLogger(true);
+        Drainer drainer = new Drainer(16);
+        AccessLog first = new AccessLog(logger, null, new Properties(), drainer);
+        AccessLog second = new AccessLog(logger, null, new Properties(), drainer);
+        Thread thread = drainer.getThread();
+        assertTrue(thread.isDaemon());
+
+        first.close();
+        first.close();
+        thread.join(100);
+        assertTrue("Still used by the second access log", thread.isAlive());
+
+        second.close();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertNull(drainer.getThread());
+
+        AccessLog third = new AccessLog(logger, null, new Properties(), drainer);
+        assertNotNull("Started again", drainer.getThread());
+        third.close();
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.extension.CircuitBreaker.State;
+import org.esigate.http.DateUtils;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private CircuitBreaker createCircuitBreaker(Properties properties) {
+        Driver driver = TestUtils.createMockDriver(properties, TestUtils.createHttpResponse().build());
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.init(driver, properties);
+        return circuitBreaker;
+    }
+
+    public void testOpensOnErrorRate() {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/")
+                        .set(CircuitBreaker.WINDOW_SIZE, 4).set(CircuitBreaker.MINIMUM_REQUESTS, 4)
+                        .set(CircuitBreaker.ERROR_THRESHOLD, 50).build();
+        CircuitBreaker circuitBreaker = createCircuitBreaker(properties);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Boolean.FALSE, circuitBreaker.acquirePermission());
+            circuitBreaker.onResult(i != 1, false);
+        }
+        assertEquals("Not enough requests", State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.onResult(true, false);
+        assertEquals("25% errors", State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.onResult(false, false);
+        assertEquals("50% errors", State.OPEN, circuitBreaker.getState());
+        assertNull(circuitBreaker.acquirePermission());
+    }
+
+    public void testHalfOpen() throws InterruptedException {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/")
+                        .set(CircuitBreaker.WINDOW_SIZE, 1).set(CircuitBreaker.OPEN_DURATION, 10)
+                        .set(CircuitBreaker.HALF_OPEN_PROBES, 2).build();
+        CircuitBreaker circuitBreaker = createCircuitBreaker(properties);
+        circuitBreaker.onResult(false, false);
+        assertEquals(State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(20);
+        assertEquals(Boolean.TRUE, circuitBreaker.acquirePermission());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onResult(false, true);
+        assertEquals("Probe failed", State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(20);
+        assertEquals(Boolean.TRUE, circuitBreaker.acquirePermission());
+        assertEquals(Boolean.TRUE, circuitBreaker.acquirePermission());
+        assertNull("Only 2 probes", circuitBreaker.acquirePermission());
+        circuitBreaker.onResult(true, true);
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onResult(true, true);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(Boolean.FALSE, circuitBreaker.acquirePermission());
+    }
+
+    public void testProbeWithoutResultTimesOut() throws InterruptedException {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/")
+                        .set(CircuitBreaker.WINDOW_SIZE, 1).set(CircuitBreaker.OPEN_DURATION, 10)
+                        .set(CircuitBreaker.HALF_OPEN_PROBES, 1).build();
+        CircuitBreaker circuitBreaker = createCircuitBreaker(properties);
+        circuitBreaker.onResult(false, false);
+
+        Thread.sleep(20);
+        // The result of this probe is never received
+        assertEquals(Boolean.TRUE, circuitBreaker.acquirePermission());
+        assertNull(circuitBreaker.acquirePermission());
+
+        Thread.sleep(20);
+        assertEquals("The probe has timed out", Boolean.TRUE, circuitBreaker.acquirePermission());
+        circuitBreaker.onResult(true, true);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+
+    /**
+     * When the circuit is open, the provider must not be called anymore, stale responses from the cache are used if
+     * available.
+     * 
+     * @throws Exception
+     */
+    public void testShortCircuit() throws Exception {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/")
+                        .set(Parameters.EXTENSIONS, CircuitBreaker.class).set(CircuitBreaker.WINDOW_SIZE, 2)
+                        .set(CircuitBreaker.ERROR_THRESHOLD, 100).set(CircuitBreaker.OPEN_DURATION, 100000).build();
+        final AtomicInteger calls = new AtomicInteger(0);
+        Driver driver = TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                if (calls.incrementAndGet() == 1) {
+                    // Immediately stale
+                    return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                            .header("Date", DateUtils.formatDate(new Date()))
+                            .header("Cache-Control", "public, max-age=0").entity("cached").build();
+                }
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_INTERNAL_SERVER_ERROR)
+                        .reason("Internal Server Error").entity("error").build();
+            }
+        });
+
+        HttpResponse response = TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/page").build());
+        assertEquals("cached", EntityUtils.toString(response.getEntity()));
+        for (int i = 0; i < 2; i++) {
+            try {
+                TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/error" + i).build());
+                fail("Should throw an HttpErrorPage");
+            } catch (HttpErrorPage e) {
+                assertEquals(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getHttpResponse().getStatusLine().getStatusCode());
+            }
+        }
+        assertEquals(3, calls.get());
+
+        response = TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/page").build());
+        assertEquals("Stale response should be used", "cached", EntityUtils.toString(response.getEntity()));
+        try {
+            TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/other").build());
+            fail("Should throw an HttpErrorPage");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+        assertEquals("Provider should not be called", 3, calls.get());
+    }
+
+}
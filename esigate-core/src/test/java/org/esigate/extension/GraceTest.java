@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.http.IncomingRequest;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.IResponseHandler;
+
+public class GraceTest extends TestCase {
+
+    /**
+     * The page includes the fragment, each url is successful the first time only.
+     */
+    private Driver createDriver(Properties properties, final String cacheControl) {
+        return createDriver(properties, cacheControl, null);
+    }
+
+    /**
+     * The page includes the fragment, each url is successful the first time only, with the given Vary header.
+     */
+    private Driver createDriver(Properties properties, final String cacheControl, final String vary) {
+        final Set<String> requested = new HashSet<>();
+        return TestUtils.createMockDriver(properties, new IResponseHandler() {
+            @Override
+            public HttpResponse execute(HttpRequest request) throws IOException {
+                String uri = request.getRequestLine().getUri();
+                if (uri.endsWith("/page")) {
+                    return TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                            .header("Content-Type", "text/html")
+                            .entity("<esi:include src=\"http://localhost/fragment\"/>").build();
+                }
+                if (requested.add(uri)) {
+                    HttpResponse response =
+                            TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK")
+                                    .header("Cache-Control", cacheControl).entity("content").build();
+                    if (vary != null) {
+                        response.addHeader("Vary", vary);
+                    }
+                    return response;
+                }
+                return TestUtils.createHttpResponse().status(HttpStatus.SC_SERVICE_UNAVAILABLE)
+                        .reason("Service Unavailable").entity("error").build();
+            }
+        });
+    }
+
+    private Properties createProperties() {
+        return new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/")
+                .set(Parameters.EXTENSIONS, Grace.class.getName() + "," + Esi.class.getName())
+                .set(Parameters.USE_CACHE, false).build();
+    }
+
+    private HttpResponse render(Driver driver, IncomingRequest request) throws Exception {
+        return driver.render("/fragment", request);
+    }
+
+    private HttpResponse render(Driver driver) throws Exception {
+        return render(driver, TestUtils.createRequest("http://localhost/fragment").build());
+    }
+
+    private void assertError(Driver driver) throws Exception {
+        assertError(driver, TestUtils.createRequest("http://localhost/fragment").build());
+    }
+
+    private void assertError(Driver driver, IncomingRequest request) throws Exception {
+        try {
+            render(driver, request);
+            fail("Should throw an HttpErrorPage");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+    }
+
+    public void testLastSuccessfulResponseUsedOnError() throws Exception {
+        Driver driver = createDriver(createProperties(), "no-cache");
+
+        HttpResponse response = render(driver);
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+        assertNull(response.getFirstHeader("Warning"));
+
+        response = render(driver);
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+        assertTrue(response.getFirstHeader("Warning").getValue().startsWith("111"));
+    }
+
+    public void testWarningAddedToPage() throws Exception {
+        Driver driver = createDriver(createProperties(), "no-cache");
+
+        HttpResponse response = TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/page").build());
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+        assertNull(response.getFirstHeader("Warning"));
+
+        response = TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/page").build());
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+        assertTrue(response.getFirstHeader("Warning").getValue().startsWith("111"));
+    }
+
+    public void testProxiedPageNotKept() throws Exception {
+        Driver driver = createDriver(createProperties(), "no-cache");
+
+        TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/fragment").build());
+        try {
+            TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/fragment").build());
+            fail("Should throw an HttpErrorPage");
+        } catch (HttpErrorPage e) {
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getHttpResponse().getStatusLine().getStatusCode());
+        }
+    }
+
+    public void testPrivateResponseNotKept() throws Exception {
+        Driver driver = createDriver(createProperties(), "private");
+
+        render(driver);
+        assertError(driver);
+    }
+
+    public void testResponseToCookiesOnlyUsedWithTheSameCookies() throws Exception {
+        Driver driver = createDriver(createProperties(), "no-cache");
+        BasicClientCookie cookie = new BasicClientCookie("user", "1");
+        cookie.setDomain("localhost");
+        cookie.setPath("/");
+
+        render(driver, TestUtils.createRequest("http://localhost/fragment").addCookie(cookie).build());
+        assertError(driver);
+        BasicClientCookie otherCookie = new BasicClientCookie("user", "2");
+        otherCookie.setDomain("localhost");
+        otherCookie.setPath("/");
+        assertError(driver, TestUtils.createRequest("http://localhost/fragment").addCookie(otherCookie).build());
+        HttpResponse response =
+                render(driver, TestUtils.createRequest("http://localhost/fragment").addCookie(cookie).build());
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+        assertTrue(response.getFirstHeader("Warning").getValue().startsWith("111"));
+    }
+
+    public void testPublicResponseToCookiesUsedWithoutCookies() throws Exception {
+        Driver driver = createDriver(createProperties(), "public, no-cache");
+        BasicClientCookie cookie = new BasicClientCookie("user", "1");
+        cookie.setDomain("localhost");
+        cookie.setPath("/");
+
+        render(driver, TestUtils.createRequest("http://localhost/fragment").addCookie(cookie).build());
+        HttpResponse response = render(driver);
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+    }
+
+    public void testVaryAcceptEncodingIgnored() throws Exception {
+        Driver driver = createDriver(createProperties(), "no-cache", "Accept-Encoding");
+
+        render(driver, TestUtils.createRequest("http://localhost/fragment").addHeader("Accept-Encoding", "gzip")
+                .build());
+        HttpResponse response = render(driver);
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+        assertTrue(response.getFirstHeader("Warning").getValue().startsWith("111"));
+    }
+
+    public void testVaryingResponseOnlyUsedForTheSameVariant() throws Exception {
+        Driver driver = createDriver(createProperties(), "no-cache", "Accept-Language, Accept-Encoding");
+
+        render(driver, TestUtils.createRequest("http://localhost/fragment").addHeader("Accept-Language", "fr").build());
+        assertError(driver, TestUtils.createRequest("http://localhost/fragment").addHeader("Accept-Language", "en")
+                .build());
+        HttpResponse response =
+                render(driver, TestUtils.createRequest("http://localhost/fragment").addHeader("Accept-Language", "fr")
+                        .build());
+        assertEquals("content", EntityUtils.toString(response.getEntity()));
+    }
+
+    public void testVaryStarNotKept() throws Exception {
+        Driver driver = createDriver(createProperties(), "no-cache", "*");
+
+        render(driver);
+        assertError(driver);
+    }
+
+    public void testMaxAge() throws Exception {
+        Properties properties = createProperties();
+        properties.setProperty(Grace.MAX_AGE.getName(), "0");
+        Driver driver = createDriver(properties, "no-cache");
+
+        render(driver);
+        Thread.sleep(10);
+        assertError(driver);
+    }
+
+    public void testMaxSize() throws Exception {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/")
+                        .set(Parameters.USE_CACHE, false).set(Grace.MAX_SIZE, 10).build();
+        Driver driver =
+                TestUtils.createMockDriver(properties,
+                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK").entity("content").build());
+        Grace grace = new Grace();
+        grace.init(driver, properties);
+
+        driver.render("/page1", TestUtils.createRequest("http://localhost/page1").build());
+        assertEquals(7, grace.getSize());
+        driver.render("/page2", TestUtils.createRequest("http://localhost/page2").build());
+        assertEquals(7, grace.getSize());
+        assertNull(grace.get("http://localhost/page1"));
+        assertNotNull(grace.get("http://localhost/page2"));
+    }
+
+}
@@ -15,6 +15,9 @@
 package org.esigate.extension;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 
 import junit.framework.TestCase;
@@ -63,4 +66,33 @@ public class HtmlEncodingProcessorTest extends TestCase {
 
         assertEquals("Encoding should be added", s, EntityUtils.toString(response.getEntity()));
     }
+
+    private static Charset prescan(String document) throws UnsupportedEncodingException {
+        byte[] content = document.getBytes("ISO-8859-1");
+        return HtmlCharsetProcessor.prescan(content, Math.min(content.length, 1024));
+    }
+
+    public void testPrescan() throws Exception {
+        assertEquals(StandardCharsets.UTF_8, prescan("<html><head><meta charset=utf-8></head></html>"));
+        assertEquals(StandardCharsets.UTF_8, prescan("<html><HEAD><META CHARSET = 'UTF-8'/></head></html>"));
+        assertEquals(Charset.forName("windows-1252"), prescan("<meta http-equiv=\"Content-Type\" "
+                + "content=\"text/html; charset=windows-1252\">"));
+        assertEquals(StandardCharsets.UTF_8, prescan("\u00EF\u00BB\u00BF<html>"));
+        assertEquals(StandardCharsets.UTF_8, prescan("<meta charset=\"utf-16\">"));
+        assertNull(prescan("<meta http-equiv=\"refresh\" content=\"0; charset=utf-8\">"));
+        assertNull(prescan("<!-- <meta charset=\"utf-8\"> --><html>"));
+        assertNull(prescan("<html><body>charset=utf-8</body></html>"));
+        assertNull(prescan("<meta charset=\"unknown-charset\">"));
+        assertEquals(StandardCharsets.UTF_8,
+                prescan("<div title=\"<meta charset=iso-8859-1>\"></div><meta charset=\"utf-8\">"));
+    }
+
+    public void testPrescanIsBounded() throws Exception {
+        StringBuilder document = new StringBuilder("<html><head>");
+        for (int i = 0; i < 100; i++) {
+            document.append("<script>var a = 0;</script>");
+        }
+        document.append("<meta charset=\"utf-8\">");
+        assertNull(prescan(document.toString()));
+    }
 }
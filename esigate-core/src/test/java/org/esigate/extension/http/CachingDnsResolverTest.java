@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.extension.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.conn.DnsResolver;
+
+public class CachingDnsResolverTest extends TestCase {
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final AtomicInteger lookups = new AtomicInteger(0);
+
+    private final DnsResolver delegate = new DnsResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if ("unknown".equals(host)) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] {InetAddress.getByName("10.0.0.1"), InetAddress.getByName("10.0.0.2"),
+                    InetAddress.getByName("10.0.0.3")};
+        }
+    };
+
+    public void testLookupsAreCached() throws Exception {
+        CachingDnsResolver resolver = new CachingDnsResolver(delegate, 60000, 10000, SAME_THREAD);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(3, resolver.resolve("myhost").length);
+        }
+        assertEquals(1, lookups.get());
+    }
+
+    public void testAddressesAreRotated() throws Exception {
+        CachingDnsResolver resolver = new CachingDnsResolver(delegate, 60000, 10000, SAME_THREAD);
+        Set<String> firstAddresses = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            firstAddresses.add(resolver.resolve("myhost")[0].getHostAddress());
+        }
+        assertEquals(3, firstAddresses.size());
+    }
+
+    public void testFailedLookupsAreCached() throws Exception {
+        CachingDnsResolver resolver = new CachingDnsResolver(delegate, 60000, 10000, SAME_THREAD);
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown");
+                fail("Should throw an UnknownHostException");
+            } catch (UnknownHostException e) {
+                assertEquals("unknown", e.getMessage());
+            }
+        }
+        assertEquals(1, lookups.get());
+    }
+
+    public void testExpiredEntriesAreRefreshed() throws Exception {
+        CachingDnsResolver resolver = new CachingDnsResolver(delegate, 20, 10000, SAME_THREAD);
+        resolver.resolve("myhost");
+        Thread.sleep(16);
+        // Refreshed in "background"
+        resolver.resolve("myhost");
+        assertEquals(2, lookups.get());
+        Thread.sleep(30);
+        resolver.resolve("myhost");
+        assertEquals(3, lookups.get());
+    }
+
+    public void testFailedRefreshIsRetried() throws Exception {
+        final AtomicInteger refreshes = new AtomicInteger(0);
+        DnsResolver failingRefresh = new DnsResolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                if (refreshes.getAndIncrement() > 0) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] {InetAddress.getByName("10.0.0.1")};
+            }
+        };
+        CachingDnsResolver resolver = new CachingDnsResolver(failingRefresh, 400, 10000, SAME_THREAD);
+        resolver.resolve("myhost");
+        Thread.sleep(320);
+        // The refresh fails, the previous addresses are kept
+        assertEquals("10.0.0.1", resolver.resolve("myhost")[0].getHostAddress());
+        assertEquals(2, refreshes.get());
+        resolver.resolve("myhost");
+        assertEquals(3, refreshes.get());
+    }
+
+}
@@ -0,0 +1,189 @@
+package org.esigate.extension.http;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.protocol.HttpCoreContext;
+import org.esigate.Driver;
+import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
+import org.esigate.api.ContainerRequestContext;
+import org.esigate.events.EventManager;
+import org.esigate.events.impl.FetchEvent;
+import org.esigate.http.IncomingRequest;
+import org.esigate.http.OutgoingRequest;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.MockSession;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.util.SharedMetrics;
+
+public class RetryTest extends TestCase {
+    private Driver driver;
+    private Retry retry;
+
+    private void createRetry(PropertiesBuilder propertiesBuilder) {
+        Properties properties = propertiesBuilder.set(Retry.BASE_DELAY, 0).build();
+        driver = TestUtils.createMockDriver(properties, (HttpClientConnectionManager) null);
+        retry = new Retry();
+        retry.init(driver, properties);
+    }
+
+    private OutgoingRequest createRequest(String method) throws Exception {
+        IncomingRequest incomingRequest =
+                IncomingRequest.builder(new BasicRequestLine(method, "http://localhost/test", HttpVersion.HTTP_1_1))
+                        .setContext(new ContainerRequestContext() {
+                        }).addHeader("Host", "localhost").setSession(new MockSession()).build();
+        DriverRequest driverRequest = new DriverRequest(incomingRequest, driver, "/test");
+        return driver.getRequestExecutor().createOutgoingRequest(driverRequest, "http://localhost/test", true);
+    }
+
+    private HttpHost fetch(OutgoingRequest request, HttpRoute route) {
+        return fetchEvent(request, route).getHttpRoute().getTargetHost();
+    }
+
+    private FetchEvent fetchEvent(OutgoingRequest request, HttpRoute route) {
+        FetchEvent event = new FetchEvent(request.getContext(), HttpRequestWrapper.wrap(request), route);
+        retry.event(EventManager.EVENT_FETCH_PRE, event);
+        return event;
+    }
+
+    /**
+     * Fires the events of an attempt failing with a 502 through the driver, so that all its listeners are notified.
+     */
+    private void failedAttempt(OutgoingRequest request, HttpRoute route) {
+        FetchEvent event = new FetchEvent(request.getContext(), HttpRequestWrapper.wrap(request), route);
+        driver.getEventManager().fire(EventManager.EVENT_FETCH_PRE, event);
+        event.setHttpResponse(HttpErrorPage.generateHttpResponse(502, "Bad gateway"));
+        event.setExit(true);
+        driver.getEventManager().fire(EventManager.EVENT_FETCH_POST, event);
+    }
+
+    public void testExponentialBackoff() {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/").set(Retry.BASE_DELAY, 100)
+                        .set(Retry.MAX_DELAY, 300).build();
+        Driver driver = TestUtils.createMockDriver(properties, (HttpClientConnectionManager) null);
+        Retry retry = new Retry();
+        retry.init(driver, properties);
+
+        for (int i = 0; i < 100; i++) {
+            long delay = retry.getDelay(1);
+            assertTrue("First retry waits up to base delay: " + delay, delay >= 0 && delay <= 100);
+            delay = retry.getDelay(2);
+            assertTrue("Second retry waits up to twice the base delay: " + delay, delay >= 0 && delay <= 200);
+            delay = retry.getDelay(10);
+            assertTrue("Delay is capped: " + delay, delay >= 0 && delay <= 300);
+        }
+    }
+
+    public void testBudget() throws Exception {
+        createRetry(new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/")
+                .set(Retry.BUDGET, 0.5f));
+        OutgoingRequest request = createRequest("GET");
+        IOException exception = new ConnectException();
+        for (int i = 0; i < 10; i++) {
+            assertTrue("Budget is initially full", retry.retryRequest(exception, 1, request.getContext()));
+        }
+        assertFalse(retry.retryRequest(exception, 1, request.getContext()));
+        assertEquals(1, retry.getRetriesRejected());
+        fetch(request, new HttpRoute(new HttpHost("localhost", 80)));
+        fetch(createRequest("GET"), new HttpRoute(new HttpHost("localhost", 80)));
+        assertTrue("2 requests earn 1 retry", retry.retryRequest(exception, 1, request.getContext()));
+        assertFalse(retry.retryRequest(exception, 1, request.getContext()));
+        assertEquals(11, retry.getRetries());
+        assertEquals(11L, SharedMetrics.getRegistry().getGauges().get("Retry.tested.retries").getValue());
+        assertEquals(2L, SharedMetrics.getRegistry().getGauges().get("Retry.tested.retriesRejected").getValue());
+    }
+
+    public void testIdempotentMethods() throws Exception {
+        createRetry(new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/"));
+        OutgoingRequest get = createRequest("GET");
+        OutgoingRequest post = createRequest("POST");
+        assertTrue("Not sent", retry.retryRequest(new ConnectException(), 1, post.getContext()));
+        assertTrue(retry.retryRequest(new NoHttpResponseException("closed"), 1, get.getContext()));
+        assertFalse("POST may have been processed",
+                retry.retryRequest(new NoHttpResponseException("closed"), 1, post.getContext()));
+        assertFalse("Timeouts are not retried", retry.retryRequest(new SocketTimeoutException(), 1, get.getContext()));
+        assertFalse("Too many retries", retry.retryRequest(new ConnectException(), 4, get.getContext()));
+    }
+
+    public void testRetriesRotateOnAllHosts() throws Exception {
+        createRetry(new PropertiesBuilder()
+                .set(Parameters.REMOTE_URL_BASE, "http://host1/,http://host2/,http://host3/"));
+        OutgoingRequest request = createRequest("GET");
+        // The retry handler executes the request again with the same route
+        HttpRoute route = new HttpRoute(new HttpHost("host2", 80));
+        assertEquals("host2", fetch(request, route).getHostName());
+        assertEquals("host3", fetch(request, route).getHostName());
+        assertEquals("host1", fetch(request, route).getHostName());
+        assertEquals("All hosts tried, start again", "host2", fetch(request, route).getHostName());
+        assertEquals(4, retry.getAttempts());
+    }
+
+    public void testRetryUpdatesBaseUrlAndHost() throws Exception {
+        createRetry(new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE,
+                "http://host1/,http://host2:8080/app/,http://host3/").set(Parameters.PRESERVE_HOST, false));
+        OutgoingRequest request = createRequest("GET");
+        HttpRoute route = new HttpRoute(new HttpHost("host1", 80));
+        fetch(request, route);
+        FetchEvent event = fetchEvent(request, route);
+        assertEquals(new HttpHost("host2", 8080), event.getHttpRoute().getTargetHost());
+        assertEquals(new URL("http://host2:8080/app/"), request.getBaseUrl());
+        assertEquals(new HttpHost("host2", 8080), event.getHttpContext().getAttribute(HttpCoreContext.HTTP_TARGET_HOST));
+        assertEquals("host2:8080", event.getHttpRequest().getFirstHeader("Host").getValue());
+    }
+
+    public void testRetryKeepsPreservedHost() throws Exception {
+        createRetry(new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://host1/,http://host2/").set(
+                Parameters.PRESERVE_HOST, true));
+        OutgoingRequest request = createRequest("GET");
+        request.setHeader("Host", "localhost");
+        HttpRoute route = new HttpRoute(new HttpHost("host1", 80));
+        fetch(request, route);
+        FetchEvent event = fetchEvent(request, route);
+        assertEquals("host2", event.getHttpRoute().getTargetHost().getHostName());
+        assertEquals(new URL("http://host2/"), request.getBaseUrl());
+        assertEquals("localhost", event.getHttpRequest().getFirstHeader("Host").getValue());
+    }
+
+    public void testFailuresAttributedToTheHostTried() throws Exception {
+        String[] baseUrls = new String[] {"http://host1/", "http://host2/", "http://host3/"};
+        Properties properties =
+                new PropertiesBuilder()
+                        .set(Parameters.REMOTE_URL_BASE, baseUrls[0] + "," + baseUrls[1] + "," + baseUrls[2])
+                        .set(Parameters.EXTENSIONS, Retry.class.getName())
+                        .set(Parameters.OUTLIER_CONSECUTIVE_ERRORS, 1).set(Parameters.OUTLIER_EJECTION_TIME, 100000)
+                        .build();
+        driver = TestUtils.createMockDriver(properties, (HttpClientConnectionManager) null);
+        OutgoingRequest request = createRequest("GET");
+        String first = request.getBaseUrl().toString();
+        HttpRoute route = new HttpRoute(new HttpHost(request.getBaseUrl().getHost(), 80));
+        failedAttempt(request, route);
+        // The retry goes to the next server, which fails too
+        failedAttempt(request, route);
+        String second = request.getBaseUrl().toString();
+        assertFalse(first.equals(second));
+
+        // Both servers have been ejected, only the last one is left
+        IncomingRequest incomingRequest = TestUtils.createIncomingRequest().build();
+        for (int i = 0; i < baseUrls.length * 2; i++) {
+            String baseUrl = driver.getConfiguration().getBaseUrlRetrieveStrategy().getBaseURL(incomingRequest);
+            assertFalse(baseUrl.equals(first));
+            assertFalse("Failure charged to the server abandoned", baseUrl.equals(second));
+        }
+    }
+
+}
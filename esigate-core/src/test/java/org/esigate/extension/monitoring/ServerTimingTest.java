@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.extension.monitoring;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.extension.Esi;
+import org.esigate.http.IncomingRequest;
+import org.esigate.test.TestUtils;
+import org.esigate.test.conn.SequenceResponse;
+
+public class ServerTimingTest extends TestCase {
+
+    private HttpResponse proxy(String remoteAddr) throws Exception {
+        // Esi is not a filter renderer, the page is rendered before the headers are sent
+        return proxy(remoteAddr, ServerTiming.class.getName() + "," + Esi.class.getName());
+    }
+
+    private HttpResponse proxy(String remoteAddr, String extensions) throws Exception {
+        Properties properties = new Properties();
+        properties.put(Parameters.REMOTE_URL_BASE.getName(), "http://localhost/");
+        properties.put(Parameters.EXTENSIONS.getName(), extensions);
+        properties.put(ServerTiming.TRUSTED_CLIENTS.getName(), "127.0.0.1, 10.1.");
+
+        Driver driver =
+                TestUtils.createMockDriver(
+                        properties,
+                        new SequenceResponse().response(TestUtils.createHttpResponse().status(HttpStatus.SC_OK)
+                                .reason("Ok").header("Content-Type", "text/html").entity("test").build()));
+
+        IncomingRequest request =
+                TestUtils.createRequest("http://test.mydomain.fr/foobar/").setRemoteAddr(remoteAddr).build();
+        return TestUtils.driverProxy(driver, request);
+    }
+
+    public void testHeaderForTrustedClient() throws Exception {
+        HttpResponse response = proxy("10.1.2.3");
+        String header = response.getFirstHeader(ServerTiming.HEADER).getValue();
+        assertTrue(header, header.startsWith("total;dur="));
+        assertTrue(header, header.contains(", wait;dur="));
+        assertTrue(header, header.contains(", fetch-1;dur="));
+        assertTrue(header, header.contains(";desc=\"tested "));
+        assertTrue(header, header.contains("/foobar/ 200 CACHE_MISS\""));
+        assertTrue(header, header.contains(", render-1;dur="));
+    }
+
+    public void testNoRenderForStreamedPage() throws Exception {
+        HttpResponse response = proxy("10.1.2.3", ServerTiming.class.getName());
+        String header = response.getFirstHeader(ServerTiming.HEADER).getValue();
+        assertTrue(header, header.contains(", fetch-1;dur="));
+        // Rendered while it is sent, after the headers
+        assertFalse(header, header.contains("render"));
+    }
+
+    public void testNoHeaderForOtherClients() throws Exception {
+        HttpResponse response = proxy("10.2.2.3");
+        assertNull(response.getFirstHeader(ServerTiming.HEADER));
+    }
+
+    public void testWaitTimeOfParallelFetches() {
+        ServerTiming.Entry fetch1 = new ServerTiming.Entry("fetch", 0, 10, "a");
+        ServerTiming.Entry fetch2 = new ServerTiming.Entry("fetch", 5, 10, "b");
+        ServerTiming.Entry render = new ServerTiming.Entry("render", 15, 100, "c");
+        ServerTiming.Entry fetch3 = new ServerTiming.Entry("fetch", 20, 5, "d");
+        ServerTiming.Entry fetch4 = new ServerTiming.Entry("fetch", 21, 2, "e");
+        assertEquals(20, ServerTiming.getWaitTime(Arrays.asList(fetch1, fetch2, render, fetch3, fetch4)));
+    }
+
+    public void testDescriptionIsQuoted() {
+        String header =
+                ServerTiming.toHeader(1500000, 0,
+                        Arrays.asList(new ServerTiming.Entry("fetch", 0, 1000000, "a \"b\"\n")));
+        assertEquals("total;dur=1.5, wait;dur=0.0, fetch-1;dur=1.0;desc=\"a \\\"b\\\"?\"", header);
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.ReadEntityEvent;
+import org.esigate.test.TestUtils;
+
+public class HttpResponseUtilsTest extends TestCase {
+    private static final byte[] CONTENT = "0123456789".getBytes();
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        private int flushes;
+
+        @Override
+        public void flush() throws IOException {
+            flushes++;
+        }
+    }
+
+    public void testWriteToKnownLengthDoesNotFlush() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        HttpResponseUtils.writeTo(new ByteArrayEntity(CONTENT, ContentType.APPLICATION_OCTET_STREAM), out, 3);
+        assertEquals("0123456789", out.toString());
+        assertEquals(0, out.flushes);
+    }
+
+    public void testWriteToUnknownLengthFlushes() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        HttpResponseUtils.writeTo(new InputStreamEntity(new ByteArrayInputStream(CONTENT), -1), out, 3);
+        assertEquals("0123456789", out.toString());
+        assertEquals(4, out.flushes);
+    }
+
+    public void testWriteToEventStreamFlushes() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        HttpResponseUtils.writeTo(new ByteArrayEntity(CONTENT, ContentType.create("text/event-stream")), out, 5);
+        assertEquals("0123456789", out.toString());
+        assertEquals(2, out.flushes);
+    }
+
+    public void testWriteToDoesNotReadMoreThanContentLength() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        HttpResponseUtils.writeTo(new InputStreamEntity(new ByteArrayInputStream(CONTENT), 4), out, 3);
+        assertEquals("0123", out.toString());
+    }
+
+    private static HttpResponse createResponse(byte[] content, ContentType contentType, boolean knownLength) {
+        return TestUtils
+                .createHttpResponse()
+                .status(HttpStatus.SC_OK)
+                .reason("OK")
+                .entity(knownLength ? new ByteArrayEntity(content, contentType) : new InputStreamEntity(
+                        new ByteArrayInputStream(content), -1, contentType)).build();
+    }
+
+    public void testToStringDecodesWhileReading() throws Exception {
+        String content = "testéèà€";
+        for (String charset : new String[] {"UTF-8", "ISO-8859-1", "UTF-16"}) {
+            ContentType contentType = ContentType.create("text/html", charset);
+            byte[] bytes = content.getBytes(charset);
+            assertEquals(new String(bytes, charset),
+                    HttpResponseUtils.toString(createResponse(bytes, contentType, true), new EventManager("test")));
+            assertEquals(new String(bytes, charset),
+                    HttpResponseUtils.toString(createResponse(bytes, contentType, false), null));
+        }
+    }
+
+    public void testRawContentAvailableToReadEntityListeners() throws Exception {
+        final byte[][] rawContent = new byte[1][];
+        EventManager eventManager = new EventManager("test");
+        eventManager.register(EventManager.EVENT_READ_ENTITY, new IEventListener() {
+            @Override
+            public boolean event(EventDefinition id, Event event) {
+                rawContent[0] = ((ReadEntityEvent) event).getRawEntityContent();
+                return true;
+            }
+        });
+        byte[] bytes = new byte[1000];
+        new Random(0).nextBytes(bytes);
+        for (String charset : new String[] {"UTF-8", "ISO-8859-1"}) {
+            rawContent[0] = null;
+            HttpResponseUtils.toString(createResponse(bytes, ContentType.create("text/html", charset), true),
+                    eventManager);
+            assertTrue(charset, Arrays.equals(bytes, rawContent[0]));
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.protocol.HttpContext;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.impl.DriverRequest;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+import org.esigate.test.http.HttpResponseBuilder;
+import org.esigate.util.UriUtils;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class RequestHedgingTest extends TestCase {
+
+    private static Properties createProperties() {
+        return new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/,http://127.0.0.1/")
+                .set(Parameters.HEDGING, true).set(Parameters.HEDGING_PERCENTILE, 90)
+                .set(Parameters.HEDGING_MIN_DELAY, 5).set(Parameters.HEDGING_BUDGET, 0.25f).build();
+    }
+
+    private static OutgoingRequest createRequest(Properties properties) throws Exception {
+        Driver driver = Driver.builder().setName("test").setProperties(properties).build();
+        DriverRequest driverRequest = TestUtils.createDriverRequest("http://localhost/page", driver);
+        OutgoingRequestContext context = new OutgoingRequestContext();
+        OutgoingRequest request =
+                new OutgoingRequest("GET", "http://localhost/fragment", HttpVersion.HTTP_1_1, driverRequest, null,
+                        context);
+        context.setPhysicalHost(UriUtils.extractHost("http://localhost/"));
+        context.setOutgoingRequest(request);
+        return request;
+    }
+
+    /**
+     * A backend where localhost responds after the given time or when the request is aborted and 127.0.0.1 responds
+     * immediately.
+     */
+    private static final class Backend implements Answer<HttpResponse> {
+        private final long localhostTime;
+        private final CacheResponseStatus cacheResponseStatus;
+        private volatile Thread localhostThread;
+        private volatile Object hedgeAttribute;
+        private volatile URL hedgeBaseUrl;
+        private volatile boolean abortedDiscarded;
+
+        private Backend(long localhostTime, CacheResponseStatus cacheResponseStatus) {
+            this.localhostTime = localhostTime;
+            this.cacheResponseStatus = cacheResponseStatus;
+        }
+
+        @Override
+        public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+            HttpHost host = invocation.getArgument(0);
+            OutgoingRequest request = invocation.getArgument(1);
+            HttpContext context = invocation.getArgument(2);
+            context.setAttribute(HttpCacheContext.CACHE_RESPONSE_STATUS, cacheResponseStatus);
+            if ("localhost".equals(host.getHostName())) {
+                localhostThread = Thread.currentThread();
+                long end = System.currentTimeMillis() + localhostTime;
+                while (System.currentTimeMillis() < end) {
+                    if (request.isAborted()) {
+                        // As seen by the extensions listening to the fetch events
+                        abortedDiscarded = request.getContext().isDiscarded();
+                        throw new IOException("Aborted");
+                    }
+                    Thread.sleep(5);
+                }
+                return new HttpResponseBuilder().status(200).header("X-Host", "localhost").build();
+            }
+            hedgeAttribute = context.getAttribute("attribute");
+            hedgeBaseUrl = request.getBaseUrl();
+            return new HttpResponseBuilder().status(200).header("X-Host", "127.0.0.1").build();
+        }
+    }
+
+    private static HttpClient createHttpClient(Backend backend) throws IOException {
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(
+                httpClient.execute(Mockito.any(HttpHost.class), Mockito.any(HttpRequest.class),
+                        Mockito.any(HttpContext.class))).thenAnswer(backend);
+        return httpClient;
+    }
+
+    public void testIsEnabled() {
+        assertTrue(RequestHedging.isEnabled(createProperties()));
+        assertFalse(RequestHedging.isEnabled(new PropertiesBuilder()
+                .set(Parameters.REMOTE_URL_BASE, "http://localhost/").set(Parameters.HEDGING, true).build()));
+        assertFalse(RequestHedging.isEnabled(new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE,
+                "http://localhost/,http://127.0.0.1/").build()));
+    }
+
+    public void testDelayIsPercentileOfResponseTimes() {
+        RequestHedging requestHedging = new RequestHedging(createProperties());
+        assertEquals("Socket timeout until enough samples", 10000, requestHedging.getDelay());
+        for (int i = 0; i < 64; i++) {
+            requestHedging.addSample(i < 57 ? 20 : 200);
+        }
+        assertEquals(200, requestHedging.getDelay());
+        for (int i = 0; i < 256; i++) {
+            requestHedging.addSample(1);
+        }
+        assertEquals("Minimum delay", 5, requestHedging.getDelay());
+    }
+
+    public void testBudget() {
+        RequestHedging requestHedging = new RequestHedging(createProperties());
+        for (int i = 0; i < 10; i++) {
+            assertTrue("Budget is initially full", requestHedging.acquireToken());
+        }
+        assertFalse(requestHedging.acquireToken());
+        for (int i = 0; i < 4; i++) {
+            requestHedging.addSample(10);
+        }
+        assertTrue(requestHedging.acquireToken());
+        assertFalse(requestHedging.acquireToken());
+        for (int i = 0; i < 1000; i++) {
+            requestHedging.addSample(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(requestHedging.acquireToken());
+        }
+        assertFalse("Budget is capped", requestHedging.acquireToken());
+    }
+
+    public void testRequestIsSentByCallingThread() throws Exception {
+        Properties properties = createProperties();
+        RequestHedging requestHedging = new RequestHedging(properties);
+        Backend backend = new Backend(0, CacheResponseStatus.CACHE_MISS);
+        HttpResponse response = requestHedging.execute(createHttpClient(backend), createRequest(properties));
+        assertEquals("localhost", response.getFirstHeader("X-Host").getValue());
+        assertSame(Thread.currentThread(), backend.localhostThread);
+    }
+
+    public void testSlowRequestIsHedged() throws Exception {
+        Properties properties = createProperties();
+        RequestHedging requestHedging = new RequestHedging(properties);
+        for (int i = 0; i < 64; i++) {
+            requestHedging.addSample(10);
+        }
+        Backend backend = new Backend(5000, CacheResponseStatus.CACHE_MISS);
+        OutgoingRequest request = createRequest(properties);
+        request.getContext().setAttribute("attribute", "value");
+        HttpResponse response = requestHedging.execute(createHttpClient(backend), request);
+        assertEquals("127.0.0.1", response.getFirstHeader("X-Host").getValue());
+        assertTrue("The first request should be aborted", request.isAborted());
+        assertEquals("The context attributes should be copied", "value", backend.hedgeAttribute);
+        assertEquals(new URL("http://127.0.0.1/"), backend.hedgeBaseUrl);
+        assertTrue("The failure of the first request should be ignored", backend.abortedDiscarded);
+        assertFalse("The context now holds the response used", request.getContext().isDiscarded());
+    }
+
+    public void testCacheHitsAreIgnored() throws Exception {
+        Properties properties = createProperties();
+        RequestHedging requestHedging = new RequestHedging(properties);
+        HttpClient httpClient = createHttpClient(new Backend(0, CacheResponseStatus.CACHE_HIT));
+        for (int i = 0; i < 64; i++) {
+            requestHedging.execute(httpClient, createRequest(properties));
+        }
+        assertEquals("Cache hits should not be sampled", 10000, requestHedging.getDelay());
+        httpClient = createHttpClient(new Backend(0, CacheResponseStatus.CACHE_MISS));
+        for (int i = 0; i < 64; i++) {
+            requestHedging.execute(httpClient, createRequest(properties));
+        }
+        assertEquals("Minimum delay", 5, requestHedging.getDelay());
+    }
+
+}
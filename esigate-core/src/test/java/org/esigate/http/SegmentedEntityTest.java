@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.esigate.util.ByteBudget;
+
+public class SegmentedEntityTest extends TestCase {
+    private static final char[] CHARACTERS = {'a', '<', 'é', '€', '\uD83D', '\uDE00'};
+
+    private static void assertSameAsStringEntity(List<CharSequence> segments, ContentType contentType) throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (CharSequence segment : segments) {
+            content.append(segment);
+        }
+        byte[] expected = EntityUtils.toByteArray(new StringEntity(content.toString(), contentType));
+        SegmentedEntity entity = new SegmentedEntity(segments, contentType);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+        assertTrue(Arrays.equals(expected, EntityUtils.toByteArray(entity)));
+        assertEquals(expected.length, entity.getContentLength());
+        assertEquals(contentType.toString(), entity.getContentType().getValue());
+    }
+
+    public void testSurrogatePairSplitBetweenSegments() throws Exception {
+        List<CharSequence> segments = Arrays.<CharSequence>asList("a\uD83D", "\uDE00b", "\uD83D", "", "c\uDE00");
+        assertSameAsStringEntity(segments, ContentType.create("text/html", "UTF-8"));
+        assertSameAsStringEntity(segments, ContentType.create("text/html", "ISO-8859-1"));
+    }
+
+    public void testSameContentAsStringEntity() throws Exception {
+        Random random = new Random(0);
+        for (String charset : new String[] {"UTF-8", "ISO-8859-1", "windows-1252"}) {
+            for (int i = 0; i < 100; i++) {
+                List<CharSequence> segments = new ArrayList<>();
+                for (int j = random.nextInt(5); j > 0; j--) {
+                    StringBuilder segment = new StringBuilder();
+                    for (int k = random.nextInt(i % 10 == 0 ? 20000 : 10); k > 0; k--) {
+                        segment.append(CHARACTERS[random.nextInt(CHARACTERS.length)]);
+                    }
+                    segments.add(random.nextBoolean() ? segment : CharBuffer.wrap(segment.toString()));
+                }
+                assertSameAsStringEntity(segments, ContentType.create("text/html", charset));
+            }
+        }
+    }
+
+    public void testUnknownLengthForMultiByteCharsets() throws Exception {
+        SegmentedEntity entity =
+                new SegmentedEntity(Arrays.<CharSequence>asList("test"), ContentType.create("text/html", "UTF-16"));
+        assertEquals(-1, entity.getContentLength());
+        assertEquals("test", EntityUtils.toString(entity));
+    }
+
+    public void testReservationReleasedOnceWritten() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        SegmentedEntity entity =
+                new SegmentedEntity(Arrays.<CharSequence>asList("test"), ContentType.TEXT_HTML, budget.reserve(8, 0));
+        assertEquals("Held until the page is sent", 8, budget.getUsedBytes());
+        entity.writeTo(new ByteArrayOutputStream());
+        assertEquals(0, budget.getUsedBytes());
+        entity.close();
+        assertEquals("Released only once", 0, budget.getUsedBytes());
+        assertEquals("test", EntityUtils.toString(entity));
+    }
+
+    public void testReservationReleasedOnceRead() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        SegmentedEntity entity =
+                new SegmentedEntity(Arrays.<CharSequence>asList("test"), ContentType.TEXT_HTML, budget.reserve(8, 0));
+        assertEquals("test", EntityUtils.toString(entity));
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    public void testReservationReleasedWhenResponseClosed() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new SegmentedEntity(Arrays.<CharSequence>asList("test"), ContentType.TEXT_HTML, budget
+                .reserve(8, 0)));
+        BasicCloseableHttpResponse.adapt(response).close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.esigate.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+public class SpillingOutputStreamTest extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("esigate-test").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.delete(directory.toPath());
+    }
+
+    private byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    public void testSmallContentStaysInMemory() throws Exception {
+        SpillingOutputStream out = new SpillingOutputStream(100, directory);
+        out.write(content(100));
+        assertFalse(out.isSpilled());
+        assertEquals(0, directory.list().length);
+        HttpEntity entity = out.toEntity(ContentType.TEXT_PLAIN);
+        assertEquals(100, entity.getContentLength());
+        assertEquals(new String(content(100), "ISO-8859-1"), EntityUtils.toString(entity));
+    }
+
+    public void testBigContentIsSpilled() throws Exception {
+        SpillingOutputStream out = new SpillingOutputStream(100, directory);
+        out.write(content(50));
+        out.write(content(60));
+        out.write('z');
+        assertTrue(out.isSpilled());
+        assertEquals(1, directory.list().length);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        out.writeTo(copy);
+        assertEquals(111, copy.size());
+        HttpEntity entity = out.toEntity(ContentType.TEXT_PLAIN);
+        assertEquals("The temporary file is deleted once mapped", 0, directory.list().length);
+        assertTrue(entity.isRepeatable());
+        assertEquals(111, entity.getContentLength());
+        String expected = new String(content(50), "ISO-8859-1") + new String(content(60), "ISO-8859-1") + "z";
+        assertEquals(expected, EntityUtils.toString(entity));
+        assertEquals(expected, EntityUtils.toString(entity));
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeTo(written);
+        assertEquals(expected, written.toString("ISO-8859-1"));
+    }
+
+    public void testReset() throws Exception {
+        SpillingOutputStream out = new SpillingOutputStream(100, directory);
+        out.write(content(200));
+        out.reset();
+        assertFalse(out.isSpilled());
+        assertEquals(0, directory.list().length);
+        out.write(content(10));
+        assertEquals(10, out.toEntity(null).getContentLength());
+    }
+
+    public void testNoThreshold() throws Exception {
+        SpillingOutputStream out = new SpillingOutputStream(0, directory);
+        out.write(content(10000));
+        assertFalse(out.isSpilled());
+        out.close();
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the linear scan of the mappings previously used by DriverFactory.selectProvider with {@link UriMappingIndex}
+ * .
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UriMappingIndexBenchmark {
+    private static final String[] EXTENSIONS = {".jsp", ".php", ".html", ".json"};
+    private static final int REQUESTS = 1024;
+
+    @Param({"10", "100", "1000"})
+    private int mappingCount;
+
+    private List<UriMapping> mappings;
+    private UriMappingIndex index;
+    private String[] hosts;
+    private String[] uris;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(0);
+        List<UriMapping> list = new ArrayList<>(mappingCount);
+        for (int i = 0; i < mappingCount; i++) {
+            String path = "/app" + i + "/";
+            switch (i % 4) {
+            case 0:
+                list.add(UriMapping.create(path + "*"));
+                break;
+            case 1:
+                list.add(UriMapping.create(path + "*" + EXTENSIONS[i % EXTENSIONS.length]));
+                break;
+            case 2:
+                list.add(UriMapping.create("http://host" + i + ".example.com" + path + "*"));
+                break;
+            default:
+                list.add(UriMapping.create(path + "sub" + i + "/*"));
+                break;
+            }
+        }
+        list.add(UriMapping.create("*"));
+        Collections.sort(list, new UriMappingComparator());
+        mappings = list;
+        index = new UriMappingIndex(list);
+        hosts = new String[REQUESTS];
+        uris = new String[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            int app = random.nextInt(mappingCount);
+            hosts[i] = "host" + app + ".example.com";
+            uris[i] = "/app" + app + "/sub" + app + "/page" + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+        }
+    }
+
+    @Benchmark
+    public UriMapping linearScan() {
+        int i = next++ & (REQUESTS - 1);
+        for (UriMapping mapping : mappings) {
+            if (mapping.matches("http", hosts[i], uris[i])) {
+                return mapping;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public UriMapping index() {
+        int i = next++ & (REQUESTS - 1);
+        return index.find("http", hosts[i], uris[i]);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class UriMappingIndexTest extends TestCase {
+    private static final String[] HOSTS = {null, "http://foo.com", "https://foo.com", "http://BAR.com:8080"};
+    private static final String[] PATHS = {null, "/", "/a", "/a/", "/ab", "/a/b/", "/b", "/b/c.jsp", "/abc/"};
+    private static final String[] EXTENSIONS = {null, ".jsp", ".php", ".gz", ".tar.gz", ".b/c"};
+
+    private static UriMapping linearFind(List<UriMapping> mappings, String scheme, String host, String uri) {
+        for (UriMapping mapping : mappings) {
+            if (mapping.matches(scheme, host, uri)) {
+                return mapping;
+            }
+        }
+        return null;
+    }
+
+    private static List<UriMapping> sort(List<UriMapping> mappings) {
+        List<UriMapping> result = new ArrayList<>(mappings);
+        Collections.sort(result, new UriMappingComparator());
+        return result;
+    }
+
+    public void testFind() {
+        List<UriMapping> mappings =
+                sort(Arrays.asList(UriMapping.create("*"), UriMapping.create("/test/*"), UriMapping.create("*.jsp"),
+                        UriMapping.create("/test/*.jsp"), UriMapping.create("http://foo.com/test/*")));
+        UriMappingIndex index = new UriMappingIndex(mappings);
+        assertEquals("/test/*.jsp", "/test/", index.find("http", "bar.com", "/test/a.jsp").getPath());
+        assertEquals(".jsp", index.find("http", "bar.com", "/test/a.jsp").getExtension());
+        assertEquals("http://foo.com", index.find("http", "FOO.com", "/test/a.jsp").getHost());
+        assertEquals(".jsp", index.find("http", "bar.com", "/other/a.jsp").getExtension());
+        assertNull(index.find("http", "bar.com", "/tes").getPath());
+    }
+
+    public void testNoMatch() {
+        UriMappingIndex index = new UriMappingIndex(Collections.singletonList(UriMapping.create("/test/*")));
+        assertNull(index.find("http", "bar.com", "/tes"));
+        assertNull(index.find("http", "bar.com", "/other/test/"));
+    }
+
+    public void testSameResultAsLinearScan() {
+        Random random = new Random(0);
+        List<UriMapping> mappings = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            StringBuilder mapping = new StringBuilder();
+            String host = HOSTS[random.nextInt(HOSTS.length)];
+            String path = PATHS[random.nextInt(PATHS.length)];
+            String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            if (host != null) {
+                mapping.append(host);
+            }
+            if (path != null) {
+                mapping.append(path);
+            }
+            if (extension != null || path == null || path.endsWith("/")) {
+                mapping.append('*');
+            }
+            if (extension != null) {
+                mapping.append(extension);
+            }
+            mappings.add(UriMapping.create(mapping.toString()));
+        }
+        mappings = sort(mappings);
+        UriMappingIndex index = new UriMappingIndex(mappings);
+        String[] hosts = {"foo.com", "bar.com:8080", "other.com"};
+        String[] uris =
+                {"/", "/a", "/a/", "/a/b/c.jsp", "/a/b/c", "/ab.php", "/abc/d.tar.gz", "/b/c.jsp", "/x.gz", "/b",
+                        "/a.b/c", ""};
+        for (String scheme : new String[] {"http", "https"}) {
+            for (String host : hosts) {
+                for (String uri : uris) {
+                    assertSame(scheme + "://" + host + uri, linearFind(mappings, scheme, host, uri),
+                            index.find(scheme, host, uri));
+                }
+            }
+        }
+    }
+
+}
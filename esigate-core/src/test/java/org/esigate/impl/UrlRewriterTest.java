@@ -501,4 +501,41 @@ public class UrlRewriterTest extends TestCase {
         absolute = true;
         assertDoesNotRewrite("$(PROVIDERS{default})/controller");
     }
+
+    public void testOnlyLastUrlAttributeOfTagIsRewritten() {
+        baseUrl = "http://backend/context/";
+        visibleUrlBase = "http://visible/context/";
+        requestUrl = "path/page.html";
+        absolute = false;
+        assertRewritesHtml("<img src = 'a.png' data-src=\"b.png\">",
+                "<img src = 'a.png' data-src=\"/context/path/b.png\">");
+    }
+
+    public void testCachedUrlsDependOnRequestUrl() {
+        baseUrl = "http://backend/context/";
+        visibleUrlBase = "http://visible/context/";
+        absolute = false;
+        createUrlRewriter();
+
+        requestUrl = "path/page1.html";
+        assertEquals("/context/path/test.png", rewriteUrl("test.png"));
+        assertEquals("/context/path/page1.html?a=b", rewriteUrl("?a=b"));
+        requestUrl = "path/page2.html";
+        assertEquals("/context/path/test.png", rewriteUrl("test.png"));
+        assertEquals("/context/path/page2.html?a=b", rewriteUrl("?a=b"));
+        requestUrl = "other/page1.html";
+        assertEquals("/context/other/test.png", rewriteUrl("test.png"));
+        absolute = true;
+        assertEquals("http://visible/context/other/test.png", rewriteUrl("test.png"));
+    }
+
+    public void testCacheSize() {
+        baseUrl = "http://backend/context/";
+        visibleUrlBase = "http://visible/context/";
+        requestUrl = "path/page.html";
+        urlRewriter = new UrlRewriter(2);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("/context/path/test" + i + ".png", rewriteUrl("test" + i + ".png"));
+        }
+    }
 }
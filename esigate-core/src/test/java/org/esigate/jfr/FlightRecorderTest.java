@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.jfr;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import junit.framework.TestCase;
+
+import org.esigate.MockRequestExecutor;
+import org.esigate.Renderer;
+import org.esigate.esi.EsiRenderer;
+import org.esigate.impl.DriverRequest;
+import org.esigate.renderers.RenderingPipeline;
+import org.esigate.test.TestUtils;
+
+public class FlightRecorderTest extends TestCase {
+
+    private List<RecordedEvent> record(DriverRequest request, String page, List<Renderer> renderers) throws Exception {
+        File file = File.createTempFile("esigate", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.esigate.Render");
+            recording.enable("org.esigate.Parse");
+            recording.start();
+            RenderingPipeline.render(request, page, renderers);
+            recording.stop();
+            recording.dump(file.toPath());
+            return new ArrayList<>(RecordingFile.readAllEvents(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRenderAndParseEvents() throws Exception {
+        assertTrue(FlightRecorder.isEnabled());
+        DriverRequest request =
+                new DriverRequest(TestUtils.createIncomingRequest().build(), MockRequestExecutor.createDriver(),
+                        "path/page.html");
+
+        List<RecordedEvent> events =
+                record(request, "<esi:remove>removed</esi:remove>page",
+                        Collections.<Renderer>singletonList(new EsiRenderer()));
+
+        RecordedEvent render = null;
+        RecordedEvent parse = null;
+        for (RecordedEvent event : events) {
+            if ("org.esigate.Render".equals(event.getEventType().getName())) {
+                render = event;
+            } else if ("org.esigate.Parse".equals(event.getEventType().getName())) {
+                parse = event;
+            }
+        }
+        assertNotNull(render);
+        assertEquals("EsiRenderer", render.getString("renderer"));
+        assertEquals("mock", render.getString("driver"));
+        assertEquals("path/page.html", render.getString("url"));
+        assertNotNull(parse);
+        assertEquals("path/page.html", parse.getString("url"));
+        // The page is parsed by the renderer
+        assertFalse(parse.getStartTime().isBefore(render.getStartTime()));
+    }
+
+    public void testWithoutRequest() {
+        FlightRecorder.Span span = FlightRecorder.startRender(null, "renderer");
+        span.end(null);
+    }
+
+}
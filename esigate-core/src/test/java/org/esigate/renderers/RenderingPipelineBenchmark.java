@@ -0,0 +1,101 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.esigate.HttpErrorPage;
+import org.esigate.MockRequestExecutor;
+import org.esigate.Parameters;
+import org.esigate.Renderer;
+import org.esigate.esi.EsiRenderer;
+import org.esigate.impl.DriverRequest;
+import org.esigate.impl.UrlRewriter;
+import org.esigate.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the sequential rendering previously done by Driver (each renderer producing a new String) with
+ * {@link RenderingPipeline} for the usual ResourceFixup + Esi configuration.
+ * <p>
+ * Run with the gc profiler (-prof gc): gc.alloc.rate.norm is the number of bytes allocated per request, most of them
+ * being copies of the page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderingPipelineBenchmark {
+    private static final String BLOCK = "<div class=\"item\"><a href=\"/context/page.html\">link</a> some text"
+            + " <img src=\"img/image.png\" alt=\"image\"></div>\n<!--esi <p>esi comment</p> -->\n";
+
+    @Param({"10000", "100000", "500000"})
+    private int pageSize;
+
+    private String page;
+    private DriverRequest request;
+    private List<Renderer> renderers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws HttpErrorPage {
+        StringBuilder builder = new StringBuilder(pageSize + BLOCK.length());
+        while (builder.length() < pageSize) {
+            builder.append(BLOCK);
+        }
+        page = builder.toString();
+        request =
+                new DriverRequest(TestUtils.createIncomingRequest().build(), MockRequestExecutor.createDriver(),
+                        "path/page.html");
+        renderers =
+                Arrays.<Renderer>asList(new ResourceFixupRenderer("http://backend/context/", "path/page.html",
+                        new UrlRewriter(), "http://visible/context/", false), new EsiRenderer());
+    }
+
+    @Benchmark
+    public String sequential() throws IOException, HttpErrorPage {
+        String currentBody = page;
+        for (Renderer renderer : renderers) {
+            StringBuilderWriter stringWriter = new StringBuilderWriter(Parameters.DEFAULT_BUFFER_SIZE);
+            renderer.render(request, currentBody, stringWriter);
+            stringWriter.close();
+            currentBody = stringWriter.toString();
+        }
+        return currentBody;
+    }
+
+    @Benchmark
+    public String fused() throws IOException, HttpErrorPage {
+        return RenderingPipeline.render(request, page, renderers);
+    }
+
+}
@@ -0,0 +1,225 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.renderers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.esigate.HttpErrorPage;
+import org.esigate.MockRequestExecutor;
+import org.esigate.Renderer;
+import org.esigate.esi.CommentRenderer;
+import org.esigate.esi.EsiRenderer;
+import org.esigate.impl.DriverRequest;
+import org.esigate.impl.UrlRewriter;
+import org.esigate.test.TestUtils;
+import org.esigate.util.BufferSizeHints;
+
+public class RenderingPipelineTest extends TestCase {
+    private static final String PAGE = "<html><body><a href=\"page.html\">link</a> <img src = 'img/test.png'>"
+            + "<!--esi <img src=\"img/commented.png\"> --> <esi:remove><a href=\"removed.html\"></esi:remove>"
+            + "<esi:comment text=\"comment\"/> <a href=\"/context/test\">--></a></body></html>";
+
+    private DriverRequest request;
+
+    @Override
+    protected void setUp() throws Exception {
+        request =
+                new DriverRequest(TestUtils.createIncomingRequest().build(), MockRequestExecutor.createDriver(),
+                        "path/page.html");
+    }
+
+    private ResourceFixupRenderer createResourceFixupRenderer() {
+        return new ResourceFixupRenderer("http://backend/context/", "path/page.html", new UrlRewriter(),
+                "http://visible/context/", false);
+    }
+
+    private String renderSequentially(List<Renderer> renderers) throws IOException, HttpErrorPage {
+        return renderSequentially(renderers, PAGE);
+    }
+
+    private String renderSequentially(List<Renderer> renderers, String page) throws IOException, HttpErrorPage {
+        String result = page;
+        for (Renderer renderer : renderers) {
+            StringBuilderWriter out = new StringBuilderWriter();
+            renderer.render(request, result, out);
+            result = out.toString();
+        }
+        return result;
+    }
+
+    private void writeByChunks(Writer filter, String input, int chunkSize) throws IOException {
+        for (int i = 0; i < input.length(); i += chunkSize) {
+            filter.write(input, i, Math.min(chunkSize, input.length() - i));
+        }
+        filter.close();
+    }
+
+    public void testSameResultAsSequentialRendering() throws Exception {
+        List<Renderer> renderers = Arrays.<Renderer>asList(createResourceFixupRenderer(), new EsiRenderer());
+        String expected =
+                "<html><body><a href=\"/context/path/page.html\">link</a> <img src='/context/path/img/test.png'>"
+                        + " <img src=\"/context/path/img/commented.png\">   <a href=\"/context/test\">--></a>"
+                        + "</body></html>";
+        assertEquals(expected, renderSequentially(renderers));
+        assertEquals(expected, RenderingPipeline.render(request, PAGE, renderers));
+    }
+
+    public void testFiltersAfterRenderer() throws Exception {
+        List<Renderer> renderers = new ArrayList<>();
+        renderers.add(new EsiRenderer());
+        renderers.add(createResourceFixupRenderer());
+        renderers.add(new CommentRenderer());
+        assertEquals(renderSequentially(renderers), RenderingPipeline.render(request, PAGE, renderers));
+    }
+
+    public void testResourceFixupFilterByChunks() throws Exception {
+        ResourceFixupRenderer renderer = createResourceFixupRenderer();
+        String expected = renderSequentially(Arrays.<Renderer>asList(renderer));
+        for (int chunkSize = 1; chunkSize < 20; chunkSize++) {
+            StringBuilderWriter out = new StringBuilderWriter();
+            writeByChunks(renderer.filter(request, out), PAGE, chunkSize);
+            assertEquals(expected, out.toString());
+        }
+    }
+
+    public void testCommentFilterByChunks() throws Exception {
+        CommentRenderer renderer = new CommentRenderer();
+        String expected = renderSequentially(Arrays.<Renderer>asList(renderer));
+        for (int chunkSize = 1; chunkSize < 20; chunkSize++) {
+            StringBuilderWriter out = new StringBuilderWriter();
+            writeByChunks(renderer.filter(request, out), PAGE, chunkSize);
+            assertEquals(expected, out.toString());
+        }
+    }
+
+    public void testStreamingRenderingWithLegacyRenderers() throws Exception {
+        List<Renderer> renderers = Arrays.<Renderer>asList(createResourceFixupRenderer(), new EsiRenderer());
+        StringBuilderWriter out = new StringBuilderWriter();
+        RenderingPipeline.render(request, new StringReader(PAGE), out, renderers);
+        assertEquals(RenderingPipeline.render(request, PAGE, renderers), out.toString());
+        assertFalse(RenderingPipeline.isStreaming(renderers));
+    }
+
+    public void testStreamingRenderingThrowsErrorPage() throws Exception {
+        final HttpErrorPage errorPage = new HttpErrorPage(500, "Internal server error", "error");
+        Renderer renderer = new Renderer() {
+            @Override
+            public void render(DriverRequest originalRequest, String src, Writer out) throws HttpErrorPage {
+                throw errorPage;
+            }
+        };
+        try {
+            RenderingPipeline.render(request, new StringReader(PAGE), new StringBuilderWriter(),
+                    Arrays.<Renderer>asList(createResourceFixupRenderer(), renderer));
+            fail("Should throw an HttpErrorPage");
+        } catch (HttpErrorPage e) {
+            assertSame(errorPage, e);
+        }
+    }
+
+    public void testRenderingHttpEntity() throws Exception {
+        List<Renderer> renderers = Arrays.<Renderer>asList(createResourceFixupRenderer(), new CommentRenderer());
+        assertTrue(RenderingPipeline.isStreaming(renderers));
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            page.append(PAGE).append("\u00e9\u20ac");
+        }
+        String expected = RenderingPipeline.render(request, page.toString(), renderers);
+        ContentType contentType = ContentType.create("text/html", "UTF-8");
+
+        HttpEntity entity = new RenderingHttpEntity(request, new StringEntity(page.toString(), contentType), renderers);
+        assertEquals(contentType.toString(), entity.getContentType().getValue());
+        assertEquals(-1, entity.getContentLength());
+        assertEquals(expected, EntityUtils.toString(entity));
+
+        entity = new RenderingHttpEntity(request, new StringEntity(page.toString(), contentType), renderers);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertEquals(expected, out.toString("UTF-8"));
+    }
+
+    public void testRenderedCallback() throws Exception {
+        List<Renderer> renderers = Arrays.<Renderer>asList(new CommentRenderer());
+        ContentType contentType = ContentType.create("text/html", "UTF-8");
+        final AtomicInteger calls = new AtomicInteger();
+        Runnable callback = new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        };
+
+        RenderingHttpEntity entity = new RenderingHttpEntity(request, new StringEntity(PAGE, contentType), renderers);
+        entity.setRenderedCallback(callback);
+        assertEquals(0, calls.get());
+        entity.writeTo(new ByteArrayOutputStream());
+        assertEquals(1, calls.get());
+        entity.close();
+        assertEquals(1, calls.get());
+
+        entity = new RenderingHttpEntity(request, new StringEntity(PAGE, contentType), renderers);
+        entity.setRenderedCallback(callback);
+        EntityUtils.toString(entity);
+        assertEquals(2, calls.get());
+
+        entity = new RenderingHttpEntity(request, new StringEntity(PAGE, contentType), renderers);
+        entity.setRenderedCallback(callback);
+        entity.close();
+        assertEquals(3, calls.get());
+    }
+
+    public void testRenderToSegmentsSharesUnchangedText() throws Exception {
+        StringBuilder page = new StringBuilder(PAGE);
+        for (int i = 0; i < 100; i++) {
+            page.append("unchanged text ");
+        }
+        List<Renderer> renderers = Arrays.<Renderer>asList(createResourceFixupRenderer(), new EsiRenderer());
+        List<CharSequence> segments = RenderingPipeline.renderToSegments(request, page.toString(), renderers);
+        StringBuilder result = new StringBuilder();
+        for (CharSequence segment : segments) {
+            result.append(segment);
+        }
+        assertEquals(renderSequentially(renderers, page.toString()), result.toString());
+        assertTrue(segments.size() > 1);
+    }
+
+    public void testRenderToSegmentsRecordsSizeHints() throws Exception {
+        List<Renderer> renderers = Arrays.<Renderer>asList(createResourceFixupRenderer(), new EsiRenderer());
+        BufferSizeHints sizeHints = new BufferSizeHints(10);
+        List<CharSequence> segments = RenderingPipeline.renderToSegments(request, PAGE, renderers, sizeHints, "/page");
+        int sizeHint = sizeHints.predict("/page?param=value");
+        assertTrue(sizeHint > 0);
+        List<CharSequence> segmentsWithHint =
+                RenderingPipeline.renderToSegments(request, PAGE, renderers, sizeHints, "/page");
+        assertEquals(segments.toString(), segmentsWithHint.toString());
+        assertEquals(renderSequentially(renderers), segmentsWithHint.get(0).toString());
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.esigate.http.IncomingRequest;
+import org.esigate.test.TestUtils;
+
+public class ConsistentHashBaseUrlRetrieveStrategyTest extends TestCase {
+    private static final int NB_URIS = 1000;
+
+    private static IncomingRequest createRequest(int i) {
+        return TestUtils.createIncomingRequest("http://localhost:8080/page" + i + ".html").build();
+    }
+
+    public void testGetBaseURLSameUriSameBaseUrl() {
+        String[] baseUrls =
+                new String[] {"http://example.com/test/", "http://example1.com/test/", "http://example2.com/test/"};
+        ConsistentHashBaseUrlRetrieveStrategy strategy = new ConsistentHashBaseUrlRetrieveStrategy(baseUrls);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < NB_URIS; i++) {
+            IncomingRequest request = createRequest(i);
+            String baseUrl = strategy.getBaseURL(request);
+            assertEquals(baseUrl, strategy.getBaseURL(request));
+            assertEquals(baseUrl, new ConsistentHashBaseUrlRetrieveStrategy(baseUrls).getBaseURL(request));
+            Integer count = counts.get(baseUrl);
+            counts.put(baseUrl, count == null ? 1 : count + 1);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced distribution: " + counts, count > NB_URIS / 6);
+        }
+    }
+
+    public void testAddingBackendRemapsFewUris() {
+        ConsistentHashBaseUrlRetrieveStrategy strategy =
+                new ConsistentHashBaseUrlRetrieveStrategy(new String[] {"http://example.com/test/",
+                        "http://example1.com/test/", "http://example2.com/test/"});
+        ConsistentHashBaseUrlRetrieveStrategy newStrategy =
+                new ConsistentHashBaseUrlRetrieveStrategy(new String[] {"http://example.com/test/",
+                        "http://example1.com/test/", "http://example2.com/test/", "http://example3.com/test/"});
+        int remapped = 0;
+        for (int i = 0; i < NB_URIS; i++) {
+            IncomingRequest request = createRequest(i);
+            String newBaseUrl = newStrategy.getBaseURL(request);
+            if (!newBaseUrl.equals(strategy.getBaseURL(request))) {
+                assertEquals("URIs should only move to the new backend", "http://example3.com/test/", newBaseUrl);
+                remapped++;
+            }
+        }
+        assertTrue("Too many URIs remapped: " + remapped, remapped < NB_URIS / 3);
+    }
+
+    public void testGetBaseURLSkipsOverloadedBackend() {
+        String[] baseUrls = new String[] {"http://example.com/test/", "http://example1.com/test/"};
+        ConsistentHashBaseUrlRetrieveStrategy strategy = new ConsistentHashBaseUrlRetrieveStrategy(baseUrls);
+        IncomingRequest request = createRequest(0);
+        String baseUrl = strategy.getBaseURL(request);
+        int index = baseUrl.equals(baseUrls[0]) ? 0 : 1;
+        for (int i = 0; i < 10; i++) {
+            strategy.fetchStarted(index);
+        }
+        assertEquals(baseUrls[1 - index], strategy.getBaseURL(request));
+        for (int i = 0; i < 10; i++) {
+            strategy.fetchCompleted(index, 10);
+        }
+        assertEquals(baseUrl, strategy.getBaseURL(request));
+    }
+
+    public void testFragmentUriIsHashed() {
+        String[] baseUrls =
+                new String[] {"http://example.com/test/", "http://example1.com/test/", "http://example2.com/test/"};
+        ConsistentHashBaseUrlRetrieveStrategy strategy = new ConsistentHashBaseUrlRetrieveStrategy(baseUrls);
+        Set<String> results = new HashSet<>();
+        for (int i = 0; i < NB_URIS; i++) {
+            // The same fragment included in different pages
+            String baseUrl = strategy.getBaseURL(createRequest(i), "/fragment.html");
+            assertEquals(baseUrl, strategy.getBaseURL(createRequest(0), "/fragment.html"));
+            results.add(strategy.getBaseURL(createRequest(0), "/fragment" + i + ".html"));
+        }
+        assertEquals("Fragments of a page should be spread", 3, results.size());
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.http.IncomingRequest;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+
+public class HealthCheckingBaseUrlRetrieveStrategyTest extends TestCase {
+    private static final String[] BASE_URLS = new String[] {"http://example.com/test/", "http://example1.com/test/",
+            "http://example2.com/test/"};
+    private static final int NB_REQUESTS = 1000;
+
+    private HealthCheckingBaseUrlRetrieveStrategy createStrategy(Properties properties) {
+        return new HealthCheckingBaseUrlRetrieveStrategy(BASE_URLS, new SingleBaseUrlRetrieveStrategy(BASE_URLS[0]),
+                properties);
+    }
+
+    public void testIsEnabled() {
+        assertFalse(HealthCheckingBaseUrlRetrieveStrategy.isEnabled(new Properties()));
+        assertTrue(HealthCheckingBaseUrlRetrieveStrategy.isEnabled(new PropertiesBuilder().set(
+                Parameters.HEALTH_CHECK_PATH, "/health").build()));
+        assertTrue(HealthCheckingBaseUrlRetrieveStrategy.isEnabled(new PropertiesBuilder().set(
+                Parameters.OUTLIER_CONSECUTIVE_ERRORS, 5).build()));
+    }
+
+    public void testOutlierEjection() {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.OUTLIER_CONSECUTIVE_ERRORS, 2)
+                        .set(Parameters.OUTLIER_EJECTION_TIME, 100000).build();
+        HealthCheckingBaseUrlRetrieveStrategy strategy = createStrategy(properties);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+
+        strategy.reportError(0);
+        strategy.reportSuccess(0);
+        strategy.reportError(0);
+        assertEquals("Errors are not consecutive", BASE_URLS[0], strategy.getBaseURL(request));
+
+        strategy.reportError(0);
+        assertFalse("Should use another backend", BASE_URLS[0].equals(strategy.getBaseURL(request)));
+
+        strategy.reportError(1);
+        strategy.reportError(1);
+        assertEquals(BASE_URLS[2], strategy.getBaseURL(request));
+    }
+
+    public void testOutlierReinstatedAfterEjectionTime() throws InterruptedException {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.OUTLIER_CONSECUTIVE_ERRORS, 1)
+                        .set(Parameters.OUTLIER_EJECTION_TIME, 200).build();
+        HealthCheckingBaseUrlRetrieveStrategy strategy = createStrategy(properties);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+
+        strategy.reportError(0);
+        assertFalse(BASE_URLS[0].equals(strategy.getBaseURL(request)));
+        Thread.sleep(400);
+        assertEquals(BASE_URLS[0], strategy.getBaseURL(request));
+    }
+
+    public void testActiveChecksThresholds() {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.HEALTH_CHECK_PATH, "/health")
+                        .set(Parameters.HEALTH_CHECK_UNHEALTHY_THRESHOLD, 2)
+                        .set(Parameters.HEALTH_CHECK_HEALTHY_THRESHOLD, 3).build();
+        HealthCheckingBaseUrlRetrieveStrategy strategy = createStrategy(properties);
+
+        strategy.reportCheck(0, false);
+        assertTrue(strategy.isAvailable(0));
+        strategy.reportCheck(0, false);
+        assertFalse(strategy.isAvailable(0));
+        strategy.reportCheck(0, true);
+        strategy.reportCheck(0, true);
+        assertFalse(strategy.isAvailable(0));
+        strategy.reportCheck(0, true);
+        assertTrue(strategy.isAvailable(0));
+    }
+
+    public void testAllBackendsUnhealthy() {
+        Properties properties = new PropertiesBuilder().set(Parameters.HEALTH_CHECK_PATH, "/health").build();
+        HealthCheckingBaseUrlRetrieveStrategy strategy = createStrategy(properties);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+        for (int i = 0; i < BASE_URLS.length; i++) {
+            strategy.reportCheck(i, false);
+            strategy.reportCheck(i, false);
+        }
+        assertEquals(BASE_URLS[0], strategy.getBaseURL(request));
+    }
+
+    public void testUnavailableBackendShareIsSpread() {
+        Properties properties = new PropertiesBuilder().set(Parameters.OUTLIER_CONSECUTIVE_ERRORS, 1).build();
+        HealthCheckingBaseUrlRetrieveStrategy strategy = createStrategy(properties);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+        strategy.reportError(0);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < NB_REQUESTS; i++) {
+            String baseUrl = strategy.getBaseURL(request);
+            Integer count = counts.get(baseUrl);
+            counts.put(baseUrl, count == null ? 1 : count + 1);
+        }
+        assertEquals(2, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced distribution: " + counts, count > NB_REQUESTS / 4);
+        }
+    }
+
+    public void testConsistentHashKeepsUrisOnTheSameBackend() {
+        Properties properties = new PropertiesBuilder().set(Parameters.OUTLIER_CONSECUTIVE_ERRORS, 1).build();
+        ConsistentHashBaseUrlRetrieveStrategy consistentHash = new ConsistentHashBaseUrlRetrieveStrategy(BASE_URLS);
+        HealthCheckingBaseUrlRetrieveStrategy strategy =
+                new HealthCheckingBaseUrlRetrieveStrategy(BASE_URLS, consistentHash, properties);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+        strategy.reportError(0);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < NB_REQUESTS; i++) {
+            String uri = "/fragment" + i + ".html";
+            String baseUrl = strategy.getBaseURL(request, uri);
+            String expected = consistentHash.getBaseURL(request, uri);
+            if (expected.equals(BASE_URLS[0])) {
+                assertFalse(BASE_URLS[0].equals(baseUrl));
+                assertEquals("Should always use the same backend", baseUrl, strategy.getBaseURL(request, uri));
+                Integer count = counts.get(baseUrl);
+                counts.put(baseUrl, count == null ? 1 : count + 1);
+            } else {
+                assertEquals("Should not move the uris of the healthy backends", expected, baseUrl);
+            }
+        }
+        assertEquals("Should be spread over the healthy backends: " + counts, 2, counts.size());
+    }
+
+    public void testActiveChecks() throws InterruptedException {
+        // Nothing listens on port 1
+        String[] urls = new String[] {"http://127.0.0.1:1/a/", "http://127.0.0.1:1/b/"};
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, urls[0])
+                        .set(Parameters.HEALTH_CHECK_PATH, "/health").set(Parameters.HEALTH_CHECK_INTERVAL, 10)
+                        .set(Parameters.HEALTH_CHECK_UNHEALTHY_THRESHOLD, 1).build();
+        HealthCheckingBaseUrlRetrieveStrategy strategy =
+                new HealthCheckingBaseUrlRetrieveStrategy(urls, new SingleBaseUrlRetrieveStrategy(urls[0]), properties);
+        strategy.init(TestUtils.createMockDriver(properties, TestUtils.createHttpResponse().build()), properties);
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((strategy.isAvailable(0) || strategy.isAvailable(1)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(strategy.isAvailable(0));
+        assertFalse(strategy.isAvailable(1));
+        strategy.close();
+    }
+
+    public void testChecksStopWhenDriverReplaced() throws InterruptedException {
+        // Nothing listens on port 1
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://127.0.0.1:1/a/,http://127.0.0.1:1/b/")
+                        .set(Parameters.HEALTH_CHECK_PATH, "/health").set(Parameters.HEALTH_CHECK_INTERVAL, 10)
+                        .set(Parameters.HEALTH_CHECK_UNHEALTHY_THRESHOLD, 1)
+                        .set(Parameters.HEALTH_CHECK_HEALTHY_THRESHOLD, 1).build();
+        Driver driver = TestUtils.createMockDriver(properties, TestUtils.createHttpResponse().build());
+        HealthCheckingBaseUrlRetrieveStrategy strategy =
+                (HealthCheckingBaseUrlRetrieveStrategy) driver.getConfiguration().getBaseUrlRetrieveStrategy();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (strategy.isAvailable(0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(strategy.isAvailable(0));
+
+        TestUtils.createMockDriver(properties, TestUtils.createHttpResponse().build());
+        Thread.sleep(50);
+        strategy.reportCheck(0, true);
+        Thread.sleep(100);
+        assertTrue("No more checks once the driver is replaced", strategy.isAvailable(0));
+    }
+
+}
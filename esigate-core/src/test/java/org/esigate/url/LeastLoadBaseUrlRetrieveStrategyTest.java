@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.url;
+
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.esigate.Driver;
+import org.esigate.Parameters;
+import org.esigate.events.Event;
+import org.esigate.events.EventDefinition;
+import org.esigate.events.EventManager;
+import org.esigate.events.IEventListener;
+import org.esigate.events.impl.FetchEvent;
+import org.esigate.extension.Extension;
+import org.esigate.http.BasicCloseableHttpResponse;
+import org.esigate.http.IncomingRequest;
+import org.esigate.test.PropertiesBuilder;
+import org.esigate.test.TestUtils;
+
+public class LeastLoadBaseUrlRetrieveStrategyTest extends TestCase {
+
+    public void testGetBaseURLUsesAllUrls() {
+        String[] baseUrls =
+                new String[] {"http://example.com/test/", "http://example1.com/test/", "http://example2.com/test/"};
+        LeastLoadBaseUrlRetrieveStrategy strategy = new LeastLoadBaseUrlRetrieveStrategy(baseUrls);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+        Set<String> results = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(strategy.getBaseURL(request));
+        }
+        assertEquals(3, results.size());
+    }
+
+    public void testGetBaseURLAvoidsBusyUrl() {
+        String[] baseUrls = new String[] {"http://example.com/test/", "http://example1.com/test/"};
+        LeastLoadBaseUrlRetrieveStrategy strategy = new LeastLoadBaseUrlRetrieveStrategy(baseUrls);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+        strategy.fetchStarted(0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://example1.com/test/", strategy.getBaseURL(request));
+        }
+        strategy.fetchCompleted(0, 10);
+        strategy.fetchStarted(1);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://example.com/test/", strategy.getBaseURL(request));
+        }
+    }
+
+    public void testUnmeasuredUrlIsNotPreferredToIdleUrl() {
+        String[] baseUrls = new String[] {"http://example.com/test/", "http://example1.com/test/"};
+        LeastLoadBaseUrlRetrieveStrategy strategy = new LeastLoadBaseUrlRetrieveStrategy(baseUrls);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+        strategy.fetchStarted(0);
+        strategy.fetchCompleted(0, 1000);
+        strategy.fetchStarted(1);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://example.com/test/", strategy.getBaseURL(request));
+        }
+    }
+
+    public void testRequestStoppedByExtensionIsNotCounted() throws Exception {
+        Properties properties =
+                new PropertiesBuilder().set(Parameters.REMOTE_URL_BASE, "http://localhost/, http://127.0.0.1/")
+                        .set(Parameters.REMOTE_URL_BASE_STRATEGY, Parameters.LEASTLOAD)
+                        .set(Parameters.EXTENSIONS, StopFetch.class).build();
+        Driver driver =
+                TestUtils.createMockDriver(properties,
+                        TestUtils.createHttpResponse().status(HttpStatus.SC_OK).reason("OK").entity("backend").build());
+        HttpResponse response = TestUtils.driverProxy(driver, TestUtils.createRequest("http://localhost/page").build());
+        assertEquals("stopped", EntityUtils.toString(response.getEntity()));
+        LeastLoadBaseUrlRetrieveStrategy strategy =
+                (LeastLoadBaseUrlRetrieveStrategy) driver.getConfiguration().getBaseUrlRetrieveStrategy();
+        assertEquals(0, strategy.getTotalInFlight());
+    }
+
+    /**
+     * Answers all the requests from FETCH_PRE, so FETCH_POST is never fired.
+     */
+    public static class StopFetch implements Extension, IEventListener {
+        @Override
+        public void init(Driver driver, Properties properties) {
+            driver.getEventManager().register(EventManager.EVENT_FETCH_PRE, this);
+        }
+
+        @Override
+        public boolean event(EventDefinition id, Event event) {
+            FetchEvent fetchEvent = (FetchEvent) event;
+            fetchEvent.setHttpResponse(BasicCloseableHttpResponse.adapt(TestUtils.createHttpResponse()
+                    .status(HttpStatus.SC_OK).reason("OK").entity(new StringEntity("stopped", "UTF-8")).build()));
+            fetchEvent.setExit(true);
+            return true;
+        }
+    }
+
+    public void testGetBaseURLAvoidsSlowUrl() {
+        String[] baseUrls = new String[] {"http://example.com/test/", "http://example1.com/test/"};
+        LeastLoadBaseUrlRetrieveStrategy strategy = new LeastLoadBaseUrlRetrieveStrategy(baseUrls);
+        IncomingRequest request = TestUtils.createIncomingRequest().build();
+        strategy.fetchStarted(0);
+        strategy.fetchCompleted(0, 1000);
+        strategy.fetchStarted(1);
+        strategy.fetchCompleted(1, 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("http://example1.com/test/", strategy.getBaseURL(request));
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.esigate.util;
+
+import junit.framework.TestCase;
+
+public class BufferSizeHintsTest extends TestCase {
+
+    public void testBuckets() {
+        int previousUpperBound = -1;
+        for (int bucket = 0; bucket < 120; bucket++) {
+            int upperBound = BufferSizeHints.upperBound(bucket);
+            assertEquals(bucket, BufferSizeHints.bucket(upperBound));
+            assertEquals(bucket, BufferSizeHints.bucket(previousUpperBound + 1));
+            // Never more than 25% above the actual size
+            assertTrue(upperBound <= (previousUpperBound + 1) * 1.25 + 1);
+            previousUpperBound = upperBound;
+        }
+        assertEquals(Integer.MAX_VALUE, previousUpperBound);
+    }
+
+    public void testPredict() {
+        BufferSizeHints hints = new BufferSizeHints(10);
+        assertEquals(0, hints.predict("/page"));
+        hints.record("/page", 300000);
+        int prediction = hints.predict("/page");
+        assertTrue(prediction >= 300000);
+        assertTrue(prediction <= 300000 * 1.25);
+        // The query string is ignored
+        assertEquals(prediction, hints.predict("/page?param=value"));
+        assertEquals(0, hints.predict("/other"));
+    }
+
+    public void testPredictionCoversMostSizes() {
+        BufferSizeHints hints = new BufferSizeHints(10);
+        for (int i = 0; i < 9; i++) {
+            hints.record("/page", 1000);
+        }
+        hints.record("/page", 100000);
+        assertTrue(hints.predict("/page") < 2000);
+        for (int i = 0; i < 5; i++) {
+            hints.record("/page", 100000);
+        }
+        assertTrue(hints.predict("/page") >= 100000);
+    }
+
+    public void testOldSizesAreForgotten() {
+        BufferSizeHints hints = new BufferSizeHints(10);
+        for (int i = 0; i < 100; i++) {
+            hints.record("/page", 100000);
+        }
+        for (int i = 0; i < 100; i++) {
+            hints.record("/page", 1000);
+        }
+        assertTrue(hints.predict("/page") < 2000);
+    }
+
+    public void testDisabled() {
+        BufferSizeHints hints = new BufferSizeHints(0);
+        hints.record("/page", 1000);
+        assertEquals(0, hints.predict("/page"));
+    }
+
+}
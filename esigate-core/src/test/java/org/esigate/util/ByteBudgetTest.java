@@ -0,0 +1,74 @@
+package org.esigate.util;
+
+import junit.framework.TestCase;
+
+public class ByteBudgetTest extends TestCase {
+
+    public void testReserve() throws Exception {
+        ByteBudget budget = new ByteBudget(1000);
+        ByteBudget.Reservation first = budget.reserve(600, 0);
+        assertNotNull(first);
+        assertNull("Not enough bytes left", budget.reserve(600, 10));
+        ByteBudget.Reservation second = budget.reserve(400, 0);
+        assertNotNull(second);
+        assertEquals(1000, budget.getUsedBytes());
+        first.close();
+        second.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    public void testTaskBiggerThanBudgetRunsAlone() throws Exception {
+        ByteBudget budget = new ByteBudget(1000);
+        ByteBudget.Reservation reservation = budget.reserve(5000, 0);
+        assertNotNull(reservation);
+        assertNull(budget.reserve(1, 0));
+        reservation.close();
+    }
+
+    public void testResize() throws Exception {
+        ByteBudget budget = new ByteBudget(1000);
+        ByteBudget.Reservation reservation = budget.reserve(100, 0);
+        reservation.resize(900);
+        assertEquals(900, budget.getUsedBytes());
+        assertNull(budget.reserve(200, 0));
+        reservation.resize(500);
+        assertNotNull(budget.reserve(200, 0));
+    }
+
+    public void testForceReserve() throws Exception {
+        ByteBudget budget = new ByteBudget(1000);
+        ByteBudget.Reservation first = budget.reserve(1000, 0);
+        ByteBudget.Reservation forced = budget.forceReserve(500);
+        assertEquals(1500, budget.getUsedBytes());
+        forced.close();
+        first.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    public void testWaitForRelease() throws Exception {
+        ByteBudget budget = new ByteBudget(1000);
+        final ByteBudget.Reservation first = budget.reserve(1000, 0);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                first.close();
+            }
+        };
+        thread.start();
+        assertNotNull(budget.reserve(1000, 10000));
+        thread.join();
+    }
+
+    public void testNoLimit() throws Exception {
+        ByteBudget budget = new ByteBudget(0);
+        assertNotNull(budget.reserve(Long.MAX_VALUE / 2, 0));
+        assertNotNull(budget.reserve(Long.MAX_VALUE / 2, 0));
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+}
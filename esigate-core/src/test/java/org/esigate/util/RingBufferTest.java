@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.util;
+
+import junit.framework.TestCase;
+
+public class RingBufferTest extends TestCase {
+
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        assertEquals(1, new RingBuffer<String>(1).capacity());
+        assertEquals(8, new RingBuffer<String>(8).capacity());
+        assertEquals(16, new RingBuffer<String>(9).capacity());
+    }
+
+    public void testFifoAndRejection() {
+        RingBuffer<String> buffer = new RingBuffer<>(2);
+        assertNull(buffer.poll());
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        assertFalse(buffer.offer("c"));
+        assertEquals(1, buffer.getAndResetRejected());
+        assertEquals(0, buffer.getAndResetRejected());
+        assertEquals("a", buffer.poll());
+        assertTrue(buffer.offer("d"));
+        assertEquals("b", buffer.poll());
+        assertEquals("d", buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int count = 100000;
+        final RingBuffer<Integer> buffer = new RingBuffer<>(64);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 1; j <= count; j++) {
+                        while (!buffer.offer(j)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long sum = 0;
+        int received = 0;
+        while (received < producers * count) {
+            Integer element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+            } else {
+                sum += element;
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(buffer.poll());
+        assertEquals((long) producers * count * (count + 1) / 2, sum);
+    }
+
+}
@@ -29,6 +29,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.esigate.server.metrics.MetricsWriter;
+import org.esigate.util.SharedMetrics;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
@@ -43,19 +45,28 @@ import com.codahale.metrics.Timer;
  * Commands
  * <ul>
  * <li>POST /shutdown</li>
- * <li>POST /status</li>
+ * <li>GET /server-status</li>
+ * <li>GET /metrics</li>
  * </ul>
  * 
  * @author Nicolas Richeton
  * 
  */
 public class ControlHandler extends AbstractHandler {
-    private static final String PREFIX_CONTEXT = "org.eclipse.jetty.webapp.WebAppContext.main.";
+    /**
+     * Prefixes of the metrics of the context, deployed as a war or in embedded mode.
+     */
+    private static final String[] PREFIXES_CONTEXT = {"org.eclipse.jetty.webapp.WebAppContext.main.",
+            "org.eclipse.jetty.servlet.ServletContextHandler.main."};
     private static final String PREFIX_THREAD_POOL = "org.eclipse.jetty.util.thread.QueuedThreadPool.esigate.";
     /**
      * Human-readable status
      */
     private static final String URL_STATUS = "/server-status";
+    /**
+     * Metrics in Prometheus text format, or in JSON with parameter format=json or header Accept: application/json.
+     */
+    private static final String URL_METRICS = "/metrics";
     /**
      * Machine-readable status.
      * 
@@ -80,7 +91,8 @@ public class ControlHandler extends AbstractHandler {
      * Control handler for administration tasks.
      * 
      * @param registry
-     *            metrics registry.
+     *            metrics registry of the server, /metrics also includes the metrics of the drivers from
+     *            {@link SharedMetrics}.
      */
     public ControlHandler(MetricRegistry registry) {
         this.registry = registry;
@@ -152,6 +164,25 @@ public class ControlHandler extends AbstractHandler {
                 }
                 break;
 
+            case URL_METRICS:
+                if ("GET".equals(serverRequest.getMethod())) {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    String accept = request.getHeader("Accept");
+                    if ("json".equals(request.getParameter("format"))
+                            || (accept != null && accept.contains("application/json"))) {
+                        response.setContentType("application/json;charset=UTF-8");
+                        try (Writer sos = response.getWriter()) {
+                            MetricsWriter.writeJson(sos, registry, SharedMetrics.getRegistry());
+                        }
+                    } else {
+                        response.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+                        try (Writer sos = response.getWriter()) {
+                            MetricsWriter.writePrometheus(sos, registry, SharedMetrics.getRegistry());
+                        }
+                    }
+                }
+                break;
+
             default:
                 response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
                 break;
@@ -185,22 +216,17 @@ public class ControlHandler extends AbstractHandler {
             result.put(cleanupStatusKey(c.getKey()), String.valueOf(c.getValue().getOneMinuteRate()));
         }
 
-        // Get total accesses
-        Long accesses =
-                meters.get(PREFIX_CONTEXT + "1xx-responses").getCount()
-                        + meters.get(PREFIX_CONTEXT + "2xx-responses").getCount()
-                        + meters.get(PREFIX_CONTEXT + "3xx-responses").getCount()
-                        + meters.get(PREFIX_CONTEXT + "4xx-responses").getCount()
-                        + meters.get(PREFIX_CONTEXT + "5xx-responses").getCount();
+        // Get total accesses and ReqPerSec
+        long accesses = 0;
+        double reqPerSec = 0;
+        for (String status : new String[] {"1xx", "2xx", "3xx", "4xx", "5xx"}) {
+            Meter meter = getContextMeter(meters, status + "-responses");
+            if (meter != null) {
+                accesses += meter.getCount();
+                reqPerSec += meter.getOneMinuteRate();
+            }
+        }
         result.put("Total Accesses", accesses);
-
-        // Get ReqPerSec
-        Double reqPerSec =
-                meters.get(PREFIX_CONTEXT + "1xx-responses").getOneMinuteRate()
-                        + meters.get(PREFIX_CONTEXT + "2xx-responses").getOneMinuteRate()
-                        + meters.get(PREFIX_CONTEXT + "3xx-responses").getOneMinuteRate()
-                        + meters.get(PREFIX_CONTEXT + "4xx-responses").getOneMinuteRate()
-                        + meters.get(PREFIX_CONTEXT + "5xx-responses").getOneMinuteRate();
         result.put("ReqPerSec", reqPerSec);
 
         // Get uptime
@@ -216,6 +242,16 @@ public class ControlHandler extends AbstractHandler {
 
     }
 
+    private static Meter getContextMeter(Map<String, Meter> meters, String name) {
+        for (String prefix : PREFIXES_CONTEXT) {
+            Meter meter = meters.get(prefix + name);
+            if (meter != null) {
+                return meter;
+            }
+        }
+        return null;
+    }
+
     /**
      * Remove unnecessary prefix from Metrics meters id.
      * 
@@ -224,9 +260,10 @@ public class ControlHandler extends AbstractHandler {
      */
     private static String cleanupStatusKey(String s) {
         String result = s;
-        if (s.startsWith(PREFIX_CONTEXT)) {
-            result = s.substring(PREFIX_CONTEXT.length());
-
+        for (String prefix : PREFIXES_CONTEXT) {
+            if (s.startsWith(prefix)) {
+                result = s.substring(prefix.length());
+            }
         }
 
         if (s.startsWith(PREFIX_THREAD_POOL)) {
@@ -21,20 +21,39 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Properties;
 
+import javax.servlet.DispatcherType;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.esigate.DriverFactory;
 import org.esigate.server.metrics.InstrumentedServerConnector;
+import org.esigate.servlet.ProxyFilter;
+import org.esigate.util.SummingTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,12 +79,17 @@ public final class EsigateServer {
 
     private static String contextPath;
     private static int controlPort;
+    private static boolean embedded = false;
     private static String extraClasspath;
     private static long idleTimeout = 0;
     private static int maxThreads = 0;
     private static int minThreads = 0;
     private static int outputBufferSize = 0;
     private static int port;
+    private static boolean h2c = false;
+    private static int httpsPort = 0;
+    private static String keyStorePath;
+    private static String keyStorePassword;
     private static String sessionCookieName;
     private static final int PROPERTY_DEFAULT_CONTROL_PORT = 8081;
     private static final int PROPERTY_DEFAULT_HTTP_PORT = 8080;
@@ -95,6 +119,22 @@ public final class EsigateServer {
         return result;
     }
 
+    /**
+     * Get a boolean from System properties
+     * 
+     * @param prefix
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    private static boolean getProperty(String prefix, String name, boolean defaultValue) {
+        String value = System.getProperty(prefix + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
     /**
      * Get String from System properties
      * 
@@ -158,6 +198,11 @@ public final class EsigateServer {
         EsigateServer.outputBufferSize = getProperty(PROPERTY_PREFIX, "outputBufferSize", 8 * 1024);
         EsigateServer.idleTimeout = getProperty(PROPERTY_PREFIX, "idleTimeout", 30 * 1000);
         EsigateServer.sessionCookieName = getProperty(PROPERTY_PREFIX, "sessionCookieName", null);
+        EsigateServer.embedded = getProperty(PROPERTY_PREFIX, "embedded", false);
+        EsigateServer.h2c = getProperty(PROPERTY_PREFIX, "h2c", false);
+        EsigateServer.httpsPort = getProperty(PROPERTY_PREFIX, "httpsPort", 0);
+        EsigateServer.keyStorePath = getProperty(PROPERTY_PREFIX, "keyStorePath", null);
+        EsigateServer.keyStorePassword = getProperty(PROPERTY_PREFIX, "keyStorePassword", null);
     }
 
     /**
@@ -230,6 +275,9 @@ public final class EsigateServer {
      *             when server cannot be started.
      */
     public static void start() throws Exception {
+        long startTime = System.currentTimeMillis();
+        // Metrics of this Jetty instance, a new server can be started in the same JVM once this one is stopped. The
+        // metrics of the drivers are in SharedMetrics.
         MetricRegistry registry = new MetricRegistry();
 
         QueuedThreadPool threadPool = new InstrumentedQueuedThreadPool(registry);
@@ -245,11 +293,19 @@ public final class EsigateServer {
         HttpConfiguration httpConfig = new HttpConfiguration();
         httpConfig.setOutputBufferSize(outputBufferSize);
         httpConfig.setSendServerVersion(false);
-        Timer processTime = registry.timer("processTime");
+        Timer processTime = registry.timer("processTime", SummingTimer.SUPPLIER);
+
+        // HTTP/1.1, plus HTTP/2 in clear text if enabled (upgrade or prior knowledge)
+        List<ConnectionFactory> factories = new ArrayList<>();
+        factories.add(new InstrumentedConnectionFactory(new HttpConnectionFactory(httpConfig), processTime));
+        if (EsigateServer.h2c) {
+            factories.add(new HTTP2CServerConnectionFactory(httpConfig));
+        }
 
         try (ServerConnector connector =
                 new InstrumentedServerConnector("main", EsigateServer.port, srv, registry,
-                        new InstrumentedConnectionFactory(new HttpConnectionFactory(httpConfig), processTime));
+                        factories.toArray(new ConnectionFactory[factories.size()]));
+                ServerConnector httpsConnector = createHttpsConnector(registry, httpConfig, processTime);
                 ServerConnector controlConnector = new ServerConnector(srv)) {
 
             // Main connector
@@ -263,24 +319,20 @@ public final class EsigateServer {
             controlConnector.setPort(EsigateServer.controlPort);
             controlConnector.setName("control");
 
-            srv.setConnectors(new Connector[] {connector, controlConnector});
-            // War
-            ProtectionDomain protectionDomain = EsigateServer.class.getProtectionDomain();
-            String warFile = protectionDomain.getCodeSource().getLocation().toExternalForm();
-            String currentDir = new File(protectionDomain.getCodeSource().getLocation().getPath()).getParent();
-
-            File workDir = resetTempDirectory(currentDir);
-
-            WebAppContext context = new WebAppContext(warFile, EsigateServer.contextPath);
-            context.setServer(srv);
-            context.setTempDirectory(workDir);
-            if (StringUtils.isNoneEmpty(sessionCookieName)) {
-                context.getSessionHandler().getSessionCookieConfig().setName(sessionCookieName);
+            if (httpsConnector == null) {
+                srv.setConnectors(new Connector[] {connector, controlConnector});
+            } else {
+                srv.setConnectors(new Connector[] {connector, httpsConnector, controlConnector});
             }
-            // Add extra classpath (allows to add extensions).
-            if (EsigateServer.extraClasspath != null) {
-                context.setExtraClasspath(EsigateServer.extraClasspath);
+            long phaseStart = logPhase("Connectors created", startTime);
+
+            Handler context;
+            if (EsigateServer.embedded) {
+                context = createServletContext();
+            } else {
+                context = createWebAppContext();
             }
+            phaseStart = logPhase("Context created", phaseStart);
 
             // Add the handlers
             HandlerCollection handlers = new HandlerList();
@@ -294,12 +346,113 @@ public final class EsigateServer {
 
             srv.setHandler(handlers);
             srv.start();
+            logPhase("Server started", phaseStart);
+            LOG.info("Startup completed in {} ms", System.currentTimeMillis() - startTime);
             srv.join();
 
         }
 
     }
 
+    private static long logPhase(String phase, long phaseStart) {
+        long now = System.currentTimeMillis();
+        LOG.info("{} in {} ms", phase, now - phaseStart);
+        return now;
+    }
+
+    /**
+     * Create the context deploying esigate-server jar itself as a war. The war is extracted to a work directory and
+     * scanned as any web application.
+     * 
+     * @return the context
+     * @throws IOException
+     *             if the work directory cannot be cleaned
+     */
+    private static Handler createWebAppContext() throws IOException {
+        ProtectionDomain protectionDomain = EsigateServer.class.getProtectionDomain();
+        String warFile = protectionDomain.getCodeSource().getLocation().toExternalForm();
+        String currentDir = new File(protectionDomain.getCodeSource().getLocation().getPath()).getParent();
+
+        File workDir = resetTempDirectory(currentDir);
+
+        WebAppContext context = new WebAppContext(warFile, EsigateServer.contextPath);
+        context.setServer(srv);
+        context.setTempDirectory(workDir);
+        // The webapp must use the same metrics classes to share the registry
+        context.getSystemClasspathPattern().add("com.codahale.metrics.");
+        if (StringUtils.isNoneEmpty(sessionCookieName)) {
+            context.getSessionHandler().getSessionCookieConfig().setName(sessionCookieName);
+        }
+        // Add extra classpath (allows to add extensions).
+        if (EsigateServer.extraClasspath != null) {
+            context.setExtraClasspath(EsigateServer.extraClasspath);
+        }
+        return context;
+    }
+
+    /**
+     * Create a lightweight context with {@link ProxyFilter} registered programmatically, using the classes of the
+     * server classpath: no extraction, no scanning. The drivers are configured before the server starts.
+     * 
+     * @return the context
+     */
+    private static Handler createServletContext() {
+        if (EsigateServer.extraClasspath != null) {
+            LOG.warn(PROPERTY_PREFIX + "extraClasspath is ignored in embedded mode, extensions must be in the "
+                    + "classpath and the configuration can be set with -D" + DriverFactory.PROP_CONF_LOCATION);
+        }
+        DriverFactory.ensureConfigured();
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath(EsigateServer.contextPath);
+        if (StringUtils.isNoneEmpty(sessionCookieName)) {
+            context.getSessionHandler().getSessionCookieConfig().setName(sessionCookieName);
+        }
+        context.addFilter(ProxyFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+        // Jetty only applies the filters to requests mapped to a servlet
+        context.addServlet(DefaultServlet.class, "/");
+        return context;
+    }
+
+    /**
+     * Create the HTTPS connector, negotiating HTTP/2 or HTTP/1.1 with ALPN.
+     * 
+     * @return the connector or null if no https port is configured
+     */
+    private static ServerConnector createHttpsConnector(MetricRegistry registry, HttpConfiguration httpConfig,
+            Timer processTime) {
+        if (EsigateServer.httpsPort <= 0) {
+            return null;
+        }
+        if (EsigateServer.keyStorePath == null) {
+            throw new IllegalStateException(PROPERTY_PREFIX + "keyStorePath is required when " + PROPERTY_PREFIX
+                    + "httpsPort is set");
+        }
+        SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+        sslContextFactory.setKeyStorePath(EsigateServer.keyStorePath);
+        sslContextFactory.setKeyStorePassword(EsigateServer.keyStorePassword);
+        // Ciphers allowed by the HTTP/2 specification come first
+        sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+
+        HttpConfiguration httpsConfig = new HttpConfiguration(httpConfig);
+        httpsConfig.addCustomizer(new SecureRequestCustomizer());
+
+        HttpConnectionFactory http11 = new HttpConnectionFactory(httpsConfig);
+        ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+        alpn.setDefaultProtocol(http11.getProtocol());
+        SslConnectionFactory ssl = new SslConnectionFactory(sslContextFactory, alpn.getProtocol());
+
+        ServerConnector httpsConnector =
+                new InstrumentedServerConnector("https", EsigateServer.httpsPort, srv, registry,
+                        new InstrumentedConnectionFactory(ssl, processTime), alpn, new HTTP2ServerConnectionFactory(
+                                httpsConfig), http11);
+        httpsConnector.setIdleTimeout(EsigateServer.idleTimeout);
+        httpsConnector.setSoLingerTime(-1);
+        httpsConnector.setName("https");
+        httpsConnector.setAcceptQueueSize(200);
+        return httpsConnector;
+    }
+
     /**
      * Check if server is started.
      * 
@@ -0,0 +1,362 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.server.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.esigate.util.SummingTimer;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Writes the content of a {@link MetricRegistry} in Prometheus text format or in JSON.
+ * <p>
+ * Timers and histograms are written with their 50th, 95th, 99th and 99.9th percentiles. Durations are in seconds for
+ * Prometheus, as recommended, and in milliseconds in JSON.
+ */
+public final class MetricsWriter {
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p95", "p99", "p999"};
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final double NANOS_PER_MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+    /** Prefixes of the metrics of the drivers, followed by the name of the driver. */
+    private static final String[] DRIVER_PREFIXES = {"Metric", "ConnectionPool", "Esi", "Retry"};
+    private static final String CACHE_STATUS = "cache_hit|cache_miss|cache_module_response|validated";
+    /** Meters of the errors, with the cache status if not a miss: Metric.org.esigate.fetch-post.error.404.cache_hit */
+    private static final Pattern ERROR_METER = Pattern.compile("(.*)\\.error\\.(\\d+)(?:\\.(" + CACHE_STATUS + "))?");
+    /** Meters with a cache status: Metric.cache.cache_hit or Metric.org.esigate.fetch-post.cache_hit */
+    private static final Pattern CACHED_METER = Pattern.compile("(.*)\\.(" + CACHE_STATUS + ")");
+    /** Meters of the responses of Jetty by status class: ...WebAppContext.main.2xx-responses */
+    private static final Pattern RESPONSES_METER = Pattern.compile("(.*)\\.([1-5]xx)-responses");
+
+    private MetricsWriter() {
+
+    }
+
+    /**
+     * Writes the metrics in Prometheus text exposition format 0.0.4.
+     * <p>
+     * The name of the driver is written as a label of the metrics of the drivers, for instance
+     * <code>Metric_fetch_seconds{driver="default"}</code> for <code>Metric.default.fetch</code>, as well as the status
+     * codes and cache statuses appended to the names of the meters. Names which only differ by characters not allowed
+     * in Prometheus, like '.' and '-', are given a numeric suffix.
+     * <p>
+     * The sum of a summary is only written for the {@link SummingTimer}s: the sample of the other timers and of the
+     * histograms decays with time and cannot give a sum that only grows.
+     * 
+     * @param writer
+     *            the writer
+     * @param registries
+     *            the registries
+     * @throws IOException
+     */
+    public static void writePrometheus(Writer writer, MetricRegistry... registries) throws IOException {
+        Map<String, Family> families = new LinkedHashMap<>();
+        for (MetricRegistry registry : registries) {
+            for (Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+                Object value = entry.getValue().getValue();
+                if (value instanceof Number) {
+                    addSample(families, entry.getKey(), "", "gauge", ((Number) value).doubleValue());
+                }
+            }
+            for (Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+                // Dropwizard counters can be decremented
+                addSample(families, entry.getKey(), "", "gauge", entry.getValue().getCount());
+            }
+            for (Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+                addSample(families, entry.getKey(), "_total", "counter", entry.getValue().getCount());
+            }
+            for (Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+                addSummary(families, entry.getKey(), "", entry.getValue().getSnapshot(), entry.getValue().getCount(),
+                        null, 1);
+            }
+            for (Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+                Timer timer = entry.getValue();
+                Long sum = timer instanceof SummingTimer ? ((SummingTimer) timer).getSum() : null;
+                addSummary(families, entry.getKey(), "_seconds", timer.getSnapshot(), timer.getCount(), sum,
+                        NANOS_PER_SECOND);
+            }
+        }
+        for (Family family : families.values()) {
+            writer.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            writer.append(family.samples);
+        }
+    }
+
+    /**
+     * The samples of a metric family, which must be written together after their type.
+     */
+    private static final class Family {
+        private final String name;
+        private final String type;
+        private final Set<String> labelSets = new HashSet<>();
+        private final StringBuilder samples = new StringBuilder();
+
+        private Family(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private static Family getFamily(Map<String, Family> families, String name, String labels, String type) {
+        String familyName = name;
+        for (int i = 2;; i++) {
+            Family family = families.get(familyName);
+            if (family == null) {
+                family = new Family(familyName, type);
+                families.put(familyName, family);
+            }
+            // Same name and labels as another metric: use another name
+            if (family.type.equals(type) && family.labelSets.add(labels)) {
+                return family;
+            }
+            familyName = name + "_" + i;
+        }
+    }
+
+    private static void addSample(Map<String, Family> families, String metricName, String suffix, String type,
+            double value) {
+        String[] nameAndLabels = splitLabels(metricName);
+        Family family = getFamily(families, prometheusName(nameAndLabels[0]) + suffix, nameAndLabels[1], type);
+        appendSample(family.samples, family.name, nameAndLabels[1], null, value);
+    }
+
+    private static void addSummary(Map<String, Family> families, String metricName, String suffix, Snapshot snapshot,
+            long count, Long sum, double unit) {
+        String[] nameAndLabels = splitLabels(metricName);
+        String labels = nameAndLabels[1];
+        Family family = getFamily(families, prometheusName(nameAndLabels[0]) + suffix, labels, "summary");
+        for (double quantile : QUANTILES) {
+            appendSample(family.samples, family.name, labels, "quantile=\"" + quantile + "\"",
+                    snapshot.getValue(quantile) / unit);
+        }
+        if (sum != null) {
+            appendSample(family.samples, family.name + "_sum", labels, null, sum / unit);
+        }
+        appendSample(family.samples, family.name + "_count", labels, null, count);
+    }
+
+    private static void
+            appendSample(StringBuilder samples, String name, String labels, String extraLabel, double value) {
+        samples.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            samples.append('{').append(labels);
+            if (extraLabel != null) {
+                if (!labels.isEmpty()) {
+                    samples.append(',');
+                }
+                samples.append(extraLabel);
+            }
+            samples.append('}');
+        }
+        samples.append(' ').append(formatDouble(value)).append('\n');
+    }
+
+    /**
+     * Moves the variable parts of a metric name to labels: the name of the driver, the status code and the cache
+     * status.
+     * 
+     * @param name
+     *            the metric name
+     * @return the name without the variable parts and the labels
+     */
+    static String[] splitLabels(String name) {
+        StringBuilder labels = new StringBuilder();
+        String result = name;
+        for (String prefix : DRIVER_PREFIXES) {
+            if (name.startsWith(prefix + ".") && name.indexOf('.', prefix.length() + 1) > 0) {
+                int end = name.indexOf('.', prefix.length() + 1);
+                appendLabel(labels, "driver", name.substring(prefix.length() + 1, end));
+                result = prefix + name.substring(end);
+                break;
+            }
+        }
+        Matcher matcher = ERROR_METER.matcher(result);
+        if (matcher.matches()) {
+            appendLabel(labels, "status", matcher.group(2));
+            if (matcher.group(3) != null) {
+                appendLabel(labels, "cache", matcher.group(3));
+            }
+            result = matcher.group(1);
+        } else if ((matcher = CACHED_METER.matcher(result)).matches()) {
+            appendLabel(labels, "cache", matcher.group(2));
+            result = matcher.group(1);
+        } else if ((matcher = RESPONSES_METER.matcher(result)).matches()) {
+            appendLabel(labels, "status", matcher.group(2));
+            result = matcher.group(1) + ".responses";
+        }
+        return new String[] {result, labels.toString()};
+    }
+
+    private static void appendLabel(StringBuilder labels, String name, String value) {
+        if (labels.length() > 0) {
+            labels.append(',');
+        }
+        labels.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                labels.append('\\').append(c);
+            } else if (c == '\n') {
+                labels.append("\\n");
+            } else {
+                labels.append(c);
+            }
+        }
+        labels.append('"');
+    }
+
+    /**
+     * Writes the metrics as a JSON object with one member per kind of metric.
+     * 
+     * @param writer
+     *            the writer
+     * @param registries
+     *            the registries
+     * @throws IOException
+     */
+    public static void writeJson(Writer writer, MetricRegistry... registries) throws IOException {
+        Map<String, Gauge> gauges = new TreeMap<>();
+        Map<String, Counter> counters = new TreeMap<>();
+        Map<String, Meter> meters = new TreeMap<>();
+        Map<String, Histogram> histograms = new TreeMap<>();
+        Map<String, Timer> timers = new TreeMap<>();
+        for (MetricRegistry registry : registries) {
+            gauges.putAll(registry.getGauges());
+            counters.putAll(registry.getCounters());
+            meters.putAll(registry.getMeters());
+            histograms.putAll(registry.getHistograms());
+            timers.putAll(registry.getTimers());
+        }
+        writer.append("{\"gauges\":{");
+        boolean first = true;
+        for (Entry<String, Gauge> entry : gauges.entrySet()) {
+            Object value = entry.getValue().getValue();
+            if (value instanceof Number) {
+                first = writeName(writer, entry.getKey(), first);
+                writer.append(formatDouble(((Number) value).doubleValue()));
+            }
+        }
+        writer.append("},\"counters\":{");
+        first = true;
+        for (Entry<String, Counter> entry : counters.entrySet()) {
+            first = writeName(writer, entry.getKey(), first);
+            writer.append(Long.toString(entry.getValue().getCount()));
+        }
+        writer.append("},\"meters\":{");
+        first = true;
+        for (Entry<String, Meter> entry : meters.entrySet()) {
+            first = writeName(writer, entry.getKey(), first);
+            Meter meter = entry.getValue();
+            writer.append("{\"count\":").append(Long.toString(meter.getCount())).append(",\"m1_rate\":")
+                    .append(formatDouble(meter.getOneMinuteRate())).append('}');
+        }
+        writer.append("},\"histograms\":");
+        writeSnapshots(writer, histograms, 1);
+        writer.append(",\"timers\":");
+        writeSnapshots(writer, timers, NANOS_PER_MILLISECOND);
+        writer.append("}\n");
+    }
+
+    private static <T extends Sampling & Counting> void writeSnapshots(Writer writer, Map<String, T> metrics,
+            double unit) throws IOException {
+        writer.append('{');
+        boolean first = true;
+        for (Entry<String, T> entry : metrics.entrySet()) {
+            first = writeName(writer, entry.getKey(), first);
+            Snapshot snapshot = entry.getValue().getSnapshot();
+            writer.append("{\"count\":").append(Long.toString(entry.getValue().getCount()));
+            for (int i = 0; i < QUANTILES.length; i++) {
+                writer.append(",\"").append(QUANTILE_NAMES[i]).append("\":")
+                        .append(formatDouble(snapshot.getValue(QUANTILES[i]) / unit));
+            }
+            writer.append('}');
+        }
+        writer.append('}');
+    }
+
+    private static boolean writeName(Writer writer, String name, boolean first) throws IOException {
+        if (!first) {
+            writer.append(',');
+        }
+        writer.append('"');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.append('\\').append(c);
+            } else if (c < ' ') {
+                writer.append(String.format("\\u%04x", (int) c));
+            } else {
+                writer.append(c);
+            }
+        }
+        writer.append("\":");
+        return false;
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "0";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Converts a metric name to a valid Prometheus metric name: letters, digits, underscores and colons, not starting
+     * with a digit.
+     * 
+     * @param name
+     *            the metric name
+     * @return the Prometheus name
+     */
+    static String prometheusName(String name) {
+        StringBuilder result = new StringBuilder(name.length() + 1);
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) {
+            result.append('_');
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == ':') {
+                result.append(c);
+            } else {
+                result.append('_');
+            }
+        }
+        return result.toString();
+    }
+
+}
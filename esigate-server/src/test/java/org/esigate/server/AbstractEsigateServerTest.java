@@ -55,6 +55,7 @@ public class AbstractEsigateServerTest {
     private int backendPort;
     private Handler backendHandler;
     private BackendServerRunnable backendServerRunnable = null;
+    private Properties serverProperties;
 
     /**
      * Starts esigate instance on default ports : 8080 for main connection and 8081 for control connection.
@@ -85,6 +86,19 @@ public class AbstractEsigateServerTest {
         this.backendHandler = backendHandler;
     }
 
+    /**
+     * Returns the configuration of the esigate server, without the "server." prefix. Can be overridden to set other
+     * properties.
+     * 
+     * @return the configuration
+     */
+    protected Properties getServerProperties() {
+        Properties p = new Properties();
+        p.setProperty("controlPort", "" + this.esigateControlPort);
+        p.setProperty("port", "" + this.esigatePort);
+        return p;
+    }
+
     /**
      * Start esigate server before each test.
      * 
@@ -92,12 +106,10 @@ public class AbstractEsigateServerTest {
     @Before
     public void setUp() {
         // Esigate server
-        Properties p = new Properties();
-        p.setProperty("controlPort", "" + this.esigateControlPort);
-        p.setProperty("port", "" + this.esigatePort);
+        this.serverProperties = getServerProperties();
 
         this.esigateExecutor = Executors.newSingleThreadExecutor();
-        this.esigateExecutor.execute(new EsigateServerRunnable(p));
+        this.esigateExecutor.execute(new EsigateServerRunnable(this.serverProperties));
         for (int i = 0; i < WAIT_RETRIES; i++) {
 
             if (EsigateServer.isStarted()) {
@@ -161,7 +173,7 @@ public class AbstractEsigateServerTest {
     }
 
     /**
-     * Stops esigate server.
+     * Stops esigate server and the backend server.
      */
     @After
     public void tearDown() {
@@ -171,6 +183,14 @@ public class AbstractEsigateServerTest {
         } catch (InterruptedException e) {
             LOG.warn("Esigate server failed to stop");
         }
+        if (this.backendServerRunnable != null) {
+            this.backendServerRunnable.stop();
+            this.backendExecutor.shutdown();
+        }
+        // The configuration is set as system properties, it must not be used by the next tests
+        for (String name : this.serverProperties.stringPropertyNames()) {
+            System.clearProperty("server." + name);
+        }
     }
 
     /**
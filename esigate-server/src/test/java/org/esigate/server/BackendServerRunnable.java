@@ -27,7 +27,7 @@ public final class BackendServerRunnable implements Runnable {
 
     private int port;
     private Handler handler;
-    private Server server = null;
+    private volatile Server server = null;
 
     /**
      * Starts a backend server based on jetty. This server will use the provided handler to handler requests.
@@ -75,6 +75,6 @@ public final class BackendServerRunnable implements Runnable {
      * @return true if server is started.
      */
     public boolean isStarted() {
-        return this.server.isStarted();
+        return this.server != null && this.server.isStarted();
     }
 }
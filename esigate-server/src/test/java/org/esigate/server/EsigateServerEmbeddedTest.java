@@ -0,0 +1,103 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.esigate.server;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.esigate.DriverFactory;
+import org.esigate.Parameters;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebConversation;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.httpunit.WebResponse;
+
+/**
+ * Esigate server in embedded mode: the requests are proxied by the filter of the server classpath, without the war.
+ */
+public class EsigateServerEmbeddedTest extends AbstractEsigateServerTest {
+    private static final int ESIGATE_PORT = 8080;
+    private static final int CONTROL_PORT = 8081;
+    private static final int BACKEND_PORT = 8082;
+
+    /**
+     * Backend answering with the path of the request.
+     */
+    private static final class BackendHandler extends AbstractHandler {
+        @Override
+        public void
+                handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                        throws IOException {
+            response.setContentType("text/plain");
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().print("backend" + target);
+            baseRequest.setHandled(true);
+        }
+    }
+
+    /**
+     * Starts the server in embedded mode, proxying to the backend.
+     */
+    public EsigateServerEmbeddedTest() {
+        super(ESIGATE_PORT, CONTROL_PORT, BACKEND_PORT, new BackendHandler());
+    }
+
+    @Override
+    protected Properties getServerProperties() {
+        Properties p = super.getServerProperties();
+        p.setProperty("embedded", "true");
+        return p;
+    }
+
+    /**
+     * Configures esigate before the server starts, the embedded server keeps an existing configuration.
+     */
+    @Override
+    @Before
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.setProperty("default." + Parameters.REMOTE_URL_BASE, "http://localhost:" + getBackendPort() + "/");
+        properties.setProperty("default." + Parameters.MAPPINGS, "*");
+        DriverFactory.configure(properties);
+        super.setUp();
+    }
+
+    /**
+     * A request is sent to the backend by the embedded filter.
+     * 
+     * @throws Exception
+     *             on error.
+     */
+    @Test
+    public void testProxy() throws Exception {
+        WebConversation webConversation = new WebConversation();
+        WebRequest req = new GetMethodWebRequest("http://localhost:" + getEsigatePort() + "/page.html");
+        WebResponse resp = webConversation.getResponse(req);
+
+        assertEquals(HttpServletResponse.SC_OK, resp.getResponseCode());
+        assertEquals("backend/page.html", resp.getText());
+    }
+
+}
@@ -20,7 +20,22 @@ import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.http.HostPortHttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpScheme;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.hpack.HpackDecoder;
+import org.eclipse.jetty.http2.hpack.HpackEncoder;
 import org.junit.Test;
 
 import com.meterware.httpunit.GetMethodWebRequest;
@@ -38,6 +53,19 @@ public class EsigateServerTest extends AbstractEsigateServerTest {
 
     static final int STATUS_OK = 200;
     static final int STATUS_NOTFOUND = 404;
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int FRAME_HEADERS = 0x1;
+    private static final int FRAME_SETTINGS = 0x4;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAGS_END_STREAM_END_HEADERS = 0x5;
+    private static final int SOCKET_TIMEOUT = 5000;
+
+    @Override
+    protected Properties getServerProperties() {
+        Properties p = super.getServerProperties();
+        p.setProperty("h2c", "true");
+        return p;
+    }
 
     /**
      * Test control handler (auto mode).
@@ -117,4 +145,56 @@ public class EsigateServerTest extends AbstractEsigateServerTest {
         assertEquals(STATUS_NOTFOUND, resp.getResponseCode());
     }
 
+    /**
+     * Send a HTTP/2 request in clear text without upgrade (prior knowledge).
+     * 
+     * @throws Exception
+     *             on error.
+     */
+    @Test
+    public void testH2cPriorKnowledge() throws Exception {
+        try (Socket socket = new Socket("localhost", getEsigatePort())) {
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // Connection preface, empty settings, then a GET on stream 1
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, FRAME_SETTINGS, 0, 0, new byte[0]);
+            ByteBuffer headers = ByteBuffer.allocate(1024);
+            new HpackEncoder().encode(headers, new MetaData.Request("GET", HttpScheme.HTTP, new HostPortHttpField(
+                    "localhost:" + getEsigatePort()), "/server-status", HttpVersion.HTTP_2, new HttpFields()));
+            headers.flip();
+            byte[] headerBlock = new byte[headers.remaining()];
+            headers.get(headerBlock);
+            writeFrame(out, FRAME_HEADERS, FLAGS_END_STREAM_END_HEADERS, 1, headerBlock);
+
+            // Same response as in HTTP/1.1, see testControlConnectionPort
+            MetaData.Response response = null;
+            while (response == null) {
+                byte[] header = new byte[FRAME_HEADER_LENGTH];
+                in.readFully(header);
+                byte[] payload = new byte[(header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | header[2] & 0xFF];
+                in.readFully(payload);
+                int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & Integer.MAX_VALUE;
+                if (header[3] == FRAME_SETTINGS && (header[4] & FLAG_ACK) == 0) {
+                    writeFrame(out, FRAME_SETTINGS, FLAG_ACK, 0, new byte[0]);
+                } else if (header[3] == FRAME_HEADERS && streamId == 1) {
+                    response = (MetaData.Response) new HpackDecoder(4096, 8192).decode(ByteBuffer.wrap(payload));
+                }
+            }
+            assertEquals(HttpVersion.HTTP_2, response.getHttpVersion());
+            assertEquals(STATUS_NOTFOUND, response.getStatus());
+        }
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + payload.length);
+        frame.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length);
+        frame.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+        out.write(frame.array());
+        out.flush();
+    }
+
 }
@@ -0,0 +1,119 @@
+package org.esigate.server.metrics;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.esigate.util.SummingTimer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+public class MetricsWriterTest extends TestCase {
+
+    private MetricRegistry createRegistry() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.meter("Metric.default.org.esigate.proxy-post").mark(3);
+        registry.timer("Metric.default.proxy", SummingTimer.SUPPLIER).update(2, TimeUnit.MILLISECONDS);
+        registry.register("ConnectionPool.default.leased", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 5;
+            }
+        });
+        return registry;
+    }
+
+    public void testPrometheusName() {
+        assertEquals("Metric_default_org_esigate_proxy_post", MetricsWriter.prometheusName("Metric.default"
+                + ".org.esigate.proxy-post"));
+        assertEquals("_5xx_responses", MetricsWriter.prometheusName("5xx-responses"));
+    }
+
+    public void testWritePrometheus() throws Exception {
+        StringWriter writer = new StringWriter();
+        MetricsWriter.writePrometheus(writer, createRegistry());
+        String result = writer.toString();
+        assertTrue(result.contains("# TYPE Metric_org_esigate_proxy_post_total counter\n"
+                + "Metric_org_esigate_proxy_post_total{driver=\"default\"} 3\n"));
+        assertTrue(result.contains("ConnectionPool_leased{driver=\"default\"} 5\n"));
+        assertTrue(result.contains("# TYPE Metric_proxy_seconds summary\n"));
+        assertTrue(result.contains("Metric_proxy_seconds{driver=\"default\",quantile=\"0.99\"} 0.002\n"));
+        assertTrue(result.contains("Metric_proxy_seconds_sum{driver=\"default\"} 0.002\n"));
+        assertTrue(result.contains("Metric_proxy_seconds_count{driver=\"default\"} 1\n"));
+    }
+
+    public void testWritePrometheusSum() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        Timer timer = registry.timer("processTime", SummingTimer.SUPPLIER);
+        timer.update(2, TimeUnit.MILLISECONDS);
+        timer.update(4, TimeUnit.MILLISECONDS);
+        timer.time().stop();
+        StringWriter writer = new StringWriter();
+        MetricsWriter.writePrometheus(writer, registry);
+        String result = writer.toString();
+        assertTrue(result, result.contains("processTime_seconds_count 3\n"));
+        assertTrue(result, result.matches("(?s).*processTime_seconds_sum 0\\.006\\d*\n.*"));
+    }
+
+    public void testWritePrometheusNoSumFromSample() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.timer("processTime").update(2, TimeUnit.MILLISECONDS);
+        registry.histogram("size").update(3);
+        StringWriter writer = new StringWriter();
+        MetricsWriter.writePrometheus(writer, registry);
+        String result = writer.toString();
+        assertTrue(result, result.contains("processTime_seconds_count 1\n"));
+        assertFalse(result, result.contains("processTime_seconds_sum"));
+        assertTrue(result, result.contains("size_count 1\n"));
+        assertFalse(result, result.contains("size_sum"));
+    }
+
+    public void testWritePrometheusLabels() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.meter("Metric.default.cache.cache_hit").mark(2);
+        registry.meter("Metric.default.cache.validated").mark();
+        registry.meter("Metric.other.cache.cache_hit").mark();
+        registry.meter("Metric.default.org.esigate.fetch-post.error.404.cache_hit").mark();
+        registry.meter("org.eclipse.jetty.webapp.WebAppContext.main.2xx-responses").mark(7);
+        StringWriter writer = new StringWriter();
+        MetricsWriter.writePrometheus(writer, registry);
+        String result = writer.toString();
+        assertTrue(result, result.contains("# TYPE Metric_cache_total counter\n"
+                + "Metric_cache_total{driver=\"default\",cache=\"cache_hit\"} 2\n"
+                + "Metric_cache_total{driver=\"default\",cache=\"validated\"} 1\n"
+                + "Metric_cache_total{driver=\"other\",cache=\"cache_hit\"} 1\n"));
+        assertTrue(result, result.contains("Metric_org_esigate_fetch_post_total{driver=\"default\",status=\"404\","
+                + "cache=\"cache_hit\"} 1\n"));
+        assertTrue(result, result.contains("org_eclipse_jetty_webapp_WebAppContext_main_responses_total"
+                + "{status=\"2xx\"} 7\n"));
+    }
+
+    public void testWritePrometheusNameCollision() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("a.b").inc();
+        registry.counter("a-b").inc(2);
+        registry.meter("a_b_total").mark(3);
+        registry.meter("a.b.total").mark(4);
+        StringWriter writer = new StringWriter();
+        MetricsWriter.writePrometheus(writer, registry);
+        String result = writer.toString();
+        assertTrue(result, result.contains("# TYPE a_b gauge\na_b 2\n"));
+        assertTrue(result, result.contains("# TYPE a_b_2 gauge\na_b_2 1\n"));
+        assertTrue(result, result.contains("# TYPE a_b_total_total counter\na_b_total_total 4\n"));
+        assertTrue(result, result.contains("# TYPE a_b_total_total_2 counter\na_b_total_total_2 3\n"));
+    }
+
+    public void testWriteJson() throws Exception {
+        StringWriter writer = new StringWriter();
+        MetricsWriter.writeJson(writer, createRegistry());
+        String result = writer.toString();
+        assertTrue(result.contains("\"gauges\":{\"ConnectionPool.default.leased\":5}"));
+        assertTrue(result.contains("\"Metric.default.org.esigate.proxy-post\":{\"count\":3,"));
+        assertTrue(result.contains("\"timers\":{\"Metric.default.proxy\":{\"count\":1,\"p50\":2,\"p95\":2,"
+                + "\"p99\":2,\"p999\":2}}"));
+    }
+
+}
@@ -16,7 +16,16 @@
 package org.esigate.servlet;
 
 import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -26,11 +35,17 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.esigate.ConfigurationException;
+import org.esigate.Driver;
 import org.esigate.DriverFactory;
 import org.esigate.HttpErrorPage;
+import org.esigate.Parameters;
 import org.esigate.http.IncomingRequest;
+import org.esigate.servlet.impl.AsyncResponseWriter;
 import org.esigate.servlet.impl.RequestFactory;
 import org.esigate.servlet.impl.ResponseSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * {@link Filter} that can mix local and distant contents using EsiGate.
@@ -39,15 +54,81 @@ import org.esigate.servlet.impl.ResponseSender;
  * 
  */
 public class ProxyFilter implements Filter {
+    /**
+     * Filter init-param: size in bytes of the buffer used to send the responses.
+     */
+    public static final String OUTPUT_BUFFER_SIZE = "outputBufferSize";
+    /**
+     * Filter init-param: true to offload the requests to a pool of threads, the container thread is released while the
+     * request is proxied and the response is sent in non-blocking mode. The backend requests and the rendering are
+     * still blocking: each request holds a thread of the pool instead of a container thread.
+     */
+    public static final String OFFLOAD = "offload";
+    /**
+     * Filter init-param: number of threads proxying the requests in offload mode. Each request holds one of these
+     * threads until its body has been produced: this is the maximum number of requests proxied at the same time.
+     */
+    public static final String OFFLOAD_THREADS = "offloadThreads";
+    /**
+     * Filter init-param: maximum number of requests waiting for a thread in offload mode, the next ones get a 503
+     * error.
+     */
+    public static final String OFFLOAD_QUEUE_SIZE = "offloadQueueSize";
+    /**
+     * Filter init-param: timeout in milliseconds of the offloaded requests, the container default is used if not set.
+     */
+    public static final String OFFLOAD_TIMEOUT = "offloadTimeout";
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyFilter.class);
+    private static final int DEFAULT_OFFLOAD_THREADS = 50;
+    private static final int DEFAULT_OFFLOAD_QUEUE_SIZE = 1000;
     private RequestFactory requestFactory;
-    private final ResponseSender responseSender = new ResponseSender();
+    private ResponseSender responseSender;
+    private ExecutorService executor;
+    private long asyncTimeout;
 
     @Override
     public void init(FilterConfig filterConfig) {
         requestFactory = new RequestFactory(filterConfig.getServletContext());
+        String outputBufferSize = filterConfig.getInitParameter(OUTPUT_BUFFER_SIZE);
+        if (outputBufferSize == null) {
+            responseSender = new ResponseSender();
+        } else {
+            responseSender = new ResponseSender(Integer.parseInt(outputBufferSize.trim()));
+        }
         // Force esigate configuration parsing to trigger errors right away (if
         // any) and prevent delay on first call.
         DriverFactory.ensureConfigured();
+        if (Boolean.parseBoolean(filterConfig.getInitParameter(OFFLOAD))) {
+            checkNoServletExtension();
+            int threads = getIntParameter(filterConfig, OFFLOAD_THREADS, DEFAULT_OFFLOAD_THREADS);
+            int queueSize = getIntParameter(filterConfig, OFFLOAD_QUEUE_SIZE, DEFAULT_OFFLOAD_QUEUE_SIZE);
+            asyncTimeout = getIntParameter(filterConfig, OFFLOAD_TIMEOUT, 0);
+            executor =
+                    new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "esigate-async-" + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+        }
+    }
+
+    /**
+     * The local includes invoke the filter chain, which can only be done from the container thread.
+     */
+    private static void checkNoServletExtension() {
+        for (Driver driver : DriverFactory.getInstances()) {
+            Properties properties = driver.getConfiguration().getProperties();
+            if (Parameters.EXTENSIONS.getValue(properties).contains(ServletExtension.class.getName())) {
+                throw new ConfigurationException(ServletExtension.class.getName() + " cannot be used with " + OFFLOAD
+                        + " mode (" + driver.getConfiguration().getInstanceName() + ".extensions)");
+            }
+        }
     }
 
     @Override
@@ -56,19 +137,93 @@ public class ProxyFilter implements Filter {
         HttpServletResponse httpServletResponse = (HttpServletResponse) response;
         IncomingRequest incomingRequest = requestFactory.create(httpServletRequest, httpServletResponse, chain);
 
+        if (executor != null && request.isAsyncSupported()) {
+            proxyAsync(incomingRequest, httpServletRequest, httpServletResponse);
+            return;
+        }
+        CloseableHttpResponse driverResponse;
         try {
-            CloseableHttpResponse driverResponse = DriverFactory.proxy(incomingRequest);
-            responseSender.sendResponse(driverResponse, incomingRequest, httpServletResponse);
+            driverResponse = DriverFactory.proxy(incomingRequest);
         } catch (HttpErrorPage e) {
-            if (!httpServletResponse.isCommitted()) {
-                responseSender.sendResponse(e.getHttpResponse(), incomingRequest, httpServletResponse);
+            if (httpServletResponse.isCommitted()) {
+                e.getHttpResponse().close();
+                return;
+            }
+            driverResponse = e.getHttpResponse();
+        }
+        // Closing the response releases the backend connection or the memory of the rendered page if not sent
+        try {
+            responseSender.sendResponse(driverResponse, incomingRequest, httpServletResponse);
+        } finally {
+            driverResponse.close();
+        }
+    }
+
+    /**
+     * Proxies the request in a thread of the executor. The backend requests are blocking, so the work is moved to a
+     * bounded pool and the container thread is released for the next requests, which only bounds the requests proxied
+     * at the same time separately from the container pool. On timeout or error, the {@link AsyncResponseWriter} cancels
+     * the task and closes the backend response.
+     */
+    private void proxyAsync(final IncomingRequest incomingRequest, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse) throws IOException {
+        AsyncContext asyncContext = httpServletRequest.startAsync(httpServletRequest, httpServletResponse);
+        if (asyncTimeout > 0) {
+            asyncContext.setTimeout(asyncTimeout);
+        }
+        final AsyncResponseWriter writer = new AsyncResponseWriter(asyncContext, responseSender.getOutputBufferSize());
+        asyncContext.addListener(writer);
+        try {
+            writer.setTask(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    proxy(incomingRequest, writer);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Too many requests waiting, rejecting {}", httpServletRequest.getRequestURI());
+            synchronized (writer) {
+                if (!writer.isCompleted()) {
+                    httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    writer.complete();
+                }
+            }
+        }
+    }
+
+    private void proxy(IncomingRequest incomingRequest, AsyncResponseWriter writer) {
+        try {
+            CloseableHttpResponse driverResponse;
+            try {
+                driverResponse = DriverFactory.proxy(incomingRequest);
+            } catch (HttpErrorPage e) {
+                driverResponse = e.getHttpResponse();
+            }
+            writer.setBackendResponse(driverResponse);
+            responseSender.sendResponse(driverResponse, incomingRequest, writer);
+        } catch (IOException | RuntimeException e) {
+            if (writer.isCompleted()) {
+                LOG.debug("Request aborted " + incomingRequest.getRequestLine(), e);
+            } else {
+                LOG.error("Error processing request " + incomingRequest.getRequestLine(), e);
+                writer.fail();
             }
         }
     }
 
+    private static int getIntParameter(FilterConfig filterConfig, String name, int defaultValue) {
+        String value = filterConfig.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
     @Override
     public void destroy() {
-        // Nothing to do
+        if (executor != null) {
+            executor.shutdownNow();
+        }
     }
 
 }
@@ -15,6 +15,7 @@
 
 package org.esigate.servlet;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Properties;
 
@@ -53,6 +54,8 @@ public class ServletExtension implements Extension, IEventListener {
     private Driver driver;
     private String context;
     private int maxObjectSize;
+    private long spillThreshold;
+    private File spillDirectory;
     private final ResponseSender responseSender = new ResponseSender();
 
     @Override
@@ -61,6 +64,11 @@ public class ServletExtension implements Extension, IEventListener {
         driverParam.getEventManager().register(EventManager.EVENT_FETCH_PRE, this);
         context = properties.getProperty("context");
         maxObjectSize = Parameters.MAX_OBJECT_SIZE.getValue(properties);
+        spillThreshold = Parameters.SPILL_THRESHOLD.getValue(properties);
+        String spillDirectoryName = Parameters.SPILL_DIRECTORY.getValue(properties);
+        if (spillDirectoryName != null) {
+            spillDirectory = new File(spillDirectoryName);
+        }
         if (!Parameters.STALE_WHILE_REVALIDATE.getDefaultValue().equals(
                 Parameters.STALE_WHILE_REVALIDATE.getValue(properties))) {
             throw new ConfigurationException("ServletExtension does not support background revalidation ("
@@ -98,12 +106,13 @@ public class ServletExtension implements Extension, IEventListener {
                     result = HttpErrorPage.generateHttpResponse(HttpStatus.SC_BAD_GATEWAY, message);
                 } else {
                     HttpServletRequestContext httpServletRequestContext = (HttpServletRequestContext) requestContext;
+                    ResponseCapturingWrapper wrappedResponse = null;
                     try {
                         if (fetchEvent.getHttpContext().isProxy()) {
-                            ResponseCapturingWrapper wrappedResponse =
+                            wrappedResponse =
                                     new ResponseCapturingWrapper(httpServletRequestContext.getResponse(),
                                             driver.getContentTypeHelper(), true, maxObjectSize, responseSender,
-                                            incomingRequest);
+                                            incomingRequest, spillThreshold, spillDirectory);
                             if (context == null) {
                                 httpServletRequestContext.getFilterChain().doFilter(
                                         httpServletRequestContext.getRequest(), wrappedResponse);
@@ -121,10 +130,10 @@ public class ServletExtension implements Extension, IEventListener {
                                 }
                             }
                         } else {
-                            ResponseCapturingWrapper wrappedResponse =
+                            wrappedResponse =
                                     new ResponseCapturingWrapper(httpServletRequestContext.getResponse(),
                                             driver.getContentTypeHelper(), false, maxObjectSize, responseSender,
-                                            incomingRequest);
+                                            incomingRequest, spillThreshold, spillDirectory);
                             if (context == null) {
                                 httpServletRequestContext.getRequest().getRequestDispatcher(relUrl)
                                         .forward(httpServletRequestContext.getRequest(), wrappedResponse);
@@ -144,6 +153,11 @@ public class ServletExtension implements Extension, IEventListener {
                         }
                     } catch (IOException | ServletException e) {
                         result = HttpErrorPage.generateHttpResponse(e);
+                    } finally {
+                        // The temporary file is not deleted if the filter chain throws before the response is built
+                        if (wrappedResponse != null) {
+                            wrappedResponse.close();
+                        }
                     }
                 }
                 fetchEvent.setHttpResponse(result);
@@ -0,0 +1,329 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.servlet.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the response of an asynchronous request and completes its {@link AsyncContext}.
+ * <p>
+ * The body is produced by the thread proxying the request, which renders or reads it from the backend into a bounded
+ * buffer and waits when the buffer is full. The {@link ServletOutputStream} is in non-blocking mode and the
+ * {@link WriteListener} only drains the buffer, so a container thread never waits for the backend, for the rendering or
+ * for a slow client.
+ * <p>
+ * Registered as an {@link AsyncListener}, it also aborts the request on timeout or error: the proxying task is
+ * cancelled, the backend response is closed to release its connection and nothing more is written to the response,
+ * which may already be recycled by the container. For this reason, the response is only modified while holding the lock
+ * of this object and after checking that it is not completed.
+ */
+public class AsyncResponseWriter implements WriteListener, AsyncListener {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncResponseWriter.class);
+    /** Number of chunks of bufferSize bytes buffered before the producer waits. */
+    private static final int BUFFERED_CHUNKS = 8;
+    /** How often a waiting producer checks if the request has been aborted. */
+    private static final long OFFER_TIMEOUT = 100;
+    private static final byte[] END = new byte[0];
+
+    private final AsyncContext asyncContext;
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(BUFFERED_CHUNKS);
+    private ServletOutputStream outputStream;
+    private boolean flush;
+    private volatile boolean completed = false;
+    private volatile Future<?> task;
+    private volatile Closeable backendResponse;
+
+    /**
+     * @param asyncContext
+     *            the AsyncContext of the request, this object must be added to its listeners
+     * @param bufferSize
+     *            the size of the chunks of the body
+     */
+    public AsyncResponseWriter(AsyncContext asyncContext, int bufferSize) {
+        this.asyncContext = asyncContext;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the response of the request
+     */
+    public HttpServletResponse getResponse() {
+        return (HttpServletResponse) asyncContext.getResponse();
+    }
+
+    /**
+     * @param task
+     *            the task proxying the request, cancelled if the request is aborted
+     */
+    public void setTask(Future<?> task) {
+        this.task = task;
+        if (completed) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * @param backendResponse
+     *            the response being sent, closed once the request is completed or aborted
+     */
+    public void setBackendResponse(Closeable backendResponse) {
+        this.backendResponse = backendResponse;
+        if (completed) {
+            IOUtils.closeQuietly(backendResponse);
+        }
+    }
+
+    /**
+     * Writes the body to the buffer, waiting while the buffer is full. Must be called by the thread proxying the
+     * request, once the headers are set. The request is completed once the last chunk has been sent.
+     * 
+     * @param entity
+     *            the body
+     * @param flushChunks
+     *            true to flush the response after each chunk, for streamed responses
+     * @throws IOException
+     *             if the body cannot be read or the request has been aborted
+     */
+    public void write(HttpEntity entity, boolean flushChunks) throws IOException {
+        synchronized (this) {
+            if (completed) {
+                throw new IOException("Request aborted");
+            }
+            this.flush = flushChunks;
+            outputStream = asyncContext.getResponse().getOutputStream();
+            outputStream.setWriteListener(this);
+        }
+        try (OutputStream out = new ChunkOutputStream()) {
+            entity.writeTo(out);
+        }
+        put(END);
+    }
+
+    /**
+     * Completes the request, if not already done.
+     */
+    public void complete() {
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            asyncContext.complete();
+        }
+        IOUtils.closeQuietly(backendResponse);
+    }
+
+    /**
+     * Completes the request after an error of the thread proxying it, with a 500 status if the response is not yet
+     * committed.
+     */
+    public void fail() {
+        abort(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, false);
+    }
+
+    /**
+     * @return true if the request has been completed or aborted
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        if (completed) {
+            throw new IOException("Request aborted");
+        }
+        boolean added;
+        try {
+            do {
+                added = chunks.offer(chunk, OFFER_TIMEOUT, TimeUnit.MILLISECONDS);
+            } while (!added && !completed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request aborted");
+        }
+        if (!added) {
+            throw new IOException("Request aborted");
+        }
+        drain();
+    }
+
+    /**
+     * Writes the buffered chunks while the response accepts them. Called by the container when the response can be
+     * written again and by the producer when it adds a chunk.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (completed || outputStream == null) {
+                return;
+            }
+            try {
+                while (outputStream.isReady()) {
+                    byte[] chunk = chunks.poll();
+                    if (chunk == null) {
+                        return;
+                    } else if (chunk == END) {
+                        complete();
+                        return;
+                    }
+                    outputStream.write(chunk);
+                    // Flushing is only allowed when the previous write has been accepted
+                    if (flush && outputStream.isReady()) {
+                        outputStream.flush();
+                    }
+                }
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+    }
+
+    private void abort(int status, boolean cancelTask) {
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            HttpServletResponse response = getResponse();
+            if (status > 0 && !response.isCommitted()) {
+                response.setStatus(status);
+            }
+            asyncContext.complete();
+        }
+        release(cancelTask);
+    }
+
+    private void release(boolean cancelTask) {
+        Future<?> t = task;
+        if (cancelTask && t != null) {
+            t.cancel(true);
+        }
+        IOUtils.closeQuietly(backendResponse);
+        chunks.clear();
+    }
+
+    @Override
+    public void onWritePossible() {
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOG.warn("Could not send response: " + t.getMessage());
+        abort(0, true);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        // Completed by the container, for instance if the client has gone
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+        }
+        release(true);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        LOG.warn("Request timed out: {}", ((HttpServletRequest) asyncContext.getRequest()).getRequestURI());
+        abort(HttpServletResponse.SC_GATEWAY_TIMEOUT, true);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Nothing to do
+    }
+
+    /**
+     * Cuts the body into chunks of bufferSize bytes, a flush sends the current chunk even if it is not full.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+        private byte[] chunk = new byte[bufferSize];
+        private int count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            chunk[count++] = (byte) b;
+            if (count == chunk.length) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int written = 0;
+            while (written < len) {
+                int l = Math.min(len - written, chunk.length - count);
+                System.arraycopy(b, off + written, chunk, count, l);
+                count += l;
+                written += l;
+                if (count == chunk.length) {
+                    sendChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private void sendChunk() throws IOException {
+            byte[] full = count == chunk.length ? chunk : Arrays.copyOf(chunk, count);
+            if (full == chunk) {
+                chunk = new byte[bufferSize];
+            }
+            count = 0;
+            put(full);
+        }
+    }
+
+}
@@ -15,34 +15,36 @@
 
 package org.esigate.servlet.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.Locale;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
+import org.esigate.HttpErrorPage;
 import org.esigate.Parameters;
 import org.esigate.http.BasicCloseableHttpResponse;
 import org.esigate.http.ContentTypeHelper;
 import org.esigate.http.DateUtils;
 import org.esigate.http.HttpResponseUtils;
 import org.esigate.http.IncomingRequest;
+import org.esigate.http.SpillingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,7 +74,7 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
     private PrintWriter responseWriter;
 
     // OutputStream and Writer buffers
-    private ByteArrayOutputStream internalOutputStream;
+    private SpillingOutputStream internalOutputStream;
     private StringBuilderWriter internalWriter;
 
     private HttpServletResponse response;
@@ -90,9 +92,24 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
     private boolean capture = true;
     private final ResponseSender responseSender;
     private final IncomingRequest incomingRequest;
+    private final long spillThreshold;
+    private final File spillDirectory;
 
     public ResponseCapturingWrapper(HttpServletResponse response, ContentTypeHelper contentTypeHelper, boolean proxy,
             int bufferSize, ResponseSender responseSender, IncomingRequest incomingRequest) {
+        this(response, contentTypeHelper, proxy, bufferSize, responseSender, incomingRequest, 0, null);
+    }
+
+    /**
+     * @param spillThreshold
+     *            the size above which the content written to the OutputStream is moved to a temporary file, 0 to keep
+     *            it in memory
+     * @param spillDirectory
+     *            the directory for the temporary files or null for the default temporary directory
+     */
+    public ResponseCapturingWrapper(HttpServletResponse response, ContentTypeHelper contentTypeHelper, boolean proxy,
+            int bufferSize, ResponseSender responseSender, IncomingRequest incomingRequest, long spillThreshold,
+            File spillDirectory) {
         super(response);
         this.response = response;
         this.bufferSize = bufferSize;
@@ -100,6 +117,8 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
         this.proxy = proxy;
         this.responseSender = responseSender;
         this.incomingRequest = incomingRequest;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
     }
 
     @Override
@@ -112,6 +131,7 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
         httpClientResponse.setStatusLine(new BasicStatusLine(HttpVersion.HTTP_1_1, sc, sm));
     }
 
+    @Override
     public int getStatus() {
         return httpClientResponse.getStatusLine().getStatusCode();
     }
@@ -181,6 +201,11 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
         setHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(len));
     }
 
+    @Override
+    public void setContentLengthLong(long len) {
+        setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(len));
+    }
+
     @Override
     public void setCharacterEncoding(String charset) {
         this.characterEncoding = charset;
@@ -290,7 +315,7 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
             throw new IllegalStateException("Writer already obtained");
         }
         if (outputStream == null) {
-            internalOutputStream = new ByteArrayOutputStream(Parameters.DEFAULT_BUFFER_SIZE);
+            internalOutputStream = new SpillingOutputStream(spillThreshold, spillDirectory);
             outputStream = new ServletOutputStream() {
 
                 @Override
@@ -316,6 +341,21 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
                     commit();
                 }
 
+                @Override
+                public boolean isReady() {
+                    // Writing to the buffer never blocks
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException e) {
+                        writeListener.onError(e);
+                    }
+                }
+
                 private void commit() throws IOException {
                     if (!committed) {
                         capture = hasToCaptureOutput();
@@ -448,7 +488,11 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
             } catch (IOException e) {
                 // Nothing to do;
             }
-            httpClientResponse.setEntity(new ByteArrayEntity(internalOutputStream.toByteArray(), resultContentType));
+            try {
+                httpClientResponse.setEntity(internalOutputStream.toEntity(resultContentType));
+            } catch (IOException e) {
+                httpClientResponse = HttpErrorPage.generateHttpResponse(e);
+            }
         }
         if (!capture) {
             // The result has already been written to the response, let's close
@@ -467,4 +511,14 @@ public class ResponseCapturingWrapper extends HttpServletResponseWrapper {
         return httpClientResponse;
     }
 
+    /**
+     * Deletes the temporary file holding the captured content, if any and if it has not already been turned into the
+     * response. Must be called once the request has been processed, even if it failed.
+     */
+    public void close() {
+        if (internalOutputStream != null) {
+            internalOutputStream.close();
+        }
+    }
+
 }
@@ -33,6 +33,26 @@ import org.esigate.http.cookie.CookieUtil;
  * @author Francois-Xavier Bonnet
  */
 public class ResponseSender {
+    private final int outputBufferSize;
+
+    public ResponseSender() {
+        this(HttpResponseUtils.DEFAULT_OUTPUT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param outputBufferSize
+     *            size of the buffer used to copy response bodies
+     */
+    public ResponseSender(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    /**
+     * @return the size of the buffer used to copy response bodies
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
 
     public void sendResponse(HttpResponse httpResponse, IncomingRequest httpRequest, HttpServletResponse response)
             throws IOException {
@@ -42,13 +62,49 @@ public class ResponseSender {
         sendHeaders(httpResponse, httpRequest, response);
         HttpEntity httpEntity = httpResponse.getEntity();
         if (httpEntity != null) {
-            HttpResponseUtils.writeTo(httpEntity, response.getOutputStream());
+            HttpResponseUtils.writeTo(httpEntity, response.getOutputStream(), outputBufferSize);
         } else {
             response.sendError(httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine()
                     .getReasonPhrase());
         }
     }
 
+    /**
+     * Sends a response in non-blocking mode. The body is written by the current thread to the buffer of the
+     * {@link AsyncResponseWriter}, which completes the request once the whole body has been sent.
+     * 
+     * @param httpResponse
+     *            the response to send
+     * @param httpRequest
+     *            the incoming request
+     * @param writer
+     *            the AsyncResponseWriter of the request
+     * @throws IOException
+     */
+    public void sendResponse(HttpResponse httpResponse, IncomingRequest httpRequest, AsyncResponseWriter writer)
+            throws IOException {
+        HttpEntity httpEntity = httpResponse.getEntity();
+        synchronized (writer) {
+            if (writer.isCompleted()) {
+                throw new IOException("Request aborted");
+            }
+            HttpServletResponse response = writer.getResponse();
+            if (response.isCommitted()) {
+                // Response already sent
+                writer.complete();
+                return;
+            }
+            sendHeaders(httpResponse, httpRequest, response);
+            if (httpEntity == null) {
+                response.sendError(httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine()
+                        .getReasonPhrase());
+                writer.complete();
+                return;
+            }
+        }
+        writer.write(httpEntity, HttpResponseUtils.isStreamed(httpEntity));
+    }
+
     void sendHeaders(HttpResponse httpResponse, IncomingRequest httpRequest, HttpServletResponse response) {
         response.setStatus(httpResponse.getStatusLine().getStatusCode());
         for (Header header : httpResponse.getAllHeaders()) {
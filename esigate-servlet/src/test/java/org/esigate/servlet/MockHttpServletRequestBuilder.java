@@ -97,7 +97,11 @@ public class MockHttpServletRequestBuilder {
         Mockito.when(request.getProtocol()).thenReturn(this.protocolVersion);
         Mockito.when(request.getRequestURI()).thenReturn(this.uriString);
 
-        Mockito.when(request.getHeaderNames()).thenReturn(Collections.enumeration(headers));
+        List<String> headerNames = new ArrayList<>();
+        for (Header h : headers) {
+            headerNames.add(h.getName());
+        }
+        Mockito.when(request.getHeaderNames()).thenReturn(Collections.enumeration(headerNames));
         for (Header h : headers) {
             List<String> hresult = new ArrayList<>();
             hresult.add(h.getValue());
@@ -5,10 +5,13 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
@@ -59,6 +62,20 @@ public class MockHttpServletResponse implements HttpServletResponse {
                 public void flush() throws IOException {
                     committed = true;
                 }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException e) {
+                        writeListener.onError(e);
+                    }
+                }
             };
         }
         return outputStream;
@@ -116,6 +133,10 @@ public class MockHttpServletResponse implements HttpServletResponse {
     public void setContentLength(int len) {
     }
 
+    @Override
+    public void setContentLengthLong(long len) {
+    }
+
     @Override
     public void setContentType(String type) {
     }
@@ -235,8 +256,28 @@ public class MockHttpServletResponse implements HttpServletResponse {
     public void setStatus(int sc, String sm) {
     }
 
+    @Override
+    public int getStatus() {
+        return 0;
+    }
+
+    @Override
     public String getHeader(String name) {
         return headers.get(name.toLowerCase());
     }
 
+    @Override
+    public Collection<String> getHeaders(String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(value);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return headers.keySet();
+    }
+
 }
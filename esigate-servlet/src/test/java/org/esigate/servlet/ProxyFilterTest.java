@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.servlet;
+
+import java.util.Properties;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+
+import org.esigate.ConfigurationException;
+import org.esigate.DriverFactory;
+import org.esigate.Parameters;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ProxyFilterTest {
+
+    private static FilterConfig createFilterConfig(boolean offload) {
+        FilterConfig filterConfig = Mockito.mock(FilterConfig.class);
+        Mockito.when(filterConfig.getServletContext()).thenReturn(Mockito.mock(ServletContext.class));
+        Mockito.when(filterConfig.getInitParameter(ProxyFilter.OFFLOAD)).thenReturn(Boolean.toString(offload));
+        return filterConfig;
+    }
+
+    private static void configure(String extensions) {
+        Properties properties = new Properties();
+        properties.setProperty("local." + Parameters.REMOTE_URL_BASE.getName(), "http://localhost");
+        properties.setProperty("local." + Parameters.EXTENSIONS.getName(), extensions);
+        DriverFactory.configure(properties);
+    }
+
+    @Test
+    public void offloadWithServletExtension() {
+        configure(ServletExtension.class.getName());
+        ProxyFilter filter = new ProxyFilter();
+        try {
+            filter.init(createFilterConfig(true));
+            Assert.fail("ServletExtension needs the container thread");
+        } catch (ConfigurationException e) {
+            // Just what we expected
+        } finally {
+            filter.destroy();
+        }
+        // Local includes are fine in synchronous mode
+        filter.init(createFilterConfig(false));
+        filter.destroy();
+    }
+
+    @Test
+    public void offloadWithoutServletExtension() {
+        configure("org.esigate.extension.Esi");
+        ProxyFilter filter = new ProxyFilter();
+        filter.init(createFilterConfig(true));
+        filter.destroy();
+    }
+
+}
@@ -0,0 +1,134 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.esigate.servlet.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.esigate.servlet.MockHttpServletResponse;
+
+public class AsyncResponseWriterTest extends TestCase {
+
+    private AsyncContext createAsyncContext(HttpServletResponse response) {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getResponse()).thenReturn(response);
+        when(asyncContext.getRequest()).thenReturn(mock(HttpServletRequest.class));
+        return asyncContext;
+    }
+
+    public void testWriteInChunks() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        AsyncContext asyncContext = createAsyncContext(response);
+        Closeable backendResponse = mock(Closeable.class);
+        AsyncResponseWriter writer = new AsyncResponseWriter(asyncContext, 3);
+        writer.setBackendResponse(backendResponse);
+
+        writer.write(new StringEntity("0123456789abcdefghijklmnopqrstuvwxyz"), false);
+
+        assertEquals("0123456789abcdefghijklmnopqrstuvwxyz", response.getOutputStreamContentAsString("ISO-8859-1"));
+        assertTrue(writer.isCompleted());
+        verify(asyncContext, times(1)).complete();
+        verify(backendResponse).close();
+    }
+
+    public void testTimeoutCancelsTaskAndClosesBackendResponse() throws Exception {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = createAsyncContext(response);
+        Closeable backendResponse = mock(Closeable.class);
+        Future<?> task = mock(Future.class);
+        AsyncResponseWriter writer = new AsyncResponseWriter(asyncContext, 3);
+        writer.setTask(task);
+        writer.setBackendResponse(backendResponse);
+
+        writer.onTimeout(new AsyncEvent(asyncContext));
+
+        verify(response).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        verify(task).cancel(true);
+        verify(backendResponse).close();
+        verify(asyncContext).complete();
+        // Nothing is written to the response once aborted
+        try {
+            writer.write(new StringEntity("abc"), false);
+            fail("Should throw an IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        verify(response, never()).getOutputStream();
+        writer.complete();
+        verify(asyncContext, times(1)).complete();
+    }
+
+    public void testAbortWhileProducing() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final AsyncContext asyncContext = createAsyncContext(response);
+        final AsyncResponseWriter writer = new AsyncResponseWriter(asyncContext, 3);
+        AbstractHttpEntity entity = new AbstractHttpEntity() {
+            @Override
+            public void writeTo(OutputStream outstream) throws IOException {
+                outstream.write("abc".getBytes("ISO-8859-1"));
+                writer.onError(new AsyncEvent(asyncContext, new IOException("Connection reset")));
+                outstream.write("def".getBytes("ISO-8859-1"));
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return true;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public InputStream getContent() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            writer.write(entity, true);
+            fail("Should throw an IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals("abc", response.getOutputStreamContentAsString("ISO-8859-1"));
+        verify(asyncContext, times(1)).complete();
+    }
+
+}
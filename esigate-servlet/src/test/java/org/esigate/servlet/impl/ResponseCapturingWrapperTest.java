@@ -1,12 +1,16 @@
 package org.esigate.servlet.impl;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.Properties;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.util.EntityUtils;
+import org.esigate.http.MappedFileEntity;
 import org.esigate.http.ContentTypeHelper;
 import org.esigate.http.IncomingRequest;
 import org.esigate.servlet.MockHttpServletResponse;
@@ -66,6 +70,35 @@ public class ResponseCapturingWrapperTest extends TestCase {
                 httpServletResponse.getOutputStreamContentAsString("UTF-8"));
     }
 
+    public void testBigHtmlResponseWrittenToOutputStreamIsSpilledToFile() throws Exception {
+        ResponseCapturingWrapper tested =
+                new ResponseCapturingWrapper(httpServletResponse, contentTypeHelper, false, BUFFER_SIZE,
+                        responseSender, incomingRequest, SMALL_STRING.length(), null);
+        tested.setContentType("text/html;charset=UTF-8");
+        tested.getOutputStream().write(BIG_STRING.getBytes("UTF-8"));
+        HttpEntity entity = tested.getCloseableHttpResponse().getEntity();
+        assertTrue(entity instanceof MappedFileEntity);
+        assertEquals(BIG_STRING.length(), entity.getContentLength());
+        assertEquals(BIG_STRING, EntityUtils.toString(entity));
+    }
+
+    public void testSpilledFileDeletedWhenClosedWithoutResponse() throws Exception {
+        File directory = Files.createTempDirectory("esigate").toFile();
+        try {
+            ResponseCapturingWrapper tested =
+                    new ResponseCapturingWrapper(httpServletResponse, contentTypeHelper, false, BUFFER_SIZE,
+                            responseSender, incomingRequest, SMALL_STRING.length(), directory);
+            tested.setContentType("text/html;charset=UTF-8");
+            tested.getOutputStream().write(BIG_STRING.getBytes("UTF-8"));
+            assertEquals(1, directory.list().length);
+            // The filter chain failed, getCloseableHttpResponse() is not called
+            tested.close();
+            assertEquals(0, directory.list().length);
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
     public void testSmallHtmlResponseWrittenToOutputStreamAndClose() throws Exception {
         ResponseCapturingWrapper tested =
                 new ResponseCapturingWrapper(httpServletResponse, contentTypeHelper, false, BUFFER_SIZE,
@@ -15,6 +15,12 @@
 
 package org.esigate.servlet.impl;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.AsyncContext;
+
 import junit.framework.TestCase;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -23,6 +29,7 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 import org.esigate.http.BasicCloseableHttpResponse;
+import org.esigate.http.IncomingRequest;
 import org.esigate.servlet.MockHttpServletResponse;
 
 import java.io.PrintWriter;
@@ -49,4 +56,18 @@ public class ResponseSenderTest extends TestCase {
         renderer.sendResponse(httpClientResponse, null, httpServletResponse);
     }
 
+    public void testSendResponseAsync() throws Exception {
+        MockHttpServletResponse httpServletResponse = new MockHttpServletResponse();
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getResponse()).thenReturn(httpServletResponse);
+        CloseableHttpResponse httpClientResponse =
+                BasicCloseableHttpResponse.adapt(new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1,
+                        HttpStatus.SC_OK, "OK")));
+        httpClientResponse.setEntity(new StringEntity("Abcdefg"));
+        IncomingRequest incomingRequest = IncomingRequest.builder("http://test.mydomain.fr/foobar/").build();
+        renderer.sendResponse(httpClientResponse, incomingRequest, new AsyncResponseWriter(asyncContext, 4));
+        assertEquals("Abcdefg", httpServletResponse.getOutputStreamContentAsString("ISO-8859-1"));
+        verify(asyncContext).complete();
+    }
+
 }